@@ -27,8 +27,15 @@ import javax.inject.Named;
 import org.gluu.jsf2.message.FacesMessages;
 import org.gluu.jsf2.service.ConversationService;
 import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshChangeDetectionStatistics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshDryRunReport;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshRunMetrics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshScriptMetrics;
 import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshDryRunService;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshMetricsService;
 import org.gluu.oxtrust.ldap.cache.service.CacheRefreshService;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshTimer;
 import org.gluu.oxtrust.ldap.cache.service.CacheRefreshUpdateMethod;
 import org.gluu.oxtrust.ldap.service.ApplianceService;
 import org.gluu.oxtrust.ldap.service.AttributeService;
@@ -118,6 +125,15 @@ public class ConfigureCacheRefreshAction implements SimplePropertiesListModel, S
 	@Inject
 	private CacheRefreshConfiguration cacheRefreshConfiguration;
 
+	@Inject
+	private CacheRefreshTimer cacheRefreshTimer;
+
+	@Inject
+	private CacheRefreshDryRunService cacheRefreshDryRunService;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
 	private boolean cacheRefreshEnabled;
 	private int cacheRefreshEnabledIntervalMinutes;
 
@@ -219,6 +235,39 @@ public class ConfigureCacheRefreshAction implements SimplePropertiesListModel, S
 		return OxTrustConstants.RESULT_SUCCESS;
 	}
 
+	public String dryRun() {
+		checkDuplicateKetattribute();
+
+		updateLists();
+
+		if (!validateLists()) {
+			return OxTrustConstants.RESULT_FAILURE;
+		}
+
+		fixLdapConfigurations(this.cacheRefreshConfiguration.getSourceConfigs());
+		fixLdapConfiguration(this.cacheRefreshConfiguration.getInumConfig());
+		fixLdapConfiguration(this.cacheRefreshConfiguration.getTargetConfig());
+
+		// Dry run uses copy of not saved configuration
+		CacheRefreshConfiguration dryRunConfiguration;
+		try {
+			dryRunConfiguration = jsonService.jsonToObject(jsonService.objectToJson(this.cacheRefreshConfiguration), CacheRefreshConfiguration.class);
+		} catch (Exception ex) {
+			log.error("Failed to prepare Cache Refresh configuration for dry run", ex);
+			facesMessages.add(FacesMessage.SEVERITY_ERROR, "Failed to start cache refresh dry run");
+			return OxTrustConstants.RESULT_FAILURE;
+		}
+
+		if (!cacheRefreshDryRunService.start(dryRunConfiguration)) {
+			facesMessages.add(FacesMessage.SEVERITY_ERROR, "Cache refresh dry run is in progress already");
+			return OxTrustConstants.RESULT_FAILURE;
+		}
+
+		facesMessages.add(FacesMessage.SEVERITY_INFO, "Cache refresh dry run started");
+
+		return OxTrustConstants.RESULT_SUCCESS;
+	}
+
 	private void updateLists() {
 		cacheRefreshConfiguration.setUpdateMethod(this.updateMethod.getValue());
 		cacheRefreshConfiguration.setKeyAttributes(toStringList(this.keyAttributes));
@@ -384,7 +433,44 @@ public class ConfigureCacheRefreshAction implements SimplePropertiesListModel, S
 	public GluuAppliance getAppliance() {
 		return appliance;
 	}
+
+	public String getChangeDetectionMemorySaving() {
+		CacheRefreshChangeDetectionStatistics changeDetectionStatistics = cacheRefreshTimer.getLastChangeDetectionStatistics();
+		if ((changeDetectionStatistics == null) || (changeDetectionStatistics.getEntriesCount() == 0)) {
+			return null;
+		}
+
+		return String.format("%.1f MB", changeDetectionStatistics.getMemorySavingPerMillionEntries() / (1024.0 * 1024.0));
+	}
 	
+	public List<String> getLastRunScriptTimings() {
+		CacheRefreshRunMetrics runMetrics = cacheRefreshMetricsService.getLastRunMetrics();
+		if (runMetrics == null) {
+			return null;
+		}
+
+		List<String> result = new ArrayList<String>();
+		for (CacheRefreshScriptMetrics scriptMetrics : runMetrics.getScripts().values()) {
+			result.add(String.format("%s: %d calls, %d failed, avg %.1f ms, max %.1f ms, %s", scriptMetrics.getName(), scriptMetrics.getExecutionsCount(),
+					scriptMetrics.getFailuresCount(), scriptMetrics.getAverageMillis(), scriptMetrics.getMaxMillis(), scriptMetrics.getHistogram()));
+		}
+
+		return result;
+	}
+
+	public CacheRefreshDryRunReport getDryRunReport() {
+		return cacheRefreshDryRunService.getLastReport();
+	}
+
+	public String getDryRunEstimatedWriteTime() {
+		CacheRefreshDryRunReport dryRunReport = cacheRefreshDryRunService.getLastReport();
+		if ((dryRunReport == null) || (dryRunReport.getEstimatedWriteMillis() < 0)) {
+			return null;
+		}
+
+		return String.format("%.1f s", dryRunReport.getEstimatedWriteMillis() / 1000.0);
+	}
+
 	private GluuLdapConfiguration fixLdapConfiguration(GluuLdapConfiguration ldapConfig) {
 		ldapConfig.updateStringsLists();
 		if (ldapConfig.isUseAnonymousBind()) {
@@ -0,0 +1,68 @@
+package org.gluu.oxtrust.api.cacherefresh;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.gluu.oxtrust.api.openidconnect.BaseWebResource;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshRunMetrics;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshMetricsService;
+import org.gluu.oxtrust.util.OxTrustApiConstants;
+import org.slf4j.Logger;
+
+import com.wordnik.swagger.annotations.ApiOperation;
+
+@Path(OxTrustApiConstants.BASE_API_URL + OxTrustApiConstants.CONFIGURATION + OxTrustApiConstants.CACHE_REFRESH + OxTrustApiConstants.METRICS)
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class CacheRefreshMetricsWebResource extends BaseWebResource {
+
+	@Inject
+	private Logger logger;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
+	@GET
+	@ApiOperation(value = "Get metrics of current or last Cache Refresh run")
+	public Response getRunMetrics() {
+		log("Get Cache Refresh run metrics");
+		try {
+			CacheRefreshRunMetrics runMetrics = cacheRefreshMetricsService.getCurrentRunMetrics();
+			if (runMetrics == null) {
+				runMetrics = cacheRefreshMetricsService.getLastRunMetrics();
+			}
+
+			if (runMetrics == null) {
+				return Response.status(Response.Status.NOT_FOUND).build();
+			}
+
+			return Response.ok(runMetrics).build();
+		} catch (Exception e) {
+			log(logger, e);
+			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	@GET
+	@Path(OxTrustApiConstants.HISTORY)
+	@ApiOperation(value = "Get metrics of last Cache Refresh runs")
+	public Response getRunMetricsHistory() {
+		log("Get Cache Refresh run metrics history");
+		try {
+			return Response.ok(cacheRefreshMetricsService.getRunMetricsHistory()).build();
+		} catch (Exception e) {
+			log(logger, e);
+			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	private void log(String message) {
+		logger.debug("################# Request: " + message);
+	}
+
+}
@@ -22,8 +22,10 @@ import javax.inject.Named;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
 import org.gluu.oxtrust.ldap.service.ApplicationFactory;
 import org.gluu.oxtrust.service.custom.LdapCentralConfigurationReload;
+import org.gluu.oxtrust.service.scim2.ScimTuningConfiguration;
 import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.persist.PersistenceEntryManagerFactory;
 import org.gluu.persist.exception.BasePersistenceException;
@@ -109,10 +111,11 @@ public class ConfigurationFactory {
 
 	public static final String APPLICATION_CONFIGURATION = "oxtrust-config.json";
 	public static final String CACHE_PROPERTIES_FILE = "oxTrustCacheRefresh.properties";
+	public static final String SCIM_PROPERTIES_FILE = "oxTrustScim.properties";
 	public static final String LOG_ROTATION_CONFIGURATION = "oxTrustLogRotationConfiguration.xml";
 	public static final String SALT_FILE_NAME = "salt";
 
-	private String confDir, configFilePath, cacheRefreshFilePath, logRotationFilePath, saltFilePath;
+	private String confDir, configFilePath, cacheRefreshFilePath, scimFilePath, logRotationFilePath, saltFilePath;
 
 	private boolean loaded = false;
 
@@ -129,6 +132,12 @@ public class ConfigurationFactory {
 
 	private long ldapCentralFileLastModifiedTime = -1;
 
+	private volatile CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration;
+	private volatile long cacheRefreshFileLastModifiedTime = -1;
+
+	private volatile ScimTuningConfiguration scimTuningConfiguration;
+	private volatile long scimFileLastModifiedTime = -1;
+
 	private long loadedRevision = -1;
 	private boolean loadedFromLdap = true;
 
@@ -143,6 +152,7 @@ public class ConfigurationFactory {
 
 			this.configFilePath = confDir + APPLICATION_CONFIGURATION;
 			this.cacheRefreshFilePath = confDir + CACHE_PROPERTIES_FILE;
+			this.scimFilePath = confDir + SCIM_PROPERTIES_FILE;
 			this.logRotationFilePath = confDir + LOG_ROTATION_CONFIGURATION;
 			this.saltFilePath = confDir + SALT_FILE_NAME;
 
@@ -295,6 +305,37 @@ public class ConfigurationFactory {
 		return attributeResolverConfiguration;
 	}
 
+	public CacheRefreshTuningConfiguration getCacheRefreshTuningConfiguration() {
+		// Tuning settings are optional. They are re-read only if file was modified to allow changes without restart
+		File cacheRefreshFile = new File(cacheRefreshFilePath);
+		long lastModified = cacheRefreshFile.exists() ? cacheRefreshFile.lastModified() : 0;
+		if ((this.cacheRefreshTuningConfiguration == null) || (lastModified != this.cacheRefreshFileLastModifiedTime)) {
+			FileConfiguration cacheRefreshTuningFileConfiguration = createFileConfiguration(cacheRefreshFilePath, false);
+			CacheRefreshTuningConfiguration loadedCacheRefreshTuningConfiguration = new CacheRefreshTuningConfiguration(cacheRefreshTuningFileConfiguration);
+			for (String unsupportedSetting : loadedCacheRefreshTuningConfiguration.getUnsupportedSettings()) {
+				log.warn("Cache Refresh tuning setting {}", unsupportedSetting);
+			}
+
+			this.cacheRefreshTuningConfiguration = loadedCacheRefreshTuningConfiguration;
+			this.cacheRefreshFileLastModifiedTime = lastModified;
+		}
+
+		return this.cacheRefreshTuningConfiguration;
+	}
+
+	public ScimTuningConfiguration getScimTuningConfiguration() {
+		// Tuning settings are optional. They are used by every SCIM request and re-read only if file was modified
+		File scimFile = new File(scimFilePath);
+		long lastModified = scimFile.exists() ? scimFile.lastModified() : 0;
+		if ((this.scimTuningConfiguration == null) || (lastModified != this.scimFileLastModifiedTime)) {
+			FileConfiguration scimTuningFileConfiguration = createFileConfiguration(scimFilePath, false);
+			this.scimTuningConfiguration = new ScimTuningConfiguration(scimTuningFileConfiguration);
+			this.scimFileLastModifiedTime = lastModified;
+		}
+
+		return this.scimTuningConfiguration;
+	}
+
 	public String getCryptoConfigurationSalt() {
 		return cryptoConfigurationSalt;
 	}
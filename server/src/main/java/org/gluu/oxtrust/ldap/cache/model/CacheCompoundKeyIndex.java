@@ -0,0 +1,189 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Index which interns compound keys into dense int ids and keeps inum map entries in arrays by id
+ *
+ * Index uses open addressing table of ids and caches key hash codes to avoid recalculation of array hash codes during lookups and
+ * resizing. It doesn't allocate objects per entry.
+ */
+public class CacheCompoundKeyIndex {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// Keep table at most 2/3 full
+	private static final int MAX_LOAD_NUMERATOR = 2;
+	private static final int MAX_LOAD_DENOMINATOR = 3;
+
+	// Table slot contains id + 1. Zero means empty slot
+	private int[] table;
+	private int resizeThreshold;
+
+	private CacheCompoundKey[] keys;
+	private int[] keyHashCodes;
+	private GluuInumMap[] inumMaps;
+	private int size;
+
+	public CacheCompoundKeyIndex() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public CacheCompoundKeyIndex(int expectedSize) {
+		int capacity = Math.max(DEFAULT_CAPACITY, expectedSize);
+		this.keys = new CacheCompoundKey[capacity];
+		this.keyHashCodes = new int[capacity];
+		this.inumMaps = new GluuInumMap[capacity];
+
+		allocateTable(getTableCapacity(expectedSize));
+	}
+
+	/**
+	 * Adds or replaces inum map entry for compound key and returns key id
+	 */
+	public int put(CacheCompoundKey key, GluuInumMap inumMap) {
+		int keyHashCode = key.hashCode();
+		int slot = findSlot(key, keyHashCode);
+		if (table[slot] != 0) {
+			int id = table[slot] - 1;
+			inumMaps[id] = inumMap;
+			return id;
+		}
+
+		int id = size;
+		if (id == keys.length) {
+			int newCapacity = keys.length + (keys.length >> 1);
+			keys = Arrays.copyOf(keys, newCapacity);
+			keyHashCodes = Arrays.copyOf(keyHashCodes, newCapacity);
+			inumMaps = Arrays.copyOf(inumMaps, newCapacity);
+		}
+
+		keys[id] = key;
+		keyHashCodes[id] = keyHashCode;
+		inumMaps[id] = inumMap;
+		table[slot] = id + 1;
+		size++;
+
+		if (size > resizeThreshold) {
+			resizeTable(table.length << 1);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Returns key id or -1 if index doesn't contain key
+	 */
+	public int indexOf(CacheCompoundKey key) {
+		int slot = findSlot(key, key.hashCode());
+
+		return table[slot] - 1;
+	}
+
+	public GluuInumMap get(CacheCompoundKey key) {
+		int id = indexOf(key);
+		if (id < 0) {
+			return null;
+		}
+
+		return inumMaps[id];
+	}
+
+	public CacheCompoundKey getKey(int id) {
+		return keys[id];
+	}
+
+	public GluuInumMap getInumMap(int id) {
+		return inumMaps[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns keys of inum map entries with specified inums
+	 */
+	public HashMap<String, CacheCompoundKey> getKeys(Set<String> inums) {
+		HashMap<String, CacheCompoundKey> result = new HashMap<String, CacheCompoundKey>();
+		for (int id = 0; id < size; id++) {
+			String inum = inumMaps[id].getInum();
+			if (inums.contains(inum)) {
+				result.put(inum, keys[id]);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns estimated heap size in bytes of index structure without keys and inum map entries
+	 */
+	public long estimateMemoryUsage() {
+		return MemoryUsageHelper.ARRAY_HEADER_SIZE * 4 + (long) table.length * 4
+				+ (long) keys.length * (MemoryUsageHelper.REFERENCE_SIZE * 2 + 4);
+	}
+
+	private int findSlot(CacheCompoundKey key, int keyHashCode) {
+		int mask = table.length - 1;
+		int slot = MemoryUsageHelper.mixHashCode(keyHashCode) & mask;
+		while (true) {
+			int value = table[slot];
+			if (value == 0) {
+				return slot;
+			}
+
+			int id = value - 1;
+			if ((keyHashCodes[id] == keyHashCode) && keys[id].equals(key)) {
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void allocateTable(int capacity) {
+		this.table = new int[capacity];
+		this.resizeThreshold = (int) ((long) capacity * MAX_LOAD_NUMERATOR / MAX_LOAD_DENOMINATOR);
+	}
+
+	private void resizeTable(int newCapacity) {
+		allocateTable(newCapacity);
+
+		int mask = newCapacity - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = MemoryUsageHelper.mixHashCode(keyHashCodes[id]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	private static int getTableCapacity(int expectedSize) {
+		long minCapacity = Math.max(DEFAULT_CAPACITY, (long) expectedSize * MAX_LOAD_DENOMINATOR / MAX_LOAD_NUMERATOR + 1);
+
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < minCapacity) {
+			capacity <<= 1;
+		}
+
+		return capacity;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheCompoundKeyIndex [size=").append(size).append(", capacity=").append(table.length).append("]");
+		return builder.toString();
+	}
+
+}
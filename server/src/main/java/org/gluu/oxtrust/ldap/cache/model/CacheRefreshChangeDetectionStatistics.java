@@ -0,0 +1,69 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+
+/**
+ * Memory usage of Cache Refresh change detection structures at the last run
+ */
+public class CacheRefreshChangeDetectionStatistics implements Serializable {
+
+	private static final long serialVersionUID = 2630937813424195467L;
+
+	private static final int MILLION = 1000000;
+
+	private int entriesCount;
+	private long memoryUsage;
+	private long boxedMemoryUsage;
+
+	public CacheRefreshChangeDetectionStatistics(int entriesCount, long memoryUsage, long boxedMemoryUsage) {
+		this.entriesCount = entriesCount;
+		this.memoryUsage = memoryUsage;
+		this.boxedMemoryUsage = boxedMemoryUsage;
+	}
+
+	public int getEntriesCount() {
+		return entriesCount;
+	}
+
+	/**
+	 * Returns estimated heap size in bytes of primitive maps used at the last run
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * Returns estimated heap size in bytes of equivalent HashMap based structures
+	 */
+	public long getBoxedMemoryUsage() {
+		return boxedMemoryUsage;
+	}
+
+	public long getMemorySaving() {
+		return boxedMemoryUsage - memoryUsage;
+	}
+
+	public long getMemorySavingPerMillionEntries() {
+		if (entriesCount == 0) {
+			return 0;
+		}
+
+		return getMemorySaving() * MILLION / entriesCount;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshChangeDetectionStatistics [entriesCount=").append(entriesCount).append(", memoryUsage=").append(memoryUsage)
+				.append(", boxedMemoryUsage=").append(boxedMemoryUsage).append(", memorySavingPerMillionEntries=").append(getMemorySavingPerMillionEntries())
+				.append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.List;
+import java.util.Set;
+
+import org.xdi.util.Pair;
+
+/**
+ * State of Cache Refresh run persisted after change detection
+ *
+ * Target updates contain inum and source entry key (DN and source server name). Key is null in VDS mode.
+ * Checkpoint allows to resume interrupted run only if configuration key is the same.
+ */
+public class CacheRefreshCheckpoint {
+
+	private final String configurationKey;
+	private final long creationTime;
+	private final CacheRefreshSnapshot snapshot;
+	private final List<Pair<String, GluuSimplePerson>> targetUpdates;
+	private final Set<String> updatedInums;
+
+	public CacheRefreshCheckpoint(String configurationKey, long creationTime, CacheRefreshSnapshot snapshot,
+			List<Pair<String, GluuSimplePerson>> targetUpdates, Set<String> updatedInums) {
+		this.configurationKey = configurationKey;
+		this.creationTime = creationTime;
+		this.snapshot = snapshot;
+		this.targetUpdates = targetUpdates;
+		this.updatedInums = updatedInums;
+	}
+
+	public String getConfigurationKey() {
+		return configurationKey;
+	}
+
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	public CacheRefreshSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public List<Pair<String, GluuSimplePerson>> getTargetUpdates() {
+		return targetUpdates;
+	}
+
+	/**
+	 * Returns inums of target entries which were updated before run was interrupted
+	 */
+	public Set<String> getUpdatedInums() {
+		return updatedInums;
+	}
+
+	public boolean isActual(String configurationKey) {
+		return this.configurationKey.equals(configurationKey);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshCheckpoint [creationTime=").append(creationTime).append(", snapshotSize=").append(snapshot.size())
+				.append(", targetUpdates=").append(targetUpdates.size()).append(", updatedInums=").append(updatedInums.size()).append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes which Cache Refresh run would apply to inum DB and target servers
+ *
+ * Report is filled by dry run thread and can be read while dry run is in progress.
+ */
+public class CacheRefreshDryRunReport implements Serializable {
+
+	private static final long serialVersionUID = 8304213622573119406L;
+
+	private final long startTime;
+	private volatile long durationMillis = -1;
+	private volatile boolean successful;
+	private volatile String error;
+
+	private volatile int sourceEntriesCount;
+	private volatile int addedEntriesCount;
+	private volatile int changedEntriesCount;
+	private volatile int unchangedEntriesCount;
+	private volatile int removedEntriesCount;
+
+	private volatile long estimatedWriteMillis = -1;
+
+	private final int sampleSize;
+	private final List<String> samples;
+
+	public CacheRefreshDryRunReport(long startTime, int sampleSize) {
+		this.startTime = startTime;
+		this.sampleSize = sampleSize;
+		this.samples = new ArrayList<String>(sampleSize);
+	}
+
+	public void finish(boolean successful, String error) {
+		this.successful = successful;
+		this.error = error;
+		this.durationMillis = System.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * Adds description of change if report doesn't contain enough samples yet
+	 */
+	public boolean addSample(String sample) {
+		synchronized (samples) {
+			if (samples.size() >= sampleSize) {
+				return false;
+			}
+
+			return samples.add(sample);
+		}
+	}
+
+	public boolean isSamplesFull() {
+		synchronized (samples) {
+			return samples.size() >= sampleSize;
+		}
+	}
+
+	public List<String> getSamples() {
+		synchronized (samples) {
+			return new ArrayList<String>(samples);
+		}
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns dry run wall time or -1 if dry run is in progress
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public boolean isFinished() {
+		return durationMillis >= 0;
+	}
+
+	public boolean isSuccessful() {
+		return successful;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public int getSourceEntriesCount() {
+		return sourceEntriesCount;
+	}
+
+	public void setSourceEntriesCount(int sourceEntriesCount) {
+		this.sourceEntriesCount = sourceEntriesCount;
+	}
+
+	public int getAddedEntriesCount() {
+		return addedEntriesCount;
+	}
+
+	public void setAddedEntriesCount(int addedEntriesCount) {
+		this.addedEntriesCount = addedEntriesCount;
+	}
+
+	public int getChangedEntriesCount() {
+		return changedEntriesCount;
+	}
+
+	public void setChangedEntriesCount(int changedEntriesCount) {
+		this.changedEntriesCount = changedEntriesCount;
+	}
+
+	public int getUnchangedEntriesCount() {
+		return unchangedEntriesCount;
+	}
+
+	public void setUnchangedEntriesCount(int unchangedEntriesCount) {
+		this.unchangedEntriesCount = unchangedEntriesCount;
+	}
+
+	public int getRemovedEntriesCount() {
+		return removedEntriesCount;
+	}
+
+	public void setRemovedEntriesCount(int removedEntriesCount) {
+		this.removedEntriesCount = removedEntriesCount;
+	}
+
+	/**
+	 * Returns estimated time of inum DB and target server writes or -1 if there are no metrics of previous runs
+	 */
+	public long getEstimatedWriteMillis() {
+		return estimatedWriteMillis;
+	}
+
+	public void setEstimatedWriteMillis(long estimatedWriteMillis) {
+		this.estimatedWriteMillis = estimatedWriteMillis;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshDryRunReport [startTime=").append(startTime).append(", durationMillis=").append(durationMillis).append(", successful=")
+				.append(successful).append(", error=").append(error).append(", sourceEntriesCount=").append(sourceEntriesCount)
+				.append(", addedEntriesCount=").append(addedEntriesCount).append(", changedEntriesCount=").append(changedEntriesCount)
+				.append(", unchangedEntriesCount=").append(unchangedEntriesCount).append(", removedEntriesCount=").append(removedEntriesCount)
+				.append(", estimatedWriteMillis=").append(estimatedWriteMillis).append(", samples=").append(getSamples()).append("]");
+		return builder.toString();
+	}
+
+}
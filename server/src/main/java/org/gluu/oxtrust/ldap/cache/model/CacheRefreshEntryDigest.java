@@ -0,0 +1,142 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.gluu.oxtrust.model.GluuCustomAttribute;
+
+/**
+ * Canonical 64-bit content digest of source entry
+ *
+ * Digest doesn't depend on order of attributes and order of attribute values. Attribute names and DN are compared case insensitive. It
+ * uses MurmurHash3 x64 mixing functions over UTF-16 chars of length prefixed strings. It's not cryptographic digest.
+ */
+public final class CacheRefreshEntryDigest {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+	private static final long C1 = 0x87C37B91114253D5L;
+	private static final long C2 = 0x4CF5AD432745937FL;
+
+	private static final Comparator<GluuCustomAttribute> ATTRIBUTE_NAME_COMPARATOR = new Comparator<GluuCustomAttribute>() {
+		@Override
+		public int compare(GluuCustomAttribute attribute1, GluuCustomAttribute attribute2) {
+			return attribute1.getName().compareToIgnoreCase(attribute2.getName());
+		}
+	};
+
+	private long hash;
+	private long length;
+
+	private CacheRefreshEntryDigest() {
+		this.hash = SEED;
+	}
+
+	public static long digest(GluuSimplePerson person) {
+		CacheRefreshEntryDigest digest = new CacheRefreshEntryDigest();
+
+		String dn = person.getDn();
+		digest.update(dn == null ? null : dn.toLowerCase());
+
+		List<GluuCustomAttribute> customAttributes = person.getCustomAttributes();
+		GluuCustomAttribute[] attributes = customAttributes.toArray(new GluuCustomAttribute[customAttributes.size()]);
+		Arrays.sort(attributes, ATTRIBUTE_NAME_COMPARATOR);
+
+		for (GluuCustomAttribute attribute : attributes) {
+			String[] values = attribute.getValues();
+			if ((values == null) || (values.length == 0)) {
+				continue;
+			}
+
+			if (values.length > 1) {
+				values = values.clone();
+				Arrays.sort(values, NullsFirstComparator.INSTANCE);
+			}
+
+			digest.update(attribute.getName().toLowerCase());
+			digest.updateLength(values.length);
+			for (String value : values) {
+				digest.update(value);
+			}
+		}
+
+		return digest.finish();
+	}
+
+	private void update(String value) {
+		if (value == null) {
+			updateLength(-1);
+			return;
+		}
+
+		int valueLength = value.length();
+		updateLength(valueLength);
+
+		// Process 4 chars per block
+		int i = 0;
+		for (; i + 4 <= valueLength; i += 4) {
+			long block = value.charAt(i) | ((long) value.charAt(i + 1) << 16) | ((long) value.charAt(i + 2) << 32) | ((long) value.charAt(i + 3) << 48);
+			mix(block);
+		}
+
+		if (i < valueLength) {
+			long block = 0;
+			for (int shift = 0; i < valueLength; i++, shift += 16) {
+				block |= (long) value.charAt(i) << shift;
+			}
+			mix(block);
+		}
+	}
+
+	private void updateLength(long value) {
+		mix(value);
+	}
+
+	private void mix(long block) {
+		long k = block * C1;
+		k = Long.rotateLeft(k, 31);
+		k *= C2;
+
+		hash ^= k;
+		hash = Long.rotateLeft(hash, 27);
+		hash = hash * 5 + 0x52DCE729;
+
+		length++;
+	}
+
+	private long finish() {
+		long h = hash ^ length;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	private static final class NullsFirstComparator implements Comparator<String> {
+
+		private static final NullsFirstComparator INSTANCE = new NullsFirstComparator();
+
+		@Override
+		public int compare(String value1, String value2) {
+			if (value1 == null) {
+				return value2 == null ? 0 : -1;
+			}
+
+			if (value2 == null) {
+				return 1;
+			}
+
+			return value1.compareTo(value2);
+		}
+	}
+
+}
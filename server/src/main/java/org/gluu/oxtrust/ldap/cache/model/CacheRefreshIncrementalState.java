@@ -0,0 +1,62 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incremental Cache Refresh state: change attribute high-water marks of source servers and time of last full scan
+ */
+public class CacheRefreshIncrementalState implements Serializable {
+
+	private static final long serialVersionUID = -1810356402542614829L;
+
+	private String changeAttribute;
+	private long lastFullScanTime;
+	private Map<String, String> changeMarks;
+
+	public CacheRefreshIncrementalState(String changeAttribute, long lastFullScanTime) {
+		this(changeAttribute, lastFullScanTime, new HashMap<String, String>());
+	}
+
+	public CacheRefreshIncrementalState(String changeAttribute, long lastFullScanTime, Map<String, String> changeMarks) {
+		this.changeAttribute = changeAttribute;
+		this.lastFullScanTime = lastFullScanTime;
+		this.changeMarks = new HashMap<String, String>(changeMarks);
+	}
+
+	public String getChangeAttribute() {
+		return changeAttribute;
+	}
+
+	public long getLastFullScanTime() {
+		return lastFullScanTime;
+	}
+
+	public synchronized Map<String, String> getChangeMarks() {
+		return new HashMap<String, String>(changeMarks);
+	}
+
+	public synchronized String getChangeMark(String sourceServerName) {
+		return changeMarks.get(sourceServerName);
+	}
+
+	public synchronized void setChangeMark(String sourceServerName, String value) {
+		changeMarks.put(sourceServerName, value);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshIncrementalState [changeAttribute=").append(changeAttribute).append(", lastFullScanTime=").append(lastFullScanTime)
+				.append(", changeMarks=").append(changeMarks).append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Metrics of one Cache Refresh run phase
+ *
+ * Counters can be updated from worker threads of phase
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CacheRefreshPhaseMetrics implements Serializable {
+
+	private static final long serialVersionUID = 6279302311857024313L;
+
+	private final String name;
+	private final long startTime;
+	private volatile long durationMillis = -1;
+
+	private final AtomicLong entriesCount = new AtomicLong();
+	private final AtomicLong ldapCalls = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	public CacheRefreshPhaseMetrics(String name, long startTime) {
+		this.name = name;
+		this.startTime = startTime;
+	}
+
+	@JsonCreator
+	public CacheRefreshPhaseMetrics(@JsonProperty("name") String name, @JsonProperty("startTime") long startTime,
+			@JsonProperty("durationMillis") long durationMillis, @JsonProperty("entriesCount") long entriesCount,
+			@JsonProperty("ldapCalls") long ldapCalls, @JsonProperty("bytesRead") long bytesRead) {
+		this(name, startTime);
+		this.durationMillis = durationMillis;
+		this.entriesCount.set(entriesCount);
+		this.ldapCalls.set(ldapCalls);
+		this.bytesRead.set(bytesRead);
+	}
+
+	public void finish(long finishTime) {
+		this.durationMillis = finishTime - startTime;
+	}
+
+	@JsonIgnore
+	public boolean isFinished() {
+		return durationMillis >= 0;
+	}
+
+	public void addEntries(long count) {
+		entriesCount.addAndGet(count);
+	}
+
+	public void addLdapCalls(long count) {
+		ldapCalls.addAndGet(count);
+	}
+
+	public void addBytesRead(long count) {
+		bytesRead.addAndGet(count);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns phase wall time or -1 if phase is in progress
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public long getEntriesCount() {
+		return entriesCount.get();
+	}
+
+	public long getLdapCalls() {
+		return ldapCalls.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public double getEntriesPerSecond() {
+		if (durationMillis <= 0) {
+			return 0;
+		}
+
+		return entriesCount.get() * 1000.0 / durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshPhaseMetrics [name=").append(name).append(", durationMillis=").append(durationMillis).append(", entriesCount=")
+				.append(entriesCount).append(", ldapCalls=").append(ldapCalls).append(", bytesRead=").append(bytesRead).append("]");
+		return builder.toString();
+	}
+
+}
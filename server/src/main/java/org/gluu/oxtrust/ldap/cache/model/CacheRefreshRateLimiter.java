@@ -0,0 +1,59 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter which spreads operations of all threads evenly with specified count of operations per second
+ *
+ * Limiter doesn't accumulate unused permits. Zero or negative rate means without limit.
+ */
+public class CacheRefreshRateLimiter {
+
+	private final long intervalNanos;
+	private long nextPermitTime;
+
+	public CacheRefreshRateLimiter(int permitsPerSecond) {
+		this.intervalNanos = permitsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond : 0;
+		this.nextPermitTime = System.nanoTime();
+	}
+
+	public boolean isUnlimited() {
+		return intervalNanos == 0;
+	}
+
+	/**
+	 * Blocks current thread until next operation is allowed
+	 */
+	public void acquire() throws InterruptedException {
+		if (isUnlimited()) {
+			return;
+		}
+
+		long waitNanos = reserve();
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	private synchronized long reserve() {
+		long now = System.nanoTime();
+		long permitTime = Math.max(now, nextPermitTime);
+		nextPermitTime = permitTime + intervalNanos;
+
+		return permitTime - now;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshRateLimiter [intervalNanos=").append(intervalNanos).append("]");
+		return builder.toString();
+	}
+
+}
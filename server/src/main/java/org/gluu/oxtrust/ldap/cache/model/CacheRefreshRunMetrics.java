@@ -0,0 +1,211 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Metrics of Cache Refresh run which consist of sequential phases
+ *
+ * Counters are added to current phase. Phases are started and finished by Cache Refresh thread only.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CacheRefreshRunMetrics implements Serializable {
+
+	private static final long serialVersionUID = -2409318370183602178L;
+
+	private final long startTime;
+	private final String updateMethod;
+	private volatile boolean incremental;
+	private volatile long durationMillis = -1;
+	private volatile boolean successful;
+	private volatile long heapHighWaterMark;
+
+	private final List<CacheRefreshPhaseMetrics> phases;
+	private volatile CacheRefreshPhaseMetrics currentPhase;
+
+	// Scripts metrics by script name
+	private final Map<String, CacheRefreshScriptMetrics> scripts;
+
+	public CacheRefreshRunMetrics(long startTime, String updateMethod) {
+		this.startTime = startTime;
+		this.updateMethod = updateMethod;
+		this.phases = new ArrayList<CacheRefreshPhaseMetrics>();
+		this.scripts = new TreeMap<String, CacheRefreshScriptMetrics>();
+	}
+
+	@JsonCreator
+	public CacheRefreshRunMetrics(@JsonProperty("startTime") long startTime, @JsonProperty("updateMethod") String updateMethod,
+			@JsonProperty("incremental") boolean incremental, @JsonProperty("durationMillis") long durationMillis,
+			@JsonProperty("successful") boolean successful, @JsonProperty("heapHighWaterMark") long heapHighWaterMark,
+			@JsonProperty("phases") List<CacheRefreshPhaseMetrics> phases, @JsonProperty("scripts") Map<String, CacheRefreshScriptMetrics> scripts) {
+		this.startTime = startTime;
+		this.updateMethod = updateMethod;
+		this.incremental = incremental;
+		this.durationMillis = durationMillis;
+		this.successful = successful;
+		this.heapHighWaterMark = heapHighWaterMark;
+		this.phases = phases == null ? new ArrayList<CacheRefreshPhaseMetrics>() : new ArrayList<CacheRefreshPhaseMetrics>(phases);
+		this.scripts = scripts == null ? new TreeMap<String, CacheRefreshScriptMetrics>() : new TreeMap<String, CacheRefreshScriptMetrics>(scripts);
+	}
+
+	/**
+	 * Finishes current phase and starts new one
+	 */
+	public CacheRefreshPhaseMetrics startPhase(String name) {
+		long now = System.currentTimeMillis();
+		finishPhase(now);
+
+		CacheRefreshPhaseMetrics phase = new CacheRefreshPhaseMetrics(name, now);
+		synchronized (phases) {
+			phases.add(phase);
+		}
+		this.currentPhase = phase;
+
+		return phase;
+	}
+
+	public void finish(boolean successful, long heapHighWaterMark) {
+		long now = System.currentTimeMillis();
+		finishPhase(now);
+
+		this.successful = successful;
+		this.heapHighWaterMark = heapHighWaterMark;
+		this.durationMillis = now - startTime;
+	}
+
+	private void finishPhase(long now) {
+		CacheRefreshPhaseMetrics phase = this.currentPhase;
+		if ((phase != null) && !phase.isFinished()) {
+			phase.finish(now);
+		}
+		this.currentPhase = null;
+	}
+
+	public void addEntries(long count) {
+		CacheRefreshPhaseMetrics phase = this.currentPhase;
+		if (phase != null) {
+			phase.addEntries(count);
+		}
+	}
+
+	public void addLdapCalls(long count) {
+		CacheRefreshPhaseMetrics phase = this.currentPhase;
+		if (phase != null) {
+			phase.addLdapCalls(count);
+		}
+	}
+
+	public void addBytesRead(long count) {
+		CacheRefreshPhaseMetrics phase = this.currentPhase;
+		if (phase != null) {
+			phase.addBytesRead(count);
+		}
+	}
+
+	public void addScriptExecution(String scriptName, long nanos, boolean successful) {
+		CacheRefreshScriptMetrics scriptMetrics;
+		synchronized (scripts) {
+			scriptMetrics = scripts.get(scriptName);
+			if (scriptMetrics == null) {
+				scriptMetrics = new CacheRefreshScriptMetrics(scriptName);
+				scripts.put(scriptName, scriptMetrics);
+			}
+		}
+
+		scriptMetrics.addExecution(nanos, successful);
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public String getUpdateMethod() {
+		return updateMethod;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Returns run wall time or -1 if run is in progress
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@JsonIgnore
+	public boolean isFinished() {
+		return durationMillis >= 0;
+	}
+
+	public boolean isSuccessful() {
+		return successful;
+	}
+
+	/**
+	 * Returns peak heap usage in bytes during run
+	 */
+	public long getHeapHighWaterMark() {
+		return heapHighWaterMark;
+	}
+
+	public List<CacheRefreshPhaseMetrics> getPhases() {
+		synchronized (phases) {
+			return new ArrayList<CacheRefreshPhaseMetrics>(phases);
+		}
+	}
+
+	public Map<String, CacheRefreshScriptMetrics> getScripts() {
+		synchronized (scripts) {
+			return new TreeMap<String, CacheRefreshScriptMetrics>(scripts);
+		}
+	}
+
+	public long getLdapCalls() {
+		long result = 0;
+		for (CacheRefreshPhaseMetrics phase : getPhases()) {
+			result += phase.getLdapCalls();
+		}
+
+		return result;
+	}
+
+	public long getBytesRead() {
+		long result = 0;
+		for (CacheRefreshPhaseMetrics phase : getPhases()) {
+			result += phase.getBytesRead();
+		}
+
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshRunMetrics [startTime=").append(startTime).append(", updateMethod=").append(updateMethod).append(", incremental=")
+				.append(incremental).append(", durationMillis=").append(durationMillis).append(", successful=").append(successful)
+				.append(", heapHighWaterMark=").append(heapHighWaterMark).append(", phases=").append(getPhases()).append(", scripts=").append(getScripts().values())
+				.append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+/**
+ * Result of target server schema validation
+ *
+ * Result stays valid while schema modification timestamp and configuration key (attributes mapping, object classes and scripts
+ * revisions) are the same.
+ */
+public class CacheRefreshSchemaValidationResult {
+
+	private final String configurationKey;
+	private final String schemaDn;
+	private final String schemaModifyTimestamp;
+	private final boolean valid;
+
+	public CacheRefreshSchemaValidationResult(String configurationKey, String schemaDn, String schemaModifyTimestamp, boolean valid) {
+		this.configurationKey = configurationKey;
+		this.schemaDn = schemaDn;
+		this.schemaModifyTimestamp = schemaModifyTimestamp;
+		this.valid = valid;
+	}
+
+	public String getConfigurationKey() {
+		return configurationKey;
+	}
+
+	public String getSchemaDn() {
+		return schemaDn;
+	}
+
+	public String getSchemaModifyTimestamp() {
+		return schemaModifyTimestamp;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public boolean isActual(String configurationKey, String schemaModifyTimestamp) {
+		return (this.schemaModifyTimestamp != null) && this.schemaModifyTimestamp.equals(schemaModifyTimestamp)
+				&& this.configurationKey.equals(configurationKey);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshSchemaValidationResult [schemaDn=").append(schemaDn).append(", schemaModifyTimestamp=").append(schemaModifyTimestamp)
+				.append(", valid=").append(valid).append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Execution time histogram of one Cache Refresh script during run
+ *
+ * Executions can be added from worker threads concurrently
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CacheRefreshScriptMetrics implements Serializable {
+
+	private static final long serialVersionUID = -3106429536618405312L;
+
+	// Upper bounds of histogram buckets in milliseconds. Last bucket holds slower executions
+	private static final long[] BUCKET_BOUNDS_MILLIS = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+	private final String name;
+
+	private final AtomicLong executionsCount = new AtomicLong();
+	private final AtomicLong failuresCount = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+	public CacheRefreshScriptMetrics(String name) {
+		this.name = name;
+	}
+
+	@JsonCreator
+	public CacheRefreshScriptMetrics(@JsonProperty("name") String name, @JsonProperty("executionsCount") long executionsCount,
+			@JsonProperty("failuresCount") long failuresCount, @JsonProperty("totalNanos") long totalNanos, @JsonProperty("maxNanos") long maxNanos,
+			@JsonProperty("bucketCounts") long[] bucketCounts) {
+		this(name);
+		this.executionsCount.set(executionsCount);
+		this.failuresCount.set(failuresCount);
+		this.totalNanos.set(totalNanos);
+		this.maxNanos.set(maxNanos);
+		if (bucketCounts != null) {
+			for (int i = 0; i < Math.min(bucketCounts.length, this.bucketCounts.length()); i++) {
+				this.bucketCounts.set(i, bucketCounts[i]);
+			}
+		}
+	}
+
+	public void addExecution(long nanos, boolean successful) {
+		executionsCount.incrementAndGet();
+		if (!successful) {
+			failuresCount.incrementAndGet();
+		}
+		totalNanos.addAndGet(nanos);
+
+		long currentMaxNanos;
+		do {
+			currentMaxNanos = maxNanos.get();
+		} while ((nanos > currentMaxNanos) && !maxNanos.compareAndSet(currentMaxNanos, nanos));
+
+		bucketCounts.incrementAndGet(getBucket(nanos / 1000000L));
+	}
+
+	private int getBucket(long millis) {
+		for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+			if (millis < BUCKET_BOUNDS_MILLIS[i]) {
+				return i;
+			}
+		}
+
+		return BUCKET_BOUNDS_MILLIS.length;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getExecutionsCount() {
+		return executionsCount.get();
+	}
+
+	public long getFailuresCount() {
+		return failuresCount.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public long[] getBucketCounts() {
+		long[] result = new long[bucketCounts.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bucketCounts.get(i);
+		}
+
+		return result;
+	}
+
+	@JsonIgnore
+	public double getAverageMillis() {
+		long count = executionsCount.get();
+		if (count == 0) {
+			return 0;
+		}
+
+		return totalNanos.get() / 1000000.0 / count;
+	}
+
+	@JsonIgnore
+	public double getMaxMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * Returns executions count per bucket with labels like "<5ms" and ">=5000ms"
+	 */
+	@JsonIgnore
+	public Map<String, Long> getHistogram() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+			result.put(String.format("<%dms", BUCKET_BOUNDS_MILLIS[i]), bucketCounts.get(i));
+		}
+		result.put(String.format(">=%dms", BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1]), bucketCounts.get(BUCKET_BOUNDS_MILLIS.length));
+
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshScriptMetrics [name=").append(name).append(", executionsCount=").append(executionsCount).append(", failuresCount=")
+				.append(failuresCount).append(", averageMillis=").append(String.format("%.3f", getAverageMillis())).append(", maxMillis=")
+				.append(String.format("%.3f", getMaxMillis())).append(", histogram=").append(getHistogram()).append("]");
+		return builder.toString();
+	}
+
+}
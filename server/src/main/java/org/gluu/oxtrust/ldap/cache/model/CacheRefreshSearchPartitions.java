@@ -0,0 +1,175 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Key attribute prefixes used to load source entries of source server base DN with searches limited by size limit
+ *
+ * Partition is prefix of key attribute value or exact value if it starts with '='. Partition which search hits size limit is split into
+ * longer prefixes and exact value. Sibling partitions with small entries count are merged back at next run. Partitions of each base DN
+ * always cover all values which start with one of letters.
+ */
+public class CacheRefreshSearchPartitions {
+
+	public static final String EXACT_MATCH_PREFIX = "=";
+
+	private static final int MAX_PARTITION_LENGTH = 6;
+
+	private final String letters;
+	private final int sizeLimit;
+
+	// Partitions and entries counts learned at previous run by source server name and base DN
+	private final Map<String, Map<String, Map<String, Integer>>> learnedPartitions = new HashMap<String, Map<String, Map<String, Integer>>>();
+
+	// Partitions and entries counts of current run by source server name and base DN
+	private final Map<String, Map<String, Map<String, Integer>>> partitions = new TreeMap<String, Map<String, Map<String, Integer>>>();
+	private int searchesCount;
+
+	public CacheRefreshSearchPartitions(String letters, int sizeLimit) {
+		this.letters = letters;
+		this.sizeLimit = sizeLimit;
+	}
+
+	public synchronized void addLearnedPartition(String sourceServerName, String baseDn, String partition, int count) {
+		getBaseDnPartitions(learnedPartitions, sourceServerName, baseDn).put(partition, count);
+	}
+
+	/**
+	 * Returns partitions to search in base DN. Partitions of siblings which contain less than half of size limit entries are merged
+	 */
+	public synchronized String[] getPartitions(String sourceServerName, String baseDn) {
+		Map<String, Integer> baseDnPartitions = getBaseDnPartitions(learnedPartitions, sourceServerName, baseDn);
+		if (baseDnPartitions.isEmpty()) {
+			String[] result = new String[letters.length()];
+			for (int i = 0; i < letters.length(); i++) {
+				result[i] = String.valueOf(letters.charAt(i));
+			}
+
+			return result;
+		}
+
+		Map<String, Integer> parentCounts = new HashMap<String, Integer>();
+		Map<String, Integer> parentSizes = new HashMap<String, Integer>();
+		for (Entry<String, Integer> baseDnPartition : baseDnPartitions.entrySet()) {
+			String parent = getParent(baseDnPartition.getKey());
+			if (parent != null) {
+				parentCounts.put(parent, getValue(parentCounts, parent) + baseDnPartition.getValue());
+				parentSizes.put(parent, getValue(parentSizes, parent) + 1);
+			}
+		}
+
+		Set<String> mergedParents = new HashSet<String>();
+		for (Entry<String, Integer> parentCount : parentCounts.entrySet()) {
+			String parent = parentCount.getKey();
+			if ((sizeLimit > 0) && (getValue(parentSizes, parent) == letters.length() + 1) && (parentCount.getValue() < sizeLimit / 2)) {
+				mergedParents.add(parent);
+			}
+		}
+
+		List<String> result = new ArrayList<String>(baseDnPartitions.size());
+		for (String baseDnPartition : baseDnPartitions.keySet()) {
+			if (!mergedParents.contains(getParent(baseDnPartition))) {
+				result.add(baseDnPartition);
+			}
+		}
+		result.addAll(mergedParents);
+		Collections.sort(result);
+
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Returns true if search of partition was limited by size limit and partition can be split
+	 */
+	public boolean isSplitNeeded(String partition, int count) {
+		return (sizeLimit > 0) && (count >= sizeLimit) && !isExactMatch(partition) && (partition.length() < MAX_PARTITION_LENGTH);
+	}
+
+	/**
+	 * Returns partitions which cover the same values as specified partition
+	 */
+	public synchronized String[] split(String partition) {
+		searchesCount++;
+
+		String[] result = new String[letters.length() + 1];
+		for (int i = 0; i < letters.length(); i++) {
+			result[i] = partition + letters.charAt(i);
+		}
+		result[letters.length()] = EXACT_MATCH_PREFIX + partition;
+
+		return result;
+	}
+
+	public synchronized void addPartition(String sourceServerName, String baseDn, String partition, int count) {
+		searchesCount++;
+
+		getBaseDnPartitions(partitions, sourceServerName, baseDn).put(partition, count);
+	}
+
+	/**
+	 * Returns partitions and entries counts of current run by source server name and base DN
+	 */
+	public synchronized Map<String, Map<String, Map<String, Integer>>> getPartitions() {
+		return partitions;
+	}
+
+	public synchronized int getSearchesCount() {
+		return searchesCount;
+	}
+
+	public static boolean isExactMatch(String partition) {
+		return partition.startsWith(EXACT_MATCH_PREFIX);
+	}
+
+	/**
+	 * Returns key attribute value prefix or exact value of partition
+	 */
+	public static String getKeyAttributeStart(String partition) {
+		return isExactMatch(partition) ? partition.substring(EXACT_MATCH_PREFIX.length()) : partition;
+	}
+
+	private static String getParent(String partition) {
+		if (isExactMatch(partition)) {
+			return getKeyAttributeStart(partition);
+		}
+
+		return partition.length() > 1 ? partition.substring(0, partition.length() - 1) : null;
+	}
+
+	private static Map<String, Integer> getBaseDnPartitions(Map<String, Map<String, Map<String, Integer>>> partitions, String sourceServerName,
+			String baseDn) {
+		Map<String, Map<String, Integer>> sourceServerPartitions = partitions.get(sourceServerName);
+		if (sourceServerPartitions == null) {
+			sourceServerPartitions = new TreeMap<String, Map<String, Integer>>();
+			partitions.put(sourceServerName, sourceServerPartitions);
+		}
+
+		Map<String, Integer> baseDnPartitions = sourceServerPartitions.get(baseDn);
+		if (baseDnPartitions == null) {
+			baseDnPartitions = new TreeMap<String, Integer>();
+			sourceServerPartitions.put(baseDn, baseDnPartitions);
+		}
+
+		return baseDnPartitions;
+	}
+
+	private static int getValue(Map<String, Integer> map, String key) {
+		Integer value = map.get(key);
+		return value == null ? 0 : value;
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.gluu.persist.model.base.Entry;
+import org.gluu.site.ldap.persistence.annotation.LdapAttribute;
+import org.gluu.site.ldap.persistence.annotation.LdapEntry;
+import org.gluu.site.ldap.persistence.annotation.LdapObjectClass;
+
+/**
+ * Lease of Cache Refresh shard or cluster member heartbeat stored in inum DB server
+ *
+ * Each lease generation is separate entry. New generation is added only after previous one expired, so LDAP add operation resolves
+ * concurrent attempts to take over the same shard.
+ */
+@LdapEntry
+@LdapObjectClass(values = { "top", "oxCacheRefreshLease" })
+public class CacheRefreshShardLease extends Entry implements Serializable {
+
+	private static final long serialVersionUID = 5378216907132218644L;
+
+	@LdapAttribute(name = "ou")
+	private String id;
+
+	@LdapAttribute(name = "oxLeaseName")
+	private String name;
+
+	@LdapAttribute(name = "oxLeaseGeneration")
+	private Integer generation;
+
+	@LdapAttribute(name = "oxLeaseOwner")
+	private String owner;
+
+	@LdapAttribute(name = "oxLeaseExpiration")
+	private Date expiration;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Integer getGeneration() {
+		return generation;
+	}
+
+	public void setGeneration(Integer generation) {
+		this.generation = generation;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public Date getExpiration() {
+		return expiration;
+	}
+
+	public void setExpiration(Date expiration) {
+		this.expiration = expiration;
+	}
+
+	public boolean isExpired(long now) {
+		return (expiration == null) || (expiration.getTime() <= now);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshShardLease [name=").append(name).append(", generation=").append(generation).append(", owner=").append(owner)
+				.append(", expiration=").append(expiration).append("]");
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inum to entry hash code snapshot with inums sorted in natural order
+ *
+ * Snapshot keeps hash codes in primitive array to avoid boxing and allows to compare two snapshots with single merge-join pass
+ */
+public class CacheRefreshSnapshot {
+
+	private final String[] inums;
+	private final long[] hashCodes;
+
+	/**
+	 * Creates snapshot from arrays which are already sorted by inum
+	 */
+	public CacheRefreshSnapshot(String[] inums, long[] hashCodes) {
+		if (inums.length != hashCodes.length) {
+			throw new IllegalArgumentException("Inums and hash codes arrays should have the same length");
+		}
+
+		this.inums = inums;
+		this.hashCodes = hashCodes;
+	}
+
+	public static CacheRefreshSnapshot fromMap(Map<String, Long> inumWithEntryHashCodeMap) {
+		String[] inums = inumWithEntryHashCodeMap.keySet().toArray(new String[inumWithEntryHashCodeMap.size()]);
+		Arrays.sort(inums);
+
+		long[] hashCodes = new long[inums.length];
+		for (int i = 0; i < inums.length; i++) {
+			hashCodes[i] = inumWithEntryHashCodeMap.get(inums[i]);
+		}
+
+		return new CacheRefreshSnapshot(inums, hashCodes);
+	}
+
+	public static CacheRefreshSnapshot fromMap(InumHashCodeMap inumWithEntryHashCodeMap) {
+		String[] inums = new String[inumWithEntryHashCodeMap.size()];
+		int count = 0;
+		for (int slot = 0; slot < inumWithEntryHashCodeMap.capacity(); slot++) {
+			String inum = inumWithEntryHashCodeMap.getKey(slot);
+			if (inum != null) {
+				inums[count++] = inum;
+			}
+		}
+		Arrays.sort(inums);
+
+		long[] hashCodes = new long[inums.length];
+		for (int i = 0; i < inums.length; i++) {
+			hashCodes[i] = inumWithEntryHashCodeMap.get(inums[i], 0);
+		}
+
+		return new CacheRefreshSnapshot(inums, hashCodes);
+	}
+
+	/**
+	 * Returns new snapshot with hash codes of specified entries replaced or added
+	 */
+	public CacheRefreshSnapshot merge(InumHashCodeMap inumWithEntryHashCodeMap) {
+		CacheRefreshSnapshot changes = fromMap(inumWithEntryHashCodeMap);
+
+		String[] resultInums = new String[inums.length + changes.size()];
+		long[] resultHashCodes = new long[resultInums.length];
+		int count = 0;
+
+		int i = 0, j = 0;
+		while ((i < inums.length) || (j < changes.size())) {
+			int compare;
+			if (i == inums.length) {
+				compare = 1;
+			} else if (j == changes.size()) {
+				compare = -1;
+			} else {
+				compare = inums[i].compareTo(changes.getInum(j));
+			}
+
+			if (compare < 0) {
+				resultInums[count] = inums[i];
+				resultHashCodes[count++] = hashCodes[i++];
+			} else {
+				if (compare == 0) {
+					i++;
+				}
+				resultInums[count] = changes.getInum(j);
+				resultHashCodes[count++] = changes.getHashCode(j++);
+			}
+		}
+
+		return new CacheRefreshSnapshot(Arrays.copyOf(resultInums, count), Arrays.copyOf(resultHashCodes, count));
+	}
+
+	/**
+	 * Returns snapshot with entries of all specified snapshots. Snapshots should contain different inums
+	 */
+	public static CacheRefreshSnapshot union(List<CacheRefreshSnapshot> snapshots) {
+		int size = 0;
+		for (CacheRefreshSnapshot snapshot : snapshots) {
+			size += snapshot.size();
+		}
+
+		String[] inums = new String[size];
+		long[] hashCodes = new long[size];
+		int count = 0;
+		for (CacheRefreshSnapshot snapshot : snapshots) {
+			System.arraycopy(snapshot.inums, 0, inums, count, snapshot.size());
+			System.arraycopy(snapshot.hashCodes, 0, hashCodes, count, snapshot.size());
+			count += snapshot.size();
+		}
+
+		// Sort inums and hash codes together
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+
+		final String[] unsortedInums = inums;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer index1, Integer index2) {
+				return unsortedInums[index1].compareTo(unsortedInums[index2]);
+			}
+		});
+
+		String[] resultInums = new String[size];
+		long[] resultHashCodes = new long[size];
+		for (int i = 0; i < size; i++) {
+			resultInums[i] = inums[order[i]];
+			resultHashCodes[i] = hashCodes[order[i]];
+		}
+
+		return new CacheRefreshSnapshot(resultInums, resultHashCodes);
+	}
+
+	public int size() {
+		return inums.length;
+	}
+
+	public String getInum(int index) {
+		return inums[index];
+	}
+
+	public long getHashCode(int index) {
+		return hashCodes[index];
+	}
+
+	public int indexOf(String inum) {
+		int index = Arrays.binarySearch(inums, inum);
+
+		return index < 0 ? -1 : index;
+	}
+
+	public boolean contains(String inum) {
+		return indexOf(inum) >= 0;
+	}
+
+	public Map<String, Long> toMap() {
+		Map<String, Long> result = new HashMap<String, Long>(inums.length);
+		for (int i = 0; i < inums.length; i++) {
+			result.put(inums[i], hashCodes[i]);
+		}
+
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshSnapshot [size=").append(inums.length).append("]");
+		return builder.toString();
+	}
+
+}
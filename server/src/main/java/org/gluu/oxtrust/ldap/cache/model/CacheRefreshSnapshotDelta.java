@@ -0,0 +1,132 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Difference between two snapshots: added or changed inums with new hash codes and removed inums
+ *
+ * Both parts are sorted by inum. Delta is created and applied with single merge-join pass
+ */
+public class CacheRefreshSnapshotDelta {
+
+	private final CacheRefreshSnapshot changes;
+	private final String[] removedInums;
+
+	public CacheRefreshSnapshotDelta(CacheRefreshSnapshot changes, String[] removedInums) {
+		this.changes = changes;
+		this.removedInums = removedInums;
+	}
+
+	/**
+	 * Returns delta which turns previous snapshot into current one
+	 */
+	public static CacheRefreshSnapshotDelta create(CacheRefreshSnapshot prevSnapshot, CacheRefreshSnapshot currSnapshot) {
+		List<String> changedInums = new ArrayList<String>();
+		long[] changedHashCodes = new long[currSnapshot.size()];
+		List<String> removedInums = new ArrayList<String>();
+
+		int i = 0, j = 0;
+		while ((i < prevSnapshot.size()) || (j < currSnapshot.size())) {
+			int compare;
+			if (i == prevSnapshot.size()) {
+				compare = 1;
+			} else if (j == currSnapshot.size()) {
+				compare = -1;
+			} else {
+				compare = prevSnapshot.getInum(i).compareTo(currSnapshot.getInum(j));
+			}
+
+			if (compare < 0) {
+				removedInums.add(prevSnapshot.getInum(i++));
+			} else if (compare > 0) {
+				changedHashCodes[changedInums.size()] = currSnapshot.getHashCode(j);
+				changedInums.add(currSnapshot.getInum(j++));
+			} else {
+				if (prevSnapshot.getHashCode(i) != currSnapshot.getHashCode(j)) {
+					changedHashCodes[changedInums.size()] = currSnapshot.getHashCode(j);
+					changedInums.add(currSnapshot.getInum(j));
+				}
+				i++;
+				j++;
+			}
+		}
+
+		CacheRefreshSnapshot changes = new CacheRefreshSnapshot(changedInums.toArray(new String[changedInums.size()]),
+				Arrays.copyOf(changedHashCodes, changedInums.size()));
+
+		return new CacheRefreshSnapshotDelta(changes, removedInums.toArray(new String[removedInums.size()]));
+	}
+
+	/**
+	 * Returns new snapshot with changes applied to base snapshot
+	 */
+	public CacheRefreshSnapshot apply(CacheRefreshSnapshot baseSnapshot) {
+		String[] resultInums = new String[baseSnapshot.size() + changes.size()];
+		long[] resultHashCodes = new long[resultInums.length];
+		int count = 0;
+
+		int i = 0, j = 0, k = 0;
+		while ((i < baseSnapshot.size()) || (j < changes.size())) {
+			int compare;
+			if (i == baseSnapshot.size()) {
+				compare = 1;
+			} else if (j == changes.size()) {
+				compare = -1;
+			} else {
+				compare = baseSnapshot.getInum(i).compareTo(changes.getInum(j));
+			}
+
+			if (compare < 0) {
+				String inum = baseSnapshot.getInum(i);
+				while ((k < removedInums.length) && (removedInums[k].compareTo(inum) < 0)) {
+					k++;
+				}
+
+				if ((k == removedInums.length) || !removedInums[k].equals(inum)) {
+					resultInums[count] = inum;
+					resultHashCodes[count++] = baseSnapshot.getHashCode(i);
+				}
+				i++;
+			} else {
+				if (compare == 0) {
+					i++;
+				}
+				resultInums[count] = changes.getInum(j);
+				resultHashCodes[count++] = changes.getHashCode(j++);
+			}
+		}
+
+		return new CacheRefreshSnapshot(Arrays.copyOf(resultInums, count), Arrays.copyOf(resultHashCodes, count));
+	}
+
+	public CacheRefreshSnapshot getChanges() {
+		return changes;
+	}
+
+	public String[] getRemovedInums() {
+		return removedInums;
+	}
+
+	/**
+	 * Returns count of changed and removed inums
+	 */
+	public int size() {
+		return changes.size() + removedInums.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshSnapshotDelta [changes=").append(changes.size()).append(", removedInums=").append(removedInums.length).append("]");
+		return builder.toString();
+	}
+
+}
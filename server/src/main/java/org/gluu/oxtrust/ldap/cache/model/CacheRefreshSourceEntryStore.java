@@ -0,0 +1,195 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gluu.oxtrust.model.GluuCustomAttribute;
+
+/**
+ * File backed store of source entries keyed by compound key
+ *
+ * Only offsets of entries are kept on heap. Entries are serialized into file which content is cached by OS outside of JVM heap and entries
+ * are materialized on demand. File is removed on close.
+ */
+public class CacheRefreshSourceEntryStore implements Closeable {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel fileChannel;
+
+	private final Map<CacheCompoundKey, Long> offsets = new HashMap<CacheCompoundKey, Long>();
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private long size;
+	private volatile boolean closed;
+
+	public CacheRefreshSourceEntryStore(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.raf.setLength(0);
+		this.fileChannel = raf.getChannel();
+	}
+
+	public synchronized void put(CacheCompoundKey key, GluuSimplePerson sourcePerson) throws IOException {
+		buffer.reset();
+		DataOutputStream dos = new DataOutputStream(buffer);
+		dos.writeInt(0);
+		writeString(dos, sourcePerson.getDn());
+		writeString(dos, sourcePerson.getSourceServerName());
+
+		List<GluuCustomAttribute> customAttributes = sourcePerson.getCustomAttributes();
+		dos.writeInt(customAttributes.size());
+		for (GluuCustomAttribute customAttribute : customAttributes) {
+			writeString(dos, customAttribute.getName());
+			String[] values = customAttribute.getValues();
+			dos.writeInt(values == null ? -1 : values.length);
+			if (values != null) {
+				for (String value : values) {
+					writeString(dos, value);
+				}
+			}
+		}
+		dos.flush();
+
+		// Record: payload length and payload
+		ByteBuffer record = ByteBuffer.wrap(buffer.toByteArray());
+		record.putInt(0, record.limit() - 4);
+
+		long offset = size;
+		while (record.hasRemaining()) {
+			fileChannel.write(record, offset + record.position());
+		}
+
+		offsets.put(key, offset);
+		size += record.limit();
+	}
+
+	/**
+	 * Returns materialized source entry or null if there is no entry with specified key
+	 */
+	public GluuSimplePerson get(CacheCompoundKey key) throws IOException {
+		Long offset;
+		synchronized (this) {
+			offset = offsets.get(key);
+		}
+
+		if (offset == null) {
+			return null;
+		}
+
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		read(lengthBuffer, offset);
+		ByteBuffer record = ByteBuffer.allocate(lengthBuffer.getInt(0));
+		read(record, offset + 4);
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record.array()));
+		GluuSimplePerson sourcePerson = new GluuSimplePerson();
+		sourcePerson.setDn(readString(dis));
+		sourcePerson.setSourceServerName(readString(dis));
+
+		int attributesCount = dis.readInt();
+		List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>(attributesCount);
+		for (int i = 0; i < attributesCount; i++) {
+			String name = readString(dis);
+			int valuesCount = dis.readInt();
+			String[] values = null;
+			if (valuesCount >= 0) {
+				values = new String[valuesCount];
+				for (int j = 0; j < valuesCount; j++) {
+					values[j] = readString(dis);
+				}
+			}
+			customAttributes.add(new GluuCustomAttribute(name, values));
+		}
+		sourcePerson.setCustomAttributes(customAttributes);
+
+		return sourcePerson;
+	}
+
+	public synchronized void remove(CacheCompoundKey key) {
+		offsets.remove(key);
+	}
+
+	public synchronized int size() {
+		return offsets.size();
+	}
+
+	/**
+	 * Returns size of store file in bytes
+	 */
+	public synchronized long getFileSize() {
+		return size;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		offsets.clear();
+
+		try {
+			raf.close();
+		} catch (IOException ex) {
+			// Nothing can be done
+		}
+		file.delete();
+	}
+
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream dos, String value) throws IOException {
+		if (value == null) {
+			dos.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF_8);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+	private static String readString(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		dis.readFully(bytes);
+
+		return new String(bytes, UTF_8);
+	}
+
+}
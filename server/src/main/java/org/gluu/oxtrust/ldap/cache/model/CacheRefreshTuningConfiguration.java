@@ -0,0 +1,631 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xdi.util.StringHelper;
+import org.xdi.util.properties.FileConfiguration;
+
+/**
+ * Cache Refresh performance tuning settings loaded from oxTrustCacheRefresh.properties
+ *
+ * All settings are optional. Default values preserve original Cache Refresh behavior.
+ */
+public class CacheRefreshTuningConfiguration implements Serializable {
+
+	private static final long serialVersionUID = -4391380281532147761L;
+
+	public static final String STREAMING_SOURCE_LOAD = "streamingSourceLoad";
+	public static final String SOURCE_LOAD_PAGE_SIZE = "sourceLoadPageSize";
+	public static final String SOURCE_LOAD_QUEUE_SIZE = "sourceLoadQueueSize";
+	public static final String PARALLEL_SOURCE_LOAD = "parallelSourceLoad";
+	public static final String SOURCE_LOAD_THREADS = "sourceLoadThreads";
+	public static final String BINARY_SNAPSHOT = "binarySnapshot";
+	public static final String COMPRESS_SNAPSHOT = "compressSnapshot";
+	public static final String INCREMENTAL_SOURCE_LOAD = "incrementalSourceLoad";
+	public static final String INCREMENTAL_CHANGE_ATTRIBUTE = "incrementalChangeAttribute";
+	public static final String INCREMENTAL_CHANGE_MARK_MARGIN = "incrementalChangeMarkMargin";
+	public static final String FULL_SCAN_INTERVAL_MINUTES = "fullScanIntervalMinutes";
+	public static final String PARALLEL_TARGET_UPDATE = "parallelTargetUpdate";
+	public static final String TARGET_UPDATE_BATCH_SIZE = "targetUpdateBatchSize";
+	public static final String TARGET_UPDATE_THREADS = "targetUpdateThreads";
+	public static final String TARGET_UPDATE_MAX_IN_FLIGHT_BATCHES = "targetUpdateMaxInFlightBatches";
+	public static final String BULK_INUM_ALLOCATION = "bulkInumAllocation";
+	public static final String INUM_ALLOCATION_BLOCK_SIZE = "inumAllocationBlockSize";
+	public static final String INUM_MAP_WRITE_THREADS = "inumMapWriteThreads";
+	public static final String PARALLEL_TARGET_REMOVAL = "parallelTargetRemoval";
+	public static final String TARGET_REMOVAL_BATCH_SIZE = "targetRemovalBatchSize";
+	public static final String TARGET_REMOVAL_THREADS = "targetRemovalThreads";
+	public static final String TARGET_REMOVAL_RATE_LIMIT = "targetRemovalRateLimit";
+	public static final String PIPELINED_VDS_UPDATE = "pipelinedVdsUpdate";
+	public static final String VDS_UPDATE_WINDOW_SIZE = "vdsUpdateWindowSize";
+	public static final String METRICS_HISTORY_SIZE = "metricsHistorySize";
+	public static final String CONTENT_DIGEST = "contentDigest";
+	public static final String HASHING_THREADS = "hashingThreads";
+	public static final String SHARDED_CACHE_REFRESH = "shardedCacheRefresh";
+	public static final String SHARD_COUNT = "shardCount";
+	public static final String SHARD_LEASE_DURATION = "shardLeaseDuration";
+	public static final String DRY_RUN_SAMPLE_SIZE = "dryRunSampleSize";
+	public static final String DRY_RUN_SCRIPTS = "dryRunScripts";
+	public static final String PARALLEL_SCRIPT_EXECUTION = "parallelScriptExecution";
+	public static final String SCRIPT_EXECUTION_THREADS = "scriptExecutionThreads";
+	public static final String CHECKPOINTED_RUN = "checkpointedRun";
+	public static final String CHECKPOINT_INTERVAL = "checkpointInterval";
+	public static final String OFF_HEAP_SOURCE_ENTRIES = "offHeapSourceEntries";
+	public static final String ADAPTIVE_SEARCH_PARTITIONING = "adaptiveSearchPartitioning";
+	public static final String DELTA_SNAPSHOT = "deltaSnapshot";
+	public static final String SNAPSHOT_COMPACTION_INTERVAL = "snapshotCompactionInterval";
+
+	private static final int DEFAULT_SOURCE_LOAD_PAGE_SIZE = 1000;
+	private static final int DEFAULT_SOURCE_LOAD_QUEUE_SIZE = 4;
+	private static final String DEFAULT_INCREMENTAL_CHANGE_ATTRIBUTE = "modifyTimestamp";
+	private static final int DEFAULT_INCREMENTAL_CHANGE_MARK_MARGIN_SECONDS = 60;
+	private static final int DEFAULT_FULL_SCAN_INTERVAL_MINUTES = 24 * 60;
+	private static final int DEFAULT_TARGET_UPDATE_BATCH_SIZE = 100;
+	private static final int DEFAULT_TARGET_UPDATE_THREADS = 4;
+	private static final int DEFAULT_INUM_ALLOCATION_BLOCK_SIZE = 100;
+	private static final int DEFAULT_INUM_MAP_WRITE_THREADS = 4;
+	private static final int DEFAULT_TARGET_REMOVAL_BATCH_SIZE = 100;
+	private static final int DEFAULT_TARGET_REMOVAL_THREADS = 4;
+	private static final int DEFAULT_METRICS_HISTORY_SIZE = 100;
+	private static final int DEFAULT_SHARD_COUNT = 16;
+	private static final int DEFAULT_SHARD_LEASE_DURATION_SECONDS = 15 * 60;
+	private static final int DEFAULT_DRY_RUN_SAMPLE_SIZE = 10;
+	private static final int DEFAULT_SCRIPT_EXECUTION_THREADS = 4;
+	private static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+	private static final int DEFAULT_SNAPSHOT_COMPACTION_INTERVAL = 10;
+
+	private boolean streamingSourceLoad;
+	private int sourceLoadPageSize;
+	private int sourceLoadQueueSize;
+	private boolean parallelSourceLoad;
+	private int sourceLoadThreads;
+	private boolean binarySnapshot;
+	private boolean compressSnapshot;
+	private boolean incrementalSourceLoad;
+	private String incrementalChangeAttribute;
+	private int incrementalChangeMarkMargin;
+	private int fullScanIntervalMinutes;
+	private boolean parallelTargetUpdate;
+	private int targetUpdateBatchSize;
+	private int targetUpdateThreads;
+	private int targetUpdateMaxInFlightBatches;
+	private boolean bulkInumAllocation;
+	private int inumAllocationBlockSize;
+	private int inumMapWriteThreads;
+	private boolean parallelTargetRemoval;
+	private int targetRemovalBatchSize;
+	private int targetRemovalThreads;
+	private int targetRemovalRateLimit;
+	private boolean pipelinedVdsUpdate;
+	private int vdsUpdateWindowSize;
+	private int metricsHistorySize;
+	private boolean contentDigest;
+	private int hashingThreads;
+	private boolean shardedCacheRefresh;
+	private int shardCount;
+	private int shardLeaseDuration;
+	private int dryRunSampleSize;
+	private boolean dryRunScripts;
+	private boolean parallelScriptExecution;
+	private int scriptExecutionThreads;
+	private boolean checkpointedRun;
+	private int checkpointInterval;
+	private boolean offHeapSourceEntries;
+	private boolean adaptiveSearchPartitioning;
+	private boolean deltaSnapshot;
+	private int snapshotCompactionInterval;
+
+	private List<String> unsupportedSettings;
+
+	public CacheRefreshTuningConfiguration() {
+		this(null);
+	}
+
+	public CacheRefreshTuningConfiguration(FileConfiguration fileConfiguration) {
+		this.streamingSourceLoad = getBoolean(fileConfiguration, STREAMING_SOURCE_LOAD, false);
+		this.sourceLoadPageSize = getPositiveInt(fileConfiguration, SOURCE_LOAD_PAGE_SIZE, DEFAULT_SOURCE_LOAD_PAGE_SIZE);
+		this.sourceLoadQueueSize = getPositiveInt(fileConfiguration, SOURCE_LOAD_QUEUE_SIZE, DEFAULT_SOURCE_LOAD_QUEUE_SIZE);
+		this.parallelSourceLoad = getBoolean(fileConfiguration, PARALLEL_SOURCE_LOAD, false);
+		// Zero means size of source server connection pool
+		this.sourceLoadThreads = getPositiveInt(fileConfiguration, SOURCE_LOAD_THREADS, 0);
+		this.binarySnapshot = getBoolean(fileConfiguration, BINARY_SNAPSHOT, false);
+		this.compressSnapshot = getBoolean(fileConfiguration, COMPRESS_SNAPSHOT, false);
+		this.incrementalSourceLoad = getBoolean(fileConfiguration, INCREMENTAL_SOURCE_LOAD, false);
+		// modifyTimestamp, whenChanged or uSNChanged. uSNChanged is supported only with single server in each source server configuration
+		this.incrementalChangeAttribute = getString(fileConfiguration, INCREMENTAL_CHANGE_ATTRIBUTE, DEFAULT_INCREMENTAL_CHANGE_ATTRIBUTE);
+		// Seconds subtracted from source server time at scan start. Should cover clock skew and replication delay of source servers
+		this.incrementalChangeMarkMargin = getPositiveInt(fileConfiguration, INCREMENTAL_CHANGE_MARK_MARGIN, DEFAULT_INCREMENTAL_CHANGE_MARK_MARGIN_SECONDS);
+		this.fullScanIntervalMinutes = getPositiveInt(fileConfiguration, FULL_SCAN_INTERVAL_MINUTES, DEFAULT_FULL_SCAN_INTERVAL_MINUTES);
+		this.parallelTargetUpdate = getBoolean(fileConfiguration, PARALLEL_TARGET_UPDATE, false);
+		this.targetUpdateBatchSize = getPositiveInt(fileConfiguration, TARGET_UPDATE_BATCH_SIZE, DEFAULT_TARGET_UPDATE_BATCH_SIZE);
+		this.targetUpdateThreads = getPositiveInt(fileConfiguration, TARGET_UPDATE_THREADS, DEFAULT_TARGET_UPDATE_THREADS);
+		// By default allow each thread to have one batch in progress and one batch in queue
+		this.targetUpdateMaxInFlightBatches = getPositiveInt(fileConfiguration, TARGET_UPDATE_MAX_IN_FLIGHT_BATCHES, 2 * targetUpdateThreads);
+		this.bulkInumAllocation = getBoolean(fileConfiguration, BULK_INUM_ALLOCATION, false);
+		this.inumAllocationBlockSize = getPositiveInt(fileConfiguration, INUM_ALLOCATION_BLOCK_SIZE, DEFAULT_INUM_ALLOCATION_BLOCK_SIZE);
+		this.inumMapWriteThreads = getPositiveInt(fileConfiguration, INUM_MAP_WRITE_THREADS, DEFAULT_INUM_MAP_WRITE_THREADS);
+		this.parallelTargetRemoval = getBoolean(fileConfiguration, PARALLEL_TARGET_REMOVAL, false);
+		this.targetRemovalBatchSize = getPositiveInt(fileConfiguration, TARGET_REMOVAL_BATCH_SIZE, DEFAULT_TARGET_REMOVAL_BATCH_SIZE);
+		this.targetRemovalThreads = getPositiveInt(fileConfiguration, TARGET_REMOVAL_THREADS, DEFAULT_TARGET_REMOVAL_THREADS);
+		// Maximum count of removed persons per second. Zero means without limit
+		this.targetRemovalRateLimit = getPositiveInt(fileConfiguration, TARGET_REMOVAL_RATE_LIMIT, 0);
+		this.pipelinedVdsUpdate = getBoolean(fileConfiguration, PIPELINED_VDS_UPDATE, false);
+		// Zero means size of target server connection pool
+		this.vdsUpdateWindowSize = getPositiveInt(fileConfiguration, VDS_UPDATE_WINDOW_SIZE, 0);
+		this.metricsHistorySize = getPositiveInt(fileConfiguration, METRICS_HISTORY_SIZE, DEFAULT_METRICS_HISTORY_SIZE);
+		this.contentDigest = getBoolean(fileConfiguration, CONTENT_DIGEST, false);
+		// Zero means count of available processors
+		this.hashingThreads = getPositiveInt(fileConfiguration, HASHING_THREADS, 0);
+		// Snapshots folder should be shared storage of all cluster nodes. Master server skips removal of entries otherwise
+		this.shardedCacheRefresh = getBoolean(fileConfiguration, SHARDED_CACHE_REFRESH, false);
+		this.shardCount = getPositiveInt(fileConfiguration, SHARD_COUNT, DEFAULT_SHARD_COUNT);
+		// Seconds. Shard owner renews lease during shard synchronization few times per lease duration
+		this.shardLeaseDuration = getPositiveInt(fileConfiguration, SHARD_LEASE_DURATION, DEFAULT_SHARD_LEASE_DURATION_SECONDS);
+		this.dryRunSampleSize = getPositiveInt(fileConfiguration, DRY_RUN_SAMPLE_SIZE, DEFAULT_DRY_RUN_SAMPLE_SIZE);
+		// Execute Cache Refresh scripts for dry run samples. Scripts may have side effects, samples show changes before scripts otherwise
+		this.dryRunScripts = getBoolean(fileConfiguration, DRY_RUN_SCRIPTS, false);
+		this.parallelScriptExecution = getBoolean(fileConfiguration, PARALLEL_SCRIPT_EXECUTION, false);
+		// Used if parallel target update is off. Otherwise scripts are executed by target update threads
+		this.scriptExecutionThreads = getPositiveInt(fileConfiguration, SCRIPT_EXECUTION_THREADS, DEFAULT_SCRIPT_EXECUTION_THREADS);
+		this.checkpointedRun = getBoolean(fileConfiguration, CHECKPOINTED_RUN, false);
+		// Count of target entries updated between progress checkpoints
+		this.checkpointInterval = getPositiveInt(fileConfiguration, CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+		// Source entries are loaded page by page and stored in file outside of heap. Implies streaming source load
+		this.offHeapSourceEntries = getBoolean(fileConfiguration, OFF_HEAP_SOURCE_ENTRIES, false);
+		// Search prefixes hitting size limit are split and learned prefixes are reused at next run. Used if useSearchLimit is on
+		this.adaptiveSearchPartitioning = getBoolean(fileConfiguration, ADAPTIVE_SEARCH_PARTITIONING, false);
+		// Only changes relative to previous snapshot are persisted
+		this.deltaSnapshot = getBoolean(fileConfiguration, DELTA_SNAPSHOT, false);
+		// Count of delta snapshots after which full snapshot is persisted again
+		this.snapshotCompactionInterval = getPositiveInt(fileConfiguration, SNAPSHOT_COMPACTION_INTERVAL, DEFAULT_SNAPSHOT_COMPACTION_INTERVAL);
+
+		// Settings which can't be combined are turned off here instead of being silently ignored by Cache Refresh run
+		this.unsupportedSettings = disableUnsupportedSettings();
+	}
+
+	/**
+	 * Turns off settings which aren't supported in combination with other enabled settings and returns descriptions of them
+	 */
+	private List<String> disableUnsupportedSettings() {
+		List<String> result = new ArrayList<String>();
+
+		// Shard run is always full scan of shard without checkpoints, off heap store and learned search partitions
+		if (shardedCacheRefresh) {
+			if (incrementalSourceLoad) {
+				this.incrementalSourceLoad = false;
+				result.add(getUnsupportedSettingMessage(INCREMENTAL_SOURCE_LOAD, SHARDED_CACHE_REFRESH));
+			}
+			if (checkpointedRun) {
+				this.checkpointedRun = false;
+				result.add(getUnsupportedSettingMessage(CHECKPOINTED_RUN, SHARDED_CACHE_REFRESH));
+			}
+			if (offHeapSourceEntries) {
+				this.offHeapSourceEntries = false;
+				result.add(getUnsupportedSettingMessage(OFF_HEAP_SOURCE_ENTRIES, SHARDED_CACHE_REFRESH));
+			}
+			if (adaptiveSearchPartitioning) {
+				this.adaptiveSearchPartitioning = false;
+				result.add(getUnsupportedSettingMessage(ADAPTIVE_SEARCH_PARTITIONING, SHARDED_CACHE_REFRESH));
+			}
+		}
+
+		// Streaming source load reads pages in one producer thread
+		if (parallelSourceLoad && (streamingSourceLoad || offHeapSourceEntries)) {
+			this.parallelSourceLoad = false;
+			result.add(getUnsupportedSettingMessage(PARALLEL_SOURCE_LOAD, streamingSourceLoad ? STREAMING_SOURCE_LOAD : OFF_HEAP_SOURCE_ENTRIES));
+		}
+
+		return result;
+	}
+
+	private static String getUnsupportedSettingMessage(String key, String conflictingKey) {
+		return String.format("'%s' isn't supported with '%s' and was turned off", key, conflictingKey);
+	}
+
+	public boolean isStreamingSourceLoad() {
+		return streamingSourceLoad;
+	}
+
+	public void setStreamingSourceLoad(boolean streamingSourceLoad) {
+		this.streamingSourceLoad = streamingSourceLoad;
+	}
+
+	public int getSourceLoadPageSize() {
+		return sourceLoadPageSize;
+	}
+
+	public void setSourceLoadPageSize(int sourceLoadPageSize) {
+		this.sourceLoadPageSize = sourceLoadPageSize;
+	}
+
+	public int getSourceLoadQueueSize() {
+		return sourceLoadQueueSize;
+	}
+
+	public void setSourceLoadQueueSize(int sourceLoadQueueSize) {
+		this.sourceLoadQueueSize = sourceLoadQueueSize;
+	}
+
+	public boolean isParallelSourceLoad() {
+		return parallelSourceLoad;
+	}
+
+	public void setParallelSourceLoad(boolean parallelSourceLoad) {
+		this.parallelSourceLoad = parallelSourceLoad;
+	}
+
+	public int getSourceLoadThreads() {
+		return sourceLoadThreads;
+	}
+
+	public void setSourceLoadThreads(int sourceLoadThreads) {
+		this.sourceLoadThreads = sourceLoadThreads;
+	}
+
+	public boolean isBinarySnapshot() {
+		return binarySnapshot;
+	}
+
+	public void setBinarySnapshot(boolean binarySnapshot) {
+		this.binarySnapshot = binarySnapshot;
+	}
+
+	public boolean isCompressSnapshot() {
+		return compressSnapshot;
+	}
+
+	public void setCompressSnapshot(boolean compressSnapshot) {
+		this.compressSnapshot = compressSnapshot;
+	}
+
+	public boolean isIncrementalSourceLoad() {
+		return incrementalSourceLoad;
+	}
+
+	public void setIncrementalSourceLoad(boolean incrementalSourceLoad) {
+		this.incrementalSourceLoad = incrementalSourceLoad;
+	}
+
+	public String getIncrementalChangeAttribute() {
+		return incrementalChangeAttribute;
+	}
+
+	public void setIncrementalChangeAttribute(String incrementalChangeAttribute) {
+		this.incrementalChangeAttribute = incrementalChangeAttribute;
+	}
+
+	public int getIncrementalChangeMarkMargin() {
+		return incrementalChangeMarkMargin;
+	}
+
+	public void setIncrementalChangeMarkMargin(int incrementalChangeMarkMargin) {
+		this.incrementalChangeMarkMargin = incrementalChangeMarkMargin;
+	}
+
+	public int getFullScanIntervalMinutes() {
+		return fullScanIntervalMinutes;
+	}
+
+	public void setFullScanIntervalMinutes(int fullScanIntervalMinutes) {
+		this.fullScanIntervalMinutes = fullScanIntervalMinutes;
+	}
+
+	public boolean isParallelTargetUpdate() {
+		return parallelTargetUpdate;
+	}
+
+	public void setParallelTargetUpdate(boolean parallelTargetUpdate) {
+		this.parallelTargetUpdate = parallelTargetUpdate;
+	}
+
+	public int getTargetUpdateBatchSize() {
+		return targetUpdateBatchSize;
+	}
+
+	public void setTargetUpdateBatchSize(int targetUpdateBatchSize) {
+		this.targetUpdateBatchSize = targetUpdateBatchSize;
+	}
+
+	public int getTargetUpdateThreads() {
+		return targetUpdateThreads;
+	}
+
+	public void setTargetUpdateThreads(int targetUpdateThreads) {
+		this.targetUpdateThreads = targetUpdateThreads;
+	}
+
+	public int getTargetUpdateMaxInFlightBatches() {
+		return targetUpdateMaxInFlightBatches;
+	}
+
+	public void setTargetUpdateMaxInFlightBatches(int targetUpdateMaxInFlightBatches) {
+		this.targetUpdateMaxInFlightBatches = targetUpdateMaxInFlightBatches;
+	}
+
+	public boolean isBulkInumAllocation() {
+		return bulkInumAllocation;
+	}
+
+	public void setBulkInumAllocation(boolean bulkInumAllocation) {
+		this.bulkInumAllocation = bulkInumAllocation;
+	}
+
+	public int getInumAllocationBlockSize() {
+		return inumAllocationBlockSize;
+	}
+
+	public void setInumAllocationBlockSize(int inumAllocationBlockSize) {
+		this.inumAllocationBlockSize = inumAllocationBlockSize;
+	}
+
+	public int getInumMapWriteThreads() {
+		return inumMapWriteThreads;
+	}
+
+	public void setInumMapWriteThreads(int inumMapWriteThreads) {
+		this.inumMapWriteThreads = inumMapWriteThreads;
+	}
+
+	public boolean isParallelTargetRemoval() {
+		return parallelTargetRemoval;
+	}
+
+	public void setParallelTargetRemoval(boolean parallelTargetRemoval) {
+		this.parallelTargetRemoval = parallelTargetRemoval;
+	}
+
+	public int getTargetRemovalBatchSize() {
+		return targetRemovalBatchSize;
+	}
+
+	public void setTargetRemovalBatchSize(int targetRemovalBatchSize) {
+		this.targetRemovalBatchSize = targetRemovalBatchSize;
+	}
+
+	public int getTargetRemovalThreads() {
+		return targetRemovalThreads;
+	}
+
+	public void setTargetRemovalThreads(int targetRemovalThreads) {
+		this.targetRemovalThreads = targetRemovalThreads;
+	}
+
+	public int getTargetRemovalRateLimit() {
+		return targetRemovalRateLimit;
+	}
+
+	public void setTargetRemovalRateLimit(int targetRemovalRateLimit) {
+		this.targetRemovalRateLimit = targetRemovalRateLimit;
+	}
+
+	public boolean isPipelinedVdsUpdate() {
+		return pipelinedVdsUpdate;
+	}
+
+	public void setPipelinedVdsUpdate(boolean pipelinedVdsUpdate) {
+		this.pipelinedVdsUpdate = pipelinedVdsUpdate;
+	}
+
+	public int getVdsUpdateWindowSize() {
+		return vdsUpdateWindowSize;
+	}
+
+	public void setVdsUpdateWindowSize(int vdsUpdateWindowSize) {
+		this.vdsUpdateWindowSize = vdsUpdateWindowSize;
+	}
+
+	public int getMetricsHistorySize() {
+		return metricsHistorySize;
+	}
+
+	public void setMetricsHistorySize(int metricsHistorySize) {
+		this.metricsHistorySize = metricsHistorySize;
+	}
+
+	public boolean isContentDigest() {
+		return contentDigest;
+	}
+
+	public void setContentDigest(boolean contentDigest) {
+		this.contentDigest = contentDigest;
+	}
+
+	public int getHashingThreads() {
+		return hashingThreads;
+	}
+
+	public void setHashingThreads(int hashingThreads) {
+		this.hashingThreads = hashingThreads;
+	}
+
+	public boolean isShardedCacheRefresh() {
+		return shardedCacheRefresh;
+	}
+
+	public void setShardedCacheRefresh(boolean shardedCacheRefresh) {
+		this.shardedCacheRefresh = shardedCacheRefresh;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public void setShardCount(int shardCount) {
+		this.shardCount = shardCount;
+	}
+
+	public int getShardLeaseDuration() {
+		return shardLeaseDuration;
+	}
+
+	public void setShardLeaseDuration(int shardLeaseDuration) {
+		this.shardLeaseDuration = shardLeaseDuration;
+	}
+
+	public int getDryRunSampleSize() {
+		return dryRunSampleSize;
+	}
+
+	public void setDryRunSampleSize(int dryRunSampleSize) {
+		this.dryRunSampleSize = dryRunSampleSize;
+	}
+
+	public boolean isDryRunScripts() {
+		return dryRunScripts;
+	}
+
+	public void setDryRunScripts(boolean dryRunScripts) {
+		this.dryRunScripts = dryRunScripts;
+	}
+
+	public boolean isParallelScriptExecution() {
+		return parallelScriptExecution;
+	}
+
+	public void setParallelScriptExecution(boolean parallelScriptExecution) {
+		this.parallelScriptExecution = parallelScriptExecution;
+	}
+
+	public int getScriptExecutionThreads() {
+		return scriptExecutionThreads;
+	}
+
+	public void setScriptExecutionThreads(int scriptExecutionThreads) {
+		this.scriptExecutionThreads = scriptExecutionThreads;
+	}
+
+	public boolean isCheckpointedRun() {
+		return checkpointedRun;
+	}
+
+	public void setCheckpointedRun(boolean checkpointedRun) {
+		this.checkpointedRun = checkpointedRun;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public boolean isOffHeapSourceEntries() {
+		return offHeapSourceEntries;
+	}
+
+	public void setOffHeapSourceEntries(boolean offHeapSourceEntries) {
+		this.offHeapSourceEntries = offHeapSourceEntries;
+	}
+
+	public boolean isAdaptiveSearchPartitioning() {
+		return adaptiveSearchPartitioning;
+	}
+
+	public void setAdaptiveSearchPartitioning(boolean adaptiveSearchPartitioning) {
+		this.adaptiveSearchPartitioning = adaptiveSearchPartitioning;
+	}
+
+	public boolean isDeltaSnapshot() {
+		return deltaSnapshot;
+	}
+
+	public void setDeltaSnapshot(boolean deltaSnapshot) {
+		this.deltaSnapshot = deltaSnapshot;
+	}
+
+	public int getSnapshotCompactionInterval() {
+		return snapshotCompactionInterval;
+	}
+
+	public void setSnapshotCompactionInterval(int snapshotCompactionInterval) {
+		this.snapshotCompactionInterval = snapshotCompactionInterval;
+	}
+
+	/**
+	 * Returns descriptions of settings which were turned off because they aren't supported with other settings
+	 */
+	public List<String> getUnsupportedSettings() {
+		return unsupportedSettings;
+	}
+
+	private static boolean getBoolean(FileConfiguration fileConfiguration, String key, boolean defaultValue) {
+		String value = getString(fileConfiguration, key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		return Boolean.parseBoolean(value);
+	}
+
+	private static int getPositiveInt(FileConfiguration fileConfiguration, String key, int defaultValue) {
+		String value = getString(fileConfiguration, key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			int result = Integer.parseInt(value);
+			return result > 0 ? result : defaultValue;
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	private static String getString(FileConfiguration fileConfiguration, String key, String defaultValue) {
+		String value = getString(fileConfiguration, key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		return value;
+	}
+
+	private static String getString(FileConfiguration fileConfiguration, String key) {
+		if (fileConfiguration == null) {
+			return null;
+		}
+
+		String value = fileConfiguration.getString(key, null);
+		if (StringHelper.isEmpty(value)) {
+			return null;
+		}
+
+		return value.trim();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CacheRefreshTuningConfiguration [streamingSourceLoad=").append(streamingSourceLoad).append(", sourceLoadPageSize=")
+				.append(sourceLoadPageSize).append(", sourceLoadQueueSize=").append(sourceLoadQueueSize).append(", parallelSourceLoad=").append(parallelSourceLoad)
+				.append(", sourceLoadThreads=").append(sourceLoadThreads).append(", binarySnapshot=").append(binarySnapshot)
+				.append(", compressSnapshot=").append(compressSnapshot).append(", incrementalSourceLoad=").append(incrementalSourceLoad)
+				.append(", incrementalChangeAttribute=").append(incrementalChangeAttribute)
+				.append(", incrementalChangeMarkMargin=").append(incrementalChangeMarkMargin).append(", fullScanIntervalMinutes=").append(fullScanIntervalMinutes)
+				.append(", parallelTargetUpdate=").append(parallelTargetUpdate).append(", targetUpdateBatchSize=").append(targetUpdateBatchSize)
+				.append(", targetUpdateThreads=").append(targetUpdateThreads).append(", targetUpdateMaxInFlightBatches=").append(targetUpdateMaxInFlightBatches)
+				.append(", bulkInumAllocation=").append(bulkInumAllocation).append(", inumAllocationBlockSize=").append(inumAllocationBlockSize)
+				.append(", inumMapWriteThreads=").append(inumMapWriteThreads).append(", parallelTargetRemoval=").append(parallelTargetRemoval)
+				.append(", targetRemovalBatchSize=").append(targetRemovalBatchSize).append(", targetRemovalThreads=").append(targetRemovalThreads)
+				.append(", targetRemovalRateLimit=").append(targetRemovalRateLimit).append(", pipelinedVdsUpdate=").append(pipelinedVdsUpdate)
+				.append(", vdsUpdateWindowSize=").append(vdsUpdateWindowSize).append(", metricsHistorySize=").append(metricsHistorySize)
+				.append(", contentDigest=").append(contentDigest).append(", hashingThreads=").append(hashingThreads)
+				.append(", shardedCacheRefresh=").append(shardedCacheRefresh).append(", shardCount=").append(shardCount).append(", shardLeaseDuration=")
+				.append(shardLeaseDuration).append(", dryRunSampleSize=").append(dryRunSampleSize).append(", dryRunScripts=").append(dryRunScripts)
+				.append(", parallelScriptExecution=").append(parallelScriptExecution).append(", scriptExecutionThreads=").append(scriptExecutionThreads)
+				.append(", checkpointedRun=").append(checkpointedRun).append(", checkpointInterval=").append(checkpointInterval)
+				.append(", offHeapSourceEntries=").append(offHeapSourceEntries).append(", adaptiveSearchPartitioning=").append(adaptiveSearchPartitioning)
+				.append(", deltaSnapshot=").append(deltaSnapshot).append(", snapshotCompactionInterval=").append(snapshotCompactionInterval).append("]");
+		return builder.toString();
+	}
+
+}
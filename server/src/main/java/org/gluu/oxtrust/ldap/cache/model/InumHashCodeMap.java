@@ -0,0 +1,150 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+/**
+ * Open addressing inum to entry hash code map with primitive long values
+ *
+ * Map uses linear probing over parallel arrays and doesn't allocate objects per entry. It supports only put and get operations which are
+ * enough for Cache Refresh change detection.
+ */
+public class InumHashCodeMap {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// Keep table at most 2/3 full
+	private static final int MAX_LOAD_NUMERATOR = 2;
+	private static final int MAX_LOAD_DENOMINATOR = 3;
+
+	private String[] keys;
+	private long[] values;
+	private int size;
+	private int resizeThreshold;
+
+	public InumHashCodeMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public InumHashCodeMap(int expectedSize) {
+		allocate(getTableCapacity(expectedSize));
+	}
+
+	public void put(String inum, long hashCode) {
+		int slot = findSlot(keys, inum);
+		if (keys[slot] != null) {
+			values[slot] = hashCode;
+			return;
+		}
+
+		keys[slot] = inum;
+		values[slot] = hashCode;
+		size++;
+
+		if (size > resizeThreshold) {
+			resize(keys.length << 1);
+		}
+	}
+
+	public boolean containsKey(String inum) {
+		return keys[findSlot(keys, inum)] != null;
+	}
+
+	public long get(String inum, long defaultValue) {
+		int slot = findSlot(keys, inum);
+		if (keys[slot] == null) {
+			return defaultValue;
+		}
+
+		return values[slot];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns number of slots in table. Slots can be iterated with getKey/getValue
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Returns inum in specified slot or null if slot is empty
+	 */
+	public String getKey(int slot) {
+		return keys[slot];
+	}
+
+	public long getValue(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * Returns estimated heap size in bytes of map structure without inum strings
+	 */
+	public long estimateMemoryUsage() {
+		return MemoryUsageHelper.ARRAY_HEADER_SIZE * 2 + (long) keys.length * (MemoryUsageHelper.REFERENCE_SIZE + 8);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new String[capacity];
+		this.values = new long[capacity];
+		this.resizeThreshold = (int) ((long) capacity * MAX_LOAD_NUMERATOR / MAX_LOAD_DENOMINATOR);
+	}
+
+	private void resize(int newCapacity) {
+		String[] oldKeys = this.keys;
+		long[] oldValues = this.values;
+
+		allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			String key = oldKeys[i];
+			if (key != null) {
+				int slot = findSlot(keys, key);
+				keys[slot] = key;
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int findSlot(String[] keys, String inum) {
+		int mask = keys.length - 1;
+		int slot = MemoryUsageHelper.mixHashCode(inum.hashCode()) & mask;
+		while (true) {
+			String key = keys[slot];
+			if ((key == null) || key.equals(inum)) {
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static int getTableCapacity(int expectedSize) {
+		long minCapacity = Math.max(DEFAULT_CAPACITY, (long) expectedSize * MAX_LOAD_DENOMINATOR / MAX_LOAD_NUMERATOR + 1);
+
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < minCapacity) {
+			capacity <<= 1;
+		}
+
+		return capacity;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("InumHashCodeMap [size=").append(size).append(", capacity=").append(keys.length).append("]");
+		return builder.toString();
+	}
+
+}
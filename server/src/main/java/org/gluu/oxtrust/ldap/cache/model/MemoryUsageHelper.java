@@ -0,0 +1,90 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Rough heap usage estimations for Cache Refresh in-memory structures
+ *
+ * Estimations assume 64-bit JVM with compressed references
+ */
+public final class MemoryUsageHelper {
+
+	public static final int REFERENCE_SIZE = 4;
+	public static final int OBJECT_HEADER_SIZE = 12;
+	public static final int ARRAY_HEADER_SIZE = 16;
+
+	// java.util.HashMap.Node: header, hash, key, value, next
+	private static final int HASH_MAP_NODE_SIZE = 32;
+	// java.util.HashMap instance with its fields
+	private static final int HASH_MAP_SIZE = 48;
+	// java.lang.Long instance
+	private static final int LONG_SIZE = 24;
+
+	private MemoryUsageHelper() {
+	}
+
+	/**
+	 * Returns estimated heap size in bytes of HashMap structure without keys and values
+	 */
+	public static long estimateHashMapMemoryUsage(int size) {
+		int tableCapacity = 16;
+		while (tableCapacity * 0.75 < size) {
+			tableCapacity <<= 1;
+		}
+
+		return HASH_MAP_SIZE + ARRAY_HEADER_SIZE + (long) tableCapacity * REFERENCE_SIZE + (long) size * HASH_MAP_NODE_SIZE;
+	}
+
+	/**
+	 * Returns estimated heap size in bytes of HashMap with boxed Long values without keys
+	 */
+	public static long estimateLongHashMapMemoryUsage(int size) {
+		return estimateHashMapMemoryUsage(size) + (long) size * LONG_SIZE;
+	}
+
+	/**
+	 * Resets peak usage of JVM heap memory pools
+	 */
+	public static void resetHeapPeakUsage() {
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (MemoryType.HEAP.equals(memoryPool.getType()) && memoryPool.isValid()) {
+				memoryPool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Returns sum of peak usage in bytes of JVM heap memory pools since last reset
+	 */
+	public static long getHeapPeakUsage() {
+		long result = 0;
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (MemoryType.HEAP.equals(memoryPool.getType()) && memoryPool.isValid()) {
+				MemoryUsage peakUsage = memoryPool.getPeakUsage();
+				if (peakUsage != null) {
+					result += peakUsage.getUsed();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Spread hash code bits to lower bits used by power of two tables
+	 */
+	static int mixHashCode(int hashCode) {
+		int h = hashCode * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
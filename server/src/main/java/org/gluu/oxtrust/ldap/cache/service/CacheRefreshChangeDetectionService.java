@@ -0,0 +1,273 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKeyIndex;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshChangeDetectionStatistics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshEntryDigest;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshot;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.cache.model.InumHashCodeMap;
+import org.gluu.oxtrust.ldap.cache.model.MemoryUsageHelper;
+import org.gluu.oxtrust.util.OxTrustConstants;
+import org.gluu.persist.PersistenceEntryManager;
+import org.slf4j.Logger;
+
+/**
+ * Calculates hash codes of source entries and detects changed, added and removed entries by comparing snapshots
+ */
+@ApplicationScoped
+@Named("cacheRefreshChangeDetectionService")
+public class CacheRefreshChangeDetectionService {
+
+	// Smaller sets are hashed faster in one thread
+	private static final int MIN_PARALLEL_HASHING_ENTRIES = 10000;
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private CacheRefreshService cacheRefreshService;
+
+	public Set<String> getChangedInums(CacheRefreshSnapshot currSnapshot, CacheRefreshSnapshot prevSnapshot, boolean includeDeleted) {
+		// Find chaged inums
+		Set<String> changedInums = new HashSet<String>();
+
+		// First time run
+		if (prevSnapshot == null) {
+			for (int i = 0; i < currSnapshot.size(); i++) {
+				changedInums.add(currSnapshot.getInum(i));
+			}
+
+			return changedInums;
+		}
+
+		// Both snapshots are sorted by inum. Compare them with single merge-join pass
+		int currIndex = 0, prevIndex = 0;
+		while ((currIndex < currSnapshot.size()) || (prevIndex < prevSnapshot.size())) {
+			int compareResult;
+			if (currIndex >= currSnapshot.size()) {
+				compareResult = 1;
+			} else if (prevIndex >= prevSnapshot.size()) {
+				compareResult = -1;
+			} else {
+				compareResult = currSnapshot.getInum(currIndex).compareTo(prevSnapshot.getInum(prevIndex));
+			}
+
+			if (compareResult < 0) {
+				// New inum
+				changedInums.add(currSnapshot.getInum(currIndex++));
+			} else if (compareResult > 0) {
+				// Inum which not exist in new snapshot
+				if (includeDeleted) {
+					changedInums.add(prevSnapshot.getInum(prevIndex));
+				}
+				prevIndex++;
+			} else {
+				// Changed inum
+				if (currSnapshot.getHashCode(currIndex) != prevSnapshot.getHashCode(prevIndex)) {
+					changedInums.add(currSnapshot.getInum(currIndex));
+				}
+				currIndex++;
+				prevIndex++;
+			}
+		}
+
+		return changedInums;
+	}
+
+	public Set<String> getChangedInums(InumHashCodeMap changedInumWithEntryHashCodeMap, CacheRefreshSnapshot prevSnapshot) {
+		Set<String> result = new HashSet<String>();
+
+		for (int slot = 0; slot < changedInumWithEntryHashCodeMap.capacity(); slot++) {
+			String inum = changedInumWithEntryHashCodeMap.getKey(slot);
+			if (inum == null) {
+				continue;
+			}
+
+			int prevIndex = prevSnapshot.indexOf(inum);
+			if ((prevIndex == -1) || (prevSnapshot.getHashCode(prevIndex) != changedInumWithEntryHashCodeMap.getValue(slot))) {
+				result.add(inum);
+			}
+		}
+
+		return result;
+	}
+
+	public List<GluuSimplePerson> getRemovedPersons(CacheRefreshSnapshot currSnapshot, CacheRefreshSnapshot prevSnapshot) {
+		// First time run
+		if (prevSnapshot == null) {
+			return new ArrayList<GluuSimplePerson>(0);
+		}
+		
+		// Add all inums which not exist in new snapshot
+		List<String> deletedInums = new ArrayList<String>();
+		int currIndex = 0;
+		for (int prevIndex = 0; prevIndex < prevSnapshot.size(); prevIndex++) {
+			String prevInum = prevSnapshot.getInum(prevIndex);
+			while ((currIndex < currSnapshot.size()) && (currSnapshot.getInum(currIndex).compareTo(prevInum) < 0)) {
+				currIndex++;
+			}
+
+			if ((currIndex >= currSnapshot.size()) || !currSnapshot.getInum(currIndex).equals(prevInum)) {
+				deletedInums.add(prevInum);
+			}
+		}
+		
+		List<GluuSimplePerson> deletedPersons = new ArrayList<GluuSimplePerson>(deletedInums.size());
+		for (String deletedInum : deletedInums) {
+			deletedPersons.add(cacheRefreshService.createRemovedPerson(deletedInum));
+		}
+		
+		return deletedPersons;
+	}
+
+	public InumHashCodeMap getSourcePersonsHashCodesMap(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			LdapServerConnection inumDbServerConnection, Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
+			Map<CacheCompoundKey, Long> sourcePersonCacheCompoundKeyHashCodeMap, CacheCompoundKeyIndex primaryKeyAttrValueInumIndex) {
+		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+
+		InumHashCodeMap result = new InumHashCodeMap(sourcePersonCacheCompoundKeyMap.size());
+
+		// Entries which hash codes should be calculated
+		List<String> inums = new ArrayList<String>();
+		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
+
+		for (Entry<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyEntry : sourcePersonCacheCompoundKeyMap.entrySet()) {
+			CacheCompoundKey cacheCompoundKey = sourcePersonCacheCompoundKeyEntry.getKey();
+			GluuSimplePerson sourcePerson = sourcePersonCacheCompoundKeyEntry.getValue();
+
+			GluuInumMap currentInumMap = primaryKeyAttrValueInumIndex.get(cacheCompoundKey);
+			if (currentInumMap == null) {
+				// Inum entry wasn't added to inum server. Entry will be processed at next run
+				log.error("There is no inum entry for source entry with DN: {}", sourcePerson.getDn());
+				continue;
+			}
+
+			if (sourcePersonCacheCompoundKeyHashCodeMap == null) {
+				inums.add(currentInumMap.getInum());
+				sourcePersons.add(sourcePerson);
+			} else {
+				// Hash code was calculated during streaming load from full entry
+				result.put(currentInumMap.getInum(), sourcePersonCacheCompoundKeyHashCodeMap.get(cacheCompoundKey));
+			}
+		}
+
+		long[] hashCodes = getEntriesHashCodes(cacheRefreshTuningConfiguration, inumDbPersistenceEntryManager, sourcePersons);
+		for (int i = 0; i < hashCodes.length; i++) {
+			result.put(inums.get(i), hashCodes[i]);
+		}
+
+		return result;
+	}
+
+	private long[] getEntriesHashCodes(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			final PersistenceEntryManager hashPersistenceEntryManager, final List<GluuSimplePerson> sourcePersons) {
+		final boolean contentDigest = cacheRefreshTuningConfiguration.isContentDigest();
+		final long[] result = new long[sourcePersons.size()];
+
+		int threadsCount = cacheRefreshTuningConfiguration.getHashingThreads();
+		if (threadsCount == 0) {
+			threadsCount = Runtime.getRuntime().availableProcessors();
+		}
+
+		// Persistence entry manager hash code is calculated in one thread like before
+		if (!contentDigest || (threadsCount < 2) || (sourcePersons.size() < MIN_PARALLEL_HASHING_ENTRIES)) {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = getEntryHashCode(hashPersistenceEntryManager, contentDigest, sourcePersons.get(i));
+			}
+
+			return result;
+		}
+
+		log.debug("Calculating digests of '{}' entries using '{}' threads", sourcePersons.size(), threadsCount);
+
+		// Each task fills own range of result array
+		int rangeSize = (result.length + threadsCount - 1) / threadsCount;
+		List<Future<?>> rangeResults = new ArrayList<Future<?>>(threadsCount);
+
+		ExecutorService executorService = Executors.newFixedThreadPool(threadsCount);
+		try {
+			for (int start = 0; start < result.length; start += rangeSize) {
+				final int rangeStart = start;
+				final int rangeEnd = Math.min(start + rangeSize, result.length);
+				rangeResults.add(executorService.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = rangeStart; i < rangeEnd; i++) {
+							result[i] = CacheRefreshEntryDigest.digest(sourcePersons.get(i));
+						}
+					}
+				}));
+			}
+
+			for (Future<?> rangeResult : rangeResults) {
+				rangeResult.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while calculating digests of source entries", ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Failed to calculate digests of source entries", ex.getCause());
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		return result;
+	}
+
+	public static long getEntryHashCode(PersistenceEntryManager hashPersistenceEntryManager, boolean contentDigest, GluuSimplePerson sourcePerson) {
+		if (contentDigest) {
+			return CacheRefreshEntryDigest.digest(sourcePerson);
+		}
+
+		return hashPersistenceEntryManager.getHashCode(sourcePerson);
+	}
+
+	public List<GluuSimplePerson> processTargetPersons(List<GluuSimplePerson> targetPersons, CacheRefreshSnapshot currSnapshot) {
+		List<GluuSimplePerson> result = new ArrayList<GluuSimplePerson>();
+
+		for (GluuSimplePerson targetPerson : targetPersons) {
+			String personInum = targetPerson.getAttribute(OxTrustConstants.inum);
+			if (!currSnapshot.contains(personInum)) {
+				log.debug("Person with such DN: '{}' isn't present on source server", targetPerson.getDn());
+				result.add(targetPerson);
+			}
+		}
+
+		return result;
+	}
+
+	public CacheRefreshChangeDetectionStatistics getChangeDetectionStatistics(InumHashCodeMap currInumWithEntryHashCodeMap,
+			CacheCompoundKeyIndex primaryKeyAttrValueInumIndex) {
+		long memoryUsage = currInumWithEntryHashCodeMap.estimateMemoryUsage() + primaryKeyAttrValueInumIndex.estimateMemoryUsage();
+
+		// Previously inum entries were kept in two HashMaps: loaded entries and merged copy with added entries
+		long boxedMemoryUsage = MemoryUsageHelper.estimateLongHashMapMemoryUsage(currInumWithEntryHashCodeMap.size())
+				+ 2 * MemoryUsageHelper.estimateHashMapMemoryUsage(primaryKeyAttrValueInumIndex.size());
+
+		return new CacheRefreshChangeDetectionStatistics(currInumWithEntryHashCodeMap.size(), memoryUsage, boxedMemoryUsage);
+	}
+}
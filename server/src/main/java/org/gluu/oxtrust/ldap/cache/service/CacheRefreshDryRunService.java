@@ -0,0 +1,104 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshDryRunReport;
+import org.slf4j.Logger;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
+
+/**
+ * Runs Cache Refresh change detection without writes in separate thread to preview changes of new configuration
+ */
+@ApplicationScoped
+@Named("cacheRefreshDryRunService")
+public class CacheRefreshDryRunService {
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	@Inject
+	private CacheRefreshTimer cacheRefreshTimer;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
+	private ExecutorService executorService;
+
+	private volatile CacheRefreshDryRunReport lastReport;
+
+	@PostConstruct
+	public void init() {
+		this.executorService = Executors.newSingleThreadExecutor();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		this.executorService.shutdownNow();
+	}
+
+	/**
+	 * Starts dry run with specified configuration. Returns false if previous dry run is still in progress
+	 */
+	public synchronized boolean start(final CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if ((this.lastReport != null) && !this.lastReport.isFinished()) {
+			log.warn("Cache Refresh dry run is in progress already");
+			return false;
+		}
+
+		int sampleSize = configurationFactory.getCacheRefreshTuningConfiguration().getDryRunSampleSize();
+		final CacheRefreshDryRunReport report = new CacheRefreshDryRunReport(System.currentTimeMillis(), sampleSize);
+		try {
+			this.executorService.execute(new Runnable() {
+				@Override
+				public void run() {
+					execute(cacheRefreshConfiguration, report);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			log.error("Failed to start Cache Refresh dry run", ex);
+			return false;
+		}
+
+		this.lastReport = report;
+
+		return true;
+	}
+
+	private void execute(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshDryRunReport report) {
+		cacheRefreshMetricsService.suspendForCurrentThread(true);
+		try {
+			boolean result = cacheRefreshTimer.detectChangedEntriesDryRun(cacheRefreshConfiguration, report);
+			report.finish(result, result ? null : "Failed to detect changes. See log for details");
+		} catch (Throwable ex) {
+			log.error("Cache Refresh dry run failed", ex);
+			report.finish(false, ex.getMessage());
+		} finally {
+			cacheRefreshMetricsService.suspendForCurrentThread(false);
+		}
+
+		log.info("Cache Refresh dry run finished: {}", report);
+	}
+
+	public CacheRefreshDryRunReport getLastReport() {
+		return lastReport;
+	}
+
+}
@@ -0,0 +1,506 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.gluu.persist.model.base.GluuStatus;
+import org.slf4j.Logger;
+
+/**
+ * Stores Cache Refresh inum entries on local disk
+ *
+ * Base file contains all entries in versioned columnar format. Changes made by each Cache Refresh run are appended to
+ * journal file as single committed batch. Journal is merged into new base file when it becomes too big.
+ */
+@ApplicationScoped
+@Named("cacheRefreshInumCacheFileService")
+public class CacheRefreshInumCacheFileService {
+
+	@Inject
+	private Logger log;
+
+	private static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+	private static final int BASE_FILE_MAGIC = 0x43524943; // CRIC
+	private static final int JOURNAL_FILE_MAGIC = 0x4352494A; // CRIJ
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte JOURNAL_BATCH_START = 'B';
+	private static final byte JOURNAL_BATCH_COMMIT = 'C';
+	private static final byte JOURNAL_RECORD_ADD = 'A';
+	private static final byte JOURNAL_RECORD_REMOVE = 'R';
+
+	private static final int NULL_VALUE = -1;
+	private static final int SAME_AS_PREVIOUS_VALUE = -2;
+
+	// Rewrite base file when journal size exceeds this part of base file size
+	private static final int JOURNAL_COMPACTION_RATIO = 2;
+
+	public List<GluuInumMap> loadInumMaps(String inumCachePath) {
+		File baseFile = new File(inumCachePath);
+		if (!baseFile.exists()) {
+			return null;
+		}
+
+		Map<String, GluuInumMap> inumMaps;
+		try {
+			inumMaps = readBaseFile(baseFile);
+		} catch (IOException ex) {
+			log.error("Failed to load inum cache from file '{}'", baseFile.getAbsolutePath(), ex);
+			cleanup(inumCachePath);
+			return null;
+		}
+
+		if (inumMaps == null) {
+			log.warn("Unsupported inum cache file '{}' format", baseFile.getAbsolutePath());
+			cleanup(inumCachePath);
+			return null;
+		}
+
+		File journalFile = getJournalFile(inumCachePath);
+		if (journalFile.exists()) {
+			try {
+				int countBatches = applyJournalFile(journalFile, inumMaps);
+				log.debug("Applied '{}' batches from inum cache journal file '{}'", countBatches, journalFile.getAbsolutePath());
+			} catch (IOException ex) {
+				log.error("Failed to load inum cache journal from file '{}'", journalFile.getAbsolutePath(), ex);
+				cleanup(inumCachePath);
+				return null;
+			}
+		}
+
+		return new ArrayList<GluuInumMap>(inumMaps.values());
+	}
+
+	public boolean saveInumMaps(String inumCachePath, Collection<GluuInumMap> inumMaps) {
+		File baseFile = new File(inumCachePath);
+		File tmpBaseFile = new File(inumCachePath + ".tmp");
+
+		DataOutputStream dos;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpBaseFile)));
+		} catch (IOException ex) {
+			log.error("Failed to create inum cache file '{}'", tmpBaseFile.getAbsolutePath(), ex);
+			return false;
+		}
+
+		try {
+			writeBaseFile(dos, inumMaps);
+			dos.flush();
+		} catch (IOException ex) {
+			log.error("Failed to write inum cache file '{}'", tmpBaseFile.getAbsolutePath(), ex);
+			IOUtils.closeQuietly(dos);
+			FileUtils.deleteQuietly(tmpBaseFile);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(dos);
+		}
+
+		// Journal changes already included into new base file
+		FileUtils.deleteQuietly(getJournalFile(inumCachePath));
+		FileUtils.deleteQuietly(baseFile);
+		if (!tmpBaseFile.renameTo(baseFile)) {
+			log.error("Failed to rename inum cache file '{}' to '{}'", tmpBaseFile.getAbsolutePath(), baseFile.getAbsolutePath());
+			return false;
+		}
+
+		return true;
+	}
+
+	public boolean appendInumMapsChanges(String inumCachePath, Collection<GluuInumMap> addedInumMaps, Collection<String> removedInums) {
+		File baseFile = new File(inumCachePath);
+		if (!baseFile.exists()) {
+			log.error("Failed to append changes to inum cache. File '{}' not exists", baseFile.getAbsolutePath());
+			return false;
+		}
+
+		if (addedInumMaps.isEmpty() && removedInums.isEmpty()) {
+			return true;
+		}
+
+		File journalFile = getJournalFile(inumCachePath);
+		boolean newJournalFile = !journalFile.exists();
+
+		DataOutputStream dos;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+		} catch (IOException ex) {
+			log.error("Failed to open inum cache journal file '{}'", journalFile.getAbsolutePath(), ex);
+			return false;
+		}
+
+		try {
+			if (newJournalFile) {
+				dos.writeInt(JOURNAL_FILE_MAGIC);
+				dos.writeInt(FORMAT_VERSION);
+			}
+
+			dos.writeByte(JOURNAL_BATCH_START);
+			dos.writeInt(addedInumMaps.size() + removedInums.size());
+			for (String removedInum : removedInums) {
+				dos.writeByte(JOURNAL_RECORD_REMOVE);
+				writeString(dos, removedInum);
+			}
+			for (GluuInumMap addedInumMap : addedInumMaps) {
+				dos.writeByte(JOURNAL_RECORD_ADD);
+				writeInumMap(dos, addedInumMap);
+			}
+			dos.writeByte(JOURNAL_BATCH_COMMIT);
+			dos.flush();
+		} catch (IOException ex) {
+			log.error("Failed to append changes to inum cache journal file '{}'", journalFile.getAbsolutePath(), ex);
+			IOUtils.closeQuietly(dos);
+			// Partially written batch will be ignored because it has no commit mark. Force full rewrite on next run
+			cleanup(inumCachePath);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(dos);
+		}
+
+		return true;
+	}
+
+	public boolean isCompactionNeeded(String inumCachePath) {
+		File baseFile = new File(inumCachePath);
+		if (!baseFile.exists()) {
+			return true;
+		}
+
+		File journalFile = getJournalFile(inumCachePath);
+
+		return journalFile.length() * JOURNAL_COMPACTION_RATIO > baseFile.length();
+	}
+
+	public void cleanup(String inumCachePath) {
+		FileUtils.deleteQuietly(new File(inumCachePath));
+		FileUtils.deleteQuietly(getJournalFile(inumCachePath));
+	}
+
+	private File getJournalFile(String inumCachePath) {
+		return new File(inumCachePath + JOURNAL_FILE_SUFFIX);
+	}
+
+	private void writeBaseFile(DataOutputStream dos, Collection<GluuInumMap> inumMaps) throws IOException {
+		dos.writeInt(BASE_FILE_MAGIC);
+		dos.writeInt(FORMAT_VERSION);
+		dos.writeInt(inumMaps.size());
+
+		// Store each attribute as separate column. Repeated values like attribute names take few bytes only
+		ColumnWriter columnWriter = new ColumnWriter(dos);
+		for (GluuInumMap inumMap : inumMaps) {
+			columnWriter.writeString(inumMap.getInum());
+		}
+		columnWriter.reset();
+		for (GluuInumMap inumMap : inumMaps) {
+			columnWriter.writeString(inumMap.getDn());
+		}
+		columnWriter.reset();
+		for (GluuInumMap inumMap : inumMaps) {
+			columnWriter.writeString(inumMap.getStatus() == null ? null : inumMap.getStatus().getValue());
+		}
+		columnWriter.reset();
+		for (GluuInumMap inumMap : inumMaps) {
+			columnWriter.writeString(inumMap.getPrimaryKeyAttrName());
+		}
+		for (GluuInumMap inumMap : inumMaps) {
+			writeStrings(dos, inumMap.getPrimaryKeyValues());
+		}
+		columnWriter.reset();
+		for (GluuInumMap inumMap : inumMaps) {
+			columnWriter.writeString(inumMap.getSecondaryKeyAttrName());
+		}
+		for (GluuInumMap inumMap : inumMaps) {
+			writeStrings(dos, inumMap.getSecondaryKeyValues());
+		}
+		columnWriter.reset();
+		for (GluuInumMap inumMap : inumMaps) {
+			columnWriter.writeString(inumMap.getTertiaryKeyAttrName());
+		}
+		for (GluuInumMap inumMap : inumMaps) {
+			writeStrings(dos, inumMap.getTertiaryKeyValues());
+		}
+	}
+
+	private Map<String, GluuInumMap> readBaseFile(File baseFile) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(baseFile)));
+		try {
+			if ((dis.readInt() != BASE_FILE_MAGIC) || (dis.readInt() != FORMAT_VERSION)) {
+				return null;
+			}
+
+			int count = dis.readInt();
+			GluuInumMap[] inumMaps = new GluuInumMap[count];
+			for (int i = 0; i < count; i++) {
+				inumMaps[i] = new GluuInumMap();
+			}
+
+			ColumnReader columnReader = new ColumnReader(dis);
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setInum(columnReader.readString());
+			}
+			columnReader.reset();
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setDn(columnReader.readString());
+			}
+			columnReader.reset();
+			for (int i = 0; i < count; i++) {
+				String status = columnReader.readString();
+				inumMaps[i].setStatus(status == null ? null : GluuStatus.getByValue(status));
+			}
+			columnReader.reset();
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setPrimaryKeyAttrName(columnReader.readString());
+			}
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setPrimaryKeyValues(readStrings(dis));
+			}
+			columnReader.reset();
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setSecondaryKeyAttrName(columnReader.readString());
+			}
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setSecondaryKeyValues(readStrings(dis));
+			}
+			columnReader.reset();
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setTertiaryKeyAttrName(columnReader.readString());
+			}
+			for (int i = 0; i < count; i++) {
+				inumMaps[i].setTertiaryKeyValues(readStrings(dis));
+			}
+
+			Map<String, GluuInumMap> result = new LinkedHashMap<String, GluuInumMap>(count);
+			for (GluuInumMap inumMap : inumMaps) {
+				result.put(inumMap.getInum(), inumMap);
+			}
+
+			return result;
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+	}
+
+	private int applyJournalFile(File journalFile, Map<String, GluuInumMap> inumMaps) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try {
+			if ((dis.readInt() != JOURNAL_FILE_MAGIC) || (dis.readInt() != FORMAT_VERSION)) {
+				throw new IOException("Unsupported journal file format");
+			}
+
+			int countBatches = 0;
+			while (true) {
+				int batchStart = dis.read();
+				if (batchStart == -1) {
+					break;
+				}
+				if (batchStart != JOURNAL_BATCH_START) {
+					throw new IOException("Invalid journal batch start mark");
+				}
+
+				List<String> removedInums = new ArrayList<String>();
+				List<GluuInumMap> addedInumMaps = new ArrayList<GluuInumMap>();
+				try {
+					int count = dis.readInt();
+					for (int i = 0; i < count; i++) {
+						byte recordType = dis.readByte();
+						if (recordType == JOURNAL_RECORD_REMOVE) {
+							removedInums.add(readString(dis));
+						} else if (recordType == JOURNAL_RECORD_ADD) {
+							addedInumMaps.add(readInumMap(dis));
+						} else {
+							throw new IOException("Invalid journal record type");
+						}
+					}
+
+					if (dis.readByte() != JOURNAL_BATCH_COMMIT) {
+						throw new IOException("Invalid journal batch commit mark");
+					}
+				} catch (EOFException ex) {
+					log.warn("Ignoring not committed batch in inum cache journal file '{}'", journalFile.getAbsolutePath());
+					break;
+				}
+
+				for (String removedInum : removedInums) {
+					inumMaps.remove(removedInum);
+				}
+				for (GluuInumMap addedInumMap : addedInumMaps) {
+					inumMaps.put(addedInumMap.getInum(), addedInumMap);
+				}
+				countBatches++;
+			}
+
+			return countBatches;
+		} finally {
+			IOUtils.closeQuietly(dis);
+		}
+	}
+
+	private void writeInumMap(DataOutputStream dos, GluuInumMap inumMap) throws IOException {
+		writeString(dos, inumMap.getInum());
+		writeString(dos, inumMap.getDn());
+		writeString(dos, inumMap.getStatus() == null ? null : inumMap.getStatus().getValue());
+		writeString(dos, inumMap.getPrimaryKeyAttrName());
+		writeStrings(dos, inumMap.getPrimaryKeyValues());
+		writeString(dos, inumMap.getSecondaryKeyAttrName());
+		writeStrings(dos, inumMap.getSecondaryKeyValues());
+		writeString(dos, inumMap.getTertiaryKeyAttrName());
+		writeStrings(dos, inumMap.getTertiaryKeyValues());
+	}
+
+	private GluuInumMap readInumMap(DataInputStream dis) throws IOException {
+		GluuInumMap inumMap = new GluuInumMap();
+		inumMap.setInum(readString(dis));
+		inumMap.setDn(readString(dis));
+		String status = readString(dis);
+		inumMap.setStatus(status == null ? null : GluuStatus.getByValue(status));
+		inumMap.setPrimaryKeyAttrName(readString(dis));
+		inumMap.setPrimaryKeyValues(readStrings(dis));
+		inumMap.setSecondaryKeyAttrName(readString(dis));
+		inumMap.setSecondaryKeyValues(readStrings(dis));
+		inumMap.setTertiaryKeyAttrName(readString(dis));
+		inumMap.setTertiaryKeyValues(readStrings(dis));
+
+		return inumMap;
+	}
+
+	private static void writeString(DataOutputStream dos, String value) throws IOException {
+		if (value == null) {
+			dos.writeInt(NULL_VALUE);
+			return;
+		}
+
+		byte[] bytes = value.getBytes("UTF-8");
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+	private static String readString(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length == NULL_VALUE) {
+			return null;
+		}
+		if (length < 0) {
+			throw new IOException("Invalid string length");
+		}
+
+		byte[] bytes = new byte[length];
+		dis.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeStrings(DataOutputStream dos, String[] values) throws IOException {
+		if (values == null) {
+			dos.writeInt(NULL_VALUE);
+			return;
+		}
+
+		dos.writeInt(values.length);
+		for (String value : values) {
+			writeString(dos, value);
+		}
+	}
+
+	private static String[] readStrings(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length == NULL_VALUE) {
+			return null;
+		}
+		if (length < 0) {
+			throw new IOException("Invalid array length");
+		}
+
+		String[] values = new String[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = readString(dis);
+		}
+
+		return values;
+	}
+
+	private static class ColumnWriter {
+		private DataOutputStream dos;
+		private String previousValue;
+
+		protected ColumnWriter(DataOutputStream dos) {
+			this.dos = dos;
+		}
+
+		public void writeString(String value) throws IOException {
+			if ((value != null) && value.equals(previousValue)) {
+				dos.writeInt(SAME_AS_PREVIOUS_VALUE);
+				return;
+			}
+
+			CacheRefreshInumCacheFileService.writeString(dos, value);
+			previousValue = value;
+		}
+
+		public void reset() {
+			previousValue = null;
+		}
+	}
+
+	private static class ColumnReader {
+		private DataInputStream dis;
+		private String previousValue;
+
+		protected ColumnReader(DataInputStream dis) {
+			this.dis = dis;
+		}
+
+		public String readString() throws IOException {
+			int length = dis.readInt();
+			if (length == SAME_AS_PREVIOUS_VALUE) {
+				if (previousValue == null) {
+					throw new IOException("Invalid column value reference");
+				}
+
+				return previousValue;
+			}
+			if (length == NULL_VALUE) {
+				previousValue = null;
+				return null;
+			}
+			if (length < 0) {
+				throw new IOException("Invalid string length");
+			}
+
+			byte[] bytes = new byte[length];
+			dis.readFully(bytes);
+			previousValue = new String(bytes, "UTF-8");
+
+			return previousValue;
+		}
+
+		public void reset() {
+			previousValue = null;
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.util.Map;
+
+/**
+ * JMX view of Cache Refresh run metrics
+ */
+public interface CacheRefreshMetricsMXBean {
+
+	boolean isRunning();
+
+	String getCurrentPhase();
+
+	long getLastRunStartTime();
+
+	long getLastRunDurationMillis();
+
+	boolean isLastRunSuccessful();
+
+	boolean isLastRunIncremental();
+
+	long getLastRunLdapCalls();
+
+	long getLastRunBytesRead();
+
+	long getLastRunHeapHighWaterMark();
+
+	Map<String, Long> getLastRunPhaseDurations();
+
+	Map<String, Long> getLastRunPhaseEntries();
+
+	Map<String, Double> getLastRunPhaseEntriesPerSecond();
+
+	Map<String, Long> getLastRunScriptExecutions();
+
+	Map<String, Double> getLastRunScriptAverageMillis();
+
+	Map<String, Double> getLastRunScriptMaxMillis();
+
+	Map<String, String> getLastRunScriptHistograms();
+
+}
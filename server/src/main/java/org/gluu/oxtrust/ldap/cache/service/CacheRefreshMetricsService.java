@@ -0,0 +1,508 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshPhaseMetrics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshRunMetrics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshScriptMetrics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.cache.model.MemoryUsageHelper;
+import org.gluu.oxtrust.model.GluuCustomAttribute;
+import org.slf4j.Logger;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
+import org.xdi.util.StringHelper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Collects Cache Refresh per phase metrics, exposes them via JMX and keeps history of runs in snapshots folder
+ */
+@ApplicationScoped
+@Named("cacheRefreshMetricsService")
+public class CacheRefreshMetricsService implements CacheRefreshMetricsMXBean {
+
+	private static final String MBEAN_NAME = "org.gluu.oxtrust:type=CacheRefreshMetrics";
+	private static final String METRICS_HISTORY_FILE_NAME = "run-metrics.json";
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private ConfigurationFactory configurationFactory;
+
+	@Inject
+	private CacheRefreshSnapshotFileService cacheRefreshSnapshotFileService;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private volatile CacheRefreshRunMetrics currentRunMetrics;
+	private volatile CacheRefreshRunMetrics lastRunMetrics;
+
+	// Threads which shouldn't affect metrics of current run, e.g. dry run
+	private final ThreadLocal<Boolean> suspendedThread = new ThreadLocal<Boolean>();
+
+	private ObjectName mbeanName;
+
+	/**
+	 * Registers MBean at application start. Application scoped bean is created lazily otherwise, and metrics aren't visible via JMX before
+	 * first Cache Refresh run
+	 */
+	public synchronized void initMBean() {
+		if (this.mbeanName != null) {
+			return;
+		}
+
+		try {
+			ObjectName objectName = new ObjectName(MBEAN_NAME);
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			if (mbeanServer.isRegistered(objectName)) {
+				mbeanServer.unregisterMBean(objectName);
+			}
+			mbeanServer.registerMBean(this, objectName);
+			this.mbeanName = objectName;
+		} catch (JMException ex) {
+			log.error("Failed to register Cache Refresh metrics MBean", ex);
+		}
+	}
+
+	@PreDestroy
+	public synchronized void destroy() {
+		if (this.mbeanName == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+		} catch (JMException ex) {
+			log.error("Failed to unregister Cache Refresh metrics MBean", ex);
+		}
+	}
+
+	public CacheRefreshRunMetrics startRun(String updateMethod) {
+		MemoryUsageHelper.resetHeapPeakUsage();
+
+		CacheRefreshRunMetrics runMetrics = new CacheRefreshRunMetrics(System.currentTimeMillis(), updateMethod);
+		this.currentRunMetrics = runMetrics;
+
+		return runMetrics;
+	}
+
+	public void startPhase(String name) {
+		CacheRefreshRunMetrics runMetrics = getActiveRunMetrics();
+		if (runMetrics != null) {
+			runMetrics.startPhase(name);
+		}
+	}
+
+	public void setIncremental(boolean incremental) {
+		CacheRefreshRunMetrics runMetrics = getActiveRunMetrics();
+		if (runMetrics != null) {
+			runMetrics.setIncremental(incremental);
+		}
+	}
+
+	public void addEntries(long count) {
+		CacheRefreshRunMetrics runMetrics = getActiveRunMetrics();
+		if (runMetrics != null) {
+			runMetrics.addEntries(count);
+		}
+	}
+
+	public void countLdapCall() {
+		countLdapCalls(1);
+	}
+
+	public void countLdapCalls(long count) {
+		CacheRefreshRunMetrics runMetrics = getActiveRunMetrics();
+		if (runMetrics != null) {
+			runMetrics.addLdapCalls(count);
+		}
+	}
+
+	public void addBytesRead(long count) {
+		CacheRefreshRunMetrics runMetrics = getActiveRunMetrics();
+		if (runMetrics != null) {
+			runMetrics.addBytesRead(count);
+		}
+	}
+
+	/**
+	 * Counts LDAP call which returned entries and estimated size of entries
+	 */
+	public void countEntriesRead(List<GluuSimplePerson> persons) {
+		countLdapCall();
+		addBytesRead(estimateEntriesSize(persons));
+	}
+
+	/**
+	 * Persistence layer doesn't expose size of LDAP responses. Estimate it by length of DNs, attribute names and values
+	 */
+	private long estimateEntriesSize(List<GluuSimplePerson> persons) {
+		long result = 0;
+		for (GluuSimplePerson person : persons) {
+			if (person == null) {
+				continue;
+			}
+
+			if (person.getDn() != null) {
+				result += person.getDn().length();
+			}
+
+			for (GluuCustomAttribute customAttribute : person.getCustomAttributes()) {
+				result += customAttribute.getName().length();
+
+				String[] values = customAttribute.getValues();
+				if (values != null) {
+					for (String value : values) {
+						if (value != null) {
+							result += value.length();
+						}
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	public void addScriptExecution(String scriptName, long nanos, boolean successful) {
+		CacheRefreshRunMetrics runMetrics = getActiveRunMetrics();
+		if (runMetrics != null) {
+			runMetrics.addScriptExecution(scriptName, nanos, successful);
+		}
+	}
+
+	/**
+	 * Excludes calls from current thread from metrics of current run
+	 */
+	public void suspendForCurrentThread(boolean suspend) {
+		if (suspend) {
+			suspendedThread.set(Boolean.TRUE);
+		} else {
+			suspendedThread.remove();
+		}
+	}
+
+	private CacheRefreshRunMetrics getActiveRunMetrics() {
+		if (Boolean.TRUE.equals(suspendedThread.get())) {
+			return null;
+		}
+
+		return this.currentRunMetrics;
+	}
+
+	public void finishRun(CacheRefreshConfiguration cacheRefreshConfiguration, boolean successful) {
+		CacheRefreshRunMetrics runMetrics = this.currentRunMetrics;
+		if (runMetrics == null) {
+			return;
+		}
+
+		runMetrics.finish(successful, MemoryUsageHelper.getHeapPeakUsage());
+		this.lastRunMetrics = runMetrics;
+		this.currentRunMetrics = null;
+
+		log.info("Cache Refresh run metrics: {}", runMetrics);
+
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = configurationFactory.getCacheRefreshTuningConfiguration();
+		appendRunMetrics(cacheRefreshConfiguration, runMetrics, cacheRefreshTuningConfiguration.getMetricsHistorySize());
+	}
+
+	public CacheRefreshRunMetrics getCurrentRunMetrics() {
+		return currentRunMetrics;
+	}
+
+	public CacheRefreshRunMetrics getLastRunMetrics() {
+		return lastRunMetrics;
+	}
+
+	/**
+	 * Returns persisted metrics of last runs ordered from oldest to newest
+	 */
+	public List<CacheRefreshRunMetrics> getRunMetricsHistory() {
+		CacheRefreshConfiguration cacheRefreshConfiguration = configurationFactory.getCacheRefreshConfiguration();
+		if ((cacheRefreshConfiguration == null) || StringHelper.isEmpty(cacheRefreshConfiguration.getSnapshotFolder())) {
+			return new ArrayList<CacheRefreshRunMetrics>(0);
+		}
+
+		List<CacheRefreshRunMetrics> result = new ArrayList<CacheRefreshRunMetrics>();
+
+		File file = getMetricsHistoryFile(cacheRefreshConfiguration);
+		List<String> lines = readLines(file);
+		for (String line : lines) {
+			try {
+				result.add(objectMapper.readValue(line, CacheRefreshRunMetrics.class));
+			} catch (IOException ex) {
+				log.warn("Skipping invalid run metrics in file '{}'", file.getAbsolutePath(), ex);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns average time per entry of specified phase in successful runs from history or -1 if there is no such phase
+	 */
+	public double getAverageEntryMillis(String phaseName) {
+		long durationMillis = 0;
+		long entriesCount = 0;
+		for (CacheRefreshRunMetrics runMetrics : getRunMetricsHistory()) {
+			if (!runMetrics.isSuccessful()) {
+				continue;
+			}
+
+			for (CacheRefreshPhaseMetrics phase : runMetrics.getPhases()) {
+				if (phaseName.equals(phase.getName()) && (phase.getEntriesCount() > 0)) {
+					durationMillis += phase.getDurationMillis();
+					entriesCount += phase.getEntriesCount();
+				}
+			}
+		}
+
+		if (entriesCount == 0) {
+			return -1;
+		}
+
+		return (double) durationMillis / entriesCount;
+	}
+
+	private synchronized void appendRunMetrics(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshRunMetrics runMetrics, int historySize) {
+		if (!cacheRefreshSnapshotFileService.prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return;
+		}
+
+		File file = getMetricsHistoryFile(cacheRefreshConfiguration);
+
+		List<String> lines = readLines(file);
+		try {
+			lines.add(objectMapper.writeValueAsString(runMetrics));
+		} catch (IOException ex) {
+			log.error("Failed to serialize run metrics", ex);
+			return;
+		}
+
+		// Retain only specified number of runs
+		if (lines.size() > historySize) {
+			lines = lines.subList(lines.size() - historySize, lines.size());
+		}
+
+		BufferedWriter bos = null;
+		try {
+			bos = new BufferedWriter(new FileWriter(file));
+			for (String line : lines) {
+				bos.write(String.format("%s\n", line));
+			}
+			bos.flush();
+		} catch (IOException ex) {
+			log.error("Failed to write run metrics to file '{}'", file.getAbsolutePath(), ex);
+		} finally {
+			IOUtils.closeQuietly(bos);
+		}
+	}
+
+	private List<String> readLines(File file) {
+		List<String> result = new ArrayList<String>();
+		if (!file.exists()) {
+			return result;
+		}
+
+		BufferedReader bis = null;
+		try {
+			bis = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = bis.readLine()) != null) {
+				if (line.length() > 0) {
+					result.add(line);
+				}
+			}
+		} catch (IOException ex) {
+			log.error("Failed to load run metrics from file '{}'", file.getAbsolutePath(), ex);
+		} finally {
+			IOUtils.closeQuietly(bis);
+		}
+
+		return result;
+	}
+
+	private File getMetricsHistoryFile(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		return new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + METRICS_HISTORY_FILE_NAME);
+	}
+
+	@Override
+	public boolean isRunning() {
+		return currentRunMetrics != null;
+	}
+
+	@Override
+	public String getCurrentPhase() {
+		CacheRefreshRunMetrics runMetrics = this.currentRunMetrics;
+		if (runMetrics == null) {
+			return null;
+		}
+
+		List<CacheRefreshPhaseMetrics> phases = runMetrics.getPhases();
+		if (phases.isEmpty()) {
+			return null;
+		}
+
+		return phases.get(phases.size() - 1).getName();
+	}
+
+	@Override
+	public long getLastRunStartTime() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return runMetrics == null ? 0 : runMetrics.getStartTime();
+	}
+
+	@Override
+	public long getLastRunDurationMillis() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return runMetrics == null ? 0 : runMetrics.getDurationMillis();
+	}
+
+	@Override
+	public boolean isLastRunSuccessful() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return (runMetrics != null) && runMetrics.isSuccessful();
+	}
+
+	@Override
+	public boolean isLastRunIncremental() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return (runMetrics != null) && runMetrics.isIncremental();
+	}
+
+	@Override
+	public long getLastRunLdapCalls() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return runMetrics == null ? 0 : runMetrics.getLdapCalls();
+	}
+
+	@Override
+	public long getLastRunBytesRead() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return runMetrics == null ? 0 : runMetrics.getBytesRead();
+	}
+
+	@Override
+	public long getLastRunHeapHighWaterMark() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		return runMetrics == null ? 0 : runMetrics.getHeapHighWaterMark();
+	}
+
+	@Override
+	public Map<String, Long> getLastRunPhaseDurations() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (CacheRefreshPhaseMetrics phase : getLastRunPhases()) {
+			result.put(phase.getName(), phase.getDurationMillis());
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getLastRunPhaseEntries() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (CacheRefreshPhaseMetrics phase : getLastRunPhases()) {
+			result.put(phase.getName(), phase.getEntriesCount());
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getLastRunPhaseEntriesPerSecond() {
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (CacheRefreshPhaseMetrics phase : getLastRunPhases()) {
+			result.put(phase.getName(), phase.getEntriesPerSecond());
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getLastRunScriptExecutions() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (CacheRefreshScriptMetrics scriptMetrics : getLastRunScripts()) {
+			result.put(scriptMetrics.getName(), scriptMetrics.getExecutionsCount());
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getLastRunScriptAverageMillis() {
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (CacheRefreshScriptMetrics scriptMetrics : getLastRunScripts()) {
+			result.put(scriptMetrics.getName(), scriptMetrics.getAverageMillis());
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getLastRunScriptMaxMillis() {
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (CacheRefreshScriptMetrics scriptMetrics : getLastRunScripts()) {
+			result.put(scriptMetrics.getName(), scriptMetrics.getMaxMillis());
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, String> getLastRunScriptHistograms() {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (CacheRefreshScriptMetrics scriptMetrics : getLastRunScripts()) {
+			result.put(scriptMetrics.getName(), String.valueOf(scriptMetrics.getHistogram()));
+		}
+
+		return result;
+	}
+
+	private Collection<CacheRefreshScriptMetrics> getLastRunScripts() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		if (runMetrics == null) {
+			return new ArrayList<CacheRefreshScriptMetrics>(0);
+		}
+
+		return runMetrics.getScripts().values();
+	}
+
+	private List<CacheRefreshPhaseMetrics> getLastRunPhases() {
+		CacheRefreshRunMetrics runMetrics = this.lastRunMetrics;
+		if (runMetrics == null) {
+			return new ArrayList<CacheRefreshPhaseMetrics>(0);
+		}
+
+		return runMetrics.getPhases();
+	}
+
+}
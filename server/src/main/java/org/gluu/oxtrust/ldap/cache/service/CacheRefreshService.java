@@ -21,6 +21,7 @@ import javax.inject.Named;
 
 import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
 import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.service.IPersonService;
 import org.gluu.oxtrust.ldap.service.InumService;
 import org.gluu.oxtrust.model.GluuCustomAttribute;
 import org.gluu.oxtrust.model.GluuCustomPerson;
@@ -28,6 +29,8 @@ import org.gluu.oxtrust.util.OxTrustConstants;
 import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.search.filter.Filter;
 import org.slf4j.Logger;
+import org.xdi.config.oxtrust.CacheRefreshAttributeMapping;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
 import org.xdi.util.ArrayHelper;
 import org.xdi.util.OxConstants;
 import org.xdi.util.StringHelper;
@@ -43,12 +46,17 @@ public class CacheRefreshService implements Serializable {
 
 	private static final long serialVersionUID = -2225880517520443390L;
 
+	private static final int MAX_INUMS_ALLOCATION_ATTEMPTS = 100;
+
 	@Inject
 	private Logger log;
 
 	@Inject
 	private InumService inumService;
 
+	@Inject
+	private IPersonService personService;
+
 	public Filter createFilter(String customLdapFilter) {
 		if (StringHelper.isEmpty(customLdapFilter)) {
 			return null;
@@ -58,6 +66,13 @@ public class CacheRefreshService implements Serializable {
 	}
 
 	public Filter createFilter(String[] keyAttributes, String[] keyObjectClasses, String keyAttributeStart, Filter customFilter) {
+		return createFilter(keyAttributes, keyObjectClasses, keyAttributeStart, false, customFilter);
+	}
+
+	/**
+	 * Creates filter which limits entries by first key attribute prefix or exact value if exactMatch is true
+	 */
+	public Filter createFilter(String[] keyAttributes, String[] keyObjectClasses, String keyAttributeStart, boolean exactMatch, Filter customFilter) {
 		if ((keyAttributes == null) || (keyObjectClasses == null)) {
 			return null;
 		}
@@ -79,8 +94,12 @@ public class CacheRefreshService implements Serializable {
 					filterString = filterString.substring(0, index);
 				}
 
-				filterString = String.format("%s=%s*", filterString, keyAttributeStart);
-				filters.add(Filter.create(filterString));
+				if (exactMatch) {
+					filters.add(Filter.createEqualityFilter(filterString, keyAttributeStart));
+				} else {
+					filterString = String.format("%s=%s*", filterString, keyAttributeStart);
+					filters.add(Filter.create(filterString));
+				}
 			}
 		}
 
@@ -123,6 +142,52 @@ public class CacheRefreshService implements Serializable {
 		return newInum;
 	}
 
+	/**
+	 * Reserves block of unique inums for new inum map entries with one search per block instead of one check per inum
+	 */
+	public List<String> generateInumsForNewInumMaps(String inumbBaseDn, PersistenceEntryManager ldapEntryManager, int count, Set<String> allocatedInums) {
+		List<String> result = new ArrayList<String>(count);
+
+		int attempts = 0;
+		while (result.size() < count) {
+			if (attempts++ > MAX_INUMS_ALLOCATION_ATTEMPTS) {
+				throw new IllegalStateException("Failed to allocate block of unique inums");
+			}
+
+			// Generate candidates without checking them one by one in DB
+			Set<String> candidateInums = new HashSet<String>();
+			while (result.size() + candidateInums.size() < count) {
+				String inum = inumService.generateInums(OxTrustConstants.INUM_TYPE_PEOPLE_SLUG, false);
+				if (StringHelper.isEmpty(inum)) {
+					throw new IllegalStateException("Failed to generate inum");
+				}
+
+				if (!allocatedInums.contains(inum)) {
+					candidateInums.add(inum);
+				}
+			}
+
+			// Remove inums which already exist in DB
+			List<Filter> inumFilters = new ArrayList<Filter>(candidateInums.size());
+			for (String candidateInum : candidateInums) {
+				inumFilters.add(Filter.createEqualityFilter(OxTrustConstants.inum, candidateInum));
+			}
+
+			List<GluuInumMap> existingInumMaps = ldapEntryManager.findEntries(inumbBaseDn, GluuInumMap.class, Filter.createORFilter(inumFilters),
+					new String[] { OxTrustConstants.inum });
+			for (GluuInumMap existingInumMap : existingInumMaps) {
+				candidateInums.remove(existingInumMap.getInum());
+			}
+
+			for (String candidateInum : candidateInums) {
+				allocatedInums.add(candidateInum);
+				result.add(candidateInum);
+			}
+		}
+
+		return result;
+	}
+
 	public String getDnForInum(String baseDn, String inum) {
 		return String.format("inum=%s,%s", inum, baseDn);
 	}
@@ -173,4 +238,49 @@ public class CacheRefreshService implements Serializable {
 		}
 	}
 
+	public GluuSimplePerson createRemovedPerson(String inum) {
+		GluuSimplePerson person = new GluuSimplePerson();
+		String personDn = personService.getDnForPerson(inum);
+		person.setDn(personDn);
+
+		List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>();
+		customAttributes.add(new GluuCustomAttribute(OxTrustConstants.inum, inum));
+		person.setCustomAttributes(customAttributes);
+
+		return person;
+	}
+
+	public String[] getSourceAttributes(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		return cacheRefreshConfiguration.getSourceAttributes().toArray(new String[0]);
+	}
+
+	public String[] getCompoundKeyAttributes(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		return cacheRefreshConfiguration.getKeyAttributes().toArray(new String[0]);
+	}
+
+	public String[] getCompoundKeyObjectClasses(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		return cacheRefreshConfiguration.getKeyObjectClasses().toArray(new String[0]);
+	}
+
+	public String[] getCompoundKeyAttributesWithoutValues(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		String[] result = cacheRefreshConfiguration.getKeyAttributes().toArray(new String[0]);
+		for (int i = 0; i < result.length; i++) {
+			int index = result[i].indexOf('=');
+			if (index != -1) {
+				result[i] = result[i].substring(0, index);
+			}
+		}
+
+		return result;
+	}
+
+	public Map<String, String> getTargetServerAttributesMapping(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		Map<String, String> result = new HashMap<String, String>();
+		for (CacheRefreshAttributeMapping attributeMapping : cacheRefreshConfiguration.getAttributeMapping()) {
+			result.put(attributeMapping.getDestination(), attributeMapping.getSource());
+		}
+
+		return result;
+	}
+
 }
@@ -0,0 +1,354 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshShardLease;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.exception.BasePersistenceException;
+import org.gluu.persist.model.base.SimpleBranch;
+import org.gluu.search.filter.Filter;
+import org.slf4j.Logger;
+import org.xdi.util.OxConstants;
+import org.xdi.util.StringHelper;
+
+/**
+ * Distributes Cache Refresh shards between oxTrust cluster nodes using leases stored in inum DB server
+ *
+ * Each node periodically renews member lease. Nodes count live members and take over free shards until they hold fair share of
+ * shards. Extra shards are released when new node joins cluster. Nodes clocks should be synchronized.
+ *
+ * Inum DB server should have oxCacheRefreshLease object class from cacheRefreshLease.schema.ldif. Leases branch from
+ * cacheRefreshLeases.ldif.vm is added at first run if it doesn't exist.
+ */
+@ApplicationScoped
+@Named("cacheRefreshShardLeaseService")
+public class CacheRefreshShardLeaseService {
+
+	private static final String LEASES_BRANCH_NAME = "cacheRefreshLeases";
+	private static final String OBJECT_CLASS_LEASE = "oxCacheRefreshLease";
+	private static final String SHARD_LEASE_NAME_PREFIX = "shard-";
+	private static final String MEMBER_LEASE_NAME_PREFIX = "member-";
+
+	// Owner stops to use lease before expiration to tolerate small clock skew between nodes
+	private static final long LEASE_SAFETY_MARGIN_MILLIS = 30 * 1000L;
+
+	@Inject
+	private Logger log;
+
+	private String nodeId;
+
+	private final Map<Integer, CacheRefreshShardLease> ownedLeases = new TreeMap<Integer, CacheRefreshShardLease>();
+
+	// Last leases of all shards seen by this node
+	private final Map<Integer, CacheRefreshShardLease> shardLeases = new TreeMap<Integer, CacheRefreshShardLease>();
+
+	private ScheduledExecutorService heartbeatExecutorService;
+
+	@PostConstruct
+	public void init() {
+		// JVM name is pid@host
+		this.nodeId = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.\\-]", "-");
+		this.heartbeatExecutorService = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		this.heartbeatExecutorService.shutdownNow();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Renews member lease and shard leases of this node and takes free shards up to fair share
+	 *
+	 * @return Sorted list of shards held by this node
+	 */
+	public synchronized List<Integer> acquireShards(PersistenceEntryManager inumDbPersistenceEntryManager, String inumbaseDn, int shardCount,
+			int leaseDuration) {
+		this.ownedLeases.clear();
+		this.shardLeases.clear();
+
+		String leasesDn = getDnForLeases(inumbaseDn);
+		if (!prepareLeasesBranch(inumDbPersistenceEntryManager, leasesDn)) {
+			return new ArrayList<Integer>(0);
+		}
+
+		List<CacheRefreshShardLease> leases = findLeases(inumDbPersistenceEntryManager, leasesDn);
+		if (leases == null) {
+			return new ArrayList<Integer>(0);
+		}
+
+		long now = System.currentTimeMillis();
+		long leaseDurationMillis = leaseDuration * 1000L;
+
+		int liveMembers = 1;
+		CacheRefreshShardLease memberLease = null;
+		Map<Integer, CacheRefreshShardLease> lastShardLeases = new HashMap<Integer, CacheRefreshShardLease>();
+		for (CacheRefreshShardLease lease : leases) {
+			String name = lease.getName();
+			if (StringHelper.isEmpty(name)) {
+				continue;
+			}
+
+			if (name.startsWith(MEMBER_LEASE_NAME_PREFIX)) {
+				if (StringHelper.equals(nodeId, lease.getOwner())) {
+					memberLease = lease;
+				} else if (lease.isExpired(now)) {
+					removeLease(inumDbPersistenceEntryManager, lease);
+				} else {
+					liveMembers++;
+				}
+			} else if (name.startsWith(SHARD_LEASE_NAME_PREFIX)) {
+				Integer shard = toShard(name);
+				if ((shard == null) || (shard >= shardCount) || (lease.getGeneration() == null)) {
+					continue;
+				}
+
+				CacheRefreshShardLease lastShardLease = lastShardLeases.get(shard);
+				if ((lastShardLease == null) || (lastShardLease.getGeneration() < lease.getGeneration())) {
+					lastShardLeases.put(shard, lease);
+				}
+			}
+		}
+
+		if (!updateMemberLease(inumDbPersistenceEntryManager, leasesDn, memberLease, now, leaseDurationMillis)) {
+			return new ArrayList<Integer>(0);
+		}
+
+		int fairShare = (shardCount + liveMembers - 1) / liveMembers;
+
+		// Renew own leases. Shards above fair share are released for new members
+		for (int shard = 0; shard < shardCount; shard++) {
+			CacheRefreshShardLease lease = lastShardLeases.get(shard);
+			if ((lease == null) || !StringHelper.equals(nodeId, lease.getOwner()) || lease.isExpired(now + LEASE_SAFETY_MARGIN_MILLIS)) {
+				continue;
+			}
+
+			if (this.ownedLeases.size() >= fairShare) {
+				log.info("Releasing Cache Refresh shard '{}' for other cluster members", shard);
+				removeLease(inumDbPersistenceEntryManager, lease);
+				lastShardLeases.remove(shard);
+			} else if (renewLease(inumDbPersistenceEntryManager, lease, now, leaseDurationMillis)) {
+				this.ownedLeases.put(shard, lease);
+			}
+		}
+
+		// Take over free and expired shards
+		for (int shard = 0; (shard < shardCount) && (this.ownedLeases.size() < fairShare); shard++) {
+			if (this.ownedLeases.containsKey(shard)) {
+				continue;
+			}
+
+			CacheRefreshShardLease lastLease = lastShardLeases.get(shard);
+			if ((lastLease != null) && !lastLease.isExpired(now)) {
+				continue;
+			}
+
+			int generation = (lastLease == null) ? 0 : lastLease.getGeneration() + 1;
+			CacheRefreshShardLease lease = addShardLease(inumDbPersistenceEntryManager, leasesDn, shard, generation, now, leaseDurationMillis);
+			if (lease == null) {
+				continue;
+			}
+
+			this.ownedLeases.put(shard, lease);
+			if (lastLease != null) {
+				removeLease(inumDbPersistenceEntryManager, lastLease);
+			}
+		}
+
+		this.shardLeases.clear();
+		this.shardLeases.putAll(lastShardLeases);
+		this.shardLeases.putAll(this.ownedLeases);
+
+		log.info("Cache Refresh node '{}' holds shards '{}' of '{}', live members: '{}'", nodeId, this.ownedLeases.keySet(), shardCount, liveMembers);
+
+		return new ArrayList<Integer>(this.ownedLeases.keySet());
+	}
+
+	/**
+	 * Extends lease of shard held by this node. Returns false if lease was lost
+	 */
+	public synchronized boolean renewShardLease(PersistenceEntryManager inumDbPersistenceEntryManager, int shard, int leaseDuration) {
+		CacheRefreshShardLease lease = this.ownedLeases.get(shard);
+		if (lease == null) {
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		if (lease.isExpired(now + LEASE_SAFETY_MARGIN_MILLIS) || !renewLease(inumDbPersistenceEntryManager, lease, now, leaseDuration * 1000L)) {
+			log.warn("Lease of Cache Refresh shard '{}' was lost", shard);
+			this.ownedLeases.remove(shard);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Renews lease of shard in background while shard is synchronized. Shard run should check isShardLeaseHeld before writes and cancel
+	 * returned future at the end
+	 */
+	public ScheduledFuture<?> startShardHeartbeat(final PersistenceEntryManager inumDbPersistenceEntryManager, final int shard,
+			final int leaseDuration) {
+		// Renew few times per lease duration to keep lease after single failed renewal
+		long periodMillis = Math.max(1000L, (leaseDuration * 1000L - LEASE_SAFETY_MARGIN_MILLIS) / 3);
+
+		return this.heartbeatExecutorService.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					renewShardLease(inumDbPersistenceEntryManager, shard, leaseDuration);
+				} catch (RuntimeException ex) {
+					log.error("Failed to renew lease of Cache Refresh shard '{}'", shard, ex);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized boolean isShardLeaseHeld(int shard) {
+		return this.ownedLeases.containsKey(shard);
+	}
+
+	/**
+	 * Returns unique Id of current lease generation of shard. Shard owner stores it next to shard snapshot
+	 */
+	public synchronized String getShardLeaseId(int shard) {
+		CacheRefreshShardLease lease = this.shardLeases.get(shard);
+		if (lease == null) {
+			return null;
+		}
+
+		return lease.getOwner() + "/" + lease.getId();
+	}
+
+	private boolean updateMemberLease(PersistenceEntryManager inumDbPersistenceEntryManager, String leasesDn, CacheRefreshShardLease memberLease,
+			long now, long leaseDurationMillis) {
+		if (memberLease != null) {
+			return renewLease(inumDbPersistenceEntryManager, memberLease, now, leaseDurationMillis);
+		}
+
+		CacheRefreshShardLease lease = createLease(leasesDn, MEMBER_LEASE_NAME_PREFIX + nodeId, 0, now, leaseDurationMillis);
+		try {
+			inumDbPersistenceEntryManager.persist(lease);
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to add Cache Refresh member lease '{}'", lease.getDn(), ex);
+			return false;
+		}
+
+		return true;
+	}
+
+	private CacheRefreshShardLease addShardLease(PersistenceEntryManager inumDbPersistenceEntryManager, String leasesDn, int shard, int generation,
+			long now, long leaseDurationMillis) {
+		CacheRefreshShardLease lease = createLease(leasesDn, SHARD_LEASE_NAME_PREFIX + shard, generation, now, leaseDurationMillis);
+		try {
+			inumDbPersistenceEntryManager.persist(lease);
+		} catch (BasePersistenceException ex) {
+			// Other node added the same lease generation first
+			log.debug("Failed to take Cache Refresh shard lease '{}'", lease.getDn(), ex);
+			return null;
+		}
+
+		return lease;
+	}
+
+	private CacheRefreshShardLease createLease(String leasesDn, String name, int generation, long now, long leaseDurationMillis) {
+		String id = name + "-" + generation;
+
+		CacheRefreshShardLease lease = new CacheRefreshShardLease();
+		lease.setDn(String.format("ou=%s,%s", id, leasesDn));
+		lease.setId(id);
+		lease.setName(name);
+		lease.setGeneration(generation);
+		lease.setOwner(nodeId);
+		lease.setExpiration(new Date(now + leaseDurationMillis));
+
+		return lease;
+	}
+
+	private boolean renewLease(PersistenceEntryManager inumDbPersistenceEntryManager, CacheRefreshShardLease lease, long now, long leaseDurationMillis) {
+		Date expiration = lease.getExpiration();
+		lease.setExpiration(new Date(now + leaseDurationMillis));
+		try {
+			inumDbPersistenceEntryManager.merge(lease);
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to renew Cache Refresh lease '{}'", lease.getDn(), ex);
+			lease.setExpiration(expiration);
+			return false;
+		}
+
+		return true;
+	}
+
+	private void removeLease(PersistenceEntryManager inumDbPersistenceEntryManager, CacheRefreshShardLease lease) {
+		try {
+			inumDbPersistenceEntryManager.remove(lease);
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to remove Cache Refresh lease '{}'", lease.getDn(), ex);
+		}
+	}
+
+	private List<CacheRefreshShardLease> findLeases(PersistenceEntryManager inumDbPersistenceEntryManager, String leasesDn) {
+		Filter filter = Filter.createEqualityFilter(OxConstants.OBJECT_CLASS, OBJECT_CLASS_LEASE);
+		try {
+			return inumDbPersistenceEntryManager.findEntries(leasesDn, CacheRefreshShardLease.class, filter);
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to load Cache Refresh leases", ex);
+			return null;
+		}
+	}
+
+	private boolean prepareLeasesBranch(PersistenceEntryManager inumDbPersistenceEntryManager, String leasesDn) {
+		try {
+			if (!inumDbPersistenceEntryManager.contains(SimpleBranch.class, leasesDn)) {
+				SimpleBranch branch = new SimpleBranch();
+				branch.setOrganizationalUnitName(LEASES_BRANCH_NAME);
+				branch.setDn(leasesDn);
+
+				inumDbPersistenceEntryManager.persist(branch);
+			}
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to prepare Cache Refresh leases branch '{}'", leasesDn, ex);
+			return false;
+		}
+
+		return true;
+	}
+
+	private Integer toShard(String name) {
+		try {
+			return Integer.valueOf(name.substring(SHARD_LEASE_NAME_PREFIX.length()));
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private String getDnForLeases(String inumbaseDn) {
+		return String.format("ou=%s,%s", LEASES_BRANCH_NAME, inumbaseDn);
+	}
+
+}
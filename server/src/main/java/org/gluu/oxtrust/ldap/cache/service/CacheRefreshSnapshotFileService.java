@@ -6,23 +6,44 @@
 
 package org.gluu.oxtrust.ldap.cache.service;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -30,10 +51,20 @@ import javax.inject.Named;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.filefilter.OrFileFilter;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshCheckpoint;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshIncrementalState;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSearchPartitions;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshot;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshotDelta;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
 import org.slf4j.Logger;
 import org.xdi.config.oxtrust.CacheRefreshConfiguration;
 import org.xdi.util.ArrayHelper;
+import org.xdi.util.Pair;
 
 /**
  * Helper service to work with snapshots
@@ -48,9 +79,54 @@ public class CacheRefreshSnapshotFileService {
 	private Logger log;
 
 	private static final String SNAPSHOT_FILE_NAME_PATTERN = "inum-snapshot-%s.txt";
+	private static final String BINARY_SNAPSHOT_FILE_NAME_PATTERN = "inum-snapshot-%s.dat";
+	private static final String BINARY_SNAPSHOT_FILE_EXTENSION = "dat";
+	// Delta snapshot name: base snapshot file name, sequence number and date
+	private static final String DELTA_SNAPSHOT_FILE_NAME_PATTERN = "%s.%06d-%s.delta";
+	private static final String DELTA_SNAPSHOT_FILE_EXTENSION = "delta";
 	private static final String PROBLEM_LIST_FILE_NAME = "problem-inum-list.txt";
+	private static final String REMOVAL_PENDING_LIST_FILE_NAME = "removal-pending-inum-list.txt";
+	private static final String REMOVAL_PROGRESS_LIST_FILE_NAME = "removal-progress-inum-list.txt";
+	private static final String INCREMENTAL_STATE_FILE_NAME = "incremental-state.properties";
+	private static final String CHECKPOINT_FILE_NAME = "checkpoint.properties";
+	private static final String SEARCH_PARTITIONS_FILE_NAME = "search-partitions.txt";
+	private static final String CHECKPOINT_SNAPSHOT_FILE_NAME = "checkpoint-snapshot.dat";
+	private static final String CHECKPOINT_UPDATE_LIST_FILE_NAME = "checkpoint-update-list.txt";
+	private static final String CHECKPOINT_PROGRESS_LIST_FILE_NAME = "checkpoint-progress-inum-list.txt";
+	private static final String SHARD_LEASE_FILE_NAME = "shard-lease.properties";
+	private static final String CHECKPOINT_CONFIGURATION_KEY = "configurationKey";
+	private static final String CHECKPOINT_CREATION_TIME = "creationTime";
+	private static final String INCREMENTAL_STATE_CHANGE_ATTRIBUTE = "changeAttribute";
+	private static final String INCREMENTAL_STATE_LAST_FULL_SCAN_TIME = "lastFullScanTime";
+	private static final String INCREMENTAL_STATE_CHANGE_MARK_PREFIX = "changeMark.";
+	private static final String SHARD_LEASE_ID = "leaseId";
 	private static final String SNAPSHOT_FILE_NAME_DATE_PATTERN = "yyyy-MM-dd-HH-mm";
 
+	private static final int BINARY_SNAPSHOT_MAGIC = 0x43525348; // CRSH
+	// Version 1 stored 32-bit hash codes. Version 2 stores 64-bit hash codes
+	private static final byte BINARY_SNAPSHOT_VERSION = 2;
+	private static final byte BINARY_SNAPSHOT_INT_HASH_CODES_VERSION = 1;
+	private static final byte BINARY_SNAPSHOT_FLAG_COMPRESSED = 0x01;
+	private static final int BINARY_SNAPSHOT_HEADER_SIZE = 10;
+
+	private static final int DELTA_SNAPSHOT_MAGIC = 0x43525344; // CRSD
+	private static final byte DELTA_SNAPSHOT_VERSION = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Compare by snapshot date. Binary snapshot is newer than text snapshot with the same date
+	private static final Comparator<String> SNAPSHOT_FILE_NAME_COMPARATOR = new Comparator<String>() {
+		@Override
+		public int compare(String fileName1, String fileName2) {
+			int result = FilenameUtils.getBaseName(fileName1).compareTo(FilenameUtils.getBaseName(fileName2));
+			if (result != 0) {
+				return result;
+			}
+
+			return Boolean.valueOf(isBinarySnapshot(fileName1)).compareTo(Boolean.valueOf(isBinarySnapshot(fileName2)));
+		}
+	};
+
 	public boolean prepareSnapshotsFolder(CacheRefreshConfiguration cacheRefreshConfiguration) {
 		String snapshotFolder = cacheRefreshConfiguration.getSnapshotFolder();
 
@@ -67,7 +143,62 @@ public class CacheRefreshSnapshotFileService {
 		return true;
 	}
 
-	public boolean createSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, Map<String, Integer> inumWithEntryHashCodeMap) {
+	public boolean createSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			CacheRefreshSnapshot snapshot) {
+		return createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, null, snapshot);
+	}
+
+	/**
+	 * Persists only changes relative to previous snapshot if delta snapshots are enabled. Previous snapshot should be the last persisted one.
+	 * Full snapshot is persisted every snapshotCompactionInterval runs or if changes are too big
+	 */
+	public boolean createSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			CacheRefreshSnapshot prevSnapshot, CacheRefreshSnapshot snapshot) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		if (cacheRefreshTuningConfiguration.isDeltaSnapshot() && (prevSnapshot != null)) {
+			String[] snapshots = getSnapshotsList(cacheRefreshConfiguration);
+			if (!ArrayHelper.isEmpty(snapshots)) {
+				String baseSnapshotFileName = snapshots[snapshots.length - 1];
+				String[] deltaSnapshots = getDeltaSnapshotsList(cacheRefreshConfiguration, baseSnapshotFileName);
+
+				CacheRefreshSnapshotDelta delta = CacheRefreshSnapshotDelta.create(prevSnapshot, snapshot);
+				if ((deltaSnapshots.length < cacheRefreshTuningConfiguration.getSnapshotCompactionInterval()) && (delta.size() * 2 <= snapshot.size())) {
+					return createDeltaSnapshot(cacheRefreshConfiguration, baseSnapshotFileName, deltaSnapshots.length + 1, delta,
+							cacheRefreshTuningConfiguration.isCompressSnapshot());
+				}
+
+				log.debug("Compacting '{}' delta snapshots into full snapshot", deltaSnapshots.length);
+			}
+		}
+
+		boolean result = createFullSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, snapshot);
+		if (result) {
+			// Snapshot with the same name might be overwritten. Its delta snapshots are obsolete
+			String[] snapshots = getSnapshotsList(cacheRefreshConfiguration);
+			removeDeltaSnapshots(cacheRefreshConfiguration, snapshots[snapshots.length - 1]);
+		}
+
+		return result;
+	}
+
+	private boolean createFullSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			CacheRefreshSnapshot snapshot) {
+		if (cacheRefreshTuningConfiguration.isBinarySnapshot()) {
+			return createBinarySnapshot(cacheRefreshConfiguration, snapshot, cacheRefreshTuningConfiguration.isCompressSnapshot());
+		}
+
+		Map<String, Long> inumWithEntryHashCodeMap = new LinkedHashMap<String, Long>(snapshot.size());
+		for (int i = 0; i < snapshot.size(); i++) {
+			inumWithEntryHashCodeMap.put(snapshot.getInum(i), snapshot.getHashCode(i));
+		}
+
+		return createSnapshot(cacheRefreshConfiguration, inumWithEntryHashCodeMap);
+	}
+
+	public boolean createSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, Map<String, Long> inumWithEntryHashCodeMap) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return false;
 		}
@@ -85,7 +216,7 @@ public class CacheRefreshSnapshotFileService {
 		}
 
 		try {
-			for (Entry<String, Integer> entry : inumWithEntryHashCodeMap.entrySet()) {
+			for (Entry<String, Long> entry : inumWithEntryHashCodeMap.entrySet()) {
 				bos.write(String.format("%s:%d\n", entry.getKey(), entry.getValue()));
 			}
 			bos.flush();
@@ -99,7 +230,267 @@ public class CacheRefreshSnapshotFileService {
 		return true;
 	}
 
-	public Map<String, Integer> readSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName) {
+	public boolean createBinarySnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshSnapshot snapshot, boolean compress) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		DateFormat fileNameDateFormat = new SimpleDateFormat(SNAPSHOT_FILE_NAME_DATE_PATTERN);
+		String snapshotFileName = String.format(BINARY_SNAPSHOT_FILE_NAME_PATTERN, fileNameDateFormat.format(new Date()));
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshotFileName);
+
+		return writeBinarySnapshot(file, snapshot, compress);
+	}
+
+	private boolean writeBinarySnapshot(File file, CacheRefreshSnapshot snapshot, boolean compress) {
+		BufferedOutputStream bos;
+		try {
+			bos = new BufferedOutputStream(new FileOutputStream(file));
+		} catch (IOException ex) {
+			log.error("Failed to create snapshot file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		}
+
+		try {
+			// Header: magic, version, flags, entries count
+			DataOutputStream headerOutputStream = new DataOutputStream(bos);
+			headerOutputStream.writeInt(BINARY_SNAPSHOT_MAGIC);
+			headerOutputStream.writeByte(BINARY_SNAPSHOT_VERSION);
+			headerOutputStream.writeByte(compress ? BINARY_SNAPSHOT_FLAG_COMPRESSED : 0);
+			headerOutputStream.writeInt(snapshot.size());
+			headerOutputStream.flush();
+
+			// Body: hash codes array followed by sorted inums
+			OutputStream bodyOutputStream = compress ? new GZIPOutputStream(bos) : bos;
+			DataOutputStream dos = new DataOutputStream(bodyOutputStream);
+			for (int i = 0; i < snapshot.size(); i++) {
+				dos.writeLong(snapshot.getHashCode(i));
+			}
+			for (int i = 0; i < snapshot.size(); i++) {
+				byte[] inumBytes = snapshot.getInum(i).getBytes(UTF_8);
+				dos.writeShort(inumBytes.length);
+				dos.write(inumBytes);
+			}
+			dos.flush();
+
+			if (compress) {
+				((GZIPOutputStream) bodyOutputStream).finish();
+			}
+			bos.flush();
+		} catch (IOException ex) {
+			log.error("Failed to create snapshot file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(bos);
+		}
+
+		return true;
+	}
+
+	private boolean createDeltaSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String baseSnapshotFileName, int sequenceNumber,
+			CacheRefreshSnapshotDelta delta, boolean compress) {
+		DateFormat fileNameDateFormat = new SimpleDateFormat(SNAPSHOT_FILE_NAME_DATE_PATTERN);
+		String deltaSnapshotFileName = String.format(DELTA_SNAPSHOT_FILE_NAME_PATTERN, baseSnapshotFileName, sequenceNumber,
+				fileNameDateFormat.format(new Date()));
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + deltaSnapshotFileName);
+		BufferedOutputStream bos;
+		try {
+			bos = new BufferedOutputStream(new FileOutputStream(file));
+		} catch (IOException ex) {
+			log.error("Failed to create delta snapshot file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		}
+
+		try {
+			// Header: magic, version, flags, changed and removed entries count
+			DataOutputStream headerOutputStream = new DataOutputStream(bos);
+			headerOutputStream.writeInt(DELTA_SNAPSHOT_MAGIC);
+			headerOutputStream.writeByte(DELTA_SNAPSHOT_VERSION);
+			headerOutputStream.writeByte(compress ? BINARY_SNAPSHOT_FLAG_COMPRESSED : 0);
+			headerOutputStream.writeInt(delta.getChanges().size());
+			headerOutputStream.writeInt(delta.getRemovedInums().length);
+			headerOutputStream.flush();
+
+			// Body: changed hash codes followed by changed and removed sorted inums
+			OutputStream bodyOutputStream = compress ? new GZIPOutputStream(bos) : bos;
+			DataOutputStream dos = new DataOutputStream(bodyOutputStream);
+			CacheRefreshSnapshot changes = delta.getChanges();
+			for (int i = 0; i < changes.size(); i++) {
+				dos.writeLong(changes.getHashCode(i));
+			}
+			for (int i = 0; i < changes.size(); i++) {
+				writeInum(dos, changes.getInum(i));
+			}
+			for (String removedInum : delta.getRemovedInums()) {
+				writeInum(dos, removedInum);
+			}
+			dos.flush();
+
+			if (compress) {
+				((GZIPOutputStream) bodyOutputStream).finish();
+			}
+			bos.flush();
+		} catch (IOException ex) {
+			log.error("Failed to create delta snapshot file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(bos);
+		}
+
+		return true;
+	}
+
+	private CacheRefreshSnapshotDelta readDeltaSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String deltaSnapshotFileName) {
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + deltaSnapshotFileName);
+
+		InputStream bis;
+		try {
+			bis = new BufferedInputStream(new FileInputStream(file));
+		} catch (FileNotFoundException ex) {
+			log.error("Failed to load delta snapshot file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+
+		try {
+			DataInputStream headerInputStream = new DataInputStream(bis);
+			int magic = headerInputStream.readInt();
+			byte version = headerInputStream.readByte();
+			byte flags = headerInputStream.readByte();
+			int changesCount = headerInputStream.readInt();
+			int removedCount = headerInputStream.readInt();
+			if ((magic != DELTA_SNAPSHOT_MAGIC) || (version != DELTA_SNAPSHOT_VERSION) || (changesCount < 0) || (removedCount < 0)) {
+				log.error("Failed to parse delta snapshot file '{}'. Unsupported format", file.getAbsolutePath());
+				return null;
+			}
+
+			InputStream bodyInputStream = (flags & BINARY_SNAPSHOT_FLAG_COMPRESSED) != 0 ? new GZIPInputStream(bis) : bis;
+			DataInputStream dis = new DataInputStream(bodyInputStream);
+			long[] hashCodes = new long[changesCount];
+			for (int i = 0; i < changesCount; i++) {
+				hashCodes[i] = dis.readLong();
+			}
+
+			String[] inums = new String[changesCount];
+			for (int i = 0; i < changesCount; i++) {
+				inums[i] = readInum(dis);
+			}
+
+			String[] removedInums = new String[removedCount];
+			for (int i = 0; i < removedCount; i++) {
+				removedInums[i] = readInum(dis);
+			}
+
+			return new CacheRefreshSnapshotDelta(new CacheRefreshSnapshot(inums, hashCodes), removedInums);
+		} catch (IOException ex) {
+			log.error("Failed to load delta snapshot file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(bis);
+		}
+	}
+
+	private static void writeInum(DataOutputStream dos, String inum) throws IOException {
+		byte[] inumBytes = inum.getBytes(UTF_8);
+		dos.writeShort(inumBytes.length);
+		dos.write(inumBytes);
+	}
+
+	private static String readInum(DataInputStream dis) throws IOException {
+		byte[] inumBytes = new byte[dis.readUnsignedShort()];
+		dis.readFully(inumBytes);
+
+		return new String(inumBytes, UTF_8);
+	}
+
+	public CacheRefreshSnapshot readSnapshotData(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName) {
+		if (isBinarySnapshot(snapshotFileName)) {
+			return readBinarySnapshot(cacheRefreshConfiguration, snapshotFileName);
+		}
+
+		// Text snapshot from previous versions. It will be replaced with binary one on next snapshot creation
+		Map<String, Long> inumWithEntryHashCodeMap = readSnapshot(cacheRefreshConfiguration, snapshotFileName);
+		if (inumWithEntryHashCodeMap == null) {
+			return null;
+		}
+
+		return CacheRefreshSnapshot.fromMap(inumWithEntryHashCodeMap);
+	}
+
+	public CacheRefreshSnapshot readBinarySnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshotFileName);
+		if (!file.exists()) {
+			return null;
+		}
+
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException ex) {
+			log.error("Failed to load snapshot file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+
+		try {
+			FileChannel fileChannel = raf.getChannel();
+			ByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+			if (buffer.remaining() < BINARY_SNAPSHOT_HEADER_SIZE) {
+				log.error("Failed to parse snapshot file '{}'. File is too short", file.getAbsolutePath());
+				return null;
+			}
+
+			int magic = buffer.getInt();
+			byte version = buffer.get();
+			byte flags = buffer.get();
+			int count = buffer.getInt();
+			boolean intHashCodes = version == BINARY_SNAPSHOT_INT_HASH_CODES_VERSION;
+			if ((magic != BINARY_SNAPSHOT_MAGIC) || ((version != BINARY_SNAPSHOT_VERSION) && !intHashCodes) || (count < 0)) {
+				log.error("Failed to parse snapshot file '{}'. Unsupported format", file.getAbsolutePath());
+				return null;
+			}
+
+			if ((flags & BINARY_SNAPSHOT_FLAG_COMPRESSED) != 0) {
+				byte[] compressedBody = new byte[buffer.remaining()];
+				buffer.get(compressedBody);
+				buffer = ByteBuffer.wrap(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressedBody))));
+			}
+
+			long[] hashCodes = new long[count];
+			if (intHashCodes) {
+				for (int i = 0; i < count; i++) {
+					hashCodes[i] = buffer.getInt();
+				}
+			} else {
+				buffer.asLongBuffer().get(hashCodes);
+				buffer.position(buffer.position() + count * 8);
+			}
+
+			String[] inums = new String[count];
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getShort() & 0xFFFF;
+				byte[] inumBytes = new byte[length];
+				buffer.get(inumBytes);
+				inums[i] = new String(inumBytes, UTF_8);
+			}
+
+			return new CacheRefreshSnapshot(inums, hashCodes);
+		} catch (IOException ex) {
+			log.error("Failed to load snapshot file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} catch (RuntimeException ex) {
+			log.error("Failed to parse snapshot file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(raf);
+		}
+	}
+
+	public Map<String, Long> readSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotFileName) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return null;
 		}
@@ -117,7 +508,7 @@ public class CacheRefreshSnapshotFileService {
 			return null;
 		}
 
-		Map<String, Integer> result = new HashMap<String, Integer>();
+		Map<String, Long> result = new HashMap<String, Long>();
 		try {
 			String line;
 			while ((line = bis.readLine()) != null) {
@@ -128,9 +519,9 @@ public class CacheRefreshSnapshotFileService {
 				}
 
 				try {
-					result.put(lineValues[0], Integer.valueOf(lineValues[1]));
+					result.put(lineValues[0], Long.valueOf(lineValues[1]));
 				} catch (RuntimeException ex) {
-					log.error("Failed to parse '{}' to integer", lineValues[1], ex);
+					log.error("Failed to parse '{}' to long", lineValues[1], ex);
 					return null;
 				}
 			}
@@ -144,7 +535,7 @@ public class CacheRefreshSnapshotFileService {
 		return result;
 	}
 
-	public Map<String, Integer> readLastSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration) {
+	public CacheRefreshSnapshot readLastSnapshot(CacheRefreshConfiguration cacheRefreshConfiguration) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return null;
 		}
@@ -154,17 +545,116 @@ public class CacheRefreshSnapshotFileService {
 			return null;
 		}
 
-		return readSnapshot(cacheRefreshConfiguration, snapshots[snapshots.length - 1]);
+		String baseSnapshotFileName = snapshots[snapshots.length - 1];
+		String[] deltaSnapshots = getDeltaSnapshotsList(cacheRefreshConfiguration, baseSnapshotFileName);
+
+		return readSnapshotChain(cacheRefreshConfiguration, baseSnapshotFileName, Arrays.asList(deltaSnapshots));
+	}
+
+	/**
+	 * Returns names of retained full and delta snapshots ordered by time. Each of them can be read with {@link #readSnapshotAt}
+	 */
+	public List<String> getSnapshotPoints(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		List<String> result = new ArrayList<String>();
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return result;
+		}
+
+		for (String snapshotFileName : getSnapshotsList(cacheRefreshConfiguration)) {
+			result.add(snapshotFileName);
+			result.addAll(Arrays.asList(getDeltaSnapshotsList(cacheRefreshConfiguration, snapshotFileName)));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reconstructs snapshot at point in time specified by full or delta snapshot name. Delta snapshots are applied to their full snapshot
+	 */
+	public CacheRefreshSnapshot readSnapshotAt(CacheRefreshConfiguration cacheRefreshConfiguration, String snapshotPointFileName) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		if (!isDeltaSnapshot(snapshotPointFileName)) {
+			return readSnapshotData(cacheRefreshConfiguration, snapshotPointFileName);
+		}
+
+		String baseSnapshotFileName = getBaseSnapshotFileName(snapshotPointFileName);
+		List<String> deltaSnapshots = new ArrayList<String>();
+		for (String deltaSnapshotFileName : getDeltaSnapshotsList(cacheRefreshConfiguration, baseSnapshotFileName)) {
+			if (deltaSnapshotFileName.compareTo(snapshotPointFileName) <= 0) {
+				deltaSnapshots.add(deltaSnapshotFileName);
+			}
+		}
+
+		if (!deltaSnapshots.contains(snapshotPointFileName)) {
+			log.error("There is no delta snapshot '{}'", snapshotPointFileName);
+			return null;
+		}
+
+		return readSnapshotChain(cacheRefreshConfiguration, baseSnapshotFileName, deltaSnapshots);
+	}
+
+	private CacheRefreshSnapshot readSnapshotChain(CacheRefreshConfiguration cacheRefreshConfiguration, String baseSnapshotFileName,
+			List<String> deltaSnapshots) {
+		CacheRefreshSnapshot snapshot = readSnapshotData(cacheRefreshConfiguration, baseSnapshotFileName);
+		if (snapshot == null) {
+			return null;
+		}
+
+		for (String deltaSnapshotFileName : deltaSnapshots) {
+			CacheRefreshSnapshotDelta delta = readDeltaSnapshot(cacheRefreshConfiguration, deltaSnapshotFileName);
+			if (delta == null) {
+				return null;
+			}
+
+			snapshot = delta.apply(snapshot);
+		}
+
+		return snapshot;
 	}
 
 	private String[] getSnapshotsList(CacheRefreshConfiguration cacheRefreshConfiguration) {
 		File file = new File(cacheRefreshConfiguration.getSnapshotFolder());
-		String[] files = file.list(new WildcardFileFilter(String.format(SNAPSHOT_FILE_NAME_PATTERN, "*")));
+		String[] files = file.list(new OrFileFilter(new WildcardFileFilter(String.format(SNAPSHOT_FILE_NAME_PATTERN, "*")),
+				new WildcardFileFilter(String.format(BINARY_SNAPSHOT_FILE_NAME_PATTERN, "*"))));
+		Arrays.sort(files, SNAPSHOT_FILE_NAME_COMPARATOR);
+
+		return files;
+	}
+
+	private String[] getDeltaSnapshotsList(CacheRefreshConfiguration cacheRefreshConfiguration, String baseSnapshotFileName) {
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder());
+		String[] files = file.list(new WildcardFileFilter(baseSnapshotFileName + ".*." + DELTA_SNAPSHOT_FILE_EXTENSION));
 		Arrays.sort(files);
 
 		return files;
 	}
 
+	private void removeDeltaSnapshots(CacheRefreshConfiguration cacheRefreshConfiguration, String baseSnapshotFileName) {
+		for (String deltaSnapshotFileName : getDeltaSnapshotsList(cacheRefreshConfiguration, baseSnapshotFileName)) {
+			File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + deltaSnapshotFileName);
+			if (!file.delete()) {
+				log.error("Failed to remove delta snaphost file '{}'", file.getAbsolutePath());
+			}
+		}
+	}
+
+	private static boolean isBinarySnapshot(String snapshotFileName) {
+		return BINARY_SNAPSHOT_FILE_EXTENSION.equals(FilenameUtils.getExtension(snapshotFileName));
+	}
+
+	private static boolean isDeltaSnapshot(String snapshotFileName) {
+		return DELTA_SNAPSHOT_FILE_EXTENSION.equals(FilenameUtils.getExtension(snapshotFileName));
+	}
+
+	private static String getBaseSnapshotFileName(String deltaSnapshotFileName) {
+		String name = FilenameUtils.removeExtension(deltaSnapshotFileName);
+
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+
 	public boolean retainSnapshots(CacheRefreshConfiguration cacheRefreshConfiguration, int count) {
 		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
 			return false;
@@ -175,7 +665,18 @@ public class CacheRefreshSnapshotFileService {
 			return true;
 		}
 
-		for (int i = 0; i < snapshots.length - count; i++) {
+		// Count includes delta snapshots. Full snapshot is removed only together with its delta snapshots
+		int[] deltaSnapshotsCounts = new int[snapshots.length];
+		int pointsCount = 0;
+		for (int i = 0; i < snapshots.length; i++) {
+			deltaSnapshotsCounts[i] = getDeltaSnapshotsList(cacheRefreshConfiguration, snapshots[i]).length;
+			pointsCount += deltaSnapshotsCounts[i] + 1;
+		}
+
+		for (int i = 0; (i < snapshots.length) && (pointsCount - deltaSnapshotsCounts[i] - 1 >= count); i++) {
+			pointsCount -= deltaSnapshotsCounts[i] + 1;
+			removeDeltaSnapshots(cacheRefreshConfiguration, snapshots[i]);
+
 			File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + snapshots[i]);
 			if (!file.delete()) {
 				log.error("Failed to remove snaphost file '{}'", file.getAbsolutePath());
@@ -248,4 +749,446 @@ public class CacheRefreshSnapshotFileService {
 		return true;
 	}
 
+	/**
+	 * Returns inums of persons which were scheduled for removal by interrupted run and weren't removed yet
+	 */
+	public Set<String> readPendingRemovalList(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		File pendingFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PENDING_LIST_FILE_NAME);
+		if (!pendingFile.exists()) {
+			return null;
+		}
+
+		Set<String> result = readInumList(pendingFile, new LinkedHashSet<String>());
+		if (result == null) {
+			return null;
+		}
+
+		File progressFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PROGRESS_LIST_FILE_NAME);
+		if (progressFile.exists()) {
+			Set<String> removedInums = readInumList(progressFile, new HashSet<String>());
+			if (removedInums != null) {
+				result.removeAll(removedInums);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Persists inums of persons for removal and resets removal progress
+	 */
+	public boolean writePendingRemovalList(CacheRefreshConfiguration cacheRefreshConfiguration, Collection<String> inums) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		File progressFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PROGRESS_LIST_FILE_NAME);
+		FileUtils.deleteQuietly(progressFile);
+
+		File pendingFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PENDING_LIST_FILE_NAME);
+
+		return writeInumList(pendingFile, inums, false);
+	}
+
+	/**
+	 * Appends inums of removed persons to removal progress file
+	 */
+	public synchronized boolean appendRemovalProgress(CacheRefreshConfiguration cacheRefreshConfiguration, Collection<String> removedInums) {
+		if (removedInums.isEmpty()) {
+			return true;
+		}
+
+		File progressFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PROGRESS_LIST_FILE_NAME);
+
+		return writeInumList(progressFile, removedInums, true);
+	}
+
+	public void removePendingRemovalList(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		FileUtils.deleteQuietly(new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PENDING_LIST_FILE_NAME));
+		FileUtils.deleteQuietly(new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + REMOVAL_PROGRESS_LIST_FILE_NAME));
+	}
+
+	private <T extends Collection<String>> T readInumList(File file, T result) {
+		BufferedReader bis;
+		try {
+			bis = new BufferedReader(new FileReader(file));
+		} catch (FileNotFoundException ex) {
+			log.error("Failed to load inum list from file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+
+		try {
+			String line;
+			while ((line = bis.readLine()) != null) {
+				if (line.length() > 0) {
+					result.add(line);
+				}
+			}
+		} catch (IOException ex) {
+			log.error("Failed to load inum list from file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(bis);
+		}
+
+		return result;
+	}
+
+	private boolean writeInumList(File file, Collection<String> inums, boolean append) {
+		BufferedWriter bos;
+		try {
+			bos = new BufferedWriter(new FileWriter(file, append));
+		} catch (IOException ex) {
+			log.error("Failed to write inum list to file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		}
+
+		try {
+			for (String inum : inums) {
+				bos.write(String.format("%s\n", inum));
+			}
+			bos.flush();
+		} catch (IOException ex) {
+			log.error("Failed to write inum list to file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(bos);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns checkpoint of interrupted run or null if previous run finished
+	 */
+	public CacheRefreshCheckpoint readCheckpoint(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		// Checkpoint properties are written last. Checkpoint without them is incomplete
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_FILE_NAME);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			properties.load(is);
+		} catch (IOException ex) {
+			log.error("Failed to load checkpoint from file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+
+		String configurationKey = properties.getProperty(CHECKPOINT_CONFIGURATION_KEY);
+		long creationTime;
+		try {
+			creationTime = Long.parseLong(properties.getProperty(CHECKPOINT_CREATION_TIME));
+		} catch (NumberFormatException ex) {
+			log.error("Failed to parse checkpoint creation time in file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+
+		if (configurationKey == null) {
+			log.error("Failed to parse checkpoint configuration key in file '{}'", file.getAbsolutePath());
+			return null;
+		}
+
+		CacheRefreshSnapshot snapshot = readBinarySnapshot(cacheRefreshConfiguration, CHECKPOINT_SNAPSHOT_FILE_NAME);
+		if (snapshot == null) {
+			log.error("Failed to load checkpoint snapshot");
+			return null;
+		}
+
+		File updateListFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_UPDATE_LIST_FILE_NAME);
+		List<String> updateList = readInumList(updateListFile, new ArrayList<String>());
+		if (updateList == null) {
+			return null;
+		}
+
+		List<Pair<String, GluuSimplePerson>> targetUpdates = new ArrayList<Pair<String, GluuSimplePerson>>(updateList.size());
+		for (String line : updateList) {
+			// Line format: inum[<TAB>source server name<TAB>DN]
+			String[] lineValues = line.split("\t", 3);
+			GluuSimplePerson sourcePersonKey = null;
+			if (lineValues.length == 3) {
+				sourcePersonKey = new GluuSimplePerson();
+				sourcePersonKey.setSourceServerName(lineValues[1]);
+				sourcePersonKey.setDn(lineValues[2]);
+			} else if (lineValues.length != 1) {
+				log.error("Failed to parse line: {}", line);
+				return null;
+			}
+
+			targetUpdates.add(new Pair<String, GluuSimplePerson>(lineValues[0], sourcePersonKey));
+		}
+
+		Set<String> updatedInums = new HashSet<String>();
+		File progressFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_PROGRESS_LIST_FILE_NAME);
+		if (progressFile.exists()) {
+			if (readInumList(progressFile, updatedInums) == null) {
+				return null;
+			}
+		}
+
+		return new CacheRefreshCheckpoint(configurationKey, creationTime, snapshot, targetUpdates, updatedInums);
+	}
+
+	/**
+	 * Persists snapshot and list of target updates of current run and resets checkpoint progress
+	 */
+	public boolean writeCheckpoint(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			CacheRefreshCheckpoint checkpoint) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		// Invalidate previous checkpoint before overwriting its files
+		removeCheckpoint(cacheRefreshConfiguration);
+
+		File snapshotFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_SNAPSHOT_FILE_NAME);
+		if (!writeBinarySnapshot(snapshotFile, checkpoint.getSnapshot(), cacheRefreshTuningConfiguration.isCompressSnapshot())) {
+			return false;
+		}
+
+		List<String> updateList = new ArrayList<String>(checkpoint.getTargetUpdates().size());
+		for (Pair<String, GluuSimplePerson> targetUpdate : checkpoint.getTargetUpdates()) {
+			GluuSimplePerson sourcePersonKey = targetUpdate.getSecond();
+			if (sourcePersonKey == null) {
+				updateList.add(targetUpdate.getFirst());
+			} else {
+				updateList.add(targetUpdate.getFirst() + "\t" + sourcePersonKey.getSourceServerName() + "\t" + sourcePersonKey.getDn());
+			}
+		}
+
+		File updateListFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_UPDATE_LIST_FILE_NAME);
+		if (!writeInumList(updateListFile, updateList, false)) {
+			return false;
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(CHECKPOINT_CONFIGURATION_KEY, checkpoint.getConfigurationKey());
+		properties.setProperty(CHECKPOINT_CREATION_TIME, String.valueOf(checkpoint.getCreationTime()));
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_FILE_NAME);
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+			properties.store(os, "Cache Refresh checkpoint");
+		} catch (IOException ex) {
+			log.error("Failed to write checkpoint to file '{}'", file.getAbsolutePath(), ex);
+			FileUtils.deleteQuietly(file);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Appends inums of updated target entries to checkpoint progress file
+	 */
+	public synchronized boolean appendCheckpointProgress(CacheRefreshConfiguration cacheRefreshConfiguration, Collection<String> updatedInums) {
+		if (updatedInums.isEmpty()) {
+			return true;
+		}
+
+		File progressFile = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_PROGRESS_LIST_FILE_NAME);
+
+		return writeInumList(progressFile, updatedInums, true);
+	}
+
+	public void removeCheckpoint(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		FileUtils.deleteQuietly(new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_FILE_NAME));
+		FileUtils.deleteQuietly(new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_SNAPSHOT_FILE_NAME));
+		FileUtils.deleteQuietly(new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_UPDATE_LIST_FILE_NAME));
+		FileUtils.deleteQuietly(new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + CHECKPOINT_PROGRESS_LIST_FILE_NAME));
+	}
+
+	/**
+	 * Returns search partitions learned at previous runs. Returns partitions without history if there is no file or it's broken
+	 */
+	public CacheRefreshSearchPartitions readSearchPartitions(CacheRefreshConfiguration cacheRefreshConfiguration, String letters, int sizeLimit) {
+		CacheRefreshSearchPartitions result = new CacheRefreshSearchPartitions(letters, sizeLimit);
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return result;
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + SEARCH_PARTITIONS_FILE_NAME);
+		if (!file.exists()) {
+			return result;
+		}
+
+		List<String> lines = readInumList(file, new ArrayList<String>());
+		if (lines == null) {
+			return result;
+		}
+
+		CacheRefreshSearchPartitions learnedSearchPartitions = new CacheRefreshSearchPartitions(letters, sizeLimit);
+		for (String line : lines) {
+			// Line format: source server name<TAB>base DN<TAB>partition<TAB>entries count
+			String[] lineValues = line.split("\t");
+			if (lineValues.length != 4) {
+				log.error("Failed to parse line: {}", line);
+				return result;
+			}
+
+			try {
+				learnedSearchPartitions.addLearnedPartition(lineValues[0], lineValues[1], lineValues[2], Integer.parseInt(lineValues[3]));
+			} catch (NumberFormatException ex) {
+				log.error("Failed to parse '{}' to int", lineValues[3], ex);
+				return result;
+			}
+		}
+
+		return learnedSearchPartitions;
+	}
+
+	public boolean writeSearchPartitions(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshSearchPartitions searchPartitions) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		List<String> lines = new ArrayList<String>();
+		for (Entry<String, Map<String, Map<String, Integer>>> sourceServerPartitions : searchPartitions.getPartitions().entrySet()) {
+			for (Entry<String, Map<String, Integer>> baseDnPartitions : sourceServerPartitions.getValue().entrySet()) {
+				for (Entry<String, Integer> partition : baseDnPartitions.getValue().entrySet()) {
+					lines.add(sourceServerPartitions.getKey() + "\t" + baseDnPartitions.getKey() + "\t" + partition.getKey() + "\t" + partition.getValue());
+				}
+			}
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + SEARCH_PARTITIONS_FILE_NAME);
+
+		return writeInumList(file, lines, false);
+	}
+
+	public CacheRefreshIncrementalState readIncrementalState(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + INCREMENTAL_STATE_FILE_NAME);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			properties.load(is);
+		} catch (IOException ex) {
+			log.error("Failed to load incremental state from file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+
+		String changeAttribute = properties.getProperty(INCREMENTAL_STATE_CHANGE_ATTRIBUTE);
+		long lastFullScanTime;
+		try {
+			lastFullScanTime = Long.parseLong(properties.getProperty(INCREMENTAL_STATE_LAST_FULL_SCAN_TIME));
+		} catch (NumberFormatException ex) {
+			log.error("Failed to parse last full scan time in file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		}
+
+		Map<String, String> changeMarks = new HashMap<String, String>();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(INCREMENTAL_STATE_CHANGE_MARK_PREFIX)) {
+				changeMarks.put(name.substring(INCREMENTAL_STATE_CHANGE_MARK_PREFIX.length()), properties.getProperty(name));
+			}
+		}
+
+		return new CacheRefreshIncrementalState(changeAttribute, lastFullScanTime, changeMarks);
+	}
+
+	public boolean writeIncrementalState(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshIncrementalState incrementalState) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(INCREMENTAL_STATE_CHANGE_ATTRIBUTE, incrementalState.getChangeAttribute());
+		properties.setProperty(INCREMENTAL_STATE_LAST_FULL_SCAN_TIME, String.valueOf(incrementalState.getLastFullScanTime()));
+		for (Entry<String, String> changeMark : incrementalState.getChangeMarks().entrySet()) {
+			properties.setProperty(INCREMENTAL_STATE_CHANGE_MARK_PREFIX + changeMark.getKey(), changeMark.getValue());
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + INCREMENTAL_STATE_FILE_NAME);
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+			properties.store(os, "Cache Refresh incremental state");
+		} catch (IOException ex) {
+			log.error("Failed to write incremental state to file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns lease of node which persisted last shard snapshot
+	 */
+	public String readShardLease(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + SHARD_LEASE_FILE_NAME);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			properties.load(is);
+		} catch (IOException ex) {
+			log.error("Failed to load shard lease from file '{}'", file.getAbsolutePath(), ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+
+		return properties.getProperty(SHARD_LEASE_ID);
+	}
+
+	public boolean writeShardLease(CacheRefreshConfiguration cacheRefreshConfiguration, String leaseId) {
+		if (!prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return false;
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(SHARD_LEASE_ID, leaseId);
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + SHARD_LEASE_FILE_NAME);
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+			properties.store(os, "Cache Refresh shard lease");
+		} catch (IOException ex) {
+			log.error("Failed to write shard lease to file '{}'", file.getAbsolutePath(), ex);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+
+		return true;
+	}
+
 }
@@ -0,0 +1,891 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKeyIndex;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshIncrementalState;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSearchPartitions;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSourceEntryStore;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.exception.BasePersistenceException;
+import org.gluu.persist.ldap.operation.LdapOperationService;
+import org.gluu.persist.model.ProcessBatchOperation;
+import org.gluu.persist.model.SearchScope;
+import org.gluu.persist.operation.PersistenceOperationService;
+import org.gluu.search.filter.Filter;
+import org.slf4j.Logger;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
+import org.xdi.util.ArrayHelper;
+import org.xdi.util.StringHelper;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+/**
+ * Loads entries from Cache Refresh source servers
+ *
+ * Entries are loaded in one thread, in parallel or page by page in streaming mode. In streaming mode only keys and hash codes of entries are
+ * kept in heap and full entries are stored off heap or reloaded from source servers when they are needed.
+ */
+@ApplicationScoped
+@Named("cacheRefreshSourceLoadService")
+public class CacheRefreshSourceLoadService {
+
+	public static final String LETTERS_FOR_SEARCH = "abcdefghijklmnopqrstuvwxyz1234567890.";
+
+	private static final List<GluuSimplePerson> END_OF_SOURCE_PAGES = new ArrayList<GluuSimplePerson>(0);
+
+	private static final String SOURCE_ENTRY_STORE_FILE_NAME = "source-entries.dat";
+
+	public static final String USN_CHANGED_ATTRIBUTE = "uSNChanged";
+
+	private static final String ROOT_DSE_DN = "";
+	private static final String MONITOR_DN = "cn=monitor";
+	private static final String CURRENT_TIME_ATTRIBUTE = "currentTime";
+	private static final String HIGHEST_COMMITTED_USN_ATTRIBUTE = "highestCommittedUSN";
+	private static final String CHANGE_MARK_TIME_FORMAT = "yyyyMMddHHmmss'.0Z'";
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private CacheRefreshService cacheRefreshService;
+
+	@Inject
+	private CacheRefreshSnapshotFileService cacheRefreshSnapshotFileService;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
+	public List<GluuSimplePerson> loadSourceServerEntriesWithoutLimits(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections) {
+		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
+		String[] keyAttributes = cacheRefreshService.getCompoundKeyAttributes(cacheRefreshConfiguration);
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] keyObjectClasses = cacheRefreshService.getCompoundKeyObjectClasses(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+
+		Set<String> addedDns = new HashSet<String>();
+
+		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			String sourceServerName = sourceServerConnection.getSourceServerName();
+
+			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
+			String[] baseDns = sourceServerConnection.getBaseDns();
+			Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, "", customFilter);
+			if (log.isTraceEnabled()) {
+				log.trace("Using next filter to load entris from source server: {}", filter);
+			}
+
+			for (String baseDn : baseDns) {
+				List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn, GluuSimplePerson.class,
+						filter, SearchScope.SUB, returnAttributes, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
+				cacheRefreshMetricsService.countEntriesRead(currentSourcePersons);
+
+				// Add to result and ignore root entry if needed
+				for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+					currentSourcePerson.setSourceServerName(sourceServerName);
+					// if (!StringHelper.equalsIgnoreCase(baseDn,
+					// currentSourcePerson.getDn())) {
+					String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
+					if (!addedDns.contains(currentSourcePersonDn)) {
+						sourcePersons.add(currentSourcePerson);
+						addedDns.add(currentSourcePersonDn);
+					}
+					// }
+				}
+			}
+		}
+
+		return sourcePersons;
+	}
+
+	public List<GluuSimplePerson> loadSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections, String[] keyAttributeStarts,
+			CacheRefreshSearchPartitions searchPartitions) {
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+
+		Set<String> addedDns = new HashSet<String>();
+
+		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			List<SourceServerSearch> sourceServerSearches = createSourceServerSearches(cacheRefreshConfiguration, sourceServerConnection, keyAttributeStarts,
+					returnAttributes, null, 0, searchPartitions);
+			for (SourceServerSearch sourceServerSearch : sourceServerSearches) {
+				List<GluuSimplePerson> currentSourcePersons = sourceServerSearch.call();
+
+				// Add to result and ignore duplicates
+				for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+					String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
+					if (addedDns.add(currentSourcePersonDn)) {
+						sourcePersons.add(currentSourcePerson);
+					}
+				}
+			}
+		}
+
+		return sourcePersons;
+	}
+
+	/**
+	 * Loads entries changed since high-water marks of last incremental state and sets new high-water marks read before the searches
+	 */
+	public List<GluuSimplePerson> loadChangedSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			CacheRefreshIncrementalState lastIncrementalState, CacheRefreshIncrementalState incrementalState) {
+		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
+		String[] keyAttributes = cacheRefreshService.getCompoundKeyAttributes(cacheRefreshConfiguration);
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] keyObjectClasses = cacheRefreshService.getCompoundKeyObjectClasses(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+
+		Set<String> addedDns = new HashSet<String>();
+
+		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			String sourceServerName = sourceServerConnection.getSourceServerName();
+
+			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
+			String[] baseDns = sourceServerConnection.getBaseDns();
+
+			// Mark is taken before search. Entries changed during search are loaded again by next run
+			String changeMark = getCurrentChangeMark(cacheRefreshTuningConfiguration, sourceServerConnection);
+
+			Filter changeFilter = Filter.createGreaterOrEqualFilter(lastIncrementalState.getChangeAttribute(),
+					lastIncrementalState.getChangeMark(sourceServerName));
+			Filter filter = Filter.createANDFilter(cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, "", customFilter), changeFilter);
+			if (log.isTraceEnabled()) {
+				log.trace("Using next filter to load changed entries from source server: {}", filter);
+			}
+
+			for (String baseDn : baseDns) {
+				// Changed entries are loaded page by page without size limit. Result cut by size limit would lose changes while mark moves on
+				List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn, GluuSimplePerson.class,
+						filter, SearchScope.SUB, returnAttributes, null, 0, cacheRefreshTuningConfiguration.getSourceLoadPageSize(), 0);
+				cacheRefreshMetricsService.countEntriesRead(currentSourcePersons);
+
+				for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+					currentSourcePerson.setSourceServerName(sourceServerName);
+					String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
+					if (addedDns.add(currentSourcePersonDn)) {
+						sourcePersons.add(currentSourcePerson);
+					}
+				}
+			}
+
+			// Without new mark entries are loaded from last mark again
+			if (changeMark != null) {
+				incrementalState.setChangeMark(sourceServerName, changeMark);
+			}
+		}
+
+		return sourcePersons;
+	}
+
+	/**
+	 * Sets high-water marks of source servers before full scan. Source servers without mark will be scanned fully at next run again
+	 */
+	public void setCurrentChangeMarks(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			CacheRefreshIncrementalState incrementalState) {
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			String changeMark = getCurrentChangeMark(cacheRefreshTuningConfiguration, sourceServerConnection);
+			if (changeMark != null) {
+				incrementalState.setChangeMark(sourceServerConnection.getSourceServerName(), changeMark);
+			}
+		}
+	}
+
+	/**
+	 * Returns high-water mark of source server at this moment: highestCommittedUSN for uSNChanged, otherwise source server time minus
+	 * incrementalChangeMarkMargin. Marks aren't taken from loaded entries because entries committed later may get lower values. Returns
+	 * null if source server doesn't provide it
+	 */
+	private String getCurrentChangeMark(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection sourceServerConnection) {
+		String sourceServerName = sourceServerConnection.getSourceServerName();
+		PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
+
+		PersistenceOperationService persistenceOperationService = sourcePersistenceEntryManager.getOperationService();
+		if (!(persistenceOperationService instanceof LdapOperationService)) {
+			log.error("Failed to get high-water mark of source server '{}'. It's not LDAP server", sourceServerName);
+			return null;
+		}
+		LdapOperationService ldapOperationService = (LdapOperationService) persistenceOperationService;
+
+		LDAPConnection connection = null;
+		try {
+			connection = ldapOperationService.getConnection();
+			if (StringHelper.equalsIgnoreCase(USN_CHANGED_ATTRIBUTE, cacheRefreshTuningConfiguration.getIncrementalChangeAttribute())) {
+				String highestCommittedUsn = getAttributeValue(connection, ROOT_DSE_DN, HIGHEST_COMMITTED_USN_ATTRIBUTE);
+				if (highestCommittedUsn == null) {
+					log.error("Failed to get high-water mark of source server '{}'. Root DSE has no '{}' attribute", sourceServerName,
+							HIGHEST_COMMITTED_USN_ATTRIBUTE);
+				}
+
+				return highestCommittedUsn;
+			}
+
+			// Active Directory provides current time in root DSE, OpenDJ in monitor entry
+			String currentTime = getAttributeValue(connection, ROOT_DSE_DN, CURRENT_TIME_ATTRIBUTE);
+			if (currentTime == null) {
+				currentTime = getAttributeValue(connection, MONITOR_DN, CURRENT_TIME_ATTRIBUTE);
+			}
+			if (currentTime == null) {
+				log.error("Failed to get high-water mark of source server '{}'. Neither root DSE nor '{}' entry has '{}' attribute", sourceServerName,
+						MONITOR_DN, CURRENT_TIME_ATTRIBUTE);
+				return null;
+			}
+
+			long changeMarkTime = sourcePersistenceEntryManager.decodeTime(currentTime).getTime()
+					- cacheRefreshTuningConfiguration.getIncrementalChangeMarkMargin() * 1000L;
+
+			// Whole seconds with zero fraction are accepted in filters by all LDAP servers
+			SimpleDateFormat changeMarkFormat = new SimpleDateFormat(CHANGE_MARK_TIME_FORMAT);
+			changeMarkFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+			return changeMarkFormat.format(new Date(changeMarkTime));
+		} catch (Exception ex) {
+			log.error("Failed to get high-water mark of source server '{}'", sourceServerName, ex);
+			return null;
+		} finally {
+			if (connection != null) {
+				ldapOperationService.releaseConnection(connection);
+			}
+		}
+	}
+
+	private String getAttributeValue(LDAPConnection connection, String dn, String attributeName) throws LDAPException {
+		SearchResultEntry entry = connection.getEntry(dn, attributeName);
+
+		return entry == null ? null : entry.getAttributeValue(attributeName);
+	}
+
+	/**
+	 * Loads source entries of problem list inums by values of first key attribute. Entries which were loaded already are skipped
+	 */
+	public List<GluuSimplePerson> loadProblemSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections, List<GluuInumMap> inumMaps,
+			List<String> problemInums, List<GluuSimplePerson> loadedSourcePersons) {
+		Set<String> problemInumsSet = new HashSet<String>(problemInums);
+		Set<String> primaryKeyValues = new LinkedHashSet<String>();
+		for (GluuInumMap inumMap : inumMaps) {
+			if (problemInumsSet.contains(inumMap.getInum()) && (inumMap.getPrimaryKeyValues() != null)) {
+				primaryKeyValues.addAll(Arrays.asList(inumMap.getPrimaryKeyValues()));
+			}
+		}
+
+		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
+		String[] keyAttributes = cacheRefreshService.getCompoundKeyAttributes(cacheRefreshConfiguration);
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] keyObjectClasses = cacheRefreshService.getCompoundKeyObjectClasses(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+
+		Set<String> addedDns = new HashSet<String>();
+		for (GluuSimplePerson loadedSourcePerson : loadedSourcePersons) {
+			addedDns.add(loadedSourcePerson.getDn().toLowerCase());
+		}
+
+		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			String sourceServerName = sourceServerConnection.getSourceServerName();
+
+			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
+			String[] baseDns = sourceServerConnection.getBaseDns();
+
+			for (String primaryKeyValue : primaryKeyValues) {
+				Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, primaryKeyValue, true, customFilter);
+				for (String baseDn : baseDns) {
+					List<GluuSimplePerson> currentSourcePersons;
+					try {
+						currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn, GluuSimplePerson.class, filter, SearchScope.SUB,
+								returnAttributes, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
+					} catch (BasePersistenceException ex) {
+						log.error("Failed to load problem entry '{}' from source server '{}'", primaryKeyValue, sourceServerName, ex);
+						continue;
+					}
+					cacheRefreshMetricsService.countEntriesRead(currentSourcePersons);
+
+					for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+						currentSourcePerson.setSourceServerName(sourceServerName);
+						if (addedDns.add(currentSourcePerson.getDn().toLowerCase())) {
+							sourcePersons.add(currentSourcePerson);
+						}
+					}
+				}
+			}
+		}
+
+		return sourcePersons;
+	}
+
+	public Map<CacheCompoundKey, GluuSimplePerson> loadSourceServerEntriesStreaming(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections, String[] keyAttributeStarts,
+			PersistenceEntryManager hashPersistenceEntryManager, Map<CacheCompoundKey, Long> sourcePersonCacheCompoundKeyHashCodeMap,
+			CacheRefreshSourceEntryStore sourceEntryStore, CacheRefreshSearchPartitions searchPartitions) {
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+		int pageSize = cacheRefreshTuningConfiguration.getSourceLoadPageSize();
+
+		// Pages are passed from LDAP search to key/hash calculation via bounded queue
+		BlockingQueue<List<GluuSimplePerson>> sourcePersonPages = new ArrayBlockingQueue<List<GluuSimplePerson>>(
+				cacheRefreshTuningConfiguration.getSourceLoadQueueSize());
+		SourcePersonPagesConsumer sourcePersonPagesConsumer = new SourcePersonPagesConsumer(sourcePersonPages, keyAttributesWithoutValues,
+				hashPersistenceEntryManager, cacheRefreshTuningConfiguration.isContentDigest(), sourcePersonCacheCompoundKeyHashCodeMap, sourceEntryStore);
+
+		ExecutorService consumerExecutorService = Executors.newSingleThreadExecutor();
+		Future<Map<CacheCompoundKey, GluuSimplePerson>> consumerResult = consumerExecutorService.submit(sourcePersonPagesConsumer);
+		try {
+			List<List<SourceServerSearch>> sourceServerSearches = new ArrayList<List<SourceServerSearch>>(sourceServerConnections.length);
+			for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+				SourcePersonPagesProducer sourcePersonPagesProducer = new SourcePersonPagesProducer(sourceServerConnection.getSourceServerName(),
+						sourcePersonPages, consumerResult);
+				sourceServerSearches.add(createSourceServerSearches(cacheRefreshConfiguration, sourceServerConnection, keyAttributeStarts, returnAttributes,
+						sourcePersonPagesProducer, pageSize, searchPartitions));
+			}
+
+			if (cacheRefreshTuningConfiguration.isParallelSourceLoad()) {
+				executeSourceServerSearchesInParallel(cacheRefreshTuningConfiguration, sourceServerConnections, sourceServerSearches);
+			} else {
+				for (List<SourceServerSearch> currentSourceServerSearches : sourceServerSearches) {
+					for (SourceServerSearch sourceServerSearch : currentSourceServerSearches) {
+						sourceServerSearch.call();
+					}
+				}
+			}
+
+			putSourcePersonPage(sourcePersonPages, END_OF_SOURCE_PAGES, consumerResult);
+
+			return consumerResult.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading entries from source server", ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Failed to process entries loaded from source server", ex.getCause());
+		} finally {
+			consumerResult.cancel(true);
+			consumerExecutorService.shutdownNow();
+		}
+	}
+
+	public List<GluuSimplePerson> loadSourceServerEntriesInParallel(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections, String[] keyAttributeStarts,
+			CacheRefreshSearchPartitions searchPartitions) {
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+
+		List<List<SourceServerSearch>> sourceServerSearches = new ArrayList<List<SourceServerSearch>>(sourceServerConnections.length);
+		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
+			sourceServerSearches.add(createSourceServerSearches(cacheRefreshConfiguration, sourceServerConnection, keyAttributeStarts, returnAttributes,
+					null, 0, searchPartitions));
+		}
+
+		List<List<GluuSimplePerson>> sourceServerSearchesResults = executeSourceServerSearchesInParallel(cacheRefreshTuningConfiguration,
+				sourceServerConnections, sourceServerSearches);
+
+		// Merge results in the same order as sequential load does to get the same DN de-duplication result
+		Set<String> addedDns = new HashSet<String>();
+
+		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
+		for (List<GluuSimplePerson> currentSourcePersons : sourceServerSearchesResults) {
+			for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
+				String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
+				if (addedDns.add(currentSourcePersonDn)) {
+					sourcePersons.add(currentSourcePerson);
+				}
+			}
+		}
+
+		return sourcePersons;
+	}
+
+	/**
+	 * Creates searches by key attribute starts or by partitions learned for each base DN if search partitions are specified
+	 */
+	private List<SourceServerSearch> createSourceServerSearches(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection sourceServerConnection,
+			String[] keyAttributeStarts, String[] returnAttributes, ProcessBatchOperation<GluuSimplePerson> batchOperation, int chunkSize,
+			CacheRefreshSearchPartitions searchPartitions) {
+		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
+		String[] keyAttributes = cacheRefreshService.getCompoundKeyAttributes(cacheRefreshConfiguration);
+		String[] keyObjectClasses = cacheRefreshService.getCompoundKeyObjectClasses(cacheRefreshConfiguration);
+		int sizeLimit = cacheRefreshConfiguration.getLdapSearchSizeLimit();
+
+		String[] baseDns = sourceServerConnection.getBaseDns();
+
+		List<SourceServerSearch> result = new ArrayList<SourceServerSearch>(keyAttributeStarts.length * baseDns.length);
+		if (searchPartitions == null) {
+			for (String keyAttributeStart : keyAttributeStarts) {
+				for (String baseDn : baseDns) {
+					result.add(new SourceServerSearch(sourceServerConnection, baseDn, keyAttributes, keyObjectClasses, customFilter, keyAttributeStart,
+							returnAttributes, batchOperation, chunkSize, sizeLimit, null));
+				}
+			}
+		} else {
+			for (String baseDn : baseDns) {
+				String[] partitions = searchPartitions.getPartitions(sourceServerConnection.getSourceServerName(), baseDn);
+				for (String partition : partitions) {
+					result.add(new SourceServerSearch(sourceServerConnection, baseDn, keyAttributes, keyObjectClasses, customFilter, partition,
+							returnAttributes, batchOperation, chunkSize, sizeLimit, searchPartitions));
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private List<List<GluuSimplePerson>> executeSourceServerSearchesInParallel(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			LdapServerConnection[] sourceServerConnections, List<List<SourceServerSearch>> sourceServerSearches) {
+		// Each source server has own worker pool sized to its connection pool
+		List<ExecutorService> executorServices = new ArrayList<ExecutorService>(sourceServerConnections.length);
+		List<Future<List<GluuSimplePerson>>> sourceServerSearchesFutures = new ArrayList<Future<List<GluuSimplePerson>>>();
+		try {
+			for (int i = 0; i < sourceServerConnections.length; i++) {
+				int threadsCount = getSourceLoadThreadsCount(cacheRefreshTuningConfiguration, sourceServerConnections[i]);
+				log.debug("Using '{}' threads to load entries from source server '{}'", threadsCount, sourceServerConnections[i].getSourceServerName());
+
+				ExecutorService executorService = Executors.newFixedThreadPool(threadsCount);
+				executorServices.add(executorService);
+
+				for (SourceServerSearch sourceServerSearch : sourceServerSearches.get(i)) {
+					sourceServerSearchesFutures.add(executorService.submit(sourceServerSearch));
+				}
+			}
+
+			List<List<GluuSimplePerson>> result = new ArrayList<List<GluuSimplePerson>>(sourceServerSearchesFutures.size());
+			for (Future<List<GluuSimplePerson>> sourceServerSearchesFuture : sourceServerSearchesFutures) {
+				result.add(sourceServerSearchesFuture.get());
+			}
+
+			return result;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading entries from source server", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+
+			throw new IllegalStateException("Failed to load entries from source server", ex.getCause());
+		} finally {
+			for (ExecutorService executorService : executorServices) {
+				executorService.shutdownNow();
+			}
+		}
+	}
+
+	private int getSourceLoadThreadsCount(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection sourceServerConnection) {
+		int threadsCount = cacheRefreshTuningConfiguration.getSourceLoadThreads();
+		if (threadsCount <= 0) {
+			threadsCount = sourceServerConnection.getMaxConnections();
+		}
+
+		return Math.max(1, threadsCount);
+	}
+
+	private void putSourcePersonPage(BlockingQueue<List<GluuSimplePerson>> sourcePersonPages, List<GluuSimplePerson> sourcePersonPage,
+			Future<?> consumerResult) throws InterruptedException {
+		while (!sourcePersonPages.offer(sourcePersonPage, 1, TimeUnit.SECONDS)) {
+			if (consumerResult.isDone()) {
+				// Consumer failed. Error will be reported by consumer result
+				return;
+			}
+		}
+	}
+
+	public GluuSimplePerson loadSourceServerEntry(Map<String, LdapServerConnection> sourceServerConnectionsMap, GluuSimplePerson sourcePersonKey,
+			String[] returnAttributes) {
+		LdapServerConnection sourceServerConnection = sourceServerConnectionsMap.get(sourcePersonKey.getSourceServerName());
+		if (sourceServerConnection == null) {
+			log.error("Failed to find source server '{}' of entry with DN: {}", sourcePersonKey.getSourceServerName(), sourcePersonKey.getDn());
+			return null;
+		}
+
+		try {
+			GluuSimplePerson sourcePerson = sourceServerConnection.getPersistenceEntryManager().find(GluuSimplePerson.class, sourcePersonKey.getDn(),
+					returnAttributes);
+			cacheRefreshMetricsService.countEntriesRead(Arrays.asList(sourcePerson));
+			sourcePerson.setSourceServerName(sourcePersonKey.getSourceServerName());
+
+			return sourcePerson;
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to load entry with DN '{}' from source server", sourcePersonKey.getDn(), ex);
+		}
+
+		return null;
+	}
+
+	private GluuSimplePerson createSourcePersonKey(GluuSimplePerson sourcePerson, String[] keyAttributesWithoutValues, String[][] keyAttributesValues) {
+		GluuSimplePerson sourcePersonKey = new GluuSimplePerson();
+		sourcePersonKey.setDn(sourcePerson.getDn());
+		sourcePersonKey.setSourceServerName(sourcePerson.getSourceServerName());
+
+		for (int i = 0; i < keyAttributesWithoutValues.length; i++) {
+			if (keyAttributesValues[i] != null) {
+				sourcePersonKey.setAttribute(keyAttributesWithoutValues[i], keyAttributesValues[i]);
+			}
+		}
+
+		return sourcePersonKey;
+	}
+
+	public Map<CacheCompoundKey, GluuSimplePerson> getSourcePersonCompoundKeyMap(CacheRefreshConfiguration cacheRefreshConfiguration, List<GluuSimplePerson> sourcePersons) {
+		Map<CacheCompoundKey, GluuSimplePerson> result = new HashMap<CacheCompoundKey, GluuSimplePerson>();
+		Set<CacheCompoundKey> duplicateKeys = new HashSet<CacheCompoundKey>();
+
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		for (GluuSimplePerson sourcePerson : sourcePersons) {
+			String[][] keyAttributesValues = getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
+			CacheCompoundKey cacheCompoundKey = new CacheCompoundKey(keyAttributesValues);
+
+			if (result.containsKey(cacheCompoundKey)) {
+				duplicateKeys.add(cacheCompoundKey);
+			}
+
+			result.put(cacheCompoundKey, sourcePerson);
+		}
+
+		for (CacheCompoundKey duplicateKey : duplicateKeys) {
+			log.error("Non-deterministic primary key. Skipping user with key: {}", duplicateKey);
+			result.remove(duplicateKey);
+		}
+
+		return result;
+	}
+
+	public String[] createTwoLettersArray() {
+		char[] characters = LETTERS_FOR_SEARCH.toCharArray();
+		int lettersCount = characters.length;
+
+		String[] result = new String[lettersCount * lettersCount];
+		for (int i = 0; i < lettersCount; i++) {
+			for (int j = 0; j < lettersCount; j++) {
+				result[i * lettersCount + j] = "" + characters[i] + characters[j];
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns two letters prefixes of shard. Prefixes are interleaved to spread entries between shards evenly
+	 */
+	public String[] getShardKeyAttributeStarts(int shardCount, int shard) {
+		String[] twoLettersArray = createTwoLettersArray();
+
+		List<String> result = new ArrayList<String>(twoLettersArray.length / shardCount + 1);
+		for (int i = shard; i < twoLettersArray.length; i += shardCount) {
+			result.add(twoLettersArray[i]);
+		}
+
+		return result.toArray(new String[result.size()]);
+	}
+
+	public String[][] getKeyAttributesValues(String[] attrs, GluuSimplePerson person) {
+		String[][] result = new String[attrs.length][];
+		for (int i = 0; i < attrs.length; i++) {
+			result[i] = person.getAttributes(attrs[i]);
+		}
+
+		return result;
+	}
+
+	public CacheRefreshSourceEntryStore createSourceEntryStore(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (!cacheRefreshSnapshotFileService.prepareSnapshotsFolder(cacheRefreshConfiguration)) {
+			return null;
+		}
+
+		File file = new File(cacheRefreshConfiguration.getSnapshotFolder() + File.separator + SOURCE_ENTRY_STORE_FILE_NAME);
+		try {
+			return new CacheRefreshSourceEntryStore(file);
+		} catch (IOException ex) {
+			log.error("Failed to create source entries store '{}'. Changed entries will be reloaded from source servers", file.getAbsolutePath(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Materializes stored source entries of changed inums. Returns null if store is broken
+	 */
+	public Map<CacheCompoundKey, GluuSimplePerson> getStoredSourcePersons(CacheRefreshSourceEntryStore sourceEntryStore,
+			CacheCompoundKeyIndex primaryKeyAttrValueInumIndex, Set<String> changedInums) {
+		if (sourceEntryStore.isClosed()) {
+			return null;
+		}
+		log.debug("Source entries store contains '{}' entries in '{}' bytes", sourceEntryStore.size(), sourceEntryStore.getFileSize());
+
+		HashMap<String, CacheCompoundKey> inumCacheCompoundKeyMap = primaryKeyAttrValueInumIndex.getKeys(changedInums);
+		Map<CacheCompoundKey, GluuSimplePerson> result = new HashMap<CacheCompoundKey, GluuSimplePerson>(inumCacheCompoundKeyMap.size());
+		for (CacheCompoundKey cacheCompoundKey : inumCacheCompoundKeyMap.values()) {
+			try {
+				GluuSimplePerson sourcePerson = sourceEntryStore.get(cacheCompoundKey);
+				if (sourcePerson != null) {
+					result.put(cacheCompoundKey, sourcePerson);
+				}
+			} catch (IOException ex) {
+				log.error("Failed to load source entry from store. Changed entries will be reloaded from source servers", ex);
+				return null;
+			}
+		}
+
+		return result;
+	}
+
+	private class SourceServerSearch implements Callable<List<GluuSimplePerson>> {
+		private LdapServerConnection sourceServerConnection;
+		private String baseDn;
+		private String[] keyAttributes;
+		private String[] keyObjectClasses;
+		private Filter customFilter;
+		private String partition;
+		private String[] returnAttributes;
+		private ProcessBatchOperation<GluuSimplePerson> batchOperation;
+		private int chunkSize;
+		private int sizeLimit;
+		private CacheRefreshSearchPartitions searchPartitions;
+
+		protected SourceServerSearch(LdapServerConnection sourceServerConnection, String baseDn, String[] keyAttributes, String[] keyObjectClasses,
+				Filter customFilter, String partition, String[] returnAttributes, ProcessBatchOperation<GluuSimplePerson> batchOperation, int chunkSize,
+				int sizeLimit, CacheRefreshSearchPartitions searchPartitions) {
+			this.sourceServerConnection = sourceServerConnection;
+			this.baseDn = baseDn;
+			this.keyAttributes = keyAttributes;
+			this.keyObjectClasses = keyObjectClasses;
+			this.customFilter = customFilter;
+			this.partition = partition;
+			this.returnAttributes = returnAttributes;
+			this.batchOperation = batchOperation;
+			this.chunkSize = chunkSize;
+			this.sizeLimit = sizeLimit;
+			this.searchPartitions = searchPartitions;
+		}
+
+		@Override
+		public List<GluuSimplePerson> call() {
+			return searchPartition(partition);
+		}
+
+		private List<GluuSimplePerson> searchPartition(String partition) {
+			Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, CacheRefreshSearchPartitions.getKeyAttributeStart(partition),
+					CacheRefreshSearchPartitions.isExactMatch(partition), customFilter);
+			if (log.isTraceEnabled()) {
+				log.trace("Using next filter to load entris from source server: {}", filter);
+			}
+
+			// Pages are counted by batch operation
+			SourcePersonPagesCounter sourcePersonPagesCounter = batchOperation == null ? null : new SourcePersonPagesCounter(batchOperation);
+			List<GluuSimplePerson> sourcePersons = sourceServerConnection.getPersistenceEntryManager().findEntries(baseDn, GluuSimplePerson.class, filter,
+					SearchScope.SUB, returnAttributes, sourcePersonPagesCounter, 0, chunkSize, sizeLimit);
+			if (batchOperation == null) {
+				cacheRefreshMetricsService.countEntriesRead(sourcePersons);
+			}
+
+			String sourceServerName = sourceServerConnection.getSourceServerName();
+			if (searchPartitions != null) {
+				int count = sourcePersonPagesCounter == null ? sourcePersons.size() : sourcePersonPagesCounter.getCount();
+				if (searchPartitions.isSplitNeeded(partition, count)) {
+					// Result is limited by size limit. Entries already passed to batch operation are loaded again and de-duplicated by DN
+					log.debug("Search of partition '{}' in '{}' at source server '{}' hit size limit. Splitting it", partition, baseDn, sourceServerName);
+					List<GluuSimplePerson> result = new ArrayList<GluuSimplePerson>();
+					for (String childPartition : searchPartitions.split(partition)) {
+						result.addAll(searchPartition(childPartition));
+					}
+
+					return result;
+				}
+
+				searchPartitions.addPartition(sourceServerName, baseDn, partition, count);
+			}
+
+			for (GluuSimplePerson sourcePerson : sourcePersons) {
+				sourcePerson.setSourceServerName(sourceServerName);
+			}
+
+			return sourcePersons;
+		}
+	}
+
+	private class SourcePersonPagesCounter extends ProcessBatchOperation<GluuSimplePerson> {
+		private ProcessBatchOperation<GluuSimplePerson> batchOperation;
+		private int count;
+
+		protected SourcePersonPagesCounter(ProcessBatchOperation<GluuSimplePerson> batchOperation) {
+			this.batchOperation = batchOperation;
+		}
+
+		@Override
+		public void performAction(List<GluuSimplePerson> sourcePersons) {
+			if (sourcePersons != null) {
+				count += sourcePersons.size();
+			}
+
+			batchOperation.performAction(sourcePersons);
+		}
+
+		public int getCount() {
+			return count;
+		}
+	}
+
+	private class SourcePersonPagesProducer extends ProcessBatchOperation<GluuSimplePerson> {
+		private String sourceServerName;
+		private BlockingQueue<List<GluuSimplePerson>> sourcePersonPages;
+		private Future<?> consumerResult;
+
+		protected SourcePersonPagesProducer(String sourceServerName, BlockingQueue<List<GluuSimplePerson>> sourcePersonPages, Future<?> consumerResult) {
+			this.sourceServerName = sourceServerName;
+			this.sourcePersonPages = sourcePersonPages;
+			this.consumerResult = consumerResult;
+		}
+
+		@Override
+		public void performAction(List<GluuSimplePerson> sourcePersons) {
+			if ((sourcePersons == null) || sourcePersons.isEmpty()) {
+				return;
+			}
+			cacheRefreshMetricsService.countEntriesRead(sourcePersons);
+
+			for (GluuSimplePerson sourcePerson : sourcePersons) {
+				sourcePerson.setSourceServerName(sourceServerName);
+			}
+
+			try {
+				putSourcePersonPage(sourcePersonPages, sourcePersons, consumerResult);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while loading entries from source server", ex);
+			}
+		}
+	}
+
+	private class SourcePersonPagesConsumer implements Callable<Map<CacheCompoundKey, GluuSimplePerson>> {
+		private BlockingQueue<List<GluuSimplePerson>> sourcePersonPages;
+		private String[] keyAttributesWithoutValues;
+		private PersistenceEntryManager hashPersistenceEntryManager;
+		private boolean contentDigest;
+		private Map<CacheCompoundKey, Long> sourcePersonCacheCompoundKeyHashCodeMap;
+		private CacheRefreshSourceEntryStore sourceEntryStore;
+
+		protected SourcePersonPagesConsumer(BlockingQueue<List<GluuSimplePerson>> sourcePersonPages, String[] keyAttributesWithoutValues,
+				PersistenceEntryManager hashPersistenceEntryManager, boolean contentDigest, Map<CacheCompoundKey, Long> sourcePersonCacheCompoundKeyHashCodeMap,
+				CacheRefreshSourceEntryStore sourceEntryStore) {
+			this.sourcePersonPages = sourcePersonPages;
+			this.keyAttributesWithoutValues = keyAttributesWithoutValues;
+			this.hashPersistenceEntryManager = hashPersistenceEntryManager;
+			this.contentDigest = contentDigest;
+			this.sourcePersonCacheCompoundKeyHashCodeMap = sourcePersonCacheCompoundKeyHashCodeMap;
+			this.sourceEntryStore = sourceEntryStore;
+		}
+
+		@Override
+		public Map<CacheCompoundKey, GluuSimplePerson> call() throws Exception {
+			Map<CacheCompoundKey, GluuSimplePerson> result = new HashMap<CacheCompoundKey, GluuSimplePerson>();
+			Set<CacheCompoundKey> duplicateKeys = new HashSet<CacheCompoundKey>();
+
+			long countEntries = 0;
+			while (true) {
+				List<GluuSimplePerson> sourcePersons = sourcePersonPages.take();
+				if (sourcePersons == END_OF_SOURCE_PAGES) {
+					break;
+				}
+
+				for (GluuSimplePerson sourcePerson : sourcePersons) {
+					String[][] keyAttributesValues = getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
+					CacheCompoundKey cacheCompoundKey = new CacheCompoundKey(keyAttributesValues);
+
+					// Searches of overlapping prefixes return the same entry again. Its key is in result already with the same DN
+					GluuSimplePerson addedSourcePersonKey = result.get(cacheCompoundKey);
+					if (addedSourcePersonKey != null) {
+						if (isSameSourcePerson(addedSourcePersonKey, sourcePerson)) {
+							continue;
+						}
+						duplicateKeys.add(cacheCompoundKey);
+					}
+					countEntries++;
+
+					// Keep only key attributes and hash code of source entry
+					sourcePersonCacheCompoundKeyHashCodeMap.put(cacheCompoundKey,
+								CacheRefreshChangeDetectionService.getEntryHashCode(hashPersistenceEntryManager, contentDigest, sourcePerson));
+					result.put(cacheCompoundKey, createSourcePersonKey(sourcePerson, keyAttributesWithoutValues, keyAttributesValues));
+					storeSourcePerson(cacheCompoundKey, sourcePerson);
+				}
+			}
+			log.info("Found '{}' entries in source server", countEntries);
+
+			for (CacheCompoundKey duplicateKey : duplicateKeys) {
+				log.error("Non-deterministic primary key. Skipping user with key: {}", duplicateKey);
+				result.remove(duplicateKey);
+				sourcePersonCacheCompoundKeyHashCodeMap.remove(duplicateKey);
+				if (sourceEntryStore != null) {
+					sourceEntryStore.remove(duplicateKey);
+				}
+			}
+
+			return result;
+		}
+
+		private boolean isSameSourcePerson(GluuSimplePerson sourcePerson1, GluuSimplePerson sourcePerson2) {
+			return StringHelper.equalsIgnoreCase(sourcePerson1.getDn(), sourcePerson2.getDn())
+					&& StringHelper.equals(sourcePerson1.getSourceServerName(), sourcePerson2.getSourceServerName());
+		}
+
+		private void storeSourcePerson(CacheCompoundKey cacheCompoundKey, GluuSimplePerson sourcePerson) {
+			if ((sourceEntryStore == null) || sourceEntryStore.isClosed()) {
+				return;
+			}
+
+			try {
+				sourceEntryStore.put(cacheCompoundKey, sourcePerson);
+			} catch (IOException ex) {
+				log.error("Failed to store source entry. Changed entries will be reloaded from source servers", ex);
+				sourceEntryStore.close();
+			}
+		}
+	}
+}
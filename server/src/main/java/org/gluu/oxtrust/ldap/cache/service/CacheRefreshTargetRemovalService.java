@@ -0,0 +1,323 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.beanutils.BeanUtilsBean2;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshRateLimiter;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshot;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.service.IPersonService;
+import org.gluu.oxtrust.util.OxTrustConstants;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.exception.BasePersistenceException;
+import org.gluu.persist.model.SearchScope;
+import org.gluu.persist.model.base.GluuStatus;
+import org.gluu.search.filter.Filter;
+import org.slf4j.Logger;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
+import org.xdi.util.ArrayHelper;
+import org.xdi.util.OxConstants;
+import org.xdi.util.Pair;
+
+/**
+ * Removes target entries which don't exist in source servers anymore. Inum entries of removed entries are marked as inactive
+ */
+@ApplicationScoped
+@Named("cacheRefreshTargetRemovalService")
+public class CacheRefreshTargetRemovalService {
+
+	private static final String[] TARGET_PERSON_RETURN_ATTRIBUTES = { OxTrustConstants.inum };
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private CacheRefreshService cacheRefreshService;
+
+	@Inject
+	private IPersonService personService;
+
+	@Inject
+	private PersistenceEntryManager ldapEntryManager;
+
+	@Inject
+	private CacheRefreshSnapshotFileService cacheRefreshSnapshotFileService;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
+	public List<GluuSimplePerson> loadTargetServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, PersistenceEntryManager targetPersistenceEntryManager) {
+		Filter filter = Filter.createEqualityFilter(OxConstants.OBJECT_CLASS, OxTrustConstants.objectClassPerson);
+
+		List<GluuSimplePerson> targetPersons = targetPersistenceEntryManager.findEntries(personService.getDnForPerson(null), GluuSimplePerson.class, filter,
+				SearchScope.SUB, TARGET_PERSON_RETURN_ATTRIBUTES, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
+		cacheRefreshMetricsService.countEntriesRead(targetPersons);
+
+		return targetPersons;
+	}
+
+	public Pair<List<String>, List<String>> removeTargetEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection inumDbServerConnection,
+			PersistenceEntryManager targetPersistenceEntryManager, List<GluuSimplePerson> removedPersons, HashMap<String, GluuInumMap> inumInumMap,
+			CacheRefreshSnapshot currSnapshot, long lastFinishedTime) {
+		List<String> result1 = new ArrayList<String>();
+		List<String> result2 = new ArrayList<String>();
+
+		// Continue removal which was interrupted during previous run
+		List<GluuSimplePerson> personsForRemoval = addPendingRemovedPersons(cacheRefreshConfiguration, removedPersons, currSnapshot);
+		if (personsForRemoval.isEmpty()) {
+			return new Pair<List<String>, List<String>>(result1, result2);
+		}
+
+		// Store list of persons for removal to allow to resume removal after restart
+		List<String> personsForRemovalInums = new ArrayList<String>(personsForRemoval.size());
+		for (GluuSimplePerson personForRemoval : personsForRemoval) {
+			personsForRemovalInums.add(personForRemoval.getAttribute(OxTrustConstants.inum));
+		}
+		cacheRefreshSnapshotFileService.writePendingRemovalList(cacheRefreshConfiguration, personsForRemovalInums);
+
+		String runDate = ldapEntryManager.encodeTime(new Date(lastFinishedTime));
+
+		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+		CacheRefreshRateLimiter rateLimiter = new CacheRefreshRateLimiter(cacheRefreshTuningConfiguration.getTargetRemovalRateLimit());
+
+		int batchSize = cacheRefreshTuningConfiguration.getTargetRemovalBatchSize();
+		List<TargetEntriesBatchRemoval> batchRemovals = new ArrayList<TargetEntriesBatchRemoval>();
+		for (int i = 0; i < personsForRemoval.size(); i += batchSize) {
+			List<GluuSimplePerson> batch = personsForRemoval.subList(i, Math.min(i + batchSize, personsForRemoval.size()));
+			batchRemovals.add(new TargetEntriesBatchRemoval(cacheRefreshConfiguration, batch, inumInumMap, runDate, inumDbPersistenceEntryManager,
+					targetPersistenceEntryManager, rateLimiter));
+		}
+
+		List<Pair<List<String>, List<String>>> batchResults;
+		if (cacheRefreshTuningConfiguration.isParallelTargetRemoval()) {
+			batchResults = removeTargetEntriesInParallel(cacheRefreshTuningConfiguration, batchRemovals);
+		} else {
+			batchResults = new ArrayList<Pair<List<String>, List<String>>>(batchRemovals.size());
+			for (TargetEntriesBatchRemoval batchRemoval : batchRemovals) {
+				if (Thread.currentThread().isInterrupted()) {
+					break;
+				}
+				batchResults.add(batchRemoval.call());
+			}
+		}
+
+		for (Pair<List<String>, List<String>> batchResult : batchResults) {
+			result1.addAll(batchResult.getFirst());
+			result2.addAll(batchResult.getSecond());
+		}
+
+		// Keep removal progress if stage was interrupted
+		if (Thread.currentThread().isInterrupted()) {
+			log.warn("Removal of target entries was interrupted. Removed '{}' from '{}' entries", result1.size(), personsForRemoval.size());
+		} else {
+			cacheRefreshSnapshotFileService.removePendingRemovalList(cacheRefreshConfiguration);
+		}
+
+		return new Pair<List<String>, List<String>>(result1, result2);
+	}
+
+	private List<GluuSimplePerson> addPendingRemovedPersons(CacheRefreshConfiguration cacheRefreshConfiguration, List<GluuSimplePerson> removedPersons,
+			CacheRefreshSnapshot currSnapshot) {
+		Set<String> pendingInums = cacheRefreshSnapshotFileService.readPendingRemovalList(cacheRefreshConfiguration);
+		if ((pendingInums == null) || pendingInums.isEmpty()) {
+			return removedPersons;
+		}
+
+		for (GluuSimplePerson removedPerson : removedPersons) {
+			pendingInums.remove(removedPerson.getAttribute(OxTrustConstants.inum));
+		}
+
+		List<GluuSimplePerson> result = new ArrayList<GluuSimplePerson>(removedPersons);
+		for (String pendingInum : pendingInums) {
+			// Entry was added to source server again after interrupted run
+			if (currSnapshot.contains(pendingInum)) {
+				continue;
+			}
+
+			result.add(cacheRefreshService.createRemovedPerson(pendingInum));
+		}
+		log.info("Resuming removal of '{}' entries from interrupted run", result.size() - removedPersons.size());
+
+		return result;
+	}
+
+	private List<Pair<List<String>, List<String>>> removeTargetEntriesInParallel(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			List<TargetEntriesBatchRemoval> batchRemovals) {
+		int threadsCount = cacheRefreshTuningConfiguration.getTargetRemovalThreads();
+		log.info("Attempting to remove target entries in '{}' batches using '{}' threads", batchRemovals.size(), threadsCount);
+
+		List<Pair<List<String>, List<String>>> result = new ArrayList<Pair<List<String>, List<String>>>(batchRemovals.size());
+		List<Future<Pair<List<String>, List<String>>>> batchResults = new ArrayList<Future<Pair<List<String>, List<String>>>>(batchRemovals.size());
+
+		ExecutorService executorService = Executors.newFixedThreadPool(threadsCount);
+		try {
+			for (TargetEntriesBatchRemoval batchRemoval : batchRemovals) {
+				batchResults.add(executorService.submit(batchRemoval));
+			}
+
+			for (Future<Pair<List<String>, List<String>>> batchResult : batchResults) {
+				try {
+					result.add(batchResult.get());
+				} catch (ExecutionException ex) {
+					// Not removed entries will be detected again at next run
+					log.error("Failed to remove batch of target entries", ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while removing target entries", ex);
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		return result;
+	}
+
+	private GluuInumMap getMarkInumMapEntryAsRemoved(GluuInumMap currentInumMap, String date) {
+		GluuInumMap clonedInumMap;
+		try {
+			clonedInumMap = (GluuInumMap) BeanUtilsBean2.getInstance().cloneBean(currentInumMap);
+		} catch (Exception ex) {
+			log.error("Failed to prepare GluuInumMap for removal", ex);
+			return null;
+		}
+
+		String suffix = "-" + date;
+
+		String[] primaryKeyValues = ArrayHelper.arrayClone(clonedInumMap.getPrimaryKeyValues());
+		String[] secondaryKeyValues = ArrayHelper.arrayClone(clonedInumMap.getSecondaryKeyValues());
+		String[] tertiaryKeyValues = ArrayHelper.arrayClone(clonedInumMap.getTertiaryKeyValues());
+
+		if (ArrayHelper.isNotEmpty(primaryKeyValues)) {
+			markInumMapEntryKeyValuesAsRemoved(primaryKeyValues, suffix);
+		}
+
+		if (ArrayHelper.isNotEmpty(secondaryKeyValues)) {
+			markInumMapEntryKeyValuesAsRemoved(secondaryKeyValues, suffix);
+		}
+
+		if (ArrayHelper.isNotEmpty(tertiaryKeyValues)) {
+			markInumMapEntryKeyValuesAsRemoved(tertiaryKeyValues, suffix);
+		}
+
+		clonedInumMap.setPrimaryKeyValues(primaryKeyValues);
+		clonedInumMap.setSecondaryKeyValues(secondaryKeyValues);
+		clonedInumMap.setTertiaryKeyValues(tertiaryKeyValues);
+
+		clonedInumMap.setStatus(GluuStatus.INACTIVE);
+		
+		return clonedInumMap;
+	}
+
+	private void markInumMapEntryKeyValuesAsRemoved(String[] keyValues, String suffix) {
+		for (int i = 0; i < keyValues.length; i++) {
+			keyValues[i] = keyValues[i] + suffix;
+		}
+	}
+
+	private class TargetEntriesBatchRemoval implements Callable<Pair<List<String>, List<String>>> {
+		private CacheRefreshConfiguration cacheRefreshConfiguration;
+		private List<GluuSimplePerson> batch;
+		private Map<String, GluuInumMap> inumInumMap;
+		private String runDate;
+		private PersistenceEntryManager inumDbPersistenceEntryManager;
+		private PersistenceEntryManager targetPersistenceEntryManager;
+		private CacheRefreshRateLimiter rateLimiter;
+
+		protected TargetEntriesBatchRemoval(CacheRefreshConfiguration cacheRefreshConfiguration, List<GluuSimplePerson> batch,
+				Map<String, GluuInumMap> inumInumMap, String runDate, PersistenceEntryManager inumDbPersistenceEntryManager,
+				PersistenceEntryManager targetPersistenceEntryManager, CacheRefreshRateLimiter rateLimiter) {
+			this.cacheRefreshConfiguration = cacheRefreshConfiguration;
+			this.batch = batch;
+			this.inumInumMap = inumInumMap;
+			this.runDate = runDate;
+			this.inumDbPersistenceEntryManager = inumDbPersistenceEntryManager;
+			this.targetPersistenceEntryManager = targetPersistenceEntryManager;
+			this.rateLimiter = rateLimiter;
+		}
+
+		@Override
+		public Pair<List<String>, List<String>> call() {
+			List<String> removedPersonInums = new ArrayList<String>();
+			List<String> removedInumMaps = new ArrayList<String>();
+
+			// Mark inum entries of whole batch first. Person is removed only if its inum entry was updated
+			List<GluuSimplePerson> markedPersons = new ArrayList<GluuSimplePerson>(batch.size());
+			for (GluuSimplePerson removedPerson : batch) {
+				String inum = removedPerson.getAttribute(OxTrustConstants.inum);
+
+				// Update GluuInumMap if it exist
+				GluuInumMap currentInumMap = inumInumMap.get(inum);
+				if (currentInumMap == null) {
+					log.warn("Can't find inum entry of person with DN: {}", removedPerson.getDn());
+					markedPersons.add(removedPerson);
+					continue;
+				}
+
+				GluuInumMap removedInumMap = getMarkInumMapEntryAsRemoved(currentInumMap, runDate);
+				if (removedInumMap == null) {
+					continue;
+				}
+
+				try {
+					cacheRefreshMetricsService.countLdapCall();
+					inumDbPersistenceEntryManager.merge(removedInumMap);
+					removedInumMaps.add(removedInumMap.getInum());
+					markedPersons.add(removedPerson);
+				} catch (BasePersistenceException ex) {
+					log.error("Failed to update entry with inum '{}' and DN: {}", currentInumMap.getInum(), currentInumMap.getDn(), ex);
+				}
+			}
+
+			// Remove persons from target server
+			for (GluuSimplePerson removedPerson : markedPersons) {
+				String inum = removedPerson.getAttribute(OxTrustConstants.inum);
+				try {
+					rateLimiter.acquire();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+
+				try {
+					cacheRefreshMetricsService.countLdapCall();
+					targetPersistenceEntryManager.removeRecursively(removedPerson.getDn());
+					removedPersonInums.add(inum);
+				} catch (BasePersistenceException ex) {
+					log.error("Failed to remove person entry with inum '{}' and DN: {}", inum, removedPerson.getDn(), ex);
+					continue;
+				}
+
+				log.debug("Person with DN: '{}' removed from target server", removedPerson.getDn());
+			}
+
+			cacheRefreshSnapshotFileService.appendRemovalProgress(cacheRefreshConfiguration, removedPersonInums);
+
+			return new Pair<List<String>, List<String>>(removedPersonInums, removedInumMaps);
+		}
+	}
+}
@@ -0,0 +1,733 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKeyIndex;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSchemaValidationResult;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.service.IPersonService;
+import org.gluu.oxtrust.ldap.service.InumService;
+import org.gluu.oxtrust.model.GluuCustomAttribute;
+import org.gluu.oxtrust.model.GluuCustomPerson;
+import org.gluu.oxtrust.service.external.ExternalCacheRefreshService;
+import org.gluu.oxtrust.util.OxTrustConstants;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.exception.BasePersistenceException;
+import org.gluu.persist.exception.EntryPersistenceException;
+import org.gluu.persist.model.SearchScope;
+import org.gluu.persist.model.base.GluuDummyEntry;
+import org.gluu.persist.model.base.GluuStatus;
+import org.gluu.search.filter.Filter;
+import org.slf4j.Logger;
+import org.xdi.config.oxtrust.AppConfiguration;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
+import org.xdi.model.SchemaEntry;
+import org.xdi.model.custom.script.conf.CustomScriptConfiguration;
+import org.xdi.service.SchemaService;
+import org.xdi.util.ArrayHelper;
+import org.xdi.util.Pair;
+import org.xdi.util.StringHelper;
+
+/**
+ * Updates changed entries on target server via VDS or by copying source entries with Cache Refresh scripts applied
+ */
+@ApplicationScoped
+@Named("cacheRefreshTargetUpdateService")
+public class CacheRefreshTargetUpdateService {
+
+	private static final String[] SCHEMA_MODIFY_TIMESTAMP_RETURN_ATTRIBUTES = { "modifyTimestamp" };
+
+	@Inject
+	private Logger log;
+
+	@Inject
+	private CacheRefreshService cacheRefreshService;
+
+	@Inject
+	private IPersonService personService;
+
+	@Inject
+	private PersistenceEntryManager ldapEntryManager;
+
+	@Inject
+	private ExternalCacheRefreshService externalCacheRefreshService;
+
+	@Inject
+	private SchemaService schemaService;
+
+	@Inject
+	private InumService inumService;
+
+	@Inject
+	private AppConfiguration appConfiguration;
+
+	@Inject
+	private CacheRefreshSnapshotFileService cacheRefreshSnapshotFileService;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
+	@Inject
+	private CacheRefreshSourceLoadService cacheRefreshSourceLoadService;
+
+	private volatile CacheRefreshSchemaValidationResult lastSchemaValidationResult;
+
+	public List<String> updateTargetEntriesViaVDS(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection targetServerConnection, Set<String> changedInums) {
+		if (cacheRefreshTuningConfiguration.isPipelinedVdsUpdate()) {
+			return updateTargetEntriesViaVDSPipelined(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, targetServerConnection, changedInums);
+		}
+
+		List<String> result = new ArrayList<String>();
+
+		PersistenceEntryManager targetPersistenceEntryManager = targetServerConnection.getPersistenceEntryManager();
+		Filter filter = cacheRefreshService.createObjectClassPresenceFilter();
+		for (String changedInum : changedInums) {
+			if (updateTargetEntryViaVDS(cacheRefreshConfiguration, targetPersistenceEntryManager, filter, changedInum)) {
+				result.add(changedInum);
+			}
+		}
+
+		return result;
+	}
+
+	private List<String> updateTargetEntriesViaVDSPipelined(final CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection targetServerConnection, Set<String> changedInums) {
+		// By default keep one request in flight per target server connection
+		int windowSize = cacheRefreshTuningConfiguration.getVdsUpdateWindowSize();
+		if (windowSize == 0) {
+			windowSize = Math.max(1, targetServerConnection.getMaxConnections());
+		}
+		log.info("Attempting to update '{}' entries via VDS with '{}' requests in flight", changedInums.size(), windowSize);
+
+		List<String> result = new ArrayList<String>();
+
+		final PersistenceEntryManager targetPersistenceEntryManager = targetServerConnection.getPersistenceEntryManager();
+		final Filter filter = cacheRefreshService.createObjectClassPresenceFilter();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(windowSize);
+		CompletionService<String> completionService = new ExecutorCompletionService<String>(executorService);
+		try {
+			Iterator<String> changedInumsIterator = changedInums.iterator();
+			int inFlightRequests = 0;
+			while (changedInumsIterator.hasNext() || (inFlightRequests > 0)) {
+				// Fill window with new requests
+				while (changedInumsIterator.hasNext() && (inFlightRequests < windowSize)) {
+					final String changedInum = changedInumsIterator.next();
+					completionService.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							if (updateTargetEntryViaVDS(cacheRefreshConfiguration, targetPersistenceEntryManager, filter, changedInum)) {
+								return changedInum;
+							}
+
+							return null;
+						}
+					});
+					inFlightRequests++;
+				}
+
+				// Collect first finished request
+				Future<String> requestResult = completionService.take();
+				inFlightRequests--;
+				try {
+					String updatedInum = requestResult.get();
+					if (updatedInum != null) {
+						result.add(updatedInum);
+					}
+				} catch (ExecutionException ex) {
+					log.error("Failed to update entry via VDS", ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while updating entries via VDS", ex);
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		return result;
+	}
+
+	private boolean updateTargetEntryViaVDS(CacheRefreshConfiguration cacheRefreshConfiguration, PersistenceEntryManager targetPersistenceEntryManager,
+			Filter filter, String changedInum) {
+		String baseDn = "action=synchronizecache," + personService.getDnForPerson(changedInum);
+		try {
+			cacheRefreshMetricsService.countLdapCall();
+			targetPersistenceEntryManager.findEntries(baseDn, GluuDummyEntry.class, filter, SearchScope.SUB, null, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
+			log.debug("Updated entry with inum {}", changedInum);
+			return true;
+		} catch (BasePersistenceException ex) {
+			log.error("Failed to update entry with inum '{}' using baseDN {}", changedInum, baseDn, ex);
+		}
+
+		return false;
+	}
+
+	public List<String> updateTargetEntriesViaCopy(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap, CacheCompoundKeyIndex primaryKeyAttrValueInumIndex,
+			Set<String> changedInums) {
+		List<Pair<String, GluuSimplePerson>> targetUpdates = getTargetUpdates(false, sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex,
+				changedInums);
+
+		return updateTargetEntriesViaCopy(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, sourceServerConnections, targetUpdates);
+	}
+
+	/**
+	 * Returns pairs of changed inum and source entry. Source entry is null in VDS mode or if there is no source entry for inum
+	 */
+	public List<Pair<String, GluuSimplePerson>> getTargetUpdates(boolean isVDSMode, Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
+			CacheCompoundKeyIndex primaryKeyAttrValueInumIndex, Set<String> changedInums) {
+		List<Pair<String, GluuSimplePerson>> result = new ArrayList<Pair<String, GluuSimplePerson>>(changedInums.size());
+		if (isVDSMode) {
+			for (String targetInum : changedInums) {
+				result.add(new Pair<String, GluuSimplePerson>(targetInum, null));
+			}
+
+			return result;
+		}
+
+		HashMap<String, CacheCompoundKey> inumCacheCompoundKeyMap = primaryKeyAttrValueInumIndex.getKeys(changedInums);
+		for (String targetInum : changedInums) {
+			GluuSimplePerson sourcePerson = null;
+			CacheCompoundKey compoundKey = inumCacheCompoundKeyMap.get(targetInum);
+			if (compoundKey != null) {
+				sourcePerson = sourcePersonCacheCompoundKeyMap.get(compoundKey);
+			}
+
+			result.add(new Pair<String, GluuSimplePerson>(targetInum, sourcePerson));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Updates target entries in chunks and appends updated inums to checkpoint progress after each chunk
+	 */
+	public List<String> updateTargetEntriesWithCheckpoints(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection targetServerConnection, boolean isVDSMode, List<Pair<String, GluuSimplePerson>> targetUpdates) {
+		int checkpointInterval = cacheRefreshTuningConfiguration.getCheckpointInterval();
+
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < targetUpdates.size(); i += checkpointInterval) {
+			List<Pair<String, GluuSimplePerson>> targetUpdatesChunk = targetUpdates.subList(i, Math.min(i + checkpointInterval, targetUpdates.size()));
+
+			List<String> updatedInums;
+			if (isVDSMode) {
+				Set<String> changedInums = new LinkedHashSet<String>();
+				for (Pair<String, GluuSimplePerson> targetUpdate : targetUpdatesChunk) {
+					changedInums.add(targetUpdate.getFirst());
+				}
+				updatedInums = updateTargetEntriesViaVDS(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, targetServerConnection, changedInums);
+			} else {
+				updatedInums = updateTargetEntriesViaCopy(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, sourceServerConnections,
+						targetUpdatesChunk);
+			}
+			result.addAll(updatedInums);
+
+			if (!cacheRefreshSnapshotFileService.appendCheckpointProgress(cacheRefreshConfiguration, updatedInums)) {
+				log.error("Failed to append '{}' updated entries to checkpoint progress", updatedInums.size());
+			}
+			log.debug("Processed '{}' of '{}' target entries", i + targetUpdatesChunk.size(), targetUpdates.size());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Source entries should be keys with DN and source server name if source server connections are specified. Full entries are reloaded from
+	 * source servers in this case
+	 */
+	public List<String> updateTargetEntriesViaCopy(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			List<Pair<String, GluuSimplePerson>> allTargetUpdates) {
+		Map<String, String> targetServerAttributesMapping = cacheRefreshService.getTargetServerAttributesMapping(cacheRefreshConfiguration);
+		String[] customObjectClasses = appConfiguration.getPersonObjectClassTypes();
+
+		Map<String, LdapServerConnection> sourceServerConnectionsMap = null;
+		String[] sourceReturnAttributes = null;
+		if (sourceServerConnections != null) {
+			sourceServerConnectionsMap = getLdapServerConnectionsMap(sourceServerConnections);
+			sourceReturnAttributes = ArrayHelper.arrayMerge(cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration),
+					cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration));
+		}
+
+		List<String> result = new ArrayList<String>();
+
+		if (!validateTargetServerSchema(cacheRefreshConfiguration, targetServerAttributesMapping, customObjectClasses)) {
+			return result;
+		}
+
+		// Skip entries without source entry
+		List<Pair<String, GluuSimplePerson>> targetUpdates = new ArrayList<Pair<String, GluuSimplePerson>>(allTargetUpdates.size());
+		for (Pair<String, GluuSimplePerson> targetUpdate : allTargetUpdates) {
+			if (targetUpdate.getSecond() != null) {
+				targetUpdates.add(targetUpdate);
+			}
+		}
+
+		// Scripts instances are created per worker thread. Updates of entries are executed in batches by worker threads
+		if (cacheRefreshTuningConfiguration.isParallelTargetUpdate() || cacheRefreshTuningConfiguration.isParallelScriptExecution()) {
+			return updateTargetEntriesViaCopyInBatches(cacheRefreshTuningConfiguration, targetUpdates, sourceServerConnectionsMap, sourceReturnAttributes,
+					customObjectClasses, targetServerAttributesMapping);
+		}
+
+		for (Pair<String, GluuSimplePerson> targetUpdate : targetUpdates) {
+			String targetInum = targetUpdate.getFirst();
+			GluuSimplePerson sourcePerson = targetUpdate.getSecond();
+
+			if (sourceServerConnectionsMap != null) {
+				sourcePerson = cacheRefreshSourceLoadService.loadSourceServerEntry(sourceServerConnectionsMap, sourcePerson, sourceReturnAttributes);
+				if (sourcePerson == null) {
+					continue;
+				}
+			}
+
+			if (updateTargetEntryViaCopy(sourcePerson, targetInum, customObjectClasses, targetServerAttributesMapping, null)) {
+				result.add(targetInum);
+			}
+		}
+
+		return result;
+	}
+
+	private boolean validateTargetServerSchema(CacheRefreshConfiguration cacheRefreshConfiguration, Map<String, String> targetServerAttributesMapping, String[] customObjectClasses) {
+		// Get list of return attributes
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		String[] sourceAttributes = cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration);
+		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+
+		// Validation result depends only on schema, attributes mapping and scripts
+		String configurationKey = getSchemaValidationKey(returnAttributes, targetServerAttributesMapping, customObjectClasses);
+		CacheRefreshSchemaValidationResult lastResult = this.lastSchemaValidationResult;
+		String schemaDn = null;
+		String schemaModifyTimestamp = null;
+		if (lastResult != null) {
+			schemaDn = lastResult.getSchemaDn();
+			schemaModifyTimestamp = getSchemaModifyTimestamp(schemaDn);
+			if (lastResult.isActual(configurationKey, schemaModifyTimestamp)) {
+				log.debug("Using cached target server schema validation result: '{}'", lastResult);
+				return lastResult.isValid();
+			}
+		}
+
+		GluuSimplePerson sourcePerson = new GluuSimplePerson();
+		for (String returnAttribute : returnAttributes) {
+			sourcePerson.setAttribute(returnAttribute, "Test");
+		}
+
+		String targetInum = inumService.generateInums(OxTrustConstants.INUM_TYPE_PEOPLE_SLUG, false);
+		String targetPersonDn = personService.getDnForPerson(targetInum);
+
+		GluuCustomPerson targetPerson = new GluuCustomPerson();
+		targetPerson.setDn(targetPersonDn);
+		targetPerson.setInum(targetInum);
+		targetPerson.setStatus(GluuStatus.ACTIVE);
+		targetPerson.setCustomObjectClasses(customObjectClasses);
+
+		// Update list of return attributes according mapping
+		cacheRefreshService.setTargetEntryAttributes(sourcePerson, targetServerAttributesMapping, targetPerson);
+
+		// Execute interceptor script
+		boolean executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
+		if (!executionResult) {
+			log.error("Failed to execute Cache Refresh scripts for person '{}'", targetInum);
+			return false;
+		}
+
+		// Validate target server attributes
+		List<GluuCustomAttribute> customAttributes = targetPerson.getCustomAttributes();
+
+		List<String> targetAttributes = new ArrayList<String>(customAttributes.size());
+		for (GluuCustomAttribute customAttribute : customAttributes) {
+			targetAttributes.add(customAttribute.getName());
+		}
+
+		List<String> targetObjectClasses = Arrays.asList(ldapEntryManager.getObjectClasses(targetPerson, GluuCustomPerson.class));
+
+		SchemaEntry schemaEntry = schemaService.getSchema();
+		if (schemaDn == null) {
+			schemaDn = schemaEntry.getDn();
+			schemaModifyTimestamp = getSchemaModifyTimestamp(schemaDn);
+		}
+
+		boolean result = validateTargetServerSchema(schemaEntry, targetObjectClasses, targetAttributes);
+		this.lastSchemaValidationResult = new CacheRefreshSchemaValidationResult(configurationKey, schemaDn, schemaModifyTimestamp, result);
+
+		return result;
+	}
+
+	private boolean validateTargetServerSchema(SchemaEntry schemaEntry, List<String> targetObjectClasses, List<String> targetAttributes) {
+		Set<String> objectClassesAttributesSet = schemaService.getObjectClassesAttributes(schemaEntry, targetObjectClasses.toArray(new String[0]));
+
+		Set<String> targetAttributesSet = new LinkedHashSet<String>();
+		for (String attrbute : targetAttributes) {
+			targetAttributesSet.add(StringHelper.toLowerCase(attrbute));
+		}
+
+		targetAttributesSet.removeAll(objectClassesAttributesSet);
+
+		if (targetAttributesSet.size() == 0) {
+			return true;
+		}
+
+		log.error("Skipping target entries update. Destination server schema doesn't has next attributes: '{}'", targetAttributesSet);
+
+		return false;
+	}
+
+	private String getSchemaValidationKey(String[] returnAttributes, Map<String, String> targetServerAttributesMapping, String[] customObjectClasses) {
+		StringBuilder key = new StringBuilder();
+		key.append(Arrays.toString(returnAttributes)).append(';');
+		key.append(new TreeMap<String, String>(targetServerAttributesMapping)).append(';');
+		key.append(Arrays.toString(customObjectClasses)).append(';');
+		for (CustomScriptConfiguration customScriptConfiguration : externalCacheRefreshService.getCustomScriptConfigurations()) {
+			key.append(customScriptConfiguration.getCustomScript().getInum()).append(':').append(customScriptConfiguration.getCustomScript().getRevision())
+					.append(',');
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * Returns schema modification timestamp or null if server doesn't provide it
+	 */
+	private String getSchemaModifyTimestamp(String schemaDn) {
+		if (StringHelper.isEmpty(schemaDn)) {
+			return null;
+		}
+
+		try {
+			GluuSimplePerson schemaTimestampEntry = ldapEntryManager.find(GluuSimplePerson.class, schemaDn, SCHEMA_MODIFY_TIMESTAMP_RETURN_ATTRIBUTES);
+			return schemaTimestampEntry == null ? null : schemaTimestampEntry.getAttribute(SCHEMA_MODIFY_TIMESTAMP_RETURN_ATTRIBUTES[0]);
+		} catch (BasePersistenceException ex) {
+			log.debug("Failed to load schema modification timestamp", ex);
+			return null;
+		}
+	}
+
+	private List<String> updateTargetEntriesViaCopyInBatches(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration,
+			List<Pair<String, GluuSimplePerson>> targetUpdates, Map<String, LdapServerConnection> sourceServerConnectionsMap, String[] sourceReturnAttributes,
+			String[] targetCustomObjectClasses, Map<String, String> targetServerAttributesMapping) {
+		int batchSize = cacheRefreshTuningConfiguration.getTargetUpdateBatchSize();
+		int threadsCount;
+		int maxInFlightBatches;
+		if (cacheRefreshTuningConfiguration.isParallelTargetUpdate()) {
+			threadsCount = cacheRefreshTuningConfiguration.getTargetUpdateThreads();
+			maxInFlightBatches = cacheRefreshTuningConfiguration.getTargetUpdateMaxInFlightBatches();
+		} else {
+			threadsCount = cacheRefreshTuningConfiguration.getScriptExecutionThreads();
+			maxInFlightBatches = 2 * threadsCount;
+		}
+		log.info("Attempting to update '{}' target entries in batches of '{}' entries using '{}' threads", targetUpdates.size(), batchSize, threadsCount);
+
+		List<String> result = new ArrayList<String>();
+
+		// Without scripts pool all threads execute shared scripts instances one by one
+		CacheRefreshScriptsPool scriptsPool = null;
+		if (cacheRefreshTuningConfiguration.isParallelScriptExecution()) {
+			scriptsPool = new CacheRefreshScriptsPool();
+		}
+
+		// Limit count of batches which are waiting for execution or in progress
+		final Semaphore inFlightBatches = new Semaphore(maxInFlightBatches);
+		List<Future<List<String>>> batchResults = new ArrayList<Future<List<String>>>();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(threadsCount);
+		try {
+			for (int i = 0; i < targetUpdates.size(); i += batchSize) {
+				List<Pair<String, GluuSimplePerson>> batch = targetUpdates.subList(i, Math.min(i + batchSize, targetUpdates.size()));
+				final TargetEntriesBatchUpdate batchUpdate = new TargetEntriesBatchUpdate(batch, sourceServerConnectionsMap, sourceReturnAttributes,
+						targetCustomObjectClasses, targetServerAttributesMapping, scriptsPool);
+
+				inFlightBatches.acquire();
+				try {
+					batchResults.add(executorService.submit(new Callable<List<String>>() {
+						@Override
+						public List<String> call() throws Exception {
+							try {
+								return batchUpdate.call();
+							} finally {
+								inFlightBatches.release();
+							}
+						}
+					}));
+				} catch (RejectedExecutionException ex) {
+					inFlightBatches.release();
+					throw ex;
+				}
+			}
+
+			for (Future<List<String>> batchResult : batchResults) {
+				try {
+					result.addAll(batchResult.get());
+				} catch (ExecutionException ex) {
+					// Not updated entries of failed batch will be added to problem list
+					log.error("Failed to update batch of target entries", ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while updating target entries", ex);
+		} finally {
+			executorService.shutdownNow();
+			if (scriptsPool != null) {
+				// Scripts instances can be destroyed only after worker threads stopped to use them
+				try {
+					executorService.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				scriptsPool.destroy();
+			}
+		}
+
+		return result;
+	}
+
+	private Map<String, GluuCustomPerson> findTargetPersons(List<String> targetInums) {
+		Map<String, GluuCustomPerson> result = new HashMap<String, GluuCustomPerson>();
+
+		List<GluuCustomPerson> targetPersons = personService.findPersonsByInums(targetInums, null);
+		cacheRefreshMetricsService.countLdapCall();
+		for (GluuCustomPerson targetPerson : targetPersons) {
+			result.put(targetPerson.getInum(), targetPerson);
+		}
+
+		return result;
+	}
+
+	private boolean updateTargetEntryViaCopy(GluuSimplePerson sourcePerson, String targetInum, String[] targetCustomObjectClasses,
+			Map<String, String> targetServerAttributesMapping, List<CustomScriptConfiguration> scriptConfigurations) {
+		String targetPersonDn = personService.getDnForPerson(targetInum);
+		GluuCustomPerson targetPerson = null;
+		cacheRefreshMetricsService.countLdapCall();
+		if (personService.contains(targetPersonDn)) {
+			try {
+				cacheRefreshMetricsService.countLdapCall();
+				targetPerson = personService.findPersonByDn(targetPersonDn);
+				log.debug("Found person by inum '{}'", targetInum);
+			} catch (EntryPersistenceException ex) {
+				log.error("Failed to find person '{}'", targetInum, ex);
+				return false;
+			}
+		}
+
+		return updateTargetEntryViaCopy(sourcePerson, targetInum, targetPersonDn, targetPerson, targetCustomObjectClasses, targetServerAttributesMapping,
+				scriptConfigurations);
+	}
+
+	private boolean updateTargetEntryViaCopy(GluuSimplePerson sourcePerson, String targetInum, String targetPersonDn, GluuCustomPerson existingTargetPerson,
+			String[] targetCustomObjectClasses, Map<String, String> targetServerAttributesMapping, List<CustomScriptConfiguration> scriptConfigurations) {
+		GluuCustomPerson targetPerson = existingTargetPerson;
+		boolean updatePerson;
+		if (targetPerson != null) {
+			updatePerson = true;
+		} else {
+			targetPerson = new GluuCustomPerson();
+			targetPerson.setDn(targetPersonDn);
+			targetPerson.setInum(targetInum);
+			targetPerson.setStatus(GluuStatus.ACTIVE);
+			updatePerson = false;
+		}
+		targetPerson.setCustomObjectClasses(targetCustomObjectClasses);
+
+		targetPerson.setSourceServerName(sourcePerson.getSourceServerName());
+        targetPerson.setSourceServerUserDn(sourcePerson.getDn());
+
+		cacheRefreshService.setTargetEntryAttributes(sourcePerson, targetServerAttributesMapping, targetPerson);
+
+		// Execute interceptor script. Scripts aren't required to be thread safe
+		boolean executionResult;
+		if (scriptConfigurations == null) {
+			synchronized (externalCacheRefreshService) {
+				executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson, true);
+			}
+		} else {
+			// Scripts instances of current thread
+			executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(scriptConfigurations, targetPerson, true);
+		}
+		if (!executionResult) {
+			log.error("Failed to execute Cache Refresh scripts for person '{}'", targetInum);
+			return false;
+		}
+
+		try {
+			cacheRefreshMetricsService.countLdapCall();
+			if (updatePerson) {
+				personService.updatePerson(targetPerson);
+				log.debug("Updated person '{}'", targetInum);
+			} else {
+				personService.addPerson(targetPerson);
+				log.debug("Added new person '{}'", targetInum);
+			}
+		} catch (Exception ex) {
+			log.error("Failed to '{}' person '{}'", updatePerson ? "update" : "add", targetInum, ex);
+			return false;
+		}
+
+		return true;
+	}
+
+	private Map<String, LdapServerConnection> getLdapServerConnectionsMap(LdapServerConnection[] ldapServerConnections) {
+		Map<String, LdapServerConnection> result = new HashMap<String, LdapServerConnection>();
+
+		for (LdapServerConnection ldapServerConnection : ldapServerConnections) {
+			result.put(ldapServerConnection.getSourceServerName(), ldapServerConnection);
+		}
+
+		return result;
+	}
+
+	private class TargetEntriesBatchUpdate implements Callable<List<String>> {
+		private List<Pair<String, GluuSimplePerson>> batch;
+		private Map<String, LdapServerConnection> sourceServerConnectionsMap;
+		private String[] sourceReturnAttributes;
+		private String[] targetCustomObjectClasses;
+		private Map<String, String> targetServerAttributesMapping;
+		private CacheRefreshScriptsPool scriptsPool;
+
+		protected TargetEntriesBatchUpdate(List<Pair<String, GluuSimplePerson>> batch, Map<String, LdapServerConnection> sourceServerConnectionsMap,
+				String[] sourceReturnAttributes, String[] targetCustomObjectClasses, Map<String, String> targetServerAttributesMapping,
+				CacheRefreshScriptsPool scriptsPool) {
+			this.batch = batch;
+			this.sourceServerConnectionsMap = sourceServerConnectionsMap;
+			this.sourceReturnAttributes = sourceReturnAttributes;
+			this.targetCustomObjectClasses = targetCustomObjectClasses;
+			this.targetServerAttributesMapping = targetServerAttributesMapping;
+			this.scriptsPool = scriptsPool;
+		}
+
+		@Override
+		public List<String> call() {
+			if (scriptsPool == null) {
+				return update(null);
+			}
+
+			List<CustomScriptConfiguration> scriptConfigurations = scriptsPool.acquire();
+			if (scriptConfigurations == null) {
+				log.error("Failed to prepare Cache Refresh scripts for batch of '{}' target entries", batch.size());
+				return new ArrayList<String>(0);
+			}
+
+			try {
+				return update(scriptConfigurations);
+			} finally {
+				scriptsPool.release(scriptConfigurations);
+			}
+		}
+
+		private List<String> update(List<CustomScriptConfiguration> scriptConfigurations) {
+			List<String> result = new ArrayList<String>();
+
+			List<String> targetInums = new ArrayList<String>(batch.size());
+			for (Pair<String, GluuSimplePerson> targetUpdate : batch) {
+				targetInums.add(targetUpdate.getFirst());
+			}
+
+			// Check existence of all entries in batch with one search
+			Map<String, GluuCustomPerson> existingTargetPersons;
+			try {
+				existingTargetPersons = findTargetPersons(targetInums);
+			} catch (BasePersistenceException ex) {
+				log.error("Failed to find batch of '{}' target entries", targetInums.size(), ex);
+				return result;
+			}
+
+			for (Pair<String, GluuSimplePerson> targetUpdate : batch) {
+				String targetInum = targetUpdate.getFirst();
+				GluuSimplePerson sourcePerson = targetUpdate.getSecond();
+				try {
+					if (sourceServerConnectionsMap != null) {
+						sourcePerson = cacheRefreshSourceLoadService.loadSourceServerEntry(sourceServerConnectionsMap, sourcePerson, sourceReturnAttributes);
+						if (sourcePerson == null) {
+							continue;
+						}
+					}
+
+					if (updateTargetEntryViaCopy(sourcePerson, targetInum, personService.getDnForPerson(targetInum), existingTargetPersons.get(targetInum),
+							targetCustomObjectClasses, targetServerAttributesMapping, scriptConfigurations)) {
+						result.add(targetInum);
+					}
+				} catch (Exception ex) {
+					log.error("Failed to update target entry '{}'", targetInum, ex);
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Scripts instances of worker threads. Each batch takes instances which aren't used by other threads
+	 */
+	private class CacheRefreshScriptsPool {
+		private final Queue<List<CustomScriptConfiguration>> idleScriptConfigurations = new ConcurrentLinkedQueue<List<CustomScriptConfiguration>>();
+		private final List<List<CustomScriptConfiguration>> allScriptConfigurations = new ArrayList<List<CustomScriptConfiguration>>();
+
+		public List<CustomScriptConfiguration> acquire() {
+			List<CustomScriptConfiguration> scriptConfigurations = idleScriptConfigurations.poll();
+			if (scriptConfigurations != null) {
+				return scriptConfigurations;
+			}
+
+			scriptConfigurations = externalCacheRefreshService.createScriptConfigurationsInstances();
+			if (scriptConfigurations != null) {
+				synchronized (allScriptConfigurations) {
+					allScriptConfigurations.add(scriptConfigurations);
+				}
+			}
+
+			return scriptConfigurations;
+		}
+
+		public void release(List<CustomScriptConfiguration> scriptConfigurations) {
+			idleScriptConfigurations.offer(scriptConfigurations);
+		}
+
+		public void destroy() {
+			synchronized (allScriptConfigurations) {
+				log.debug("Destroying '{}' instances of Cache Refresh scripts", allScriptConfigurations.size());
+				for (List<CustomScriptConfiguration> scriptConfigurations : allScriptConfigurations) {
+					externalCacheRefreshService.destroyScriptConfigurationsInstances(scriptConfigurations);
+				}
+				allScriptConfigurations.clear();
+			}
+			idleScriptConfigurations.clear();
+		}
+	}
+}
@@ -22,6 +22,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -34,14 +42,23 @@ import org.apache.commons.beanutils.BeanUtilsBean2;
 import org.apache.commons.io.FilenameUtils;
 import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKeyIndex;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshChangeDetectionStatistics;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshCheckpoint;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshDryRunReport;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshIncrementalState;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSearchPartitions;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshot;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSourceEntryStore;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
 import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
 import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.ldap.cache.model.InumHashCodeMap;
 import org.gluu.oxtrust.ldap.service.ApplianceService;
 import org.gluu.oxtrust.ldap.service.ApplicationFactory;
 import org.gluu.oxtrust.ldap.service.AttributeService;
 import org.gluu.oxtrust.ldap.service.EncryptionService;
 import org.gluu.oxtrust.ldap.service.IPersonService;
-import org.gluu.oxtrust.ldap.service.InumService;
 import org.gluu.oxtrust.model.GluuAppliance;
 import org.gluu.oxtrust.model.GluuCustomAttribute;
 import org.gluu.oxtrust.model.GluuCustomPerson;
@@ -50,27 +67,22 @@ import org.gluu.oxtrust.service.external.ExternalCacheRefreshService;
 import org.gluu.oxtrust.util.OxTrustConstants;
 import org.gluu.oxtrust.util.PropertyUtil;
 import org.gluu.persist.PersistenceEntryManager;
-import org.gluu.persist.exception.BasePersistenceException;
 import org.gluu.persist.exception.EntryPersistenceException;
 import org.gluu.persist.ldap.impl.LdapEntryManager;
 import org.gluu.persist.model.SearchScope;
 import org.gluu.persist.model.base.GluuBoolean;
-import org.gluu.persist.model.base.GluuDummyEntry;
 import org.gluu.persist.model.base.GluuStatus;
 import org.gluu.persist.operation.PersistenceOperationService;
 import org.gluu.search.filter.Filter;
 import org.slf4j.Logger;
 import org.xdi.config.oxtrust.AppConfiguration;
-import org.xdi.config.oxtrust.CacheRefreshAttributeMapping;
 import org.xdi.config.oxtrust.CacheRefreshConfiguration;
 import org.xdi.model.ldap.GluuLdapConfiguration;
 import org.xdi.service.ObjectSerializationService;
-import org.xdi.service.SchemaService;
 import org.xdi.service.cdi.async.Asynchronous;
 import org.xdi.service.cdi.event.Scheduled;
 import org.xdi.service.timer.event.TimerEvent;
 import org.xdi.service.timer.schedule.TimerSchedule;
-import org.xdi.util.ArrayHelper;
 import org.xdi.util.OxConstants;
 import org.xdi.util.Pair;
 import org.xdi.util.StringHelper;
@@ -85,10 +97,8 @@ import org.xdi.util.StringHelper;
 @Named
 public class CacheRefreshTimer {
 
-	private static final String LETTERS_FOR_SEARCH = "abcdefghijklmnopqrstuvwxyz1234567890.";
-	private static final String[] TARGET_PERSON_RETURN_ATTRIBUTES = { OxTrustConstants.inum };
-
 	private static final int DEFAULT_INTERVAL = 60;
+	private static final String INUM_MAP_PRIMARY_KEY_VALUE_ATTRIBUTE = "primaryKeyValue";
 
 	@Inject
 	private Logger log;
@@ -123,12 +133,6 @@ public class CacheRefreshTimer {
 	@Inject
 	private ExternalCacheRefreshService externalCacheRefreshService;
 
-	@Inject
-	private SchemaService schemaService;
-
-	@Inject
-	private InumService inumService;
-
 	@Inject
 	private AppConfiguration appConfiguration;
 	
@@ -138,20 +142,45 @@ public class CacheRefreshTimer {
 	@Inject
 	private ObjectSerializationService objectSerializationService;
 
+	@Inject
+	private CacheRefreshInumCacheFileService cacheRefreshInumCacheFileService;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
+	@Inject
+	private CacheRefreshShardLeaseService cacheRefreshShardLeaseService;
+
+	@Inject
+	private CacheRefreshSourceLoadService cacheRefreshSourceLoadService;
+
+	@Inject
+	private CacheRefreshChangeDetectionService cacheRefreshChangeDetectionService;
+
+	@Inject
+	private CacheRefreshTargetUpdateService cacheRefreshTargetUpdateService;
+
+	@Inject
+	private CacheRefreshTargetRemovalService cacheRefreshTargetRemovalService;
+
 	private AtomicBoolean isActive;
 	private long lastFinishedTime;
 
+	private volatile CacheRefreshChangeDetectionStatistics lastChangeDetectionStatistics;
+
     public void initTimer() {
         log.info("Initializing Cache Refresh Timer");
         this.isActive = new AtomicBoolean(false);
+
+		cacheRefreshMetricsService.initMBean();
 		
 		// Clean up previous Inum cache
 		CacheRefreshConfiguration cacheRefreshConfiguration = configurationFactory.getCacheRefreshConfiguration();
 		if (cacheRefreshConfiguration != null) {
 			String snapshotFolder = cacheRefreshConfiguration.getSnapshotFolder();
 			if (StringHelper.isNotEmpty(snapshotFolder)) {
-				String inumCachePath = getInumCachePath(cacheRefreshConfiguration);
-				objectSerializationService.cleanup(inumCachePath);
+				objectSerializationService.cleanup(getLegacyInumCachePath(cacheRefreshConfiguration));
+				cacheRefreshInumCacheFileService.cleanup(getInumCachePath(cacheRefreshConfiguration));
 			}
 		}
 
@@ -214,6 +243,24 @@ public class CacheRefreshTimer {
 			return false;
 		}
 
+		// In sharded mode all cluster nodes synchronize entries. Master server merges shards snapshots only
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = configurationFactory.getCacheRefreshTuningConfiguration();
+		if (!cacheRefreshTuningConfiguration.isShardedCacheRefresh() && !isCacheRefreshServer(currentAppliance)) {
+			return false;
+		}
+
+		// Check if cache refresh specific configuration was loaded
+		if (cacheRefreshConfiguration == null) {
+			log.info("Failed to start cache refresh. Can't loading configuration from oxTrustCacheRefresh.properties");
+			return false;
+		}
+
+		long timeDiffrence = System.currentTimeMillis() - this.lastFinishedTime;
+
+		return timeDiffrence >= poolingInterval;
+	}
+
+	private boolean isCacheRefreshServer(GluuAppliance currentAppliance) {
 		String cacheRefreshServerIpAddress = currentAppliance.getCacheRefreshServerIpAddress();
 		if (StringHelper.isEmpty(cacheRefreshServerIpAddress)) {
 			log.debug("There is no master Cache Refresh server");
@@ -243,36 +290,22 @@ public class CacheRefreshTimer {
         
         if (!cacheRefreshServer) {
 			log.debug("This server isn't master Cache Refresh server");
-			return false;
         }
 
-		// Check if cache refresh specific configuration was loaded
-		if (cacheRefreshConfiguration == null) {
-			log.info("Failed to start cache refresh. Can't loading configuration from oxTrustCacheRefresh.properties");
-			return false;
-		}
-
-		long timeDiffrence = System.currentTimeMillis() - this.lastFinishedTime;
-
-		return timeDiffrence >= poolingInterval;
+		return cacheRefreshServer;
 	}
 
 	private void processImpl(CacheRefreshConfiguration cacheRefreshConfiguration, GluuAppliance currentAppliance) {
 		CacheRefreshUpdateMethod updateMethod = getUpdateMethod(cacheRefreshConfiguration);
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = configurationFactory.getCacheRefreshTuningConfiguration();
+
+		cacheRefreshMetricsService.startRun(String.valueOf(updateMethod));
+		cacheRefreshMetricsService.startPhase("prepareConnections");
 
 		// Prepare and check connections to LDAP servers
 		LdapServerConnection[] sourceServerConnections = prepareLdapServerConnections(cacheRefreshConfiguration, cacheRefreshConfiguration.getSourceConfigs());
 
-		LdapServerConnection inumDbServerConnection;
-		if (cacheRefreshConfiguration.isDefaultInumServer()) {
-			GluuLdapConfiguration ldapInumConfiguration = new GluuLdapConfiguration();
-			ldapInumConfiguration.setConfigId("local_inum");
-			ldapInumConfiguration.setBaseDNsStringsList(Arrays.asList(new String[] { OxTrustConstants.CACHE_REFRESH_DEFAULT_BASE_DN }));
-
-			inumDbServerConnection = prepareLdapServerConnection(cacheRefreshConfiguration, ldapInumConfiguration, true);
-		} else {
-			inumDbServerConnection = prepareLdapServerConnection(cacheRefreshConfiguration, cacheRefreshConfiguration.getInumConfig());
-		}
+		LdapServerConnection inumDbServerConnection = prepareInumDbServerConnection(cacheRefreshConfiguration);
 
 		boolean isVdsUpdate = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
 		LdapServerConnection targetServerConnection = null;
@@ -280,14 +313,19 @@ public class CacheRefreshTimer {
 			targetServerConnection = prepareLdapServerConnection(cacheRefreshConfiguration, cacheRefreshConfiguration.getTargetConfig());
 		}
 
+		boolean successful = false;
 		try {
 			if ((sourceServerConnections == null) || (inumDbServerConnection == null) || (isVdsUpdate && (targetServerConnection == null))) {
 				log.error("Skipping cache refresh due to invalid server configuration");
+			} else if (cacheRefreshTuningConfiguration.isShardedCacheRefresh()) {
+				successful = detectChangedEntriesInShards(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, currentAppliance, sourceServerConnections,
+						inumDbServerConnection, targetServerConnection, updateMethod);
 			} else {
-				detectChangedEntries(cacheRefreshConfiguration, currentAppliance, sourceServerConnections, inumDbServerConnection, targetServerConnection,
-						updateMethod);
+				successful = detectChangedEntries(cacheRefreshConfiguration, currentAppliance, sourceServerConnections, inumDbServerConnection,
+						targetServerConnection, updateMethod);
 			}
 		} finally {
+
 			// Close connections to LDAP servers
 			try {
 				closeLdapServerConnection(sourceServerConnections);
@@ -306,78 +344,168 @@ public class CacheRefreshTimer {
 			} catch (Exception e) {
 				// Nothing can be done
 			}
+
+			cacheRefreshMetricsService.finishRun(cacheRefreshConfiguration, successful);
 		}
 
 		return;
 	}
 
-	@SuppressWarnings("unchecked")
 	private boolean detectChangedEntries(CacheRefreshConfiguration cacheRefreshConfiguration, GluuAppliance currentAppliance, LdapServerConnection[] sourceServerConnections,
 			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection, CacheRefreshUpdateMethod updateMethod) {
 		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = configurationFactory.getCacheRefreshTuningConfiguration();
+		boolean isOffHeapSourceEntries = cacheRefreshTuningConfiguration.isOffHeapSourceEntries();
+		boolean isStreamingSourceLoad = cacheRefreshTuningConfiguration.isStreamingSourceLoad() || isOffHeapSourceEntries;
+		boolean isCheckpointedRun = cacheRefreshTuningConfiguration.isCheckpointedRun();
+
+		// Continue run which was interrupted after change detection
+		if (isCheckpointedRun) {
+			CacheRefreshCheckpoint checkpoint = cacheRefreshSnapshotFileService.readCheckpoint(cacheRefreshConfiguration);
+			if (checkpoint != null) {
+				if (checkpoint.isActual(getCheckpointKey(cacheRefreshConfiguration, updateMethod))) {
+					return resumeChangedEntriesDetection(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, currentAppliance, sourceServerConnections,
+							inumDbServerConnection, targetServerConnection, updateMethod, checkpoint);
+				}
 
-		// Load all entries from Source servers
-		log.info("Attempting to load entries from source server");
-		List<GluuSimplePerson> sourcePersons;
-		
-		if (cacheRefreshConfiguration.isUseSearchLimit()) {
-			sourcePersons = loadSourceServerEntries(cacheRefreshConfiguration, sourceServerConnections);
-		} else {
-			sourcePersons = loadSourceServerEntriesWithoutLimits(cacheRefreshConfiguration, sourceServerConnections);
+				log.info("Skipping checkpoint of interrupted run because configuration was changed");
+				cacheRefreshSnapshotFileService.removeCheckpoint(cacheRefreshConfiguration);
+			}
+		}
+
+		CacheRefreshIncrementalState incrementalState = null;
+		if (cacheRefreshTuningConfiguration.isIncrementalSourceLoad() && isIncrementalChangeAttributeSupported(cacheRefreshConfiguration,
+				cacheRefreshTuningConfiguration)) {
+			CacheRefreshIncrementalState lastIncrementalState = cacheRefreshSnapshotFileService.readIncrementalState(cacheRefreshConfiguration);
+			if (isIncrementalRunAllowed(cacheRefreshTuningConfiguration, sourceServerConnections, lastIncrementalState)) {
+				CacheRefreshSnapshot lastSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
+				if (lastSnapshot != null) {
+					return detectChangedEntriesIncrementally(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, currentAppliance, sourceServerConnections,
+							inumDbServerConnection, targetServerConnection, updateMethod, lastIncrementalState, lastSnapshot);
+				}
+			}
+
+			// High-water marks of source servers are taken before full scan
+			log.info("Attempting to run full scan of source servers");
+			incrementalState = new CacheRefreshIncrementalState(cacheRefreshTuningConfiguration.getIncrementalChangeAttribute(), System.currentTimeMillis());
+			cacheRefreshSourceLoadService.setCurrentChangeMarks(cacheRefreshTuningConfiguration, sourceServerConnections, incrementalState);
+		}
+
+		cacheRefreshMetricsService.startPhase("sourceLoad");
+
+		String[] keyAttributeStarts = cacheRefreshConfiguration.isUseSearchLimit() ? cacheRefreshSourceLoadService.createTwoLettersArray() : new String[] { "" };
+
+		// Searches start from partitions learned at previous run instead of two letters prefixes
+		CacheRefreshSearchPartitions searchPartitions = null;
+		if (cacheRefreshConfiguration.isUseSearchLimit() && cacheRefreshTuningConfiguration.isAdaptiveSearchPartitioning()) {
+			searchPartitions = cacheRefreshSnapshotFileService.readSearchPartitions(cacheRefreshConfiguration, CacheRefreshSourceLoadService.LETTERS_FOR_SEARCH,
+					cacheRefreshConfiguration.getLdapSearchSizeLimit());
 		}
 
-		log.info("Found '{}' entries in source server", sourcePersons.size());
+		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap;
+		Map<CacheCompoundKey, Long> sourcePersonCacheCompoundKeyHashCodeMap = null;
+		CacheRefreshSourceEntryStore sourceEntryStore = null;
+		if (isStreamingSourceLoad) {
+			// Full entries are kept outside of heap. Only changed entries will be materialized
+			if (isOffHeapSourceEntries && !isVDSMode) {
+				sourceEntryStore = cacheRefreshSourceLoadService.createSourceEntryStore(cacheRefreshConfiguration);
+			}
 
-		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap = getSourcePersonCompoundKeyMap(cacheRefreshConfiguration, sourcePersons);
+			// Load entries from Source servers page by page and keep only compound keys and hash codes
+			log.info("Attempting to load entries from source server in streaming mode with page size '{}'", cacheRefreshTuningConfiguration.getSourceLoadPageSize());
+			sourcePersonCacheCompoundKeyHashCodeMap = new HashMap<CacheCompoundKey, Long>();
+			sourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.loadSourceServerEntriesStreaming(cacheRefreshConfiguration,
+					cacheRefreshTuningConfiguration, sourceServerConnections, keyAttributeStarts, inumDbServerConnection.getPersistenceEntryManager(),
+					sourcePersonCacheCompoundKeyHashCodeMap, sourceEntryStore, searchPartitions);
+		} else {
+			// Load all entries from Source servers
+			log.info("Attempting to load entries from source server");
+			List<GluuSimplePerson> sourcePersons;
+			
+			if (cacheRefreshTuningConfiguration.isParallelSourceLoad()) {
+				sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntriesInParallel(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+						sourceServerConnections, keyAttributeStarts, searchPartitions);
+			} else if (cacheRefreshConfiguration.isUseSearchLimit()) {
+				sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntries(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+						sourceServerConnections, keyAttributeStarts, searchPartitions);
+			} else {
+				sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntriesWithoutLimits(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+						sourceServerConnections);
+			}
+	
+			log.info("Found '{}' entries in source server", sourcePersons.size());
+	
+			sourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.getSourcePersonCompoundKeyMap(cacheRefreshConfiguration, sourcePersons);
+		}
 		log.info("Found '{}' unique entries in source server", sourcePersonCacheCompoundKeyMap.size());
+		cacheRefreshMetricsService.addEntries(sourcePersonCacheCompoundKeyMap.size());
+
+		if (searchPartitions != null) {
+			log.info("Loaded entries from source server with '{}' searches", searchPartitions.getSearchesCount());
+			if (!cacheRefreshSnapshotFileService.writeSearchPartitions(cacheRefreshConfiguration, searchPartitions)) {
+				log.error("Failed to save search partitions. They will be learned again at next run");
+			}
+		}
 
 		// Load all inum entries
+		cacheRefreshMetricsService.startPhase("inumLoad");
 		List<GluuInumMap> inumMaps = null;
 
 		// Load all inum entries from local disk cache
 		String inumCachePath = getInumCachePath(cacheRefreshConfiguration);
-		Object loadedObject = objectSerializationService.loadObject(inumCachePath);
-		if (loadedObject != null) {
-			try {
-				inumMaps = (List<GluuInumMap>) loadedObject;
-				log.debug("Found '{}' entries in inum objects disk cache", inumMaps.size());
-			} catch (Exception ex) {
-				log.error("Failed to convert to GluuInumMap list", ex);
-				objectSerializationService.cleanup(inumCachePath);
-			}
-		}
-
-		if (inumMaps == null) {
+		inumMaps = cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath);
+		boolean inumMapsLoadedFromCache = inumMaps != null;
+		if (inumMapsLoadedFromCache) {
+			log.debug("Found '{}' entries in inum objects disk cache", inumMaps.size());
+		} else {
 			// Load all inum entries from LDAP
 			inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
 			log.info("Found '{}' entries in inum server", inumMaps.size());
 		}
+		cacheRefreshMetricsService.addEntries(inumMaps.size());
 
-		HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap = getPrimaryKeyAttrValueInumMap(inumMaps);
+		CacheCompoundKeyIndex primaryKeyAttrValueInumIndex = getPrimaryKeyAttrValueInumIndex(inumMaps);
 
-		// Go through Source entries and create new InumMap entries if needed
-		HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap = addNewInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection,
-				sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumMap);
+		// Go through Source entries and create new InumMap entries if needed. New entries are added to index too
+		cacheRefreshMetricsService.startPhase("inumAllocation");
+		HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap = addNewInumServerEntries(cacheRefreshConfiguration,
+				cacheRefreshTuningConfiguration, inumDbServerConnection, sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex);
+		log.debug("Count actual inum entries '{}' after updating inum server", primaryKeyAttrValueInumIndex.size());
+		cacheRefreshMetricsService.addEntries(addedPrimaryKeyAttrValueInumMap.size());
 
-		HashMap<CacheCompoundKey, GluuInumMap> allPrimaryKeyAttrValueInumMap = getAllInumServerEntries(primaryKeyAttrValueInumMap,
-				addedPrimaryKeyAttrValueInumMap);
-		log.debug("Count actual inum entries '{}' after updating inum server", allPrimaryKeyAttrValueInumMap.size());
+		// New entries are in inum DB already. Journal them now to avoid allocation of another inums for the same entries after restart
+		if (isCheckpointedRun && inumMapsLoadedFromCache && !addedPrimaryKeyAttrValueInumMap.isEmpty()) {
+			if (cacheRefreshInumCacheFileService.appendInumMapsChanges(inumCachePath, addedPrimaryKeyAttrValueInumMap.values(), new ArrayList<String>())) {
+				inumMaps.addAll(addedPrimaryKeyAttrValueInumMap.values());
+				addedPrimaryKeyAttrValueInumMap = new HashMap<CacheCompoundKey, GluuInumMap>();
+			}
+		}
 
-		HashMap<String, Integer> currInumWithEntryHashCodeMap = getSourcePersonsHashCodesMap(inumDbServerConnection,
-				sourcePersonCacheCompoundKeyMap, allPrimaryKeyAttrValueInumMap);
+		cacheRefreshMetricsService.startPhase("changeDetection");
+		InumHashCodeMap currInumWithEntryHashCodeMap = cacheRefreshChangeDetectionService.getSourcePersonsHashCodesMap(cacheRefreshTuningConfiguration,
+				inumDbServerConnection, sourcePersonCacheCompoundKeyMap, sourcePersonCacheCompoundKeyHashCodeMap, primaryKeyAttrValueInumIndex);
 		log.debug("Count actual source entries '{}' after calculating hash code", currInumWithEntryHashCodeMap.size());
+		cacheRefreshMetricsService.addEntries(currInumWithEntryHashCodeMap.size());
+
+		this.lastChangeDetectionStatistics = cacheRefreshChangeDetectionService.getChangeDetectionStatistics(currInumWithEntryHashCodeMap, primaryKeyAttrValueInumIndex);
+		log.info("Change detection memory usage: '{}' bytes, saving per million entries: '{}' bytes", lastChangeDetectionStatistics.getMemoryUsage(),
+				lastChangeDetectionStatistics.getMemorySavingPerMillionEntries());
 
 		// Create snapshots cache folder if needed
 		boolean result = cacheRefreshSnapshotFileService.prepareSnapshotsFolder(cacheRefreshConfiguration);
 		if (!result) {
+			if (sourceEntryStore != null) {
+				sourceEntryStore.close();
+			}
 			return false;
 		}
 
 		// Load last snapshot into memory
-		Map<String, Integer> prevInumWithEntryHashCodeMap = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
+		CacheRefreshSnapshot currSnapshot = CacheRefreshSnapshot.fromMap(currInumWithEntryHashCodeMap);
 
 		// Compare 2 snapshot and invoke update if needed
-		Set<String> changedInums = getChangedInums(currInumWithEntryHashCodeMap, prevInumWithEntryHashCodeMap, isVDSMode);
+		Set<String> changedInums = cacheRefreshChangeDetectionService.getChangedInums(currSnapshot, prevSnapshot, isVDSMode);
 		log.info("Found '{}' changed entries", changedInums.size());
 
 		// Load problem list from disk and add to changedInums
@@ -388,20 +516,113 @@ public class CacheRefreshTimer {
 			changedInums.addAll(problemInums);
 		}
 
+		cacheRefreshMetricsService.startPhase("targetUpdate");
+		// In streaming mode source map contains only entry keys. Full entries should be reloaded from source servers
+		LdapServerConnection[] sourcePersonServerConnections = isStreamingSourceLoad ? sourceServerConnections : null;
+		if (sourceEntryStore != null) {
+			Map<CacheCompoundKey, GluuSimplePerson> changedSourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.getStoredSourcePersons(sourceEntryStore,
+					primaryKeyAttrValueInumIndex, changedInums);
+			sourceEntryStore.close();
+
+			// Reload entries from source servers if store is broken
+			if (changedSourcePersonCacheCompoundKeyMap != null) {
+				sourcePersonCacheCompoundKeyMap = changedSourcePersonCacheCompoundKeyMap;
+				sourcePersonServerConnections = null;
+			}
+		}
 		List<String> updatedInums = null;
-		if (isVDSMode) {
+		if (isCheckpointedRun) {
+			List<Pair<String, GluuSimplePerson>> targetUpdates = cacheRefreshTargetUpdateService.getTargetUpdates(isVDSMode, sourcePersonCacheCompoundKeyMap,
+					primaryKeyAttrValueInumIndex, changedInums);
+
+			// Restarted server continues target entries update from this checkpoint
+			CacheRefreshCheckpoint checkpoint = new CacheRefreshCheckpoint(getCheckpointKey(cacheRefreshConfiguration, updateMethod),
+					System.currentTimeMillis(), currSnapshot, targetUpdates, new HashSet<String>());
+			if (!cacheRefreshSnapshotFileService.writeCheckpoint(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, checkpoint)) {
+				log.error("Failed to write checkpoint. Interrupted run will be started from beginning");
+			}
+
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesWithCheckpoints(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+					sourcePersonServerConnections, targetServerConnection, isVDSMode, targetUpdates);
+		} else if (isVDSMode) {
 			// Update request to VDS to update entries on target server
-			updatedInums = updateTargetEntriesViaVDS(cacheRefreshConfiguration, targetServerConnection, changedInums);
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesViaVDS(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+					targetServerConnection, changedInums);
 		} else {
-			updatedInums = updateTargetEntriesViaCopy(cacheRefreshConfiguration, sourcePersonCacheCompoundKeyMap, allPrimaryKeyAttrValueInumMap, changedInums);
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesViaCopy(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+					sourcePersonServerConnections, sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex, changedInums);
 		}
 
 		log.info("Updated '{}' entries", updatedInums.size());
+		cacheRefreshMetricsService.addEntries(updatedInums.size());
 		changedInums.removeAll(updatedInums);
 		log.info("Failed to update '{}' entries", changedInums.size());
 
+		return finishChangedEntriesDetection(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, currentAppliance, inumDbServerConnection,
+				inumCachePath, inumMapsLoadedFromCache, inumMaps, addedPrimaryKeyAttrValueInumMap, currSnapshot, prevSnapshot, changedInums,
+				updatedInums.size(), incrementalState);
+	}
+
+	private boolean resumeChangedEntriesDetection(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, GluuAppliance currentAppliance, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection, CacheRefreshUpdateMethod updateMethod,
+			CacheRefreshCheckpoint checkpoint) {
+		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
+		log.info("Resuming interrupted run from checkpoint created at '{}': {}", new Date(checkpoint.getCreationTime()), checkpoint);
+
+		// Inum entries are needed for removal only. Entries added by interrupted run are in inum DB and inum cache already
+		cacheRefreshMetricsService.startPhase("inumLoad");
+		String inumCachePath = getInumCachePath(cacheRefreshConfiguration);
+		List<GluuInumMap> inumMaps = cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath);
+		boolean inumMapsLoadedFromCache = inumMaps != null;
+		if (inumMapsLoadedFromCache) {
+			log.debug("Found '{}' entries in inum objects disk cache", inumMaps.size());
+		} else {
+			inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
+			log.info("Found '{}' entries in inum server", inumMaps.size());
+		}
+		cacheRefreshMetricsService.addEntries(inumMaps.size());
+
+		// Snapshot of interrupted run wasn't persisted. Last snapshot is the same as before interruption
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
+		CacheRefreshSnapshot currSnapshot = checkpoint.getSnapshot();
+
+		Set<String> changedInums = new LinkedHashSet<String>();
+		List<Pair<String, GluuSimplePerson>> targetUpdates = new ArrayList<Pair<String, GluuSimplePerson>>();
+		for (Pair<String, GluuSimplePerson> targetUpdate : checkpoint.getTargetUpdates()) {
+			changedInums.add(targetUpdate.getFirst());
+			if (!checkpoint.getUpdatedInums().contains(targetUpdate.getFirst())) {
+				targetUpdates.add(targetUpdate);
+			}
+		}
+		log.info("Found '{}' changed entries. '{}' of them were updated before interruption", changedInums.size(),
+				changedInums.size() - targetUpdates.size());
+
+		// Checkpoint contains source entries keys only. Full entries are reloaded from source servers
+		cacheRefreshMetricsService.startPhase("targetUpdate");
+		List<String> updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesWithCheckpoints(cacheRefreshConfiguration,
+				cacheRefreshTuningConfiguration, sourceServerConnections, targetServerConnection, isVDSMode, targetUpdates);
+
+		log.info("Updated '{}' entries", updatedInums.size());
+		cacheRefreshMetricsService.addEntries(updatedInums.size());
+		changedInums.removeAll(checkpoint.getUpdatedInums());
+		changedInums.removeAll(updatedInums);
+		log.info("Failed to update '{}' entries", changedInums.size());
+
+		return finishChangedEntriesDetection(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, currentAppliance, inumDbServerConnection,
+				inumCachePath, inumMapsLoadedFromCache, inumMaps, new HashMap<CacheCompoundKey, GluuInumMap>(), currSnapshot, prevSnapshot, changedInums,
+				checkpoint.getUpdatedInums().size() + updatedInums.size(), null);
+	}
+
+	private boolean finishChangedEntriesDetection(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, GluuAppliance currentAppliance, LdapServerConnection inumDbServerConnection,
+			String inumCachePath, boolean inumMapsLoadedFromCache, List<GluuInumMap> inumMaps,
+			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap, CacheRefreshSnapshot currSnapshot, CacheRefreshSnapshot prevSnapshot,
+			Set<String> changedInums, int updatedCount, CacheRefreshIncrementalState incrementalState) {
 		// Persist snapshot to cache folder
-		result = cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, currInumWithEntryHashCodeMap);
+		cacheRefreshMetricsService.startPhase("snapshotPersist");
+		boolean result = cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, prevSnapshot,
+				currSnapshot);
 		if (!result) {
 			return false;
 		}
@@ -420,485 +641,850 @@ public class CacheRefreshTimer {
 		log.debug("Keep external persons: '{}'", keepExternalPerson);
 		if (keepExternalPerson) {
 			// Determine entries which need to remove
-			personsForRemoval = getRemovedPersons(currInumWithEntryHashCodeMap, prevInumWithEntryHashCodeMap);
+			personsForRemoval = cacheRefreshChangeDetectionService.getRemovedPersons(currSnapshot, prevSnapshot);
 		} else {
 			// Process entries which don't exist in source server
 	
 			// Load all entries from Target server
-			List<GluuSimplePerson> targetPersons = loadTargetServerEntries(cacheRefreshConfiguration, ldapEntryManager);
+			cacheRefreshMetricsService.startPhase("targetLoad");
+			List<GluuSimplePerson> targetPersons = cacheRefreshTargetRemovalService.loadTargetServerEntries(cacheRefreshConfiguration, ldapEntryManager);
 			log.info("Found '{}' entries in target server", targetPersons.size());
+			cacheRefreshMetricsService.addEntries(targetPersons.size());
 	
 			// Detect entries which need to remove
-			personsForRemoval = processTargetPersons(targetPersons, currInumWithEntryHashCodeMap);
+			personsForRemoval = cacheRefreshChangeDetectionService.processTargetPersons(targetPersons, currSnapshot);
 		}
 		log.debug("Count entries '{}' for removal from target server", personsForRemoval.size());
 
 		// Remove entries from target server
+		cacheRefreshMetricsService.startPhase("targetRemoval");
 		HashMap<String, GluuInumMap> inumInumMap = getInumInumMap(inumMaps);
-		Pair<List<String>, List<String>> removeTargetEntriesResult = removeTargetEntries(inumDbServerConnection, ldapEntryManager, personsForRemoval, inumInumMap);
+		Pair<List<String>, List<String>> removeTargetEntriesResult = cacheRefreshTargetRemovalService.removeTargetEntries(cacheRefreshConfiguration,
+				cacheRefreshTuningConfiguration, inumDbServerConnection, ldapEntryManager, personsForRemoval, inumInumMap, currSnapshot, this.lastFinishedTime);
 		List<String> removedPersonInums = removeTargetEntriesResult.getFirst();
 		List<String> removedGluuInumMaps = removeTargetEntriesResult.getSecond();
 		log.info("Removed '{}' persons from target server", removedPersonInums.size());
+		cacheRefreshMetricsService.addEntries(removedPersonInums.size());
 
-		// Prepare list of inum for serialization
-		ArrayList<GluuInumMap> currentInumMaps = applyChangesToInumMap(inumInumMap, addedPrimaryKeyAttrValueInumMap, removedGluuInumMaps);
+		cacheRefreshMetricsService.startPhase("inumCacheUpdate");
+		updateInumCache(inumCachePath, inumMapsLoadedFromCache, inumInumMap, addedPrimaryKeyAttrValueInumMap, removedGluuInumMaps);
 
-		// Strore all inum entries into local disk cache
-		objectSerializationService.saveObject(inumCachePath, currentInumMaps);
+		currentAppliance.setVdsCacheRefreshLastUpdateCount(String.valueOf(updatedCount + removedPersonInums.size()));
 
-		currentAppliance.setVdsCacheRefreshLastUpdateCount(String.valueOf(updatedInums.size() + removedPersonInums.size()));
+		if (incrementalState != null) {
+			cacheRefreshSnapshotFileService.writeIncrementalState(cacheRefreshConfiguration, incrementalState);
+		}
+
+		// Run finished. Removal interrupted after this point is resumed by pending removal list
+		if (cacheRefreshTuningConfiguration.isCheckpointedRun()) {
+			cacheRefreshSnapshotFileService.removeCheckpoint(cacheRefreshConfiguration);
+		}
 
 		return true;
 	}
 
-	private ArrayList<GluuInumMap> applyChangesToInumMap(HashMap<String, GluuInumMap> inumInumMap,
-			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap, List<String> removedGluuInumMaps) {
-		log.info("There are '{}' entries before updating inum list", inumInumMap.size());
-		for (String removedGluuInumMap : removedGluuInumMaps) {
-			inumInumMap.remove(removedGluuInumMap);
+	private boolean detectChangedEntriesIncrementally(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, GluuAppliance currentAppliance, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection, CacheRefreshUpdateMethod updateMethod,
+			CacheRefreshIncrementalState lastIncrementalState, CacheRefreshSnapshot prevSnapshot) {
+		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
+		CacheRefreshIncrementalState incrementalState = new CacheRefreshIncrementalState(lastIncrementalState.getChangeAttribute(),
+				lastIncrementalState.getLastFullScanTime(), lastIncrementalState.getChangeMarks());
+
+		cacheRefreshMetricsService.setIncremental(true);
+
+		// Load only entries which were changed since last run
+		cacheRefreshMetricsService.startPhase("sourceLoad");
+		log.info("Attempting to load entries from source server changed since last run using '{}' attribute", incrementalState.getChangeAttribute());
+		List<GluuSimplePerson> sourcePersons = cacheRefreshSourceLoadService.loadChangedSourceServerEntries(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+				sourceServerConnections, lastIncrementalState, incrementalState);
+		log.info("Found '{}' changed entries in source server", sourcePersons.size());
+		cacheRefreshMetricsService.addEntries(sourcePersons.size());
+
+		// Load all inum entries from local disk cache or from LDAP
+		cacheRefreshMetricsService.startPhase("inumLoad");
+		String inumCachePath = getInumCachePath(cacheRefreshConfiguration);
+		List<GluuInumMap> inumMaps = cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath);
+		boolean inumMapsLoadedFromCache = inumMaps != null;
+		if (!inumMapsLoadedFromCache) {
+			inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
+			log.info("Found '{}' entries in inum server", inumMaps.size());
 		}
-		log.info("There are '{}' entries after removal '{}' entries", inumInumMap.size(), removedGluuInumMaps.size());
-		
-		ArrayList<GluuInumMap> currentInumMaps = new ArrayList<GluuInumMap>(inumInumMap.values());
-		currentInumMaps.addAll(addedPrimaryKeyAttrValueInumMap.values());
-		log.info("There are '{}' entries after adding '{}' entries", currentInumMaps.size(), addedPrimaryKeyAttrValueInumMap.size());
+		cacheRefreshMetricsService.addEntries(inumMaps.size());
 
-		return currentInumMaps;
-	}
+		// Problem entries are retried at each run. In copy mode their source entries are needed even if they weren't changed since last run
+		List<String> problemInums = cacheRefreshSnapshotFileService.readProblemList(cacheRefreshConfiguration);
+		if (!isVDSMode && (problemInums != null) && !problemInums.isEmpty()) {
+			cacheRefreshMetricsService.startPhase("problemSourceLoad");
+			List<GluuSimplePerson> problemSourcePersons = cacheRefreshSourceLoadService.loadProblemSourceServerEntries(cacheRefreshConfiguration,
+					cacheRefreshTuningConfiguration, sourceServerConnections, inumMaps, problemInums, sourcePersons);
+			log.info("Found '{}' entries of problem list in source server", problemSourcePersons.size());
+			cacheRefreshMetricsService.addEntries(problemSourcePersons.size());
+			sourcePersons.addAll(problemSourcePersons);
+		}
 
-	private Set<String> getChangedInums(HashMap<String, Integer> currInumWithEntryHashCodeMap,
-			Map<String, Integer> prevInumWithEntryHashCodeMap, boolean includeDeleted) {
-		// Find chaged inums
-		Set<String> changedInums = null;
-		// First time run
-		if (prevInumWithEntryHashCodeMap == null) {
-			changedInums = new HashSet<String>(currInumWithEntryHashCodeMap.keySet());
-		} else {
-			changedInums = new HashSet<String>();
+		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.getSourcePersonCompoundKeyMap(cacheRefreshConfiguration,
+				sourcePersons);
 
-			// Add all inums which not exist in new snapshot
-			if (includeDeleted) {
-				for (String prevInumKey : prevInumWithEntryHashCodeMap.keySet()) {
-					if (!currInumWithEntryHashCodeMap.containsKey(prevInumKey)) {
-						changedInums.add(prevInumKey);
-					}
-				}
-			}
+		CacheCompoundKeyIndex primaryKeyAttrValueInumIndex = getPrimaryKeyAttrValueInumIndex(inumMaps);
 
-			// Add all new inums and changed inums
-			for (Entry<String, Integer> currEntry : currInumWithEntryHashCodeMap.entrySet()) {
-				String currInumKey = currEntry.getKey();
-				Integer prevHashCode = prevInumWithEntryHashCodeMap.get(currInumKey);
-				if ((prevHashCode == null) || ((prevHashCode != null) && !(prevHashCode.equals(currEntry.getValue())))) {
-					changedInums.add(currInumKey);
-				}
-			}
+		// Go through changed Source entries and create new InumMap entries if needed
+		cacheRefreshMetricsService.startPhase("inumAllocation");
+		HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap = addNewInumServerEntries(cacheRefreshConfiguration,
+				cacheRefreshTuningConfiguration, inumDbServerConnection, sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex);
+		cacheRefreshMetricsService.addEntries(addedPrimaryKeyAttrValueInumMap.size());
+
+		cacheRefreshMetricsService.startPhase("changeDetection");
+
+		InumHashCodeMap changedInumWithEntryHashCodeMap = cacheRefreshChangeDetectionService.getSourcePersonsHashCodesMap(cacheRefreshTuningConfiguration,
+				inumDbServerConnection, sourcePersonCacheCompoundKeyMap, null, primaryKeyAttrValueInumIndex);
+
+		// Compare changed entries with last snapshot. Entries with the same hash code were changed in not synchronized attributes
+		Set<String> changedInums = cacheRefreshChangeDetectionService.getChangedInums(changedInumWithEntryHashCodeMap, prevSnapshot);
+		int changedEntriesCount = changedInums.size();
+		log.info("Found '{}' changed entries", changedEntriesCount);
+		cacheRefreshMetricsService.addEntries(changedInumWithEntryHashCodeMap.size());
+
+		// Add problem list to changedInums
+		if (problemInums != null) {
+			log.info("Loaded '{}' problem entries from problem file", problemInums.size());
+			changedInums.addAll(problemInums);
 		}
-		return changedInums;
-	}
 
-	private List<GluuSimplePerson> getRemovedPersons(HashMap<String, Integer> currInumWithEntryHashCodeMap,
-			Map<String, Integer> prevInumWithEntryHashCodeMap) {
-		// First time run
-		if (prevInumWithEntryHashCodeMap == null) {
-			return new ArrayList<GluuSimplePerson>(0);
+		cacheRefreshMetricsService.startPhase("targetUpdate");
+		List<String> updatedInums = null;
+		if (isVDSMode) {
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesViaVDS(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+					targetServerConnection, changedInums);
+		} else {
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesViaCopy(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, null,
+					sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex, changedInums);
 		}
-		
-		// Add all inums which not exist in new snapshot
-		Set<String> deletedInums = new HashSet<String>();
-		for (String prevInumKey : prevInumWithEntryHashCodeMap.keySet()) {
-			if (!currInumWithEntryHashCodeMap.containsKey(prevInumKey)) {
-				deletedInums.add(prevInumKey);
+
+		log.info("Updated '{}' entries", updatedInums.size());
+		cacheRefreshMetricsService.addEntries(updatedInums.size());
+		changedInums.removeAll(updatedInums);
+		log.info("Failed to update '{}' entries", changedInums.size());
+
+		// Persist last snapshot with applied changes
+		cacheRefreshMetricsService.startPhase("snapshotPersist");
+		CacheRefreshSnapshot currSnapshot = prevSnapshot;
+		if (changedEntriesCount > 0) {
+			currSnapshot = prevSnapshot.merge(changedInumWithEntryHashCodeMap);
+			boolean result = cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, prevSnapshot,
+					currSnapshot);
+			if (!result) {
+				return false;
 			}
+
+			cacheRefreshSnapshotFileService.retainSnapshots(cacheRefreshConfiguration, cacheRefreshConfiguration.getSnapshotMaxCount());
 		}
-		
-		List<GluuSimplePerson> deletedPersons = new ArrayList<GluuSimplePerson>(deletedInums.size());
-		for (String deletedInum : deletedInums) {
-			GluuSimplePerson person = new GluuSimplePerson();
-			String personDn = personService.getDnForPerson(deletedInum);
-			person.setDn(personDn);
 
-			List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>();
-			customAttributes.add(new GluuCustomAttribute(OxTrustConstants.inum, deletedInum));
-			person.setCustomAttributes(customAttributes);
+		currentAppliance.setVdsCacheRefreshProblemCount(String.valueOf(changedInums.size()));
+		cacheRefreshSnapshotFileService.writeProblemList(cacheRefreshConfiguration, changedInums);
 
-			deletedPersons.add(person);
-		}
-		
-		return deletedPersons;
-	}
+		// Removed entries are detected only during full scan. Finish only removal which was interrupted
+		cacheRefreshMetricsService.startPhase("targetRemoval");
+		HashMap<String, GluuInumMap> inumInumMap = getInumInumMap(inumMaps);
+		Pair<List<String>, List<String>> removeTargetEntriesResult = cacheRefreshTargetRemovalService.removeTargetEntries(cacheRefreshConfiguration,
+				cacheRefreshTuningConfiguration,
+				inumDbServerConnection, ldapEntryManager, new ArrayList<GluuSimplePerson>(0), inumInumMap, currSnapshot, this.lastFinishedTime);
+		List<String> removedPersonInums = removeTargetEntriesResult.getFirst();
+		cacheRefreshMetricsService.addEntries(removedPersonInums.size());
 
-	private List<String> updateTargetEntriesViaVDS(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection targetServerConnection, Set<String> changedInums) {
-		List<String> result = new ArrayList<String>();
+		cacheRefreshMetricsService.startPhase("inumCacheUpdate");
+		updateInumCache(inumCachePath, inumMapsLoadedFromCache, inumInumMap, addedPrimaryKeyAttrValueInumMap, removeTargetEntriesResult.getSecond());
 
-		PersistenceEntryManager targetPersistenceEntryManager = targetServerConnection.getPersistenceEntryManager();
-		Filter filter = cacheRefreshService.createObjectClassPresenceFilter();
-		for (String changedInum : changedInums) {
-			String baseDn = "action=synchronizecache," + personService.getDnForPerson(changedInum);
-			try {
-				targetPersistenceEntryManager.findEntries(baseDn, GluuDummyEntry.class, filter, SearchScope.SUB, null, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
-				result.add(changedInum);
-				log.debug("Updated entry with inum {}", changedInum);
-			} catch (BasePersistenceException ex) {
-				log.error("Failed to update entry with inum '{}' using baseDN {}", changedInum, baseDn, ex);
-			}
-		}
+		currentAppliance.setVdsCacheRefreshLastUpdateCount(String.valueOf(updatedInums.size() + removedPersonInums.size()));
 
-		return result;
+		cacheRefreshSnapshotFileService.writeIncrementalState(cacheRefreshConfiguration, incrementalState);
+
+		return true;
 	}
 
-	private List<String> updateTargetEntriesViaCopy(CacheRefreshConfiguration cacheRefreshConfiguration, Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap, Set<String> changedInums) {
-		HashMap<String, CacheCompoundKey> inumCacheCompoundKeyMap = getInumCacheCompoundKeyMap(primaryKeyAttrValueInumMap);
-		Map<String, String> targetServerAttributesMapping = getTargetServerAttributesMapping(cacheRefreshConfiguration);
-		String[] customObjectClasses = appConfiguration.getPersonObjectClassTypes();
+	private boolean detectChangedEntriesInShards(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, GluuAppliance currentAppliance, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection, CacheRefreshUpdateMethod updateMethod) {
+		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+		String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
+		int shardCount = cacheRefreshTuningConfiguration.getShardCount();
+		int shardLeaseDuration = cacheRefreshTuningConfiguration.getShardLeaseDuration();
+
+		cacheRefreshMetricsService.startPhase("shardAcquisition");
+		List<Integer> shards = cacheRefreshShardLeaseService.acquireShards(inumDbPersistenceEntryManager, inumbaseDn, shardCount, shardLeaseDuration);
+
+		// Node loads inum entries of own shards only. Shards have different compound keys so they allocate inums independently
+		CacheCompoundKeyIndex primaryKeyAttrValueInumIndex = null;
+		if (!shards.isEmpty()) {
+			List<String> shardsKeyAttributeStarts = new ArrayList<String>();
+			for (int shard : shards) {
+				shardsKeyAttributeStarts.addAll(Arrays.asList(cacheRefreshSourceLoadService.getShardKeyAttributeStarts(shardCount, shard)));
+			}
 
-		List<String> result = new ArrayList<String>();
+			cacheRefreshMetricsService.startPhase("inumLoad");
+			List<GluuInumMap> inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection,
+					shardsKeyAttributeStarts.toArray(new String[shardsKeyAttributeStarts.size()]));
+			log.info("Found '{}' entries of shards in inum server", inumMaps.size());
+			cacheRefreshMetricsService.addEntries(inumMaps.size());
 
-		if (!validateTargetServerSchema(cacheRefreshConfiguration, targetServerAttributesMapping, customObjectClasses)) {
-			return result;
+			primaryKeyAttrValueInumIndex = getPrimaryKeyAttrValueInumIndex(inumMaps);
 		}
 
-		for (String targetInum : changedInums) {
-			CacheCompoundKey compoundKey = inumCacheCompoundKeyMap.get(targetInum);
-			if (compoundKey == null) {
+		boolean result = true;
+		int updatedCount = 0;
+		int problemCount = 0;
+		for (int shard : shards) {
+			if (!cacheRefreshShardLeaseService.renewShardLease(inumDbPersistenceEntryManager, shard, shardLeaseDuration)) {
+				result = false;
 				continue;
 			}
 
-			GluuSimplePerson sourcePerson = sourcePersonCacheCompoundKeyMap.get(compoundKey);
-			if (sourcePerson == null) {
+			CacheRefreshConfiguration shardConfiguration = getShardConfiguration(cacheRefreshConfiguration, shardCount, shard);
+			if (shardConfiguration == null) {
+				result = false;
+				continue;
+			}
+
+			log.info("Attempting to synchronize shard '{}' of '{}'", shard, shardCount);
+			Pair<Integer, Integer> shardResult;
+			ScheduledFuture<?> shardHeartbeat = cacheRefreshShardLeaseService.startShardHeartbeat(inumDbPersistenceEntryManager, shard,
+					shardLeaseDuration);
+			try {
+				shardResult = detectShardChangedEntries(shardConfiguration, cacheRefreshTuningConfiguration, sourceServerConnections,
+						inumDbServerConnection, targetServerConnection, updateMethod, shard, cacheRefreshSourceLoadService.getShardKeyAttributeStarts(shardCount, shard),
+						primaryKeyAttrValueInumIndex);
+			} finally {
+				shardHeartbeat.cancel(false);
+			}
+			if (shardResult == null) {
+				result = false;
 				continue;
 			}
 
-			if (updateTargetEntryViaCopy(sourcePerson, targetInum, customObjectClasses, targetServerAttributesMapping)) {
-				result.add(targetInum);
+			updatedCount += shardResult.getFirst();
+			problemCount += shardResult.getSecond();
+		}
+
+		// Master Cache Refresh server merges snapshots of all shards and removes entries which don't exist in source servers anymore
+		if (isCacheRefreshServer(currentAppliance)) {
+			Integer removedCount = removeTargetEntriesOfShards(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, inumDbServerConnection,
+					shardCount);
+			if (removedCount == null) {
+				result = false;
+			} else {
+				updatedCount += removedCount;
 			}
 		}
 
+		currentAppliance.setVdsCacheRefreshLastUpdateCount(String.valueOf(updatedCount));
+		currentAppliance.setVdsCacheRefreshProblemCount(String.valueOf(problemCount));
+
 		return result;
 	}
 
-	private boolean validateTargetServerSchema(CacheRefreshConfiguration cacheRefreshConfiguration, Map<String, String> targetServerAttributesMapping, String[] customObjectClasses) {
-		// Get list of return attributes
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
-		String[] sourceAttributes = getSourceAttributes(cacheRefreshConfiguration);
-		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+	private Pair<Integer, Integer> detectShardChangedEntries(CacheRefreshConfiguration shardConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, LdapServerConnection targetServerConnection, CacheRefreshUpdateMethod updateMethod, int shard,
+			String[] keyAttributeStarts, CacheCompoundKeyIndex primaryKeyAttrValueInumIndex) {
+		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(updateMethod);
+		boolean isStreamingSourceLoad = cacheRefreshTuningConfiguration.isStreamingSourceLoad();
+
+		// Load entries of shard from Source servers. Shard run is always full scan
+		cacheRefreshMetricsService.startPhase("sourceLoad");
+		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap;
+		Map<CacheCompoundKey, Long> sourcePersonCacheCompoundKeyHashCodeMap = null;
+		if (isStreamingSourceLoad) {
+			sourcePersonCacheCompoundKeyHashCodeMap = new HashMap<CacheCompoundKey, Long>();
+			sourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.loadSourceServerEntriesStreaming(shardConfiguration,
+					cacheRefreshTuningConfiguration, sourceServerConnections,
+					keyAttributeStarts, inumDbServerConnection.getPersistenceEntryManager(), sourcePersonCacheCompoundKeyHashCodeMap, null, null);
+		} else {
+			List<GluuSimplePerson> sourcePersons;
+			if (cacheRefreshTuningConfiguration.isParallelSourceLoad()) {
+				sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntriesInParallel(shardConfiguration, cacheRefreshTuningConfiguration,
+						sourceServerConnections, keyAttributeStarts, null);
+			} else {
+				sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntries(shardConfiguration, cacheRefreshTuningConfiguration,
+						sourceServerConnections, keyAttributeStarts, null);
+			}
 
-		GluuSimplePerson sourcePerson = new GluuSimplePerson();
-		for (String returnAttribute : returnAttributes) {
-			sourcePerson.setAttribute(returnAttribute, "Test");
+			sourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.getSourcePersonCompoundKeyMap(shardConfiguration, sourcePersons);
 		}
+		log.info("Found '{}' unique entries of shard in source server", sourcePersonCacheCompoundKeyMap.size());
+		cacheRefreshMetricsService.addEntries(sourcePersonCacheCompoundKeyMap.size());
 
-		String targetInum = inumService.generateInums(OxTrustConstants.INUM_TYPE_PEOPLE_SLUG, false);
-		String targetPersonDn = personService.getDnForPerson(targetInum);
+		// Shard is aborted before each write phase if other node took it over
+		if (isShardLeaseLost(shard)) {
+			return null;
+		}
 
-		GluuCustomPerson targetPerson = new GluuCustomPerson();
-		targetPerson.setDn(targetPersonDn);
-		targetPerson.setInum(targetInum);
-		targetPerson.setStatus(GluuStatus.ACTIVE);
-		targetPerson.setCustomObjectClasses(customObjectClasses);
+		cacheRefreshMetricsService.startPhase("inumAllocation");
+		HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap = addNewInumServerEntries(shardConfiguration,
+				cacheRefreshTuningConfiguration, inumDbServerConnection, sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex);
+		cacheRefreshMetricsService.addEntries(addedPrimaryKeyAttrValueInumMap.size());
 
-		// Update list of return attributes according mapping
-		cacheRefreshService.setTargetEntryAttributes(sourcePerson, targetServerAttributesMapping, targetPerson);
+		cacheRefreshMetricsService.startPhase("changeDetection");
+		InumHashCodeMap currInumWithEntryHashCodeMap = cacheRefreshChangeDetectionService.getSourcePersonsHashCodesMap(cacheRefreshTuningConfiguration,
+				inumDbServerConnection, sourcePersonCacheCompoundKeyMap, sourcePersonCacheCompoundKeyHashCodeMap, primaryKeyAttrValueInumIndex);
+		cacheRefreshMetricsService.addEntries(currInumWithEntryHashCodeMap.size());
 
-		// Execute interceptor script
-		externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
-		boolean executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
-		if (!executionResult) {
-			log.error("Failed to execute Cache Refresh scripts for person '{}'", targetInum);
-			return false;
+		if (!cacheRefreshSnapshotFileService.prepareSnapshotsFolder(shardConfiguration)) {
+			return null;
 		}
 
-		// Validate target server attributes
-		List<GluuCustomAttribute> customAttributes = targetPerson.getCustomAttributes();
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(shardConfiguration);
+		CacheRefreshSnapshot currSnapshot = CacheRefreshSnapshot.fromMap(currInumWithEntryHashCodeMap);
+
+		Set<String> changedInums = cacheRefreshChangeDetectionService.getChangedInums(currSnapshot, prevSnapshot, isVDSMode);
+		log.info("Found '{}' changed entries", changedInums.size());
 
-		List<String> targetAttributes = new ArrayList<String>(customAttributes.size());
-		for (GluuCustomAttribute customAttribute : customAttributes) {
-			targetAttributes.add(customAttribute.getName());
+		List<String> problemInums = cacheRefreshSnapshotFileService.readProblemList(shardConfiguration);
+		if (problemInums != null) {
+			log.info("Loaded '{}' problem entries from problem file", problemInums.size());
+			changedInums.addAll(problemInums);
 		}
 
-		List<String> targetObjectClasses = Arrays.asList(ldapEntryManager.getObjectClasses(targetPerson, GluuCustomPerson.class));
+		if (isShardLeaseLost(shard)) {
+			return null;
+		}
 
-		return validateTargetServerSchema(targetObjectClasses, targetAttributes);
-	}
+		cacheRefreshMetricsService.startPhase("targetUpdate");
+		List<String> updatedInums = null;
+		if (isVDSMode) {
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesViaVDS(shardConfiguration, cacheRefreshTuningConfiguration,
+					targetServerConnection, changedInums);
+		} else {
+			LdapServerConnection[] sourcePersonServerConnections = isStreamingSourceLoad ? sourceServerConnections : null;
+			updatedInums = cacheRefreshTargetUpdateService.updateTargetEntriesViaCopy(shardConfiguration, cacheRefreshTuningConfiguration, sourcePersonServerConnections,
+					sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex, changedInums);
+		}
 
-	private boolean validateTargetServerSchema(List<String> targetObjectClasses, List<String> targetAttributes) {
-		Set<String> objectClassesAttributesSet = schemaService.getObjectClassesAttributes(schemaService.getSchema(),
-				targetObjectClasses.toArray(new String[0]));
+		log.info("Updated '{}' entries", updatedInums.size());
+		cacheRefreshMetricsService.addEntries(updatedInums.size());
+		changedInums.removeAll(updatedInums);
+		log.info("Failed to update '{}' entries", changedInums.size());
 
-		Set<String> targetAttributesSet = new LinkedHashSet<String>();
-		for (String attrbute : targetAttributes) {
-			targetAttributesSet.add(StringHelper.toLowerCase(attrbute));
+		// Persist shard snapshot. Master Cache Refresh server merges it with snapshots of other shards
+		if (isShardLeaseLost(shard)) {
+			return null;
 		}
 
-		targetAttributesSet.removeAll(objectClassesAttributesSet);
-
-		if (targetAttributesSet.size() == 0) {
-			return true;
+		cacheRefreshMetricsService.startPhase("snapshotPersist");
+		if (!cacheRefreshSnapshotFileService.createSnapshot(shardConfiguration, cacheRefreshTuningConfiguration, prevSnapshot, currSnapshot)) {
+			return null;
 		}
 
-		log.error("Skipping target entries update. Destination server schema doesn't has next attributes: '{}'", targetAttributesSet);
+		cacheRefreshSnapshotFileService.retainSnapshots(shardConfiguration, shardConfiguration.getSnapshotMaxCount());
+		cacheRefreshSnapshotFileService.writeProblemList(shardConfiguration, changedInums);
+		cacheRefreshSnapshotFileService.writeShardLease(shardConfiguration, cacheRefreshShardLeaseService.getShardLeaseId(shard));
 
-		return false;
+		return new Pair<Integer, Integer>(updatedInums.size(), changedInums.size());
 	}
 
-	private boolean updateTargetEntryViaCopy(GluuSimplePerson sourcePerson, String targetInum, String[] targetCustomObjectClasses,
-			Map<String, String> targetServerAttributesMapping) {
-		String targetPersonDn = personService.getDnForPerson(targetInum);
-		GluuCustomPerson targetPerson = null;
-		boolean updatePerson;
-		if (personService.contains(targetPersonDn)) {
-			try {
-				targetPerson = personService.findPersonByDn(targetPersonDn);
-				log.debug("Found person by inum '{}'", targetInum);
-			} catch (EntryPersistenceException ex) {
-				log.error("Failed to find person '{}'", targetInum, ex);
-				return false;
-			}
-			updatePerson = true;
-		} else {
-			targetPerson = new GluuCustomPerson();
-			targetPerson.setDn(targetPersonDn);
-			targetPerson.setInum(targetInum);
-			targetPerson.setStatus(GluuStatus.ACTIVE);
-			updatePerson = false;
+	private boolean isShardLeaseLost(int shard) {
+		if (cacheRefreshShardLeaseService.isShardLeaseHeld(shard)) {
+			return false;
 		}
-		targetPerson.setCustomObjectClasses(targetCustomObjectClasses);
 
-		targetPerson.setSourceServerName(sourcePerson.getSourceServerName());
-        targetPerson.setSourceServerUserDn(sourcePerson.getDn());
+		log.error("Aborting synchronization of shard '{}' because its lease was lost", shard);
+		return true;
+	}
 
-		cacheRefreshService.setTargetEntryAttributes(sourcePerson, targetServerAttributesMapping, targetPerson);
+	private Integer removeTargetEntriesOfShards(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection inumDbServerConnection, int shardCount) {
+		cacheRefreshMetricsService.startPhase("snapshotMerge");
+		List<CacheRefreshSnapshot> shardSnapshots = new ArrayList<CacheRefreshSnapshot>(shardCount);
+		for (int shard = 0; shard < shardCount; shard++) {
+			CacheRefreshConfiguration shardConfiguration = getShardConfiguration(cacheRefreshConfiguration, shardCount, shard);
+			if (shardConfiguration == null) {
+				return null;
+			}
 
-		// Execute interceptor script
-		boolean executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
-		if (!executionResult) {
-			log.error("Failed to execute Cache Refresh scripts for person '{}'", targetInum);
-			return false;
-		}
+			// Snapshots folder should be shared storage of all cluster nodes. Otherwise master sees no or stale snapshots of other nodes shards
+			String shardLeaseId = cacheRefreshShardLeaseService.getShardLeaseId(shard);
+			String snapshotShardLeaseId = cacheRefreshSnapshotFileService.readShardLease(shardConfiguration);
+			if ((shardLeaseId == null) || !StringHelper.equals(shardLeaseId, snapshotShardLeaseId)) {
+				log.warn("Last snapshot of shard '{}' wasn't persisted by current lease '{}' but by '{}'. Skipping removal of entries. "
+						+ "Snapshots folder '{}' should be shared by all cluster nodes", shard, shardLeaseId, snapshotShardLeaseId,
+						cacheRefreshConfiguration.getSnapshotFolder());
+				return 0;
+			}
 
-		try {
-			if (updatePerson) {
-				personService.updatePerson(targetPerson);
-				log.debug("Updated person '{}'", targetInum);
-			} else {
-				personService.addPerson(targetPerson);
-				log.debug("Added new person '{}'", targetInum);
+			CacheRefreshSnapshot shardSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(shardConfiguration);
+			if (shardSnapshot == null) {
+				log.info("There is no snapshot of shard '{}' yet. Skipping removal of entries", shard);
+				return 0;
 			}
-		} catch (Exception ex) {
-			log.error("Failed to '{}' person '{}'", updatePerson ? "update" : "add", targetInum, ex);
-			return false;
+			shardSnapshots.add(shardSnapshot);
 		}
 
-		return true;
-	}
+		// Merged snapshots are kept apart from snapshots of not sharded runs. They contain entries of covered prefixes only
+		CacheRefreshConfiguration mergeConfiguration = getShardsMergeConfiguration(cacheRefreshConfiguration, shardCount);
+		if ((mergeConfiguration == null) || !cacheRefreshSnapshotFileService.prepareSnapshotsFolder(mergeConfiguration)) {
+			return null;
+		}
+
+		CacheRefreshSnapshot currSnapshot = CacheRefreshSnapshot.union(shardSnapshots);
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(mergeConfiguration);
+		cacheRefreshMetricsService.addEntries(currSnapshot.size());
+
+		// Only master server needs inum entries of all shards
+		List<GluuInumMap> inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
+		HashMap<String, GluuInumMap> inumInumMap = getInumInumMap(inumMaps);
 
-	private HashMap<String, CacheCompoundKey> getInumCacheCompoundKeyMap(HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap) {
-		HashMap<String, CacheCompoundKey> result = new HashMap<String, CacheCompoundKey>();
+		List<GluuSimplePerson> personsForRemoval;
+		boolean keepExternalPerson = cacheRefreshConfiguration.isKeepExternalPerson();
+		log.debug("Keep external persons: '{}'", keepExternalPerson);
+		if (keepExternalPerson) {
+			// Shards update target server concurrently with this merge. Hence only entries which disappeared from merged snapshot are removed
+			personsForRemoval = cacheRefreshChangeDetectionService.getRemovedPersons(currSnapshot, prevSnapshot);
+		} else {
+			cacheRefreshMetricsService.startPhase("targetLoad");
+			List<GluuSimplePerson> targetPersons = cacheRefreshTargetRemovalService.loadTargetServerEntries(cacheRefreshConfiguration, ldapEntryManager);
+			log.info("Found '{}' entries in target server", targetPersons.size());
+			cacheRefreshMetricsService.addEntries(targetPersons.size());
 
-		for (Entry<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMapEntry : primaryKeyAttrValueInumMap.entrySet()) {
-			result.put(primaryKeyAttrValueInumMapEntry.getValue().getInum(), primaryKeyAttrValueInumMapEntry.getKey());
+			personsForRemoval = cacheRefreshChangeDetectionService.processTargetPersons(targetPersons, currSnapshot);
+		}
+
+		// Shards don't load entries which keys are out of two letters prefixes. Such entries can't be treated as removed
+		personsForRemoval = getShardsCoveredPersons(personsForRemoval, inumInumMap);
+		log.debug("Count entries '{}' for removal from target server", personsForRemoval.size());
+
+		cacheRefreshMetricsService.startPhase("targetRemoval");
+		Pair<List<String>, List<String>> removeTargetEntriesResult = cacheRefreshTargetRemovalService.removeTargetEntries(mergeConfiguration,
+				cacheRefreshTuningConfiguration, inumDbServerConnection, ldapEntryManager, personsForRemoval, inumInumMap, currSnapshot, this.lastFinishedTime);
+		List<String> removedPersonInums = removeTargetEntriesResult.getFirst();
+		log.info("Removed '{}' persons from target server", removedPersonInums.size());
+		cacheRefreshMetricsService.addEntries(removedPersonInums.size());
+
+		cacheRefreshMetricsService.startPhase("snapshotPersist");
+		if (!cacheRefreshSnapshotFileService.createSnapshot(mergeConfiguration, cacheRefreshTuningConfiguration, prevSnapshot, currSnapshot)) {
+			return null;
+		}
+
+		cacheRefreshSnapshotFileService.retainSnapshots(mergeConfiguration, mergeConfiguration.getSnapshotMaxCount());
+
+		return removedPersonInums.size();
+	}
+
+	/**
+	 * Skips persons mapped to source entries which shards don't load. Persons without inum map entry don't come from source servers
+	 */
+	private List<GluuSimplePerson> getShardsCoveredPersons(List<GluuSimplePerson> persons, HashMap<String, GluuInumMap> inumInumMap) {
+		Set<String> shardsPrefixes = new HashSet<String>(Arrays.asList(cacheRefreshSourceLoadService.createTwoLettersArray()));
+
+		List<GluuSimplePerson> result = new ArrayList<GluuSimplePerson>(persons.size());
+		for (GluuSimplePerson person : persons) {
+			GluuInumMap inumMap = inumInumMap.get(person.getAttribute(OxTrustConstants.inum));
+			if ((inumMap == null) || isCoveredByShards(inumMap, shardsPrefixes)) {
+				result.add(person);
+			} else {
+				log.debug("Person with such DN: '{}' isn't covered by shards", person.getDn());
+			}
 		}
 
 		return result;
 	}
 
-	private Pair<List<String>, List<String>> removeTargetEntries(LdapServerConnection inumDbServerConnection, PersistenceEntryManager targetPersistenceEntryManager,
-			List<GluuSimplePerson> removedPersons, HashMap<String, GluuInumMap> inumInumMap) {
+	/**
+	 * Shards search entries by two letters prefixes of first key attribute values. Substring filter ignores case
+	 */
+	private boolean isCoveredByShards(GluuInumMap inumMap, Set<String> shardsPrefixes) {
+		String[] primaryKeyValues = inumMap.getPrimaryKeyValues();
+		if (primaryKeyValues == null) {
+			return false;
+		}
 
-		String runDate = ldapEntryManager.encodeTime(new Date(this.lastFinishedTime));
+		for (String primaryKeyValue : primaryKeyValues) {
+			if ((primaryKeyValue != null) && (primaryKeyValue.length() >= 2)
+					&& shardsPrefixes.contains(primaryKeyValue.substring(0, 2).toLowerCase())) {
+				return true;
+			}
+		}
 
-		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
-		List<String> result1 = new ArrayList<String>();
-		List<String> result2 = new ArrayList<String>();
+		return false;
+	}
 
-		for (GluuSimplePerson removedPerson : removedPersons) {
-			String inum = removedPerson.getAttribute(OxTrustConstants.inum);
+	/**
+	 * Detects changes which next run would apply. Method doesn't update inum DB, target server, snapshots and problem list
+	 */
+	public boolean detectChangedEntriesDryRun(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshDryRunReport report) {
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = configurationFactory.getCacheRefreshTuningConfiguration();
 
-			// Update GluuInumMap if it exist
-			GluuInumMap currentInumMap = inumInumMap.get(inum);
-			if (currentInumMap == null) {
-				log.warn("Can't find inum entry of person with DN: {}", removedPerson.getDn());
-			} else {
-				GluuInumMap removedInumMap = getMarkInumMapEntryAsRemoved(currentInumMap, runDate);
-				try {
-					inumDbPersistenceEntryManager.merge(removedInumMap);
-					result2.add(removedInumMap.getInum());
-				} catch (BasePersistenceException ex) {
-					log.error("Failed to update entry with inum '{}' and DN: {}", currentInumMap.getInum(), currentInumMap.getDn(), ex);
-					continue;
-				}
+		// Prepare and check connections to LDAP servers
+		LdapServerConnection[] sourceServerConnections = prepareLdapServerConnections(cacheRefreshConfiguration, cacheRefreshConfiguration.getSourceConfigs());
+		LdapServerConnection inumDbServerConnection = prepareInumDbServerConnection(cacheRefreshConfiguration);
+		try {
+			if ((sourceServerConnections == null) || (inumDbServerConnection == null)) {
+				log.error("Skipping cache refresh dry run due to invalid server configuration");
+				return false;
 			}
 
-			// Remove person from target server
+			return detectChangedEntriesDryRun(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, sourceServerConnections, inumDbServerConnection,
+					report);
+		} finally {
+
+			// Close connections to LDAP servers
 			try {
-				targetPersistenceEntryManager.removeRecursively(removedPerson.getDn());
-				result1.add(inum);
-			} catch (BasePersistenceException ex) {
-				log.error("Failed to remove person entry with inum '{}' and DN: {}", inum, removedPerson.getDn(), ex);
-				continue;
+				closeLdapServerConnection(sourceServerConnections);
+			} catch (Exception e) {
+				// Nothing can be done
+			}
+			try {
+				closeLdapServerConnection(inumDbServerConnection);
+			} catch (Exception e) {
+				// Nothing can be done
 			}
+		}
+	}
 
-			log.debug("Person with DN: '{}' removed from target server", removedPerson.getDn());
+	private boolean detectChangedEntriesDryRun(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			LdapServerConnection inumDbServerConnection, CacheRefreshDryRunReport report) {
+		boolean isVDSMode = CacheRefreshUpdateMethod.VDS.equals(getUpdateMethod(cacheRefreshConfiguration));
+
+		// Load entries in single thread to not compete with scheduled run for source servers connections
+		log.info("Attempting to load entries from source server in dry run");
+		List<GluuSimplePerson> sourcePersons;
+		if (cacheRefreshConfiguration.isUseSearchLimit()) {
+			sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntries(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, sourceServerConnections,
+					cacheRefreshSourceLoadService.createTwoLettersArray(), null);
+		} else {
+			sourcePersons = cacheRefreshSourceLoadService.loadSourceServerEntriesWithoutLimits(cacheRefreshConfiguration, cacheRefreshTuningConfiguration,
+					sourceServerConnections);
 		}
 
-		return new Pair<List<String>, List<String>>(result1, result2);
-	}
+		Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap = cacheRefreshSourceLoadService.getSourcePersonCompoundKeyMap(cacheRefreshConfiguration,
+				sourcePersons);
+		report.setSourceEntriesCount(sourcePersonCacheCompoundKeyMap.size());
 
-	private GluuInumMap getMarkInumMapEntryAsRemoved(GluuInumMap currentInumMap, String date) {
-		GluuInumMap clonedInumMap;
-		try {
-			clonedInumMap = (GluuInumMap) BeanUtilsBean2.getInstance().cloneBean(currentInumMap);
-		} catch (Exception ex) {
-			log.error("Failed to prepare GluuInumMap for removal", ex);
-			return null;
+		// Inum entries are read only. Source entries without inum entry will be added
+		List<GluuInumMap> inumMaps = cacheRefreshInumCacheFileService.loadInumMaps(getInumCachePath(cacheRefreshConfiguration));
+		if (inumMaps == null) {
+			inumMaps = loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection);
+		}
+		CacheCompoundKeyIndex primaryKeyAttrValueInumIndex = getPrimaryKeyAttrValueInumIndex(inumMaps);
+
+		Map<CacheCompoundKey, GluuSimplePerson> existingSourcePersonCacheCompoundKeyMap = new HashMap<CacheCompoundKey, GluuSimplePerson>();
+		List<GluuSimplePerson> addedSourcePersons = new ArrayList<GluuSimplePerson>();
+		for (Entry<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyEntry : sourcePersonCacheCompoundKeyMap.entrySet()) {
+			if (primaryKeyAttrValueInumIndex.get(sourcePersonCacheCompoundKeyEntry.getKey()) == null) {
+				addedSourcePersons.add(sourcePersonCacheCompoundKeyEntry.getValue());
+			} else {
+				existingSourcePersonCacheCompoundKeyMap.put(sourcePersonCacheCompoundKeyEntry.getKey(), sourcePersonCacheCompoundKeyEntry.getValue());
+			}
 		}
+		report.setAddedEntriesCount(addedSourcePersons.size());
 
-		String suffix = "-" + date;
+		InumHashCodeMap currInumWithEntryHashCodeMap = cacheRefreshChangeDetectionService.getSourcePersonsHashCodesMap(cacheRefreshTuningConfiguration,
+				inumDbServerConnection, existingSourcePersonCacheCompoundKeyMap, null, primaryKeyAttrValueInumIndex);
 
-		String[] primaryKeyValues = ArrayHelper.arrayClone(clonedInumMap.getPrimaryKeyValues());
-		String[] secondaryKeyValues = ArrayHelper.arrayClone(clonedInumMap.getSecondaryKeyValues());
-		String[] tertiaryKeyValues = ArrayHelper.arrayClone(clonedInumMap.getTertiaryKeyValues());
+		CacheRefreshSnapshot prevSnapshot = cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration);
+		CacheRefreshSnapshot currSnapshot = CacheRefreshSnapshot.fromMap(currInumWithEntryHashCodeMap);
 
-		if (ArrayHelper.isNotEmpty(primaryKeyValues)) {
-			markInumMapEntryKeyValuesAsRemoved(primaryKeyValues, suffix);
+		Set<String> changedInums = cacheRefreshChangeDetectionService.getChangedInums(currSnapshot, prevSnapshot, false);
+		report.setChangedEntriesCount(changedInums.size());
+		report.setUnchangedEntriesCount(currSnapshot.size() - changedInums.size());
+
+		List<GluuSimplePerson> personsForRemoval;
+		if (cacheRefreshConfiguration.isKeepExternalPerson()) {
+			personsForRemoval = cacheRefreshChangeDetectionService.getRemovedPersons(currSnapshot, prevSnapshot);
+		} else {
+			List<GluuSimplePerson> targetPersons = cacheRefreshTargetRemovalService.loadTargetServerEntries(cacheRefreshConfiguration, ldapEntryManager);
+			personsForRemoval = cacheRefreshChangeDetectionService.processTargetPersons(targetPersons, currSnapshot);
 		}
+		report.setRemovedEntriesCount(personsForRemoval.size());
 
-		if (ArrayHelper.isNotEmpty(secondaryKeyValues)) {
-			markInumMapEntryKeyValuesAsRemoved(secondaryKeyValues, suffix);
+		report.setEstimatedWriteMillis(estimateWriteMillis(report));
+
+		log.info("Cache Refresh dry run found '{}' added, '{}' changed and '{}' removed entries", report.getAddedEntriesCount(),
+				report.getChangedEntriesCount(), report.getRemovedEntriesCount());
+
+		// Changed entries samples are most useful to verify attributes mapping
+		addChangedEntriesSamples(cacheRefreshConfiguration, isVDSMode, cacheRefreshTuningConfiguration.isDryRunScripts(), sourcePersonCacheCompoundKeyMap,
+				primaryKeyAttrValueInumIndex, changedInums, report);
+
+		for (GluuSimplePerson addedSourcePerson : addedSourcePersons) {
+			if (!report.addSample(String.format("Add: %s", addedSourcePerson.getDn()))) {
+				break;
+			}
 		}
 
-		if (ArrayHelper.isNotEmpty(tertiaryKeyValues)) {
-			markInumMapEntryKeyValuesAsRemoved(tertiaryKeyValues, suffix);
+		for (GluuSimplePerson personForRemoval : personsForRemoval) {
+			if (!report.addSample(String.format("Remove: %s", personForRemoval.getDn()))) {
+				break;
+			}
 		}
 
-		clonedInumMap.setPrimaryKeyValues(primaryKeyValues);
-		clonedInumMap.setSecondaryKeyValues(secondaryKeyValues);
-		clonedInumMap.setTertiaryKeyValues(tertiaryKeyValues);
+		return true;
+	}
 
-		clonedInumMap.setStatus(GluuStatus.INACTIVE);
-		
-		return clonedInumMap;
+	private void addChangedEntriesSamples(CacheRefreshConfiguration cacheRefreshConfiguration, boolean isVDSMode, boolean executeScripts,
+			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap, CacheCompoundKeyIndex primaryKeyAttrValueInumIndex,
+			Set<String> changedInums, CacheRefreshDryRunReport report) {
+		HashMap<String, CacheCompoundKey> inumCacheCompoundKeyMap = primaryKeyAttrValueInumIndex.getKeys(changedInums);
+		Map<String, String> targetServerAttributesMapping = cacheRefreshService.getTargetServerAttributesMapping(cacheRefreshConfiguration);
+		String[] customObjectClasses = appConfiguration.getPersonObjectClassTypes();
+
+		for (String changedInum : changedInums) {
+			if (report.isSamplesFull()) {
+				break;
+			}
+
+			if (isVDSMode) {
+				report.addSample(String.format("Update: %s", personService.getDnForPerson(changedInum)));
+				continue;
+			}
+
+			CacheCompoundKey compoundKey = inumCacheCompoundKeyMap.get(changedInum);
+			if (compoundKey == null) {
+				continue;
+			}
+
+			GluuSimplePerson sourcePerson = sourcePersonCacheCompoundKeyMap.get(compoundKey);
+			if (sourcePerson != null) {
+				report.addSample(getUpdateSample(sourcePerson, changedInum, customObjectClasses, targetServerAttributesMapping, executeScripts));
+			}
+		}
 	}
 
-	private void markInumMapEntryKeyValuesAsRemoved(String[] keyValues, String suffix) {
-		for (int i = 0; i < keyValues.length; i++) {
-			keyValues[i] = keyValues[i] + suffix;
+	/**
+	 * Describes attributes changes of target entry. Scripts may have side effects, so they are executed only if dryRunScripts is on
+	 */
+	private String getUpdateSample(GluuSimplePerson sourcePerson, String targetInum, String[] targetCustomObjectClasses,
+			Map<String, String> targetServerAttributesMapping, boolean executeScripts) {
+		String targetPersonDn = personService.getDnForPerson(targetInum);
+
+		// Loaded entry is modified in memory only
+		GluuCustomPerson targetPerson = null;
+		try {
+			if (personService.contains(targetPersonDn)) {
+				targetPerson = personService.findPersonByDn(targetPersonDn);
+			}
+		} catch (EntryPersistenceException ex) {
+			log.error("Failed to find person '{}'", targetInum, ex);
+			return String.format("Update: %s, failed to load target entry", targetPersonDn);
 		}
+
+		String operation = "Update";
+		if (targetPerson == null) {
+			targetPerson = new GluuCustomPerson();
+			targetPerson.setDn(targetPersonDn);
+			targetPerson.setInum(targetInum);
+			operation = "Add";
+		}
+
+		Map<String, String[]> oldAttributes = getAttributeValues(targetPerson);
+
+		targetPerson.setCustomObjectClasses(targetCustomObjectClasses);
+		targetPerson.setSourceServerName(sourcePerson.getSourceServerName());
+		targetPerson.setSourceServerUserDn(sourcePerson.getDn());
+
+		cacheRefreshService.setTargetEntryAttributes(sourcePerson, targetServerAttributesMapping, targetPerson);
+
+		if (executeScripts) {
+			// Execute interceptor script. Scripts aren't required to be thread safe
+			boolean executionResult;
+			synchronized (externalCacheRefreshService) {
+				executionResult = externalCacheRefreshService.executeExternalUpdateUserMethods(targetPerson);
+			}
+			if (!executionResult) {
+				return String.format("%s: %s, failed to execute Cache Refresh scripts", operation, targetPersonDn);
+			}
+		} else {
+			operation += " (before scripts)";
+		}
+
+		Map<String, String[]> newAttributes = getAttributeValues(targetPerson);
+
+		Set<String> attributeNames = new TreeSet<String>(oldAttributes.keySet());
+		attributeNames.addAll(newAttributes.keySet());
+
+		StringBuilder sample = new StringBuilder(operation).append(": ").append(targetPersonDn);
+		for (String attributeName : attributeNames) {
+			String[] oldValues = oldAttributes.get(attributeName);
+			String[] newValues = newAttributes.get(attributeName);
+			if (!Arrays.equals(oldValues, newValues)) {
+				sample.append(", ").append(attributeName).append(": ").append(Arrays.toString(oldValues)).append(" -> ")
+						.append(Arrays.toString(newValues));
+			}
+		}
+
+		return sample.toString();
 	}
 
-	private List<GluuInumMap> loadInumServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection inumDbServerConnection) {
-		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
-		String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
+	private Map<String, String[]> getAttributeValues(GluuCustomPerson person) {
+		Map<String, String[]> result = new HashMap<String, String[]>();
+		for (GluuCustomAttribute customAttribute : person.getCustomAttributes()) {
+			String[] values = customAttribute.getValues();
+			if ((values == null) || (values.length == 0)) {
+				continue;
+			}
 
-		Filter filterObjectClass = Filter.createEqualityFilter(OxConstants.OBJECT_CLASS, OxTrustConstants.objectClassInumMap);
-		Filter filterStatus = Filter.createNOTFilter(Filter.createEqualityFilter(OxTrustConstants.gluuStatus, GluuStatus.INACTIVE.getValue()));
-		Filter filter = Filter.createANDFilter(filterObjectClass, filterStatus);
+			String[] sortedValues = values.clone();
+			Arrays.sort(sortedValues);
+			result.put(StringHelper.toLowerCase(customAttribute.getName()), sortedValues);
+		}
 
-		return inumDbPersistenceEntryManager.findEntries(inumbaseDn, GluuInumMap.class, filter, SearchScope.SUB, null, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
+		return result;
 	}
 
-	private List<GluuSimplePerson> loadSourceServerEntriesWithoutLimits(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection[] sourceServerConnections) {
-		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
-		String[] keyAttributes = getCompoundKeyAttributes(cacheRefreshConfiguration);
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
-		String[] keyObjectClasses = getCompoundKeyObjectClasses(cacheRefreshConfiguration);
-		String[] sourceAttributes = getSourceAttributes(cacheRefreshConfiguration);
+	private long estimateWriteMillis(CacheRefreshDryRunReport report) {
+		double targetUpdateMillis = cacheRefreshMetricsService.getAverageEntryMillis("targetUpdate");
+		if (targetUpdateMillis < 0) {
+			return -1;
+		}
 
-		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+		// Use target update latency if there were no such operations in previous runs
+		double inumAllocationMillis = cacheRefreshMetricsService.getAverageEntryMillis("inumAllocation");
+		if (inumAllocationMillis < 0) {
+			inumAllocationMillis = targetUpdateMillis;
+		}
 
-		Set<String> addedDns = new HashSet<String>();
+		double targetRemovalMillis = cacheRefreshMetricsService.getAverageEntryMillis("targetRemoval");
+		if (targetRemovalMillis < 0) {
+			targetRemovalMillis = targetUpdateMillis;
+		}
 
-		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
-		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
-			String sourceServerName = sourceServerConnection.getSourceServerName();
+		double result = report.getAddedEntriesCount() * (inumAllocationMillis + targetUpdateMillis) + report.getChangedEntriesCount() * targetUpdateMillis
+				+ report.getRemovedEntriesCount() * targetRemovalMillis;
 
-			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
-			String[] baseDns = sourceServerConnection.getBaseDns();
-			Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, "", customFilter);
-			if (log.isTraceEnabled()) {
-				log.trace("Using next filter to load entris from source server: {}", filter);
-			}
+		return Math.round(result);
+	}
 
-			for (String baseDn : baseDns) {
-				List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn, GluuSimplePerson.class,
-						filter, SearchScope.SUB, returnAttributes, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
-
-				// Add to result and ignore root entry if needed
-				for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
-					currentSourcePerson.setSourceServerName(sourceServerName);
-					// if (!StringHelper.equalsIgnoreCase(baseDn,
-					// currentSourcePerson.getDn())) {
-					String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
-					if (!addedDns.contains(currentSourcePersonDn)) {
-						sourcePersons.add(currentSourcePerson);
-						addedDns.add(currentSourcePersonDn);
-					}
-					// }
-				}
+	/**
+	 * uSNChanged values are local to each server. High-water mark of one server can't be used with its replicas
+	 */
+	private boolean isIncrementalChangeAttributeSupported(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration) {
+		if (!StringHelper.equalsIgnoreCase(CacheRefreshSourceLoadService.USN_CHANGED_ATTRIBUTE, cacheRefreshTuningConfiguration.getIncrementalChangeAttribute())) {
+			return true;
+		}
+
+		for (GluuLdapConfiguration sourceConfig : cacheRefreshConfiguration.getSourceConfigs()) {
+			if ((sourceConfig.getServers() == null) || (sourceConfig.getServers().size() != 1)) {
+				log.warn("Change attribute '{}' requires exactly one server in source server configuration '{}'. Full scan is needed",
+						cacheRefreshTuningConfiguration.getIncrementalChangeAttribute(), sourceConfig.getConfigId());
+				return false;
 			}
 		}
 
-		return sourcePersons;
+		return true;
 	}
 
-	private List<GluuSimplePerson> loadSourceServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection[] sourceServerConnections) {
-		Filter customFilter = cacheRefreshService.createFilter(cacheRefreshConfiguration.getCustomLdapFilter());
-		String[] keyAttributes = getCompoundKeyAttributes(cacheRefreshConfiguration);
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
-		String[] keyObjectClasses = getCompoundKeyObjectClasses(cacheRefreshConfiguration);
-		String[] sourceAttributes = getSourceAttributes(cacheRefreshConfiguration);
+	private boolean isIncrementalRunAllowed(CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection[] sourceServerConnections,
+			CacheRefreshIncrementalState lastIncrementalState) {
+		if (lastIncrementalState == null) {
+			return false;
+		}
 
-		String[] twoLettersArray = createTwoLettersArray();
-		String[] returnAttributes = ArrayHelper.arrayMerge(keyAttributesWithoutValues, sourceAttributes);
+		if (!StringHelper.equalsIgnoreCase(cacheRefreshTuningConfiguration.getIncrementalChangeAttribute(), lastIncrementalState.getChangeAttribute())) {
+			log.info("Change attribute was changed. Full scan is needed");
+			return false;
+		}
 
-		Set<String> addedDns = new HashSet<String>();
+		long fullScanInterval = cacheRefreshTuningConfiguration.getFullScanIntervalMinutes() * 60 * 1000L;
+		if (System.currentTimeMillis() - lastIncrementalState.getLastFullScanTime() >= fullScanInterval) {
+			log.info("Full scan interval elapsed");
+			return false;
+		}
 
-		List<GluuSimplePerson> sourcePersons = new ArrayList<GluuSimplePerson>();
 		for (LdapServerConnection sourceServerConnection : sourceServerConnections) {
-			String sourceServerName = sourceServerConnection.getSourceServerName();
-
-			PersistenceEntryManager sourcePersistenceEntryManager = sourceServerConnection.getPersistenceEntryManager();
-			String[] baseDns = sourceServerConnection.getBaseDns();
-			for (String keyAttributeStart : twoLettersArray) {
-				Filter filter = cacheRefreshService.createFilter(keyAttributes, keyObjectClasses, keyAttributeStart, customFilter);
-				if (log.isDebugEnabled()) {
-					log.trace("Using next filter to load entris from source server: {}", filter);
-				}
-
-				for (String baseDn : baseDns) {
-					List<GluuSimplePerson> currentSourcePersons = sourcePersistenceEntryManager.findEntries(baseDn, GluuSimplePerson.class,
-							filter, SearchScope.SUB, returnAttributes, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
-
-					// Add to result and ignore root entry if needed
-					for (GluuSimplePerson currentSourcePerson : currentSourcePersons) {
-						currentSourcePerson.setSourceServerName(sourceServerName);
-						// if (!StringHelper.equalsIgnoreCase(baseDn,
-						// currentSourcePerson.getDn())) {
-						String currentSourcePersonDn = currentSourcePerson.getDn().toLowerCase();
-						if (!addedDns.contains(currentSourcePersonDn)) {
-							sourcePersons.add(currentSourcePerson);
-							addedDns.add(currentSourcePersonDn);
-						}
-						// }
-					}
-				}
+			if (lastIncrementalState.getChangeMark(sourceServerConnection.getSourceServerName()) == null) {
+				log.info("There is no high-water mark for source server '{}'. Full scan is needed", sourceServerConnection.getSourceServerName());
+				return false;
 			}
 		}
 
-		return sourcePersons;
+		return true;
+	}
+
+	private void updateInumCache(String inumCachePath, boolean inumMapsLoadedFromCache, HashMap<String, GluuInumMap> inumInumMap,
+			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap, List<String> removedGluuInumMaps) {
+		if (inumMapsLoadedFromCache && !cacheRefreshInumCacheFileService.isCompactionNeeded(inumCachePath)) {
+			// Append only changes to local disk cache
+			cacheRefreshInumCacheFileService.appendInumMapsChanges(inumCachePath, addedPrimaryKeyAttrValueInumMap.values(), removedGluuInumMaps);
+			log.info("Stored '{}' added and '{}' removed entries into inum cache journal", addedPrimaryKeyAttrValueInumMap.size(), removedGluuInumMaps.size());
+		} else {
+			// Prepare list of inum for serialization
+			ArrayList<GluuInumMap> currentInumMaps = applyChangesToInumMap(inumInumMap, addedPrimaryKeyAttrValueInumMap, removedGluuInumMaps);
+	
+			// Strore all inum entries into local disk cache
+			cacheRefreshInumCacheFileService.saveInumMaps(inumCachePath, currentInumMaps);
+		}
+	}
+
+	private ArrayList<GluuInumMap> applyChangesToInumMap(HashMap<String, GluuInumMap> inumInumMap,
+			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap, List<String> removedGluuInumMaps) {
+		log.info("There are '{}' entries before updating inum list", inumInumMap.size());
+		for (String removedGluuInumMap : removedGluuInumMaps) {
+			inumInumMap.remove(removedGluuInumMap);
+		}
+		log.info("There are '{}' entries after removal '{}' entries", inumInumMap.size(), removedGluuInumMaps.size());
+		
+		ArrayList<GluuInumMap> currentInumMaps = new ArrayList<GluuInumMap>(inumInumMap.values());
+		currentInumMaps.addAll(addedPrimaryKeyAttrValueInumMap.values());
+		log.info("There are '{}' entries after adding '{}' entries", currentInumMaps.size(), addedPrimaryKeyAttrValueInumMap.size());
+
+		return currentInumMaps;
 	}
 
-	private List<GluuSimplePerson> loadTargetServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, PersistenceEntryManager targetPersistenceEntryManager) {
-		Filter filter = Filter.createEqualityFilter(OxConstants.OBJECT_CLASS, OxTrustConstants.objectClassPerson);
+	/**
+	 * Checkpoint can be used only if update method, source entries keys and attributes mapping weren't changed
+	 */
+	private String getCheckpointKey(CacheRefreshConfiguration cacheRefreshConfiguration, CacheRefreshUpdateMethod updateMethod) {
+		StringBuilder key = new StringBuilder();
+		key.append(updateMethod).append(';');
+		key.append(Arrays.toString(cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration))).append(';');
+		key.append(Arrays.toString(cacheRefreshService.getSourceAttributes(cacheRefreshConfiguration))).append(';');
+		key.append(new TreeMap<String, String>(cacheRefreshService.getTargetServerAttributesMapping(cacheRefreshConfiguration))).append(';');
+		key.append(cacheRefreshConfiguration.isKeepExternalPerson());
+
+		return key.toString();
+	}
 
-		return targetPersistenceEntryManager.findEntries(personService.getDnForPerson(null), GluuSimplePerson.class, filter, SearchScope.SUB,
-				TARGET_PERSON_RETURN_ATTRIBUTES, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
+	private List<GluuInumMap> loadInumServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection inumDbServerConnection) {
+		return loadInumServerEntries(cacheRefreshConfiguration, inumDbServerConnection, null);
+	}
+
+	/**
+	 * Loads inum entries which primary key values start with one of specified prefixes. It loads all inum entries if prefixes aren't
+	 * specified. Substring filter ignores case like source servers search of shard
+	 */
+	private List<GluuInumMap> loadInumServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection inumDbServerConnection,
+			String[] primaryKeyValueStarts) {
+		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+		String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
+
+		Filter filterObjectClass = Filter.createEqualityFilter(OxConstants.OBJECT_CLASS, OxTrustConstants.objectClassInumMap);
+		Filter filterStatus = Filter.createNOTFilter(Filter.createEqualityFilter(OxTrustConstants.gluuStatus, GluuStatus.INACTIVE.getValue()));
+		Filter filter = Filter.createANDFilter(filterObjectClass, filterStatus);
+		if (primaryKeyValueStarts != null) {
+			List<Filter> filtersPrimaryKeyValue = new ArrayList<Filter>(primaryKeyValueStarts.length);
+			for (String primaryKeyValueStart : primaryKeyValueStarts) {
+				filtersPrimaryKeyValue.add(Filter.create(String.format("%s=%s*", INUM_MAP_PRIMARY_KEY_VALUE_ATTRIBUTE, primaryKeyValueStart)));
+			}
+			filter = Filter.createANDFilter(filter, Filter.createORFilter(filtersPrimaryKeyValue));
+		}
+
+		cacheRefreshMetricsService.countLdapCall();
+
+		return inumDbPersistenceEntryManager.findEntries(inumbaseDn, GluuInumMap.class, filter, SearchScope.SUB, null, null, 0, 0, cacheRefreshConfiguration.getLdapSearchSizeLimit());
 	}
 
 	private GluuInumMap addGluuInumMap(String inumbBaseDn, PersistenceEntryManager inumDbPersistenceEntryManager, String[] primaryKeyAttrName,
 			String[][] primaryKeyValues) {
 		String inum = cacheRefreshService.generateInumForNewInumMap(inumbBaseDn, inumDbPersistenceEntryManager);
+
+		GluuInumMap inumMap = createGluuInumMap(inumbBaseDn, inum, primaryKeyAttrName, primaryKeyValues);
+		cacheRefreshService.addInumMap(inumDbPersistenceEntryManager, inumMap);
+		cacheRefreshMetricsService.countLdapCall();
+
+		return inumMap;
+	}
+
+	private GluuInumMap createGluuInumMap(String inumbBaseDn, String inum, String[] primaryKeyAttrName, String[][] primaryKeyValues) {
 		String inumDn = cacheRefreshService.getDnForInum(inumbBaseDn, inum);
 
 		GluuInumMap inumMap = new GluuInumMap();
@@ -915,89 +1501,121 @@ public class CacheRefreshTimer {
 			inumMap.setTertiaryKeyValues(primaryKeyValues[2]);
 		}
 		inumMap.setStatus(GluuStatus.ACTIVE);
-		cacheRefreshService.addInumMap(inumDbPersistenceEntryManager, inumMap);
 
 		return inumMap;
 	}
 
-	private HashMap<CacheCompoundKey, GluuInumMap> addNewInumServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration, LdapServerConnection inumDbServerConnection,
-			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap) {
-		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+	private HashMap<CacheCompoundKey, GluuInumMap> addNewInumServerEntriesInBlocks(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection inumDbServerConnection,
+			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap, CacheCompoundKeyIndex primaryKeyAttrValueInumIndex) {
+		final PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
 		String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
 
 		HashMap<CacheCompoundKey, GluuInumMap> result = new HashMap<CacheCompoundKey, GluuInumMap>();
 
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
-		for (Entry<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyEntry : sourcePersonCacheCompoundKeyMap.entrySet()) {
-			CacheCompoundKey cacheCompoundKey = sourcePersonCacheCompoundKeyEntry.getKey();
-			GluuSimplePerson sourcePerson = sourcePersonCacheCompoundKeyEntry.getValue();
-
-			if (log.isTraceEnabled()) {
-				log.trace("Checking source entry with key: '{}', and DN: {}", cacheCompoundKey, sourcePerson.getDn());
+		List<CacheCompoundKey> newCacheCompoundKeys = new ArrayList<CacheCompoundKey>();
+		for (CacheCompoundKey cacheCompoundKey : sourcePersonCacheCompoundKeyMap.keySet()) {
+			if (primaryKeyAttrValueInumIndex.indexOf(cacheCompoundKey) == -1) {
+				newCacheCompoundKeys.add(cacheCompoundKey);
 			}
+		}
 
-			GluuInumMap currentInumMap = primaryKeyAttrValueInumMap.get(cacheCompoundKey);
-			if (currentInumMap == null) {
-				String[][] keyAttributesValues = getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
-				currentInumMap = addGluuInumMap(inumbaseDn, inumDbPersistenceEntryManager, keyAttributesWithoutValues, keyAttributesValues);
-				result.put(cacheCompoundKey, currentInumMap);
-				log.debug("Added new inum entry for DN: {}", sourcePerson.getDn());
-			} else {
-				log.trace("Inum entry for DN: '{}' exist", sourcePerson.getDn());
-			}
+		if (newCacheCompoundKeys.isEmpty()) {
+			return result;
 		}
 
-		return result;
-	}
+		int blockSize = cacheRefreshTuningConfiguration.getInumAllocationBlockSize();
+		log.info("Attempting to add '{}' new inum entries in blocks of '{}' entries", newCacheCompoundKeys.size(), blockSize);
 
-	private HashMap<CacheCompoundKey, GluuInumMap> getAllInumServerEntries(
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap,
-			HashMap<CacheCompoundKey, GluuInumMap> addedPrimaryKeyAttrValueInumMap) {
-		HashMap<CacheCompoundKey, GluuInumMap> result = new HashMap<CacheCompoundKey, GluuInumMap>();
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
+		Set<String> allocatedInums = new HashSet<String>();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(cacheRefreshTuningConfiguration.getInumMapWriteThreads());
+		try {
+			for (int i = 0; i < newCacheCompoundKeys.size(); i += blockSize) {
+				List<CacheCompoundKey> blockCacheCompoundKeys = newCacheCompoundKeys.subList(i, Math.min(i + blockSize, newCacheCompoundKeys.size()));
+
+				// Reserve inums for whole block
+				List<String> blockInums = cacheRefreshService.generateInumsForNewInumMaps(inumbaseDn, inumDbPersistenceEntryManager,
+						blockCacheCompoundKeys.size(), allocatedInums);
+
+				List<Future<GluuInumMap>> blockResults = new ArrayList<Future<GluuInumMap>>(blockCacheCompoundKeys.size());
+				for (int j = 0; j < blockCacheCompoundKeys.size(); j++) {
+					GluuSimplePerson sourcePerson = sourcePersonCacheCompoundKeyMap.get(blockCacheCompoundKeys.get(j));
+					String[][] keyAttributesValues = cacheRefreshSourceLoadService.getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
+					final GluuInumMap inumMap = createGluuInumMap(inumbaseDn, blockInums.get(j), keyAttributesWithoutValues, keyAttributesValues);
+
+					blockResults.add(executorService.submit(new Callable<GluuInumMap>() {
+						@Override
+						public GluuInumMap call() throws Exception {
+							cacheRefreshService.addInumMap(inumDbPersistenceEntryManager, inumMap);
+							cacheRefreshMetricsService.countLdapCall();
+							return inumMap;
+						}
+					}));
+				}
 
-		result.putAll(primaryKeyAttrValueInumMap);
-		result.putAll(addedPrimaryKeyAttrValueInumMap);
+				for (int j = 0; j < blockCacheCompoundKeys.size(); j++) {
+					CacheCompoundKey cacheCompoundKey = blockCacheCompoundKeys.get(j);
+					try {
+						GluuInumMap inumMap = blockResults.get(j).get();
+						result.put(cacheCompoundKey, inumMap);
+						primaryKeyAttrValueInumIndex.put(cacheCompoundKey, inumMap);
+					} catch (ExecutionException ex) {
+						log.error("Failed to add inum entry for DN: {}", sourcePersonCacheCompoundKeyMap.get(cacheCompoundKey).getDn(), ex.getCause());
+					}
+				}
+				log.debug("Added '{}' new inum entries", result.size());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while adding new inum entries", ex);
+		} finally {
+			executorService.shutdownNow();
+		}
 
 		return result;
 	}
 
-	private HashMap<String, Integer> getSourcePersonsHashCodesMap(LdapServerConnection inumDbServerConnection,
-			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap,
-			HashMap<CacheCompoundKey, GluuInumMap> primaryKeyAttrValueInumMap) {
+	private HashMap<CacheCompoundKey, GluuInumMap> addNewInumServerEntries(CacheRefreshConfiguration cacheRefreshConfiguration,
+			CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration, LdapServerConnection inumDbServerConnection,
+			Map<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyMap, CacheCompoundKeyIndex primaryKeyAttrValueInumIndex) {
+		if (cacheRefreshTuningConfiguration.isBulkInumAllocation()) {
+			return addNewInumServerEntriesInBlocks(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, inumDbServerConnection,
+					sourcePersonCacheCompoundKeyMap, primaryKeyAttrValueInumIndex);
+		}
+
 		PersistenceEntryManager inumDbPersistenceEntryManager = inumDbServerConnection.getPersistenceEntryManager();
+		String inumbaseDn = inumDbServerConnection.getBaseDns()[0];
 
-		HashMap<String, Integer> result = new HashMap<String, Integer>();
+		HashMap<CacheCompoundKey, GluuInumMap> result = new HashMap<CacheCompoundKey, GluuInumMap>();
 
+		String[] keyAttributesWithoutValues = cacheRefreshService.getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
 		for (Entry<CacheCompoundKey, GluuSimplePerson> sourcePersonCacheCompoundKeyEntry : sourcePersonCacheCompoundKeyMap.entrySet()) {
 			CacheCompoundKey cacheCompoundKey = sourcePersonCacheCompoundKeyEntry.getKey();
 			GluuSimplePerson sourcePerson = sourcePersonCacheCompoundKeyEntry.getValue();
 
-			GluuInumMap currentInumMap = primaryKeyAttrValueInumMap.get(cacheCompoundKey);
-
-			result.put(currentInumMap.getInum(), inumDbPersistenceEntryManager.getHashCode(sourcePerson));
-		}
-
-		return result;
-	}
-
-	private List<GluuSimplePerson> processTargetPersons(List<GluuSimplePerson> targetPersons,
-			HashMap<String, Integer> currInumWithEntryHashCodeMap) {
-		List<GluuSimplePerson> result = new ArrayList<GluuSimplePerson>();
+			if (log.isTraceEnabled()) {
+				log.trace("Checking source entry with key: '{}', and DN: {}", cacheCompoundKey, sourcePerson.getDn());
+			}
 
-		for (GluuSimplePerson targetPerson : targetPersons) {
-			String personInum = targetPerson.getAttribute(OxTrustConstants.inum);
-			if (!currInumWithEntryHashCodeMap.containsKey(personInum)) {
-				log.debug("Person with such DN: '{}' isn't present on source server", targetPerson.getDn());
-				result.add(targetPerson);
+			GluuInumMap currentInumMap = primaryKeyAttrValueInumIndex.get(cacheCompoundKey);
+			if (currentInumMap == null) {
+				String[][] keyAttributesValues = cacheRefreshSourceLoadService.getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
+				currentInumMap = addGluuInumMap(inumbaseDn, inumDbPersistenceEntryManager, keyAttributesWithoutValues, keyAttributesValues);
+				result.put(cacheCompoundKey, currentInumMap);
+				primaryKeyAttrValueInumIndex.put(cacheCompoundKey, currentInumMap);
+				log.debug("Added new inum entry for DN: {}", sourcePerson.getDn());
+			} else {
+				log.trace("Inum entry for DN: '{}' exist", sourcePerson.getDn());
 			}
 		}
 
 		return result;
 	}
 
-	private HashMap<CacheCompoundKey, GluuInumMap> getPrimaryKeyAttrValueInumMap(List<GluuInumMap> inumMaps) {
-		HashMap<CacheCompoundKey, GluuInumMap> result = new HashMap<CacheCompoundKey, GluuInumMap>();
+	private CacheCompoundKeyIndex getPrimaryKeyAttrValueInumIndex(List<GluuInumMap> inumMaps) {
+		CacheCompoundKeyIndex result = new CacheCompoundKeyIndex(inumMaps.size());
 
 		for (GluuInumMap inumMap : inumMaps) {
 			result.put(
@@ -1008,6 +1626,10 @@ public class CacheRefreshTimer {
 		return result;
 	}
 
+	public CacheRefreshChangeDetectionStatistics getLastChangeDetectionStatistics() {
+		return lastChangeDetectionStatistics;
+	}
+
 	private HashMap<String, GluuInumMap> getInumInumMap(List<GluuInumMap> inumMaps) {
 		HashMap<String, GluuInumMap> result = new HashMap<String, GluuInumMap>();
 
@@ -1018,30 +1640,6 @@ public class CacheRefreshTimer {
 		return result;
 	}
 
-	private Map<CacheCompoundKey, GluuSimplePerson> getSourcePersonCompoundKeyMap(CacheRefreshConfiguration cacheRefreshConfiguration, List<GluuSimplePerson> sourcePersons) {
-		Map<CacheCompoundKey, GluuSimplePerson> result = new HashMap<CacheCompoundKey, GluuSimplePerson>();
-		Set<CacheCompoundKey> duplicateKeys = new HashSet<CacheCompoundKey>();
-
-		String[] keyAttributesWithoutValues = getCompoundKeyAttributesWithoutValues(cacheRefreshConfiguration);
-		for (GluuSimplePerson sourcePerson : sourcePersons) {
-			String[][] keyAttributesValues = getKeyAttributesValues(keyAttributesWithoutValues, sourcePerson);
-			CacheCompoundKey cacheCompoundKey = new CacheCompoundKey(keyAttributesValues);
-
-			if (result.containsKey(cacheCompoundKey)) {
-				duplicateKeys.add(cacheCompoundKey);
-			}
-
-			result.put(cacheCompoundKey, sourcePerson);
-		}
-
-		for (CacheCompoundKey duplicateKey : duplicateKeys) {
-			log.error("Non-deterministic primary key. Skipping user with key: {}", duplicateKey);
-			result.remove(duplicateKey);
-		}
-
-		return result;
-	}
-
 	private LdapServerConnection[] prepareLdapServerConnections(CacheRefreshConfiguration cacheRefreshConfiguration, List<GluuLdapConfiguration> ldapConfigurations) {
 		LdapServerConnection[] ldapServerConnections = new LdapServerConnection[ldapConfigurations.size()];
 		for (int i = 0; i < ldapConfigurations.size(); i++) {
@@ -1062,7 +1660,7 @@ public class CacheRefreshTimer {
 		String ldapConfig = ldapConfiguration.getConfigId();
 
 		if (useLocalConnection) {
-			return new LdapServerConnection(ldapConfig, ldapEntryManager, getBaseDNs(ldapConfiguration));
+			return new LdapServerConnection(ldapConfig, ldapEntryManager, getBaseDNs(ldapConfiguration), ldapConfiguration.getMaxConnections());
 		}
 
 		Properties ldapProperties = toLdapProperties(ldapConfiguration);
@@ -1076,38 +1674,27 @@ public class CacheRefreshTimer {
             return null;
         }
 
-        return new LdapServerConnection(ldapConfig, customPersistenceEntryManager, getBaseDNs(ldapConfiguration));
+        return new LdapServerConnection(ldapConfig, customPersistenceEntryManager, getBaseDNs(ldapConfiguration), ldapConfiguration.getMaxConnections());
 	}
 
-	private void closeLdapServerConnection(LdapServerConnection... ldapServerConnections) {
-		for (LdapServerConnection ldapServerConnection : ldapServerConnections) {
-			if ((ldapServerConnection != null) && (ldapServerConnection.getPersistenceEntryManager() != null)) {
-				ldapServerConnection.getPersistenceEntryManager().destroy();
-			}
-		}
-	}
-
-	private String[] createTwoLettersArray() {
-		char[] characters = LETTERS_FOR_SEARCH.toCharArray();
-		int lettersCount = characters.length;
+	private LdapServerConnection prepareInumDbServerConnection(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		if (cacheRefreshConfiguration.isDefaultInumServer()) {
+			GluuLdapConfiguration ldapInumConfiguration = new GluuLdapConfiguration();
+			ldapInumConfiguration.setConfigId("local_inum");
+			ldapInumConfiguration.setBaseDNsStringsList(Arrays.asList(new String[] { OxTrustConstants.CACHE_REFRESH_DEFAULT_BASE_DN }));
 
-		String[] result = new String[lettersCount * lettersCount];
-		for (int i = 0; i < lettersCount; i++) {
-			for (int j = 0; j < lettersCount; j++) {
-				result[i * lettersCount + j] = "" + characters[i] + characters[j];
-			}
+			return prepareLdapServerConnection(cacheRefreshConfiguration, ldapInumConfiguration, true);
 		}
 
-		return result;
+		return prepareLdapServerConnection(cacheRefreshConfiguration, cacheRefreshConfiguration.getInumConfig());
 	}
 
-	private String[][] getKeyAttributesValues(String[] attrs, GluuSimplePerson person) {
-		String[][] result = new String[attrs.length][];
-		for (int i = 0; i < attrs.length; i++) {
-			result[i] = person.getAttributes(attrs[i]);
+	private void closeLdapServerConnection(LdapServerConnection... ldapServerConnections) {
+		for (LdapServerConnection ldapServerConnection : ldapServerConnections) {
+			if ((ldapServerConnection != null) && (ldapServerConnection.getPersistenceEntryManager() != null)) {
+				ldapServerConnection.getPersistenceEntryManager().destroy();
+			}
 		}
-
-		return result;
 	}
 
 	private void updateApplianceStatus(GluuAppliance currentAppliance, long lastRun) {
@@ -1126,31 +1713,48 @@ public class CacheRefreshTimer {
 	}
 
 	private String getInumCachePath(CacheRefreshConfiguration cacheRefreshConfiguration) {
-		return FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "inum_cache.dat");
+		return FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "inum_cache.bin");
 	}
 
-	private class LdapServerConnection {
-		private String sourceServerName;
-		private PersistenceEntryManager ldapEntryManager;
-		private String[] baseDns;
-		
-		protected LdapServerConnection(String sourceServerName, PersistenceEntryManager ldapEntryManager, String[] baseDns) {
-			this.sourceServerName = sourceServerName;
-			this.ldapEntryManager = ldapEntryManager;
-			this.baseDns = baseDns;
+	/**
+	 * Returns copy of configuration with separate snapshots folder for shard. Folder depends on shards count to not mix snapshots of
+	 * different partitionings
+	 */
+	private CacheRefreshConfiguration getShardConfiguration(CacheRefreshConfiguration cacheRefreshConfiguration, int shardCount, int shard) {
+		CacheRefreshConfiguration shardConfiguration;
+		try {
+			shardConfiguration = (CacheRefreshConfiguration) BeanUtilsBean2.getInstance().cloneBean(cacheRefreshConfiguration);
+		} catch (Exception ex) {
+			log.error("Failed to prepare configuration of shard '{}'", shard, ex);
+			return null;
 		}
 
-		public final String getSourceServerName() {
-			return sourceServerName;
-		}
+		String shardsFolder = FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "shards-" + shardCount);
+		shardConfiguration.setSnapshotFolder(FilenameUtils.concat(shardsFolder, "shard-" + shard));
 
-		public final PersistenceEntryManager getPersistenceEntryManager() {
-			return ldapEntryManager;
-		}
+		return shardConfiguration;
+	}
 
-		public final String[] getBaseDns() {
-			return baseDns;
+	/**
+	 * Returns copy of configuration with folder for snapshots merged from all shards
+	 */
+	private CacheRefreshConfiguration getShardsMergeConfiguration(CacheRefreshConfiguration cacheRefreshConfiguration, int shardCount) {
+		CacheRefreshConfiguration mergeConfiguration;
+		try {
+			mergeConfiguration = (CacheRefreshConfiguration) BeanUtilsBean2.getInstance().cloneBean(cacheRefreshConfiguration);
+		} catch (Exception ex) {
+			log.error("Failed to prepare configuration of shards merge", ex);
+			return null;
 		}
+
+		String shardsFolder = FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "shards-" + shardCount);
+		mergeConfiguration.setSnapshotFolder(FilenameUtils.concat(shardsFolder, "merged"));
+
+		return mergeConfiguration;
+	}
+
+	private String getLegacyInumCachePath(CacheRefreshConfiguration cacheRefreshConfiguration) {
+		return FilenameUtils.concat(cacheRefreshConfiguration.getSnapshotFolder(), "inum_cache.dat");
 	}
 
 	private CacheRefreshUpdateMethod getUpdateMethod(CacheRefreshConfiguration cacheRefreshConfiguration) {
@@ -1162,39 +1766,6 @@ public class CacheRefreshTimer {
 		return CacheRefreshUpdateMethod.getByValue(cacheRefreshConfiguration.getUpdateMethod());
 	}
 
-	private String[] getSourceAttributes(CacheRefreshConfiguration cacheRefreshConfiguration) {
-		return cacheRefreshConfiguration.getSourceAttributes().toArray(new String[0]);
-	}
-
-	private String[] getCompoundKeyAttributes(CacheRefreshConfiguration cacheRefreshConfiguration) {
-		return cacheRefreshConfiguration.getKeyAttributes().toArray(new String[0]);
-	}
-
-	private String[] getCompoundKeyObjectClasses(CacheRefreshConfiguration cacheRefreshConfiguration) {
-		return cacheRefreshConfiguration.getKeyObjectClasses().toArray(new String[0]);
-	}
-
-	private String[] getCompoundKeyAttributesWithoutValues(CacheRefreshConfiguration cacheRefreshConfiguration) {
-		String[] result = cacheRefreshConfiguration.getKeyAttributes().toArray(new String[0]);
-		for (int i = 0; i < result.length; i++) {
-			int index = result[i].indexOf('=');
-			if (index != -1) {
-				result[i] = result[i].substring(0, index);
-			}
-		}
-
-		return result;
-	}
-
-	private Map<String, String> getTargetServerAttributesMapping(CacheRefreshConfiguration cacheRefreshConfiguration) {
-		Map<String, String> result = new HashMap<String, String>();
-		for (CacheRefreshAttributeMapping attributeMapping : cacheRefreshConfiguration.getAttributeMapping()) {
-			result.put(attributeMapping.getDestination(), attributeMapping.getSource());
-		}
-
-		return result;
-	}
-
 	private Properties toLdapProperties(GluuLdapConfiguration ldapConfiguration) {
 		Properties ldapProperties = new Properties();
 		ldapProperties.put("servers", PropertyUtil.simplePropertiesToCommaSeparatedList(ldapConfiguration.getServers()));
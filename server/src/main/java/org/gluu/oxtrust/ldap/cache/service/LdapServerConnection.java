@@ -0,0 +1,44 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.service;
+
+import org.gluu.persist.PersistenceEntryManager;
+
+/**
+ * Connection to source or inum LDAP server used during Cache Refresh run
+ */
+public class LdapServerConnection {
+
+	private String sourceServerName;
+	private PersistenceEntryManager ldapEntryManager;
+	private String[] baseDns;
+	private int maxConnections;
+
+	public LdapServerConnection(String sourceServerName, PersistenceEntryManager ldapEntryManager, String[] baseDns, int maxConnections) {
+		this.sourceServerName = sourceServerName;
+		this.ldapEntryManager = ldapEntryManager;
+		this.baseDns = baseDns;
+		this.maxConnections = maxConnections;
+	}
+
+	public final String getSourceServerName() {
+		return sourceServerName;
+	}
+
+	public final PersistenceEntryManager getPersistenceEntryManager() {
+		return ldapEntryManager;
+	}
+
+	public final String[] getBaseDns() {
+		return baseDns;
+	}
+
+	public final int getMaxConnections() {
+		return maxConnections;
+	}
+
+}
@@ -95,6 +95,8 @@ public interface IPersonService {
 
 	public abstract List<GluuCustomPerson> findPersonsByUids(List<String> uids, String[] returnAttributes) throws Exception;
 
+	public abstract List<GluuCustomPerson> findPersonsByInums(List<String> inums, String[] returnAttributes);
+
 	public abstract GluuCustomPerson findPersonByDn(String dn, String... returnAttributes);
 
 	/**
@@ -239,6 +239,24 @@ public class PersonService implements Serializable, IPersonService {
         return result;
     }
     
+    /* (non-Javadoc)
+     * @see org.gluu.oxtrust.ldap.service.IPersonService#findPersonsByInums(java.util.List, java.lang.String[])
+     */
+    @Override
+    public List<GluuCustomPerson> findPersonsByInums(List<String> inums, String[] returnAttributes) {
+        List<Filter> inumFilters = new ArrayList<Filter>();
+        for (String inum : inums) {
+            inumFilters.add(Filter.createEqualityFilter(OxTrustConstants.inum, inum));
+        }
+
+        Filter filter = Filter.createORFilter(inumFilters);
+
+        List<GluuCustomPerson> result = ldapEntryManager
+                .findEntries(getDnForPerson(null), GluuCustomPerson.class, filter, returnAttributes);
+
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see org.gluu.oxtrust.ldap.service.IPersonService#findPersonsByMailds(java.util.List, java.lang.String[])
      */
@@ -24,6 +24,8 @@ import static org.gluu.oxtrust.service.antlr.scimFilter.enums.LdapFilterTemplate
 import static org.gluu.oxtrust.service.antlr.scimFilter.enums.LdapFilterTemplate.STRING_STARTSWITH;
 import static org.gluu.oxtrust.service.antlr.scimFilter.enums.LdapFilterTemplate.STRING_STARTSWITH_INNER;
 
+import java.util.List;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -53,6 +55,8 @@ public class LdapFilterListener extends ScimFilterBaseListener {
     private Class<? extends BaseScimResource> resourceClass;
     private String error;
     private ExtensionService extService;
+    private List<String> compValues;
+    private int compValueIndex;
 
     public LdapFilterListener(Class<? extends BaseScimResource> resourceClass){
         filter=new StringBuilder();
@@ -60,6 +64,15 @@ public class LdapFilterListener extends ScimFilterBaseListener {
         this.resourceClass=resourceClass;
     }
 
+    /**
+     * Creates listener for parse tree of filter template. String comparison values of the template are taken from compValues in order
+     * of appearance (see {@link FilterUtil#parameterize(String, List)})
+     */
+    public LdapFilterListener(Class<? extends BaseScimResource> resourceClass, List<String> compValues){
+        this(resourceClass);
+        this.compValues=compValues;
+    }
+
     private void close(){
         filter.append(")");
     }
@@ -127,7 +140,7 @@ public class LdapFilterListener extends ScimFilterBaseListener {
 
                 error=FilterUtil.checkFilterConsistency(path, attrType, type, operator);
                 if (error==null) {
-                    subFilth = getSubFilter(subattr, ldapAttribute, isPrRule ? null : compValueCtx.getText(), attrType, type, operator);
+                    subFilth = getSubFilter(subattr, ldapAttribute, isPrRule ? null : getCompValue(compValueCtx), attrType, type, operator);
 
                     if (subFilth == null){
                         if (error==null)
@@ -154,6 +167,18 @@ public class LdapFilterListener extends ScimFilterBaseListener {
         filter.append("|");
     }
 
+    private String getCompValue(ScimFilterParser.CompvalueContext compValueCtx){
+
+        if (compValues!=null && compValueCtx.STRING()!=null) {
+            if (compValueIndex<compValues.size())
+                return compValues.get(compValueIndex++);
+            else
+                error="Not enough values supplied for filter template";
+        }
+        return compValueCtx.getText();
+
+    }
+
     private String escapeLdapString(String string){
         //See section 4 of RFC 2254
         return string.replace("\\", "\\5c").replace("*", "\\2a")
@@ -5,8 +5,14 @@
  */
 package org.gluu.oxtrust.service.antlr.scimFilter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -17,7 +23,6 @@ import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.apache.commons.lang.StringUtils;
 import org.gluu.oxtrust.model.exception.SCIMException;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
-import org.gluu.oxtrust.service.antlr.scimFilter.antlr4.ScimFilterBaseListener;
 import org.gluu.oxtrust.service.antlr.scimFilter.antlr4.ScimFilterLexer;
 import org.gluu.oxtrust.service.antlr.scimFilter.antlr4.ScimFilterParser;
 import org.gluu.oxtrust.service.antlr.scimFilter.util.FilterUtil;
@@ -28,12 +33,27 @@ import org.slf4j.Logger;
  * @author Val Pecaoco
  * Re-engineered by jgomer on 2017-12-09.
  */
+@ApplicationScoped
 @Named
 public class ScimFilterParserService {
 
+    //Max number of filter templates whose parse trees are kept
+    private static final int FILTER_CACHE_SIZE = 1000;
+
     @Inject
     private Logger log;
 
+    //Parse trees of preprocessed filter templates keyed by resource class and template. Least recently used ones are evicted
+    private Map<String, ParseTree> filterCache = Collections.synchronizedMap(new LinkedHashMap<String, ParseTree>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParseTree> eldest) {
+            return size() > FILTER_CACHE_SIZE;
+        }
+    });
+
+    private AtomicLong filterCacheHits = new AtomicLong();
+    private AtomicLong filterCacheMisses = new AtomicLong();
+
     private ParseTree getParseTree(String filter, ScimFilterErrorListener errorListener){
 
         ANTLRInputStream input = new ANTLRInputStream(filter);
@@ -66,12 +86,33 @@ public class ScimFilterParserService {
 
     }
 
-    private void walkTree(String filter, ScimFilterBaseListener listener) throws SCIMException {
+    /**
+     * @return Ratio of filters whose template was found in cache or 0 if there were no lookups yet
+     */
+    private double getFilterCacheHitRate() {
+        long hits=filterCacheHits.get();
+        long total=hits + filterCacheMisses.get();
+        return total==0 ? 0 : (double) hits / total;
+    }
 
-        ScimFilterErrorListener errorListener=new ScimFilterErrorListener();
-        ParseTree tree=getParseTree(filter, errorListener);
-        checkParsingErrors(errorListener);
-        ParseTreeWalker.DEFAULT.walk(listener, tree);
+    /**
+     * Returns parse tree of filter template. Trees are cached, so filters differing only in string comparison values are parsed once
+     */
+    private ParseTree getTemplateParseTree(String template, Class<? extends BaseScimResource> clazz) throws Exception {
+
+        String key=clazz.getName() + " " + template;
+        ParseTree tree=filterCache.get(key);
+
+        if (tree==null) {
+            filterCacheMisses.incrementAndGet();
+            tree=getParseTree(FilterUtil.preprocess(template, clazz));
+            filterCache.put(key, tree);
+            log.debug("Filter template '{}' parsed. Filter cache hit rate is {}", template, getFilterCacheHitRate());
+        }
+        else
+            filterCacheHits.incrementAndGet();
+
+        return tree;
 
     }
 
@@ -83,8 +124,11 @@ public class ScimFilterParserService {
             if (StringUtils.isEmpty(filter))
                 ldapFilter=Filter.create(defaultStr);
             else {
-                LdapFilterListener ldapFilterListener = new LdapFilterListener(clazz);
-                walkTree(FilterUtil.preprocess(filter, clazz), ldapFilterListener);
+                List<String> compValues = new ArrayList<String>();
+                ParseTree tree = getTemplateParseTree(FilterUtil.parameterize(filter, compValues), clazz);
+
+                LdapFilterListener ldapFilterListener = new LdapFilterListener(clazz, compValues);
+                ParseTreeWalker.DEFAULT.walk(ldapFilterListener, tree);
                 ldapFilter = ldapFilterListener.getFilter();
 
                 if (ldapFilter == null)
@@ -5,6 +5,7 @@
  */
 package org.gluu.oxtrust.service.antlr.scimFilter.util;
 
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.regex.Pattern;
@@ -121,6 +122,34 @@ public class FilterUtil {
 
     }
 
+    /**
+     * Replaces string comparison values of a filter with empty strings, so filters which differ only in such values share the same template
+     * @param filther Non-empty string
+     * @param compValues List where replaced values (double quotes included) are added in order of appearance
+     * @return Filter template
+     */
+    public static String parameterize(String filther, List<String> compValues){
+
+        int j, offset =0;
+        int i= filther.indexOf("\"");
+        StringBuilder sb=new StringBuilder();
+
+        while (i!=-1) {
+            j= filther.indexOf("\"", i+1);
+            if (j==-1)
+                break;  //Unterminated string is reported by parser
+
+            sb.append(filther.substring(offset, i)).append("\"\"");
+            compValues.add(filther.substring(i, j+1));
+
+            offset=j+1;
+            i= filther.indexOf("\"", offset);
+        }
+        sb.append(filther.substring(offset));
+        return sb.toString();
+
+    }
+
     private static int startIndexParentAttr(String str){
 
         int i;
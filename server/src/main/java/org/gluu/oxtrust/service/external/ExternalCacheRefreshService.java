@@ -6,16 +6,27 @@
 
 package org.gluu.oxtrust.service.external;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.apache.commons.io.IOUtils;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshMetricsService;
 import org.gluu.oxtrust.model.GluuCustomPerson;
+import org.python.core.PyLong;
+import org.python.core.PyObject;
 import org.xdi.model.SimpleCustomProperty;
 import org.xdi.model.custom.script.CustomScriptType;
 import org.xdi.model.custom.script.conf.CustomScriptConfiguration;
+import org.xdi.model.custom.script.model.CustomScript;
 import org.xdi.model.custom.script.type.user.CacheRefreshType;
+import org.xdi.service.PythonService;
 import org.xdi.service.custom.script.ExternalScriptService;
 
 /**
@@ -29,28 +40,56 @@ public class ExternalCacheRefreshService extends ExternalScriptService {
 
 	private static final long serialVersionUID = 1707751544454591273L;
 
+	@Inject
+	private PythonService pythonService;
+
+	@Inject
+	private CacheRefreshMetricsService cacheRefreshMetricsService;
+
 	public ExternalCacheRefreshService() {
 		super(CustomScriptType.CACHE_REFRESH);
 	}
 
-	public boolean executeExternalUpdateUserMethod(CustomScriptConfiguration customScriptConfiguration, GluuCustomPerson user) {
+	/**
+	 * Executes script for person. Only executions of synchronization runs are added to Cache Refresh metrics, not schema validation or
+	 * dry run ones
+	 */
+	public boolean executeExternalUpdateUserMethod(CustomScriptConfiguration customScriptConfiguration, GluuCustomPerson user, boolean synchronization) {
+		long startTime = System.nanoTime();
+		boolean result = false;
 		try {
 			log.debug("Executing python 'updateUser' method");
 			CacheRefreshType externalType = (CacheRefreshType) customScriptConfiguration.getExternalType();
 			Map<String, SimpleCustomProperty> configurationAttributes = customScriptConfiguration.getConfigurationAttributes();
-			return externalType.updateUser(user, configurationAttributes);
+			result = externalType.updateUser(user, configurationAttributes);
 		} catch (Exception ex) {
 			log.error(ex.getMessage(), ex);
             saveScriptError(customScriptConfiguration.getCustomScript(), ex);
 		}
 
-		return false;
+		if (synchronization) {
+			cacheRefreshMetricsService.addScriptExecution(customScriptConfiguration.getCustomScript().getName(), System.nanoTime() - startTime, result);
+		}
+
+		return result;
 	}
 
 	public boolean executeExternalUpdateUserMethods(GluuCustomPerson user) {
+		return executeExternalUpdateUserMethods(user, false);
+	}
+
+	public boolean executeExternalUpdateUserMethods(GluuCustomPerson user, boolean synchronization) {
+		return executeExternalUpdateUserMethods(this.customScriptConfigurations, user, synchronization);
+	}
+
+	/**
+	 * Executes scripts instances created by {@link #createScriptConfigurationsInstances()}
+	 */
+	public boolean executeExternalUpdateUserMethods(List<CustomScriptConfiguration> customScriptConfigurations, GluuCustomPerson user,
+			boolean synchronization) {
 		boolean result = true;
-		for (CustomScriptConfiguration customScriptConfiguration : this.customScriptConfigurations) {
-			result &= executeExternalUpdateUserMethod(customScriptConfiguration, user);
+		for (CustomScriptConfiguration customScriptConfiguration : customScriptConfigurations) {
+			result &= executeExternalUpdateUserMethod(customScriptConfiguration, user, synchronization);
 			if (!result) {
 				return result;
 			}
@@ -59,4 +98,74 @@ public class ExternalCacheRefreshService extends ExternalScriptService {
 		return result;
 	}
 
+	/**
+	 * Creates new instances of loaded scripts in separate Python objects. One thread can use them without synchronization
+	 *
+	 * @return Scripts instances or null if one of scripts failed to initialize
+	 */
+	public synchronized List<CustomScriptConfiguration> createScriptConfigurationsInstances() {
+		List<CustomScriptConfiguration> result = new ArrayList<CustomScriptConfiguration>(this.customScriptConfigurations.size());
+		for (CustomScriptConfiguration customScriptConfiguration : this.customScriptConfigurations) {
+			CustomScript customScript = customScriptConfiguration.getCustomScript();
+			Map<String, SimpleCustomProperty> configurationAttributes = customScriptConfiguration.getConfigurationAttributes();
+
+			CacheRefreshType externalType = createExternalType(customScript, configurationAttributes);
+			if (externalType == null) {
+				destroyScriptConfigurationsInstances(result);
+				return null;
+			}
+
+			result.add(new CustomScriptConfiguration(customScript, externalType, configurationAttributes));
+		}
+
+		return result;
+	}
+
+	public void destroyScriptConfigurationsInstances(List<CustomScriptConfiguration> customScriptConfigurations) {
+		for (CustomScriptConfiguration customScriptConfiguration : customScriptConfigurations) {
+			try {
+				customScriptConfiguration.getExternalType().destroy(customScriptConfiguration.getConfigurationAttributes());
+			} catch (Exception ex) {
+				log.error("Failed to destroy instance of script '{}'", customScriptConfiguration.getCustomScript().getName(), ex);
+			}
+		}
+	}
+
+	private CacheRefreshType createExternalType(CustomScript customScript, Map<String, SimpleCustomProperty> configurationAttributes) {
+		CacheRefreshType externalType;
+		InputStream bis = null;
+		try {
+			bis = new ByteArrayInputStream(customScript.getScript().getBytes("UTF-8"));
+			externalType = pythonService.loadPythonScript(bis, customScript.getScriptType().getPythonClass(), CacheRefreshType.class,
+					new PyObject[] { new PyLong(System.currentTimeMillis()) });
+		} catch (Exception ex) {
+			log.error("Failed to load instance of script '{}'", customScript.getName(), ex);
+			saveScriptError(customScript, ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(bis);
+		}
+
+		if (externalType == null) {
+			log.error("Failed to create instance of script '{}'", customScript.getName());
+			return null;
+		}
+
+		boolean initialized;
+		try {
+			initialized = externalType.init(configurationAttributes);
+		} catch (Exception ex) {
+			log.error("Failed to initialize instance of script '{}'", customScript.getName(), ex);
+			saveScriptError(customScript, ex);
+			return null;
+		}
+
+		if (!initialized) {
+			log.error("Failed to initialize instance of script '{}'", customScript.getName());
+			return null;
+		}
+
+		return externalType;
+	}
+
 }
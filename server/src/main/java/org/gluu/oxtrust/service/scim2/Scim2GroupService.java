@@ -29,7 +29,6 @@ import org.gluu.oxtrust.model.scim2.user.UserResource;
 import org.gluu.oxtrust.model.scim2.util.ScimResourceUtil;
 import org.gluu.oxtrust.service.antlr.scimFilter.ScimFilterParserService;
 import org.gluu.oxtrust.service.external.ExternalScimService;
-import org.gluu.persist.PersistenceEntryManager;
 import org.gluu.persist.model.PagedResult;
 import org.gluu.persist.model.SortOrder;
 import org.gluu.persist.model.base.GluuStatus;
@@ -66,7 +65,7 @@ public class Scim2GroupService implements Serializable {
     private ScimFilterParserService scimFilterParserService;
 
     @Inject
-    private PersistenceEntryManager ldapEntryManager;
+    private Scim2SearchService scim2SearchService;
 
     private void transferAttributesToGroup(GroupResource res, GluuGroup group, String usersUrl) {
 
@@ -268,8 +267,8 @@ public class Scim2GroupService implements Serializable {
         log.info("Executing search for groups using: ldapfilter '{}', sortBy '{}', sortOrder '{}', startIndex '{}', count '{}'",
                 ldapFilter.toString(), sortBy, sortOrder.getValue(), startIndex, count);
 
-        PagedResult<GluuGroup> list=ldapEntryManager.findPagedEntries(groupService.getDnForGroup(null),
-                GluuGroup.class, ldapFilter, null, sortBy, sortOrder, startIndex, count, maxCount);
+        PagedResult<GluuGroup> list=scim2SearchService.findPagedEntries(groupService.getDnForGroup(null),
+                GluuGroup.class, ldapFilter, sortBy, "inum", sortOrder, startIndex, count, maxCount);
         List<BaseScimResource> resources=new ArrayList<BaseScimResource>();
 
         for (GluuGroup group: list.getEntries()){
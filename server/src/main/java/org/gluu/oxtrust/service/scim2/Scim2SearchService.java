@@ -0,0 +1,325 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.scim2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.persist.ldap.operation.LdapOperationService;
+import org.gluu.persist.model.PagedResult;
+import org.gluu.persist.model.SortOrder;
+import org.gluu.persist.model.base.Entry;
+import org.gluu.persist.operation.PersistenceOperationService;
+import org.gluu.search.filter.Filter;
+import org.gluu.site.ldap.persistence.annotation.LdapObjectClass;
+import org.slf4j.Logger;
+import org.xdi.util.OxConstants;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.ServerSideSortRequestControl;
+import com.unboundid.ldap.sdk.controls.SortKey;
+import com.unboundid.ldap.sdk.controls.VirtualListViewRequestControl;
+import com.unboundid.ldap.sdk.controls.VirtualListViewResponseControl;
+
+/**
+ * Executes paged searches of SCIM resources. When serverSideSortSearch is enabled in oxTrustScim.properties and LDAP server supports
+ * server side sort and virtual list view controls, sorting and paging are done by LDAP server and only entries of requested page are
+ * loaded. Otherwise (or if server side search fails) whole result set is sorted and paged by persistence layer.
+ */
+@ApplicationScoped
+@Named
+public class Scim2SearchService {
+
+    //Request no attributes, only DNs of entries of the page are needed
+    private static final String NO_ATTRIBUTES = "1.1";
+
+    private static final String TOP_OBJECT_CLASS = "top";
+
+    private static final String THREAD_NAME_PREFIX = "scim-search-";
+
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private PersistenceEntryManager ldapEntryManager;
+
+    @Inject
+    private ConfigurationFactory configurationFactory;
+
+    //Null until root DSE of LDAP server was inspected. False also after server rejected controls
+    private volatile Boolean serverSideSortSupported;
+
+    //Shared by all requests, created on first use
+    private ExecutorService executorService;
+
+    private boolean destroyed;
+
+    /**
+     * Returns page of entries matching filter. Start index is 1-based. If sortBy is null, entries are sorted by defaultSortBy when
+     * search is executed with server side sort, which gives stable order of pages
+     */
+    public <T extends Entry> PagedResult<T> findPagedEntries(String baseDn, Class<T> entryClass, Filter filter, String sortBy, String defaultSortBy,
+                                                             SortOrder sortOrder, int startIndex, int count, int maxCount) {
+
+        if (configurationFactory.getScimTuningConfiguration().isServerSideSortSearch()) {
+            PagedResult<T> result=findServerSideSortedEntries(baseDn, entryClass, filter, sortBy==null ? defaultSortBy : sortBy,
+                    sortOrder, startIndex, Math.min(count, maxCount));
+            if (result!=null)
+                return result;
+        }
+        return ldapEntryManager.findPagedEntries(baseDn, entryClass, filter, null, sortBy, sortOrder, startIndex, count, maxCount);
+
+    }
+
+    private <T extends Entry> PagedResult<T> findServerSideSortedEntries(String baseDn, Class<T> entryClass, Filter filter, String sortBy,
+                                                                         SortOrder sortOrder, int startIndex, int count) {
+
+        if (Boolean.FALSE.equals(serverSideSortSupported))
+            return null;
+
+        PersistenceOperationService persistenceOperationService = ldapEntryManager.getOperationService();
+        if (!(persistenceOperationService instanceof LdapOperationService)) {
+            serverSideSortSupported=false;
+            return null;
+        }
+        LdapOperationService ldapOperationService = (LdapOperationService) persistenceOperationService;
+
+        //Persistence layer limits search to object classes of entry class too
+        Filter searchFilter=getObjectClassFilter(entryClass, filter);
+        SearchRequest searchRequest;
+        try {
+            searchRequest=new SearchRequest(baseDn, SearchScope.SUB, com.unboundid.ldap.sdk.Filter.create(searchFilter.toString()), NO_ATTRIBUTES);
+        }
+        catch (LDAPException e) {
+            log.warn("Failed to convert filter '{}', falling back to search without controls", searchFilter, e);
+            return null;
+        }
+        searchRequest.addControl(new ServerSideSortRequestControl(true, new SortKey(sortBy, SortOrder.DESCENDING.equals(sortOrder))));
+        //Virtual list view always returns target entry, so it's skipped when only total count was requested
+        searchRequest.addControl(new VirtualListViewRequestControl(startIndex, 0, Math.max(count - 1, 0), 0, null, true));
+
+        List<String> dns=new ArrayList<String>();
+        int total;
+        LDAPConnection connection=null;
+        try {
+            connection=ldapOperationService.getConnection();
+            if (serverSideSortSupported==null) {
+                serverSideSortSupported=isServerSideSortSupported(connection);
+                log.info("LDAP server supports server side sort and virtual list view controls: {}", serverSideSortSupported);
+                if (!serverSideSortSupported)
+                    return null;
+            }
+
+            SearchResult searchResult=connection.search(searchRequest);
+            VirtualListViewResponseControl vlvResponse=VirtualListViewResponseControl.get(searchResult);
+            //Server which ignores the control doesn't support it
+            if (vlvResponse==null || isControlNotSupported(vlvResponse.getResultCode())) {
+                disableServerSideSort(baseDn, null);
+                return null;
+            }
+            if (!ResultCode.SUCCESS.equals(vlvResponse.getResultCode())) {
+                log.warn("Server side sorted search of '{}' returned '{}', falling back to search without controls", baseDn, vlvResponse.getResultCode());
+                return null;
+            }
+
+            total=vlvResponse.getContentCount();
+            if (count>0 && startIndex<=total)
+                for (SearchResultEntry entry : searchResult.getSearchEntries())
+                    dns.add(entry.getDN());
+        }
+        catch (LDAPException e) {
+            //Server which rejects controls rejects them next time too. Other errors (e.g. sort attribute without ordering rule, time or
+            //size limit) concern this request only
+            if (isControlNotSupported(e.getResultCode()))
+                disableServerSideSort(baseDn, e);
+            else
+                log.warn("Server side sorted search of '{}' failed, falling back to search without controls", baseDn, e);
+            return null;
+        }
+        catch (Exception e) {
+            log.warn("Server side sorted search of '{}' failed, falling back to search without controls", baseDn, e);
+            return null;
+        }
+        finally {
+            if (connection!=null)
+                ldapOperationService.releaseConnection(connection);
+        }
+
+        PagedResult<T> result=new PagedResult<T>();
+        result.setEntries(findEntriesByDns(baseDn, entryClass, dns));
+        result.setTotalEntriesCount(total);
+        return result;
+
+    }
+
+    /**
+     * Loads entries of the page with single search by RDNs and returns them in the order of DNs. Entries removed after page was
+     * computed are skipped
+     */
+    private <T extends Entry> List<T> findEntriesByDns(String baseDn, Class<T> entryClass, List<String> dns) {
+
+        List<T> entries=new ArrayList<T>(dns.size());
+        List<DN> parsedDns=new ArrayList<DN>(dns.size());
+        List<Filter> rdnFilters=new ArrayList<Filter>(dns.size());
+        for (String dn : dns) {
+            try {
+                DN parsedDn=new DN(dn);
+                RDN rdn=parsedDn.getRDN();
+                List<Filter> rdnValueFilters=new ArrayList<Filter>();
+                for (int i=0; i<rdn.getAttributeNames().length; i++)
+                    rdnValueFilters.add(Filter.createEqualityFilter(rdn.getAttributeNames()[i], rdn.getAttributeValues()[i]));
+                rdnFilters.add(Filter.createANDFilter(rdnValueFilters));
+                parsedDns.add(parsedDn);
+            }
+            catch (LDAPException e) {
+                log.warn("Failed to parse DN '{}'", dn, e);
+            }
+        }
+        if (parsedDns.isEmpty())
+            return entries;
+
+        Map<DN, T> entriesByDn=new HashMap<DN, T>();
+        for (T entry : ldapEntryManager.findEntries(baseDn, entryClass, getObjectClassFilter(entryClass, Filter.createORFilter(rdnFilters)))) {
+            try {
+                entriesByDn.put(new DN(entry.getDn()), entry);
+            }
+            catch (LDAPException e) {
+                log.warn("Failed to parse DN of entry {}", entry, e);
+            }
+        }
+
+        for (DN dn : parsedDns) {
+            T entry=entriesByDn.get(dn);
+            if (entry==null)
+                log.debug("Entry '{}' was removed while search was executed", dn);
+            else
+                entries.add(entry);
+        }
+        return entries;
+
+    }
+
+    private Filter getObjectClassFilter(Class<?> entryClass, Filter filter) {
+
+        List<Filter> filters=new ArrayList<Filter>();
+        LdapObjectClass ldapObjectClass=entryClass.getAnnotation(LdapObjectClass.class);
+        if (ldapObjectClass!=null)
+            for (String objectClass : ldapObjectClass.values())
+                if (!TOP_OBJECT_CLASS.equalsIgnoreCase(objectClass))
+                    filters.add(Filter.createEqualityFilter(OxConstants.OBJECT_CLASS, objectClass));
+
+        if (filters.isEmpty())
+            return filter;
+
+        filters.add(filter);
+        return Filter.createANDFilter(filters);
+
+    }
+
+    private boolean isControlNotSupported(ResultCode resultCode) {
+        return ResultCode.UNAVAILABLE_CRITICAL_EXTENSION.equals(resultCode) || ResultCode.NOT_SUPPORTED.equals(resultCode);
+    }
+
+    private void disableServerSideSort(String baseDn, Exception e) {
+        serverSideSortSupported=false;
+        log.warn("Server side sorted search of '{}' failed, searches without controls will be used from now on", baseDn, e);
+    }
+
+    /**
+     * Executes tasks concurrently and returns their results in the same order as tasks. Failure of any task is thrown to the caller
+     */
+    public <T> List<T> executeConcurrently(List<Callable<T>> tasks) throws Exception {
+
+        List<Future<T>> futures=getExecutorService().invokeAll(tasks);
+        List<T> results=new ArrayList<T>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+        return results;
+
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+
+        destroyed=true;
+        if (executorService!=null) {
+            executorService.shutdownNow();
+            try {
+                if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    log.warn("Search threads did not terminate in {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+
+        if (destroyed)
+            throw new RejectedExecutionException("Search service was already destroyed");
+
+        if (executorService==null) {
+            //Daemon threads don't prevent JVM exit if container doesn't destroy this bean
+            executorService=Executors.newFixedThreadPool(configurationFactory.getScimTuningConfiguration().getResourcesSearchThreads(), new ThreadFactory() {
+                private final AtomicInteger threadNumber=new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread=new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executorService;
+
+    }
+
+    private boolean isServerSideSortSupported(LDAPConnection connection) throws Exception {
+        RootDSE rootDSE=connection.getRootDSE();
+        return rootDSE!=null && rootDSE.supportsControl(ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID)
+                && rootDSE.supportsControl(VirtualListViewRequestControl.VIRTUAL_LIST_VIEW_REQUEST_OID);
+    }
+
+}
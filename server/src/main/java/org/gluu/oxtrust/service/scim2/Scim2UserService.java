@@ -100,6 +100,9 @@ public class Scim2UserService implements Serializable {
     @Inject
     private PersistenceEntryManager ldapEntryManager;
 
+    @Inject
+    private Scim2SearchService scim2SearchService;
+
     private String[] getComplexMultivaluedAsArray(List items){
 
         String array[]=null;
@@ -524,8 +527,8 @@ public class Scim2UserService implements Serializable {
         log.info("Executing search for users using: ldapfilter '{}', sortBy '{}', sortOrder '{}', startIndex '{}', count '{}'",
                 ldapFilter.toString(), sortBy, sortOrder.getValue(), startIndex, count);
 
-        PagedResult<GluuCustomPerson> list=ldapEntryManager.findPagedEntries(personService.getDnForPerson(null),
-                GluuCustomPerson.class, ldapFilter, null, sortBy, sortOrder, startIndex, count, maxCount);
+        PagedResult<GluuCustomPerson> list=scim2SearchService.findPagedEntries(personService.getDnForPerson(null),
+                GluuCustomPerson.class, ldapFilter, sortBy, "inum", sortOrder, startIndex, count, maxCount);
         List<BaseScimResource> resources=new ArrayList<BaseScimResource>();
 
         for (GluuCustomPerson person : list.getEntries()){
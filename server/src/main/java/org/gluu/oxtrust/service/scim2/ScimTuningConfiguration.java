@@ -0,0 +1,138 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.scim2;
+
+import java.io.Serializable;
+
+import org.xdi.util.StringHelper;
+import org.xdi.util.properties.FileConfiguration;
+
+/**
+ * SCIM performance tuning settings loaded from oxTrustScim.properties
+ *
+ * All settings are optional. Default values preserve original SCIM behavior.
+ */
+public class ScimTuningConfiguration implements Serializable {
+
+    private static final long serialVersionUID = 3207412260487719530L;
+
+    public static final String SERVER_SIDE_SORT_SEARCH = "serverSideSortSearch";
+    public static final String PARALLEL_RESOURCES_SEARCH = "parallelResourcesSearch";
+    public static final String RESOURCES_SEARCH_THREADS = "resourcesSearchThreads";
+    public static final String STREAMING_LIST_RESPONSE = "streamingListResponse";
+    public static final String PROJECTION_PLAN_TTL = "projectionPlanTtl";
+
+    private static final int DEFAULT_RESOURCES_SEARCH_THREADS = 8;
+    private static final int DEFAULT_PROJECTION_PLAN_TTL_SECONDS = 60;
+
+    private boolean serverSideSortSearch;
+    private boolean parallelResourcesSearch;
+    private int resourcesSearchThreads;
+    private boolean streamingListResponse;
+    private int projectionPlanTtl;
+
+    public ScimTuningConfiguration() {
+        this(null);
+    }
+
+    public ScimTuningConfiguration(FileConfiguration fileConfiguration) {
+        // Use LDAP server side sort and virtual list view controls if backend supports them
+        this.serverSideSortSearch = getBoolean(fileConfiguration, SERVER_SIDE_SORT_SEARCH, false);
+        this.parallelResourcesSearch = getBoolean(fileConfiguration, PARALLEL_RESOURCES_SEARCH, false);
+        // Threads are shared by all /.search requests. Pool is created at first use, change requires restart
+        this.resourcesSearchThreads = getPositiveInt(fileConfiguration, RESOURCES_SEARCH_THREADS, DEFAULT_RESOURCES_SEARCH_THREADS);
+        // Write search results straight to response stream instead of building JSON string
+        this.streamingListResponse = getBoolean(fileConfiguration, STREAMING_LIST_RESPONSE, false);
+        // Seconds. Bounds use of plans built before extensions were changed on another cluster node
+        this.projectionPlanTtl = getPositiveInt(fileConfiguration, PROJECTION_PLAN_TTL, DEFAULT_PROJECTION_PLAN_TTL_SECONDS);
+    }
+
+    public boolean isServerSideSortSearch() {
+        return serverSideSortSearch;
+    }
+
+    public void setServerSideSortSearch(boolean serverSideSortSearch) {
+        this.serverSideSortSearch = serverSideSortSearch;
+    }
+
+    public boolean isParallelResourcesSearch() {
+        return parallelResourcesSearch;
+    }
+
+    public void setParallelResourcesSearch(boolean parallelResourcesSearch) {
+        this.parallelResourcesSearch = parallelResourcesSearch;
+    }
+
+    public int getResourcesSearchThreads() {
+        return resourcesSearchThreads;
+    }
+
+    public void setResourcesSearchThreads(int resourcesSearchThreads) {
+        this.resourcesSearchThreads = resourcesSearchThreads;
+    }
+
+    public boolean isStreamingListResponse() {
+        return streamingListResponse;
+    }
+
+    public void setStreamingListResponse(boolean streamingListResponse) {
+        this.streamingListResponse = streamingListResponse;
+    }
+
+    public int getProjectionPlanTtl() {
+        return projectionPlanTtl;
+    }
+
+    public void setProjectionPlanTtl(int projectionPlanTtl) {
+        this.projectionPlanTtl = projectionPlanTtl;
+    }
+
+    private static boolean getBoolean(FileConfiguration fileConfiguration, String key, boolean defaultValue) {
+        String value = getString(fileConfiguration, key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+
+    private static int getPositiveInt(FileConfiguration fileConfiguration, String key, int defaultValue) {
+        String value = getString(fileConfiguration, key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            int result = Integer.parseInt(value);
+            return result > 0 ? result : defaultValue;
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private static String getString(FileConfiguration fileConfiguration, String key) {
+        if (fileConfiguration == null) {
+            return null;
+        }
+
+        String value = fileConfiguration.getString(key, null);
+        if (StringHelper.isEmpty(value)) {
+            return null;
+        }
+
+        return value.trim();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("ScimTuningConfiguration [serverSideSortSearch=").append(serverSideSortSearch).append(", parallelResourcesSearch=").append(parallelResourcesSearch)
+                .append(", resourcesSearchThreads=").append(resourcesSearchThreads)
+                .append(", streamingListResponse=").append(streamingListResponse).append(", projectionPlanTtl=").append(projectionPlanTtl).append("]");
+        return builder.toString();
+    }
+
+}
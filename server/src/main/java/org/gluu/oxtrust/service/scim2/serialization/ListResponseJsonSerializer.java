@@ -13,7 +13,6 @@ import org.apache.logging.log4j.Logger;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.JsonSerializer;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializerProvider;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.model.scim2.ListResponse;
@@ -25,8 +24,6 @@ public class ListResponseJsonSerializer extends JsonSerializer<ListResponse> {
 
     private Logger log = LogManager.getLogger(getClass());
     private ScimResourceSerializer resourceSerializer;
-    private ObjectMapper mapper = new ObjectMapper();
-
     private String attributes;
     private String excludeAttributes;
     private boolean skipResults;
@@ -74,10 +71,8 @@ public class ListResponseJsonSerializer extends JsonSerializer<ListResponse> {
                     jGen.writeArrayFieldStart("Resources");
 
                     if (listResponse.getResources().size()>0)
-                        for (BaseScimResource resource : listResponse.getResources()) {
-                            JsonNode jsonResource = mapper.readTree(resourceSerializer.serialize(resource, attributes, excludeAttributes));
-                            jGen.writeTree(jsonResource);
-                        }
+                        for (BaseScimResource resource : listResponse.getResources())
+                            resourceSerializer.serialize(resource, attributes, excludeAttributes, jGen);
                     else
                     if (jsonResources != null)
                         for (JsonNode node : jsonResources)
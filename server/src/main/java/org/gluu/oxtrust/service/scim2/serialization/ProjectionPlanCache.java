@@ -0,0 +1,94 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.scim2.serialization;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.gluu.oxtrust.config.ConfigurationFactory;
+import org.gluu.oxtrust.model.scim2.BaseScimResource;
+import org.gluu.oxtrust.service.cdi.event.EventType;
+import org.gluu.oxtrust.service.cdi.event.Events;
+import org.slf4j.Logger;
+import org.xdi.util.Pair;
+
+/**
+ * Keeps the attribute projection plans (sets of attribute paths to include) computed by {@link ScimResourceSerializer}.
+ * Plans are keyed by resource class, schemas of the resource, attributes, excluded attributes and version of extension
+ * schemas. Version changes whenever attributes are added, updated or removed on this node, so plans built from old
+ * extensions are not used anymore. Changes made on other nodes of a cluster are not notified here, so plans also expire
+ * after projectionPlanTtl seconds (see oxTrustScim.properties).
+ */
+@ApplicationScoped
+@Named
+public class ProjectionPlanCache {
+
+    //Max number of plans kept
+    private static final int PLAN_CACHE_SIZE = 500;
+
+    @Inject
+    private Logger log;
+
+    @Inject
+    private ConfigurationFactory configurationFactory;
+
+    private AtomicLong extensionsVersion = new AtomicLong();
+
+    //Least recently used plans are evicted
+    private Map<String, Pair<Long, SortedSet<String>>> planCache = Collections.synchronizedMap(new LinkedHashMap<String, Pair<Long, SortedSet<String>>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pair<Long, SortedSet<String>>> eldest) {
+            return size() > PLAN_CACHE_SIZE;
+        }
+    });
+
+    /**
+     * Returns the key of the plan. Version of extensions has to be read before extensions are loaded to build the plan
+     */
+    public String getKey(Class<? extends BaseScimResource> resourceClass, List<String> schemas, String attributes, String exclusions){
+        return resourceClass.getName() + "|" + schemas + "|" + attributes + "|" + exclusions + "|" + extensionsVersion.get();
+    }
+
+    /**
+     * Returns the plan, or null if there is no plan for the key or the plan expired
+     */
+    public SortedSet<String> get(String key){
+
+        Pair<Long, SortedSet<String>> entry=planCache.get(key);
+        if (entry==null)
+            return null;
+
+        long ttl=configurationFactory.getScimTuningConfiguration().getProjectionPlanTtl() * 1000L;
+        if (System.currentTimeMillis() - entry.getFirst() >= ttl) {
+            planCache.remove(key);
+            return null;
+        }
+        return entry.getSecond();
+
+    }
+
+    public void put(String key, SortedSet<String> plan){
+        planCache.put(key, new Pair<Long, SortedSet<String>>(System.currentTimeMillis(), Collections.unmodifiableSortedSet(plan)));
+    }
+
+    public void clearPlans(@Observes @EventType(Events.EVENT_CLEAR_ATTRIBUTES) Events event){
+
+        log.debug("Removing attribute projection plans");
+        extensionsVersion.incrementAndGet();
+        planCache.clear();
+
+    }
+
+}
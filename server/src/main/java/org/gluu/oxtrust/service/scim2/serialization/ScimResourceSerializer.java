@@ -5,6 +5,8 @@
  */
 package org.gluu.oxtrust.service.scim2.serialization;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -19,6 +21,8 @@ import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.Version;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.module.SimpleModule;
@@ -44,6 +48,9 @@ public class ScimResourceSerializer {
     @Inject
     private ExtensionService extService;
 
+    @Inject
+    private ProjectionPlanCache planCache;
+
     private ObjectMapper mapper=new ObjectMapper();
 
     private Set<String> expandAttributesPaths(String attributes, String defaultSchemaUrn, List<String> schemas, SortedSet<String> attribs) {
@@ -200,11 +207,19 @@ public class ScimResourceSerializer {
 
     }
 
-    public String serialize(BaseScimResource resource, String attributes, String exclusions) throws Exception{
+    private LinkedHashMap<String, Object> project(BaseScimResource resource, String attributes, String exclusions){
 
-        SortedSet<String> include =new TreeSet<String>();
         Class<? extends BaseScimResource> resourceClass=resource.getClass();
-        buildIncludeSet(include, resourceClass, new ArrayList<String>(resource.getSchemas()), attributes, exclusions);
+        List<String> schemas=new ArrayList<String>(resource.getSchemas());
+
+        //Resources of a search page share the plan, so it's built once instead of per resource
+        String key=planCache.getKey(resourceClass, schemas, attributes, exclusions);
+        SortedSet<String> include=planCache.get(key);
+        if (include==null) {
+            include=new TreeSet<String>();
+            buildIncludeSet(include, resourceClass, schemas, attributes, exclusions);
+            planCache.put(key, include);
+        }
         log.debug("serialize. Attributes to include: {}", include);
 
         //Do generic serialization. This works for any POJO (not only subclasses of BaseScimResource)
@@ -213,12 +228,29 @@ public class ScimResourceSerializer {
         LinkedHashMap<String, Object> newMap=new LinkedHashMap<String, Object>();
         traverse("", map, newMap, include);
 
-        String result=mapper.writeValueAsString(newMap);
+        return newMap;
+    }
+
+    public String serialize(BaseScimResource resource, String attributes, String exclusions) throws Exception{
+
+        String result=mapper.writeValueAsString(project(resource, attributes, exclusions));
         log.debug("serialize. Output is {}", result);
 
         return result;
     }
 
+    /**
+     * Writes the resource to the generator applying attributes/exclusions, without producing an intermediate String. The
+     * generator must have a codec, like those created by ObjectMappers or {@link #createJsonGenerator(OutputStream)}
+     */
+    public void serialize(BaseScimResource resource, String attributes, String exclusions, JsonGenerator jGen) throws Exception{
+        jGen.writeObject(project(resource, attributes, exclusions));
+    }
+
+    public JsonGenerator createJsonGenerator(OutputStream output) throws IOException{
+        return mapper.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+    }
+
     public String serialize(BaseScimResource resource) throws Exception{
         return serialize(resource, null, null);
     }
@@ -19,6 +19,9 @@ public final class OxTrustApiConstants {
 	public static final String INACTIVE = "/inactive";
 	public static final String CONFIGURATION = "/configuration";
 	public static final String STATUS = "/status";
+	public static final String CACHE_REFRESH = "/cacherefresh";
+	public static final String METRICS = "/metrics";
+	public static final String HISTORY = "/history";
 	public static final String UMA = "/uma";
 	public static final String RESOURCES = "/resources";
 	public static final String INUM_PARAM_PATH = "/{inum}";
@@ -10,6 +10,7 @@ import static org.gluu.oxtrust.model.scim2.Constants.PATCH_REQUEST_SCHEMA_ID;
 import static org.gluu.oxtrust.model.scim2.Constants.SEARCH_REQUEST_SCHEMA_ID;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.util.Date;
 import java.util.List;
@@ -17,11 +18,14 @@ import java.util.List;
 import javax.inject.Inject;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.Version;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.module.SimpleModule;
+import org.gluu.oxtrust.config.ConfigurationFactory;
 import org.gluu.oxtrust.model.exception.SCIMException;
 import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.model.scim2.ErrorResponse;
@@ -64,6 +68,9 @@ public class BaseScimWebService {
     @Inject
     ExtensionService extService;
 
+    @Inject
+    ConfigurationFactory configurationFactory;
+
     public static final String SEARCH_SUFFIX = ".search";
 
     String endpointUrl;
@@ -214,6 +221,42 @@ public class BaseScimWebService {
 
     }
 
+    /**
+     * Returns the list response as an entity written straight to the response stream: resources are serialized one by one
+     * through a single generator instead of building the whole JSON document in memory first
+     */
+    StreamingOutput getListResponseStreamed(int total, int startIndex, List<BaseScimResource> resources, String attrsList,
+                                            String excludedAttrsList, boolean ignoreResults){
+
+        final ListResponse listResponse = new ListResponse(startIndex, resources.size(), total);
+        listResponse.setResources(resources);
+
+        final ListResponseJsonSerializer serializer = new ListResponseJsonSerializer(resourceSerializer, attrsList, excludedAttrsList, ignoreResults);
+        return new StreamingOutput() {
+            public void write(OutputStream output) throws IOException {
+                JsonGenerator jGen = resourceSerializer.createJsonGenerator(output);
+                serializer.serialize(listResponse, jGen, null);
+                //Do not close the generator, container owns the output stream
+                jGen.flush();
+            }
+        };
+
+    }
+
+    /**
+     * Returns the entity of a search response: a StreamingOutput if streamingListResponse is enabled in SCIM tuning
+     * configuration, otherwise the serialized String
+     */
+    Object getListResponseEntity(int total, int startIndex, List<BaseScimResource> resources, String attrsList,
+                                 String excludedAttrsList, boolean ignoreResults) throws IOException{
+
+        if (configurationFactory.getScimTuningConfiguration().isStreamingListResponse())
+            return getListResponseStreamed(total, startIndex, resources, attrsList, excludedAttrsList, ignoreResults);
+        else
+            return getListResponseSerialized(total, startIndex, resources, attrsList, excludedAttrsList, ignoreResults);
+
+    }
+
     protected Response inspectPatchRequest(PatchRequest patch, Class<? extends BaseScimResource> cls){
 
         Response response=null;
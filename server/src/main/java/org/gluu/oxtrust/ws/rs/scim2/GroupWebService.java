@@ -226,8 +226,8 @@ public class GroupWebService extends BaseScimWebService implements IGroupWebServ
             PagedResult<BaseScimResource> resources = scim2GroupService.searchGroups(filter, sortBy, SortOrder.getByValue(sortOrder),
                     startIndex, count, endpointUrl, userWebService.getEndpointUrl(), getMaxCount());
 
-            String json = getListResponseSerialized(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
-            response=Response.ok(json).location(new URI(endpointUrl)).build();
+            Object entity = getListResponseEntity(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
+            response=Response.ok(entity).location(new URI(endpointUrl)).build();
         }
         catch (SCIMException e){
             log.error(e.getMessage(), e);
@@ -9,10 +9,13 @@ import static javax.ws.rs.core.Response.Status.OK;
 import static org.gluu.oxtrust.model.scim2.Constants.MEDIA_TYPE_SCIM_JSON;
 import static org.gluu.oxtrust.model.scim2.Constants.UTF8_CHARSET_FRAGMENT;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -25,11 +28,13 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.Version;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.module.SimpleModule;
+import org.gluu.oxtrust.model.scim2.BaseScimResource;
 import org.gluu.oxtrust.model.scim2.ListResponse;
 import org.gluu.oxtrust.model.scim2.SearchRequest;
 import org.gluu.oxtrust.model.scim2.fido.FidoDeviceResource;
@@ -37,8 +42,13 @@ import org.gluu.oxtrust.model.scim2.group.GroupResource;
 import org.gluu.oxtrust.model.scim2.user.UserResource;
 import org.gluu.oxtrust.model.scim2.util.ScimResourceUtil;
 import org.gluu.oxtrust.service.filter.ProtectedApi;
+import org.gluu.oxtrust.service.scim2.Scim2GroupService;
+import org.gluu.oxtrust.service.scim2.Scim2SearchService;
+import org.gluu.oxtrust.service.scim2.Scim2UserService;
 import org.gluu.oxtrust.service.scim2.interceptor.RefAdjusted;
 import org.gluu.oxtrust.service.scim2.serialization.ListResponseJsonSerializer;
+import org.gluu.persist.model.PagedResult;
+import org.gluu.persist.model.SortOrder;
 import org.xdi.util.Pair;
 
 import com.wordnik.swagger.annotations.ApiOperation;
@@ -62,6 +72,15 @@ public class SearchResourcesWebService extends BaseScimWebService {
     @Inject
     private FidoDeviceWebService fidoWS;
 
+    @Inject
+    private Scim2UserService scim2UserService;
+
+    @Inject
+    private Scim2GroupService scim2GroupService;
+
+    @Inject
+    private Scim2SearchService scim2SearchService;
+
     private ObjectMapper mapper=null;
 
     private int NUM_RESOURCE_TYPES;
@@ -84,23 +103,32 @@ public class SearchResourcesWebService extends BaseScimWebService {
 
         if (response == null) {
             try {
-                List<JsonNode> resources = new ArrayList<JsonNode>();
-                Pair<Integer, Integer> totals = computeResults(searchReq, resources);
-
-                ListResponseJsonSerializer custSerializer = new ListResponseJsonSerializer(resourceSerializer, searchReq.getAttributesStr(),
-                        searchReq.getExcludedAttributesStr(), searchReq.getCount() == 0);
-                if (resources.size() > 0)
-                    custSerializer.setJsonResources(resources);
-
-                ObjectMapper objmapper = new ObjectMapper();
-                SimpleModule module = new SimpleModule("ListResponseModule", Version.unknownVersion());
-                module.addSerializer(ListResponse.class, custSerializer);
-                objmapper.registerModule(module);
-
-                //Provide to constructor original start index, and totals calculated in computeResults call
-                ListResponse listResponse = new ListResponse(searchReq.getStartIndex(), totals.getFirst(), totals.getSecond());
-                String json = objmapper.writeValueAsString(listResponse);
-                response = Response.ok(json).location(new URI(endpointUrl)).build();
+                Object entity;
+                if (configurationFactory.getScimTuningConfiguration().isParallelResourcesSearch()) {
+                    List<BaseScimResource> resources = new ArrayList<BaseScimResource>();
+                    int totalResults = computeResultsConcurrently(searchReq, resources);
+                    entity = getListResponseEntity(totalResults, searchReq.getStartIndex(), resources, searchReq.getAttributesStr(),
+                            searchReq.getExcludedAttributesStr(), searchReq.getCount() == 0);
+                }
+                else {
+                    List<JsonNode> resources = new ArrayList<JsonNode>();
+                    Pair<Integer, Integer> totals = computeResults(searchReq, resources);
+
+                    ListResponseJsonSerializer custSerializer = new ListResponseJsonSerializer(resourceSerializer, searchReq.getAttributesStr(),
+                            searchReq.getExcludedAttributesStr(), searchReq.getCount() == 0);
+                    if (resources.size() > 0)
+                        custSerializer.setJsonResources(resources);
+
+                    ObjectMapper objmapper = new ObjectMapper();
+                    SimpleModule module = new SimpleModule("ListResponseModule", Version.unknownVersion());
+                    module.addSerializer(ListResponse.class, custSerializer);
+                    objmapper.registerModule(module);
+
+                    //Provide to constructor original start index, and totals calculated in computeResults call
+                    ListResponse listResponse = new ListResponse(searchReq.getStartIndex(), totals.getFirst(), totals.getSecond());
+                    entity = objmapper.writeValueAsString(listResponse);
+                }
+                response = Response.ok(entity).location(new URI(endpointUrl)).build();
             }
             catch (Exception e){
                 log.error("Failure at search method", e);
@@ -204,6 +232,99 @@ public class SearchResourcesWebService extends BaseScimWebService {
 
     }
 
+    /**
+     * Counterpart of computeResults that queries the service layer directly and produces no intermediate JSON. Per resource
+     * type searches are executed concurrently in two rounds. First round returns the page of users (users start the result set)
+     * and only totals of other resource types. Second round loads slices of other resource types the page reaches. Resources
+     * keep the order of computeResults (grouped by resource type)
+     * @param searchRequest
+     * @param resources List where resources of the page are added
+     * @return Total number of results across all resource types
+     */
+    private int computeResultsConcurrently(SearchRequest searchRequest, List<BaseScimResource> resources) throws Exception{
+
+        int startIndex=searchRequest.getStartIndex();
+        int count=searchRequest.getCount();
+
+        List<Callable<PagedResult<BaseScimResource>>> tasks=new ArrayList<Callable<PagedResult<BaseScimResource>>>();
+        for (int i=0; i<NUM_RESOURCE_TYPES; i++)
+            tasks.add(getSearchTask(i, searchRequest, i==0 ? startIndex : 1, i==0 ? count : 0));
+        List<PagedResult<BaseScimResource>> firstResults=scim2SearchService.executeConcurrently(tasks);
+
+        int totals[]=new int[NUM_RESOURCE_TYPES];
+        int totalResults=0;
+        for (int i=0; i<NUM_RESOURCE_TYPES; i++) {
+            totals[i]=firstResults.get(i).getTotalEntriesCount();
+            totalResults+=totals[i];
+        }
+
+        if (count>0) {
+            List<BaseScimResource> userEntries=firstResults.get(0).getEntries();
+            resources.addAll(userEntries.subList(0, Math.min(count, userEntries.size())));
+
+            //Resource type i holds results offset+1..offset+totals[i] of the whole result set
+            tasks.clear();
+            int offset=totals[0], remaining=count - resources.size();
+            for (int i=1; i<NUM_RESOURCE_TYPES && remaining>0; i++) {
+                int localStartIndex=Math.max(startIndex - offset, 1);
+                int localCount=Math.min(remaining, totals[i] - localStartIndex + 1);
+
+                if (localCount>0) {
+                    tasks.add(getSearchTask(i, searchRequest, localStartIndex, localCount));
+                    remaining-=localCount;
+                }
+                offset+=totals[i];
+            }
+
+            if (tasks.size()>0)
+                for (PagedResult<BaseScimResource> result : scim2SearchService.executeConcurrently(tasks))
+                    resources.addAll(result.getEntries());
+        }
+        return totalResults;
+
+    }
+
+    /**
+     * Returns a task that searches resources of the given type through the service layer. The slice requested is validated
+     * the same way decorators of web services validate search requests. Task fails if validation or search fails
+     * @param index Determines the resource type: (0 - user; 1 - group; 2 - fido device)
+     */
+    private Callable<PagedResult<BaseScimResource>> getSearchTask(final int index, final SearchRequest searchRequest, final int startIndex,
+                                                                 final int count){
+
+        final String usersUrl=userWS.getEndpointUrl();
+        final String groupsUrl=groupWS.getEndpointUrl();
+        final String fidoDevicesUrl=fidoWS.getEndpointUrl();
+        final int maxCount=getMaxCount();
+
+        return new Callable<PagedResult<BaseScimResource>>() {
+            public PagedResult<BaseScimResource> call() throws Exception {
+                log.debug("getSearchTask. Resource type is: {}", ScimResourceUtil.getType(resourceClasses[index]));
+
+                SearchRequest searchReq=new SearchRequest();
+                Response response=prepareSearchRequest(searchRequest.getSchemas(), searchRequest.getFilter(), searchRequest.getSortBy(),
+                        searchRequest.getSortOrder(), startIndex, count, searchRequest.getAttributesStr(),
+                        searchRequest.getExcludedAttributesStr(), searchReq);
+                if (response!=null)
+                    throw new Exception("Search request validation returned " + response.getStatus());
+
+                String filter=searchReq.getFilter();
+                String sortBy=translateSortByAttribute(resourceClasses[index], searchReq.getSortBy());
+                SortOrder sortOrder=SortOrder.getByValue(searchReq.getSortOrder());
+                switch (index) {
+                    case 0:
+                        return scim2UserService.searchUsers(filter, sortBy, sortOrder, searchReq.getStartIndex(), searchReq.getCount(), usersUrl, maxCount);
+                    case 1:
+                        return scim2GroupService.searchGroups(filter, sortBy, sortOrder, searchReq.getStartIndex(), searchReq.getCount(), groupsUrl,
+                                usersUrl, maxCount);
+                    default:
+                        return fidoWS.searchDevices(null, filter, sortBy, sortOrder, searchReq.getStartIndex(), searchReq.getCount(), fidoDevicesUrl);
+                }
+            }
+        };
+
+    }
+
     /**
      * Returns a JsonNode with the response obtained from sending a POST to a search method given the SearchRequest passed
      * @param index Determines the concrete search method to be executed: (0 - user; 1 - group; 2 - fido device)
@@ -232,7 +353,13 @@ public class SearchResourcesWebService extends BaseScimWebService {
                 throw new Exception("Intermediate POST search returned " + r.getStatus());
 
             //readEntity does not work here since data is not backed by an input stream, so we just get the raw entity
-            String jsonStr = r.getEntity().toString();
+            Object entity = r.getEntity();
+            if (entity instanceof StreamingOutput) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ((StreamingOutput) entity).write(bos);
+                return mapper.readTree(new ByteArrayInputStream(bos.toByteArray()));
+            }
+            String jsonStr = entity.toString();
             return mapper.readTree(jsonStr);
         }
         catch (Exception e){
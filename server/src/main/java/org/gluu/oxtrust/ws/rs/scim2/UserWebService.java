@@ -228,8 +228,8 @@ public class UserWebService extends BaseScimWebService implements IUserWebServic
             PagedResult<BaseScimResource> resources = scim2UserService.searchUsers(filter, sortBy, SortOrder.getByValue(sortOrder),
                     startIndex, count, endpointUrl, getMaxCount());
 
-            String json = getListResponseSerialized(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
-            response=Response.ok(json).location(new URI(endpointUrl)).build();
+            Object entity = getListResponseEntity(resources.getTotalEntriesCount(), startIndex, resources.getEntries(), attrsList, excludedAttrsList, count==0);
+            response=Response.ok(entity).location(new URI(endpointUrl)).build();
         }
         catch (SCIMException e){
             log.error(e.getMessage(), e);
@@ -257,7 +257,7 @@ public class UserWebService extends BaseScimWebService implements IUserWebServic
 
         //Calling searchUsers here does not provoke that method's interceptor/decorator being called (only this one's)
         URI uri=null;
-        Response response = searchUsers(searchRequest.getFilter(),searchRequest.getStartIndex(), searchRequest.getCount(),
+        Response response = searchUsers(searchRequest.getFilter(), searchRequest.getStartIndex(), searchRequest.getCount(),
                 searchRequest.getSortBy(), searchRequest.getSortOrder(), searchRequest.getAttributesStr(), searchRequest.getExcludedAttributesStr());
 
         try {
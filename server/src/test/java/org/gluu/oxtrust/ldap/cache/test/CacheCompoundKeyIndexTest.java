@@ -0,0 +1,103 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKeyIndex;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.testng.annotations.Test;
+
+public class CacheCompoundKeyIndexTest {
+
+	@Test
+	public void testPutAssignsDenseIds() {
+		CacheCompoundKeyIndex index = new CacheCompoundKeyIndex();
+
+		assertEquals(index.put(createKey("jdoe"), createInumMap("@!1111")), 0);
+		assertEquals(index.put(createKey("asmith"), createInumMap("@!2222")), 1);
+		assertEquals(index.size(), 2);
+
+		assertEquals(index.indexOf(createKey("asmith")), 1);
+		assertEquals(index.indexOf(createKey("unknown")), -1);
+		assertEquals(index.get(createKey("jdoe")).getInum(), "@!1111");
+		assertNull(index.get(createKey("unknown")));
+		assertEquals(index.getKey(1), createKey("asmith"));
+		assertEquals(index.getInumMap(1).getInum(), "@!2222");
+	}
+
+	@Test
+	public void testPutReplacesInumMap() {
+		CacheCompoundKeyIndex index = new CacheCompoundKeyIndex();
+		index.put(createKey("jdoe"), createInumMap("@!1111"));
+
+		assertEquals(index.put(createKey("jdoe"), createInumMap("@!3333")), 0);
+		assertEquals(index.size(), 1);
+		assertEquals(index.get(createKey("jdoe")).getInum(), "@!3333");
+	}
+
+	@Test
+	public void testCompoundKeys() {
+		CacheCompoundKeyIndex index = new CacheCompoundKeyIndex();
+		index.put(new CacheCompoundKey(new String[] { "jdoe" }, new String[] { "jdoe@example.com" }, null), createInumMap("@!1111"));
+		index.put(new CacheCompoundKey(new String[] { "jdoe" }, new String[] { "john@example.com" }, null), createInumMap("@!2222"));
+
+		assertEquals(index.size(), 2);
+		assertEquals(index.get(new CacheCompoundKey(new String[] { "jdoe" }, new String[] { "john@example.com" }, null)).getInum(), "@!2222");
+		assertNull(index.get(new CacheCompoundKey(new String[] { "jdoe" }, null, null)));
+	}
+
+	@Test
+	public void testResize() {
+		CacheCompoundKeyIndex index = new CacheCompoundKeyIndex(2);
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(index.put(createKey("user" + i), createInumMap("@!" + i)), i);
+		}
+
+		assertEquals(index.size(), 10000);
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(index.indexOf(createKey("user" + i)), i);
+			assertEquals(index.get(createKey("user" + i)).getInum(), "@!" + i);
+		}
+	}
+
+	@Test
+	public void testGetKeys() {
+		CacheCompoundKeyIndex index = new CacheCompoundKeyIndex();
+		for (int i = 0; i < 10; i++) {
+			index.put(createKey("user" + i), createInumMap("@!" + i));
+		}
+
+		Set<String> inums = new HashSet<String>();
+		inums.add("@!3");
+		inums.add("@!7");
+		inums.add("@!unknown");
+
+		Map<String, CacheCompoundKey> keys = index.getKeys(inums);
+		assertEquals(keys.size(), 2);
+		assertEquals(keys.get("@!3"), createKey("user3"));
+		assertEquals(keys.get("@!7"), createKey("user7"));
+	}
+
+	private static CacheCompoundKey createKey(String uid) {
+		return new CacheCompoundKey(new String[][] { { uid } });
+	}
+
+	private static GluuInumMap createInumMap(String inum) {
+		GluuInumMap inumMap = new GluuInumMap();
+		inumMap.setInum(inum);
+
+		return inumMap;
+	}
+
+}
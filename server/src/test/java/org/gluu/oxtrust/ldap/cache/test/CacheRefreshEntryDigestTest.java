@@ -0,0 +1,90 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshEntryDigest;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.model.GluuCustomAttribute;
+import org.testng.annotations.Test;
+
+public class CacheRefreshEntryDigestTest {
+
+	// Digest of the same entry calculated by previous versions
+	private static final long STABLE_DIGEST = 0x21C60EC65798B3D9L;
+
+	@Test
+	public void testDigestDoesNotDependOnAttributesOrder() {
+		GluuSimplePerson person1 = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("uid", "jdoe"),
+				new GluuCustomAttribute("mail", new String[] { "jdoe@example.com", "john@example.com" }), new GluuCustomAttribute("sn", "Doe"));
+		GluuSimplePerson person2 = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("sn", "Doe"),
+				new GluuCustomAttribute("uid", "jdoe"), new GluuCustomAttribute("mail", new String[] { "john@example.com", "jdoe@example.com" }));
+
+		assertEquals(CacheRefreshEntryDigest.digest(person1), CacheRefreshEntryDigest.digest(person2));
+	}
+
+	@Test
+	public void testDigestIgnoresCaseOfDnAndAttributeNames() {
+		GluuSimplePerson person1 = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("givenName", "John"));
+		GluuSimplePerson person2 = createPerson("UID=jdoe,OU=People,O=Gluu", new GluuCustomAttribute("givenname", "John"));
+
+		assertEquals(CacheRefreshEntryDigest.digest(person1), CacheRefreshEntryDigest.digest(person2));
+	}
+
+	@Test
+	public void testDigestIgnoresAttributesWithoutValues() {
+		GluuSimplePerson person1 = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("uid", "jdoe"));
+		GluuSimplePerson person2 = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("uid", "jdoe"),
+				new GluuCustomAttribute("mail", new String[0]), new GluuCustomAttribute("sn", (String[]) null));
+
+		assertEquals(CacheRefreshEntryDigest.digest(person1), CacheRefreshEntryDigest.digest(person2));
+	}
+
+	@Test
+	public void testDigestDependsOnValues() {
+		GluuSimplePerson person = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("cn", "John Doe"));
+		GluuSimplePerson changedValuePerson = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("cn", "John Doe2"));
+		GluuSimplePerson changedCasePerson = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("cn", "john doe"));
+		GluuSimplePerson splitValuePerson = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("cn", new String[] { "John", " Doe" }));
+		GluuSimplePerson movedValuePerson = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("sn", "John Doe"));
+
+		long digest = CacheRefreshEntryDigest.digest(person);
+		assertNotEquals(CacheRefreshEntryDigest.digest(changedValuePerson), digest);
+		assertNotEquals(CacheRefreshEntryDigest.digest(changedCasePerson), digest);
+		assertNotEquals(CacheRefreshEntryDigest.digest(splitValuePerson), digest);
+		assertNotEquals(CacheRefreshEntryDigest.digest(movedValuePerson), digest);
+	}
+
+	@Test
+	public void testDigestIsStable() {
+		// Digests are persisted in snapshots. Changed digest function forces update of all target entries
+		GluuSimplePerson person = createPerson("uid=jdoe,ou=people,o=gluu", new GluuCustomAttribute("uid", "jdoe"),
+				new GluuCustomAttribute("mail", new String[] { "jdoe@example.com", "john@example.com" }), new GluuCustomAttribute("sn", "Doe"));
+
+		assertEquals(CacheRefreshEntryDigest.digest(person), CacheRefreshEntryDigest.digest(person));
+		assertEquals(CacheRefreshEntryDigest.digest(person), STABLE_DIGEST);
+	}
+
+	private static GluuSimplePerson createPerson(String dn, GluuCustomAttribute... attributes) {
+		List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>();
+		for (GluuCustomAttribute attribute : attributes) {
+			customAttributes.add(attribute);
+		}
+
+		GluuSimplePerson person = new GluuSimplePerson();
+		person.setDn(dn);
+		person.setCustomAttributes(customAttributes);
+
+		return person;
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.gluu.oxtrust.ldap.cache.model.GluuInumMap;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshInumCacheFileService;
+import org.gluu.persist.model.base.GluuStatus;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CacheRefreshInumCacheFileServiceTest {
+
+	private File inumCacheFolder;
+	private String inumCachePath;
+	private CacheRefreshInumCacheFileService cacheRefreshInumCacheFileService;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		inumCacheFolder = Files.createTempDirectory("cache-refresh-inum-cache").toFile();
+		inumCachePath = new File(inumCacheFolder, "inum-cache.dat").getAbsolutePath();
+
+		cacheRefreshInumCacheFileService = new CacheRefreshInumCacheFileService();
+		Field logField = CacheRefreshInumCacheFileService.class.getDeclaredField("log");
+		logField.setAccessible(true);
+		logField.set(cacheRefreshInumCacheFileService, LoggerFactory.getLogger(CacheRefreshInumCacheFileService.class));
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		FileUtils.deleteQuietly(inumCacheFolder);
+	}
+
+	@Test
+	public void testLoadWithoutFile() {
+		assertNull(cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath));
+		assertTrue(cacheRefreshInumCacheFileService.isCompactionNeeded(inumCachePath));
+	}
+
+	@Test
+	public void testSaveAndLoad() {
+		List<GluuInumMap> inumMaps = new ArrayList<GluuInumMap>();
+		for (int i = 0; i < 1000; i++) {
+			inumMaps.add(createInumMap(i));
+		}
+		// Values which columnar format encodes specially
+		GluuInumMap emptyInumMap = new GluuInumMap();
+		emptyInumMap.setInum("@!empty");
+		inumMaps.add(emptyInumMap);
+
+		assertTrue(cacheRefreshInumCacheFileService.saveInumMaps(inumCachePath, inumMaps));
+
+		assertInumMaps(cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath), inumMaps);
+		assertFalse(cacheRefreshInumCacheFileService.isCompactionNeeded(inumCachePath));
+	}
+
+	@Test
+	public void testAppendChanges() {
+		List<GluuInumMap> inumMaps = new ArrayList<GluuInumMap>();
+		for (int i = 0; i < 10; i++) {
+			inumMaps.add(createInumMap(i));
+		}
+		assertTrue(cacheRefreshInumCacheFileService.saveInumMaps(inumCachePath, inumMaps));
+
+		GluuInumMap changedInumMap = createInumMap(3);
+		changedInumMap.setStatus(GluuStatus.INACTIVE);
+		assertTrue(cacheRefreshInumCacheFileService.appendInumMapsChanges(inumCachePath, Arrays.asList(createInumMap(10), changedInumMap),
+				Arrays.asList("@!1")));
+		assertTrue(cacheRefreshInumCacheFileService.appendInumMapsChanges(inumCachePath, Collections.<GluuInumMap> emptyList(),
+				Arrays.asList("@!10")));
+
+		List<GluuInumMap> expected = new ArrayList<GluuInumMap>(inumMaps);
+		expected.remove(1);
+		expected.set(2, changedInumMap);
+
+		assertInumMaps(cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath), expected);
+	}
+
+	@Test
+	public void testNotCommittedBatchIsIgnored() throws IOException {
+		List<GluuInumMap> inumMaps = Arrays.asList(createInumMap(0), createInumMap(1));
+		assertTrue(cacheRefreshInumCacheFileService.saveInumMaps(inumCachePath, inumMaps));
+		assertTrue(cacheRefreshInumCacheFileService.appendInumMapsChanges(inumCachePath, Arrays.asList(createInumMap(2)),
+				Collections.<String> emptyList()));
+
+		// Cut commit mark of the batch like interrupted write does
+		RandomAccessFile journalFile = new RandomAccessFile(inumCachePath + ".journal", "rw");
+		try {
+			journalFile.setLength(journalFile.length() - 1);
+		} finally {
+			journalFile.close();
+		}
+
+		assertInumMaps(cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath), inumMaps);
+	}
+
+	@Test
+	public void testBrokenFileIsRemoved() throws IOException {
+		FileUtils.writeStringToFile(new File(inumCachePath), "broken", "UTF-8");
+
+		assertNull(cacheRefreshInumCacheFileService.loadInumMaps(inumCachePath));
+		assertFalse(new File(inumCachePath).exists());
+	}
+
+	private static GluuInumMap createInumMap(int index) {
+		GluuInumMap inumMap = new GluuInumMap();
+		inumMap.setDn("inum=@!" + index + ",ou=inumMap,o=gluu");
+		inumMap.setInum("@!" + index);
+		inumMap.setStatus(GluuStatus.ACTIVE);
+		inumMap.setPrimaryKeyAttrName("uid");
+		inumMap.setPrimaryKeyValues(new String[] { "user" + index });
+		if (index % 2 == 0) {
+			inumMap.setSecondaryKeyAttrName("mail");
+			inumMap.setSecondaryKeyValues(new String[] { "user" + index + "@example.com", "user" + index + "@example.org" });
+		}
+
+		return inumMap;
+	}
+
+	private static void assertInumMaps(List<GluuInumMap> inumMaps, List<GluuInumMap> expected) {
+		assertEquals(inumMaps.size(), expected.size());
+
+		Map<String, GluuInumMap> inumMapsByInum = new HashMap<String, GluuInumMap>();
+		for (GluuInumMap inumMap : inumMaps) {
+			inumMapsByInum.put(inumMap.getInum(), inumMap);
+		}
+
+		for (GluuInumMap expectedInumMap : expected) {
+			GluuInumMap inumMap = inumMapsByInum.get(expectedInumMap.getInum());
+			assertEquals(inumMap.getDn(), expectedInumMap.getDn());
+			assertEquals(inumMap.getStatus(), expectedInumMap.getStatus());
+			assertEquals(inumMap.getPrimaryKeyAttrName(), expectedInumMap.getPrimaryKeyAttrName());
+			assertEquals(inumMap.getPrimaryKeyValues(), expectedInumMap.getPrimaryKeyValues());
+			assertEquals(inumMap.getSecondaryKeyAttrName(), expectedInumMap.getSecondaryKeyAttrName());
+			assertEquals(inumMap.getSecondaryKeyValues(), expectedInumMap.getSecondaryKeyValues());
+			assertEquals(inumMap.getTertiaryKeyAttrName(), expectedInumMap.getTertiaryKeyAttrName());
+			assertEquals(inumMap.getTertiaryKeyValues(), expectedInumMap.getTertiaryKeyValues());
+		}
+	}
+
+}
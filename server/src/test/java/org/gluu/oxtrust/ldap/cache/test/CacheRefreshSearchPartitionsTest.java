@@ -0,0 +1,90 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSearchPartitions;
+import org.testng.annotations.Test;
+
+public class CacheRefreshSearchPartitionsTest {
+
+	@Test
+	public void testDefaultPartitions() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("abc", 100);
+
+		assertEquals(searchPartitions.getPartitions("source1", "o=gluu"), new String[] { "a", "b", "c" });
+	}
+
+	@Test
+	public void testSplit() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("abc", 100);
+
+		assertEquals(searchPartitions.split("b"), new String[] { "ba", "bb", "bc", "=b" });
+		assertEquals(searchPartitions.split("ba"), new String[] { "baa", "bab", "bac", "=ba" });
+		assertEquals(searchPartitions.getSearchesCount(), 2);
+	}
+
+	@Test
+	public void testIsSplitNeeded() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("abc", 100);
+
+		assertTrue(searchPartitions.isSplitNeeded("a", 100));
+		assertFalse(searchPartitions.isSplitNeeded("a", 99));
+		// Exact value can't be split
+		assertFalse(searchPartitions.isSplitNeeded("=a", 100));
+		// Prefix length is limited
+		assertFalse(searchPartitions.isSplitNeeded("aaaaaa", 100));
+		// Searches without size limit are never split
+		assertFalse(new CacheRefreshSearchPartitions("abc", 0).isSplitNeeded("a", 100));
+	}
+
+	@Test
+	public void testExactMatch() {
+		assertTrue(CacheRefreshSearchPartitions.isExactMatch("=ab"));
+		assertFalse(CacheRefreshSearchPartitions.isExactMatch("ab"));
+		assertEquals(CacheRefreshSearchPartitions.getKeyAttributeStart("=ab"), "ab");
+		assertEquals(CacheRefreshSearchPartitions.getKeyAttributeStart("ab"), "ab");
+	}
+
+	@Test
+	public void testLearnedPartitions() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("ab", 100);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "=a", 1);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "aa", 90);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "ab", 20);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "b", 30);
+
+		assertEquals(searchPartitions.getPartitions("source1", "o=gluu"), new String[] { "=a", "aa", "ab", "b" });
+		// Partitions are learned per source server and base DN
+		assertEquals(searchPartitions.getPartitions("source2", "o=gluu"), new String[] { "a", "b" });
+	}
+
+	@Test
+	public void testSmallSiblingPartitionsAreMerged() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("ab", 100);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "=a", 1);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "aa", 20);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "ab", 20);
+		searchPartitions.addLearnedPartition("source1", "o=gluu", "b", 30);
+
+		assertEquals(searchPartitions.getPartitions("source1", "o=gluu"), new String[] { "a", "b" });
+	}
+
+	@Test
+	public void testCurrentRunPartitions() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("ab", 100);
+		searchPartitions.addPartition("source1", "o=gluu", "a", 10);
+		searchPartitions.addPartition("source1", "o=gluu", "b", 20);
+
+		assertEquals(searchPartitions.getPartitions().get("source1").get("o=gluu").get("b"), Integer.valueOf(20));
+		assertEquals(searchPartitions.getSearchesCount(), 2);
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.gluu.oxtrust.ldap.cache.test.CacheRefreshSnapshotTest.assertSnapshot;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSearchPartitions;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshot;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshTuningConfiguration;
+import org.gluu.oxtrust.ldap.cache.service.CacheRefreshSnapshotFileService;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.xdi.config.oxtrust.CacheRefreshConfiguration;
+
+public class CacheRefreshSnapshotFileServiceTest {
+
+	private File snapshotFolder;
+	private CacheRefreshConfiguration cacheRefreshConfiguration;
+	private CacheRefreshSnapshotFileService cacheRefreshSnapshotFileService;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		snapshotFolder = Files.createTempDirectory("cache-refresh-snapshots").toFile();
+
+		cacheRefreshConfiguration = new CacheRefreshConfiguration();
+		cacheRefreshConfiguration.setSnapshotFolder(snapshotFolder.getAbsolutePath());
+
+		cacheRefreshSnapshotFileService = new CacheRefreshSnapshotFileService();
+		Field logField = CacheRefreshSnapshotFileService.class.getDeclaredField("log");
+		logField.setAccessible(true);
+		logField.set(cacheRefreshSnapshotFileService, LoggerFactory.getLogger(CacheRefreshSnapshotFileService.class));
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		FileUtils.deleteQuietly(snapshotFolder);
+	}
+
+	@Test
+	public void testTextSnapshotRoundTrip() {
+		CacheRefreshSnapshot snapshot = createSnapshot(1000, 0);
+
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, new CacheRefreshTuningConfiguration(), snapshot));
+
+		assertSnapshot(cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration), snapshot);
+	}
+
+	@Test
+	public void testBinarySnapshotRoundTrip() {
+		CacheRefreshSnapshot snapshot = createSnapshot(1000, 0);
+
+		assertTrue(cacheRefreshSnapshotFileService.createBinarySnapshot(cacheRefreshConfiguration, snapshot, false));
+		assertSnapshot(cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration), snapshot);
+	}
+
+	@Test
+	public void testCompressedBinarySnapshotRoundTrip() {
+		CacheRefreshSnapshot snapshot = createSnapshot(1000, 0);
+
+		assertTrue(cacheRefreshSnapshotFileService.createBinarySnapshot(cacheRefreshConfiguration, snapshot, true));
+		assertSnapshot(cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration), snapshot);
+	}
+
+	@Test
+	public void testDeltaSnapshotsChain() {
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = new CacheRefreshTuningConfiguration();
+		cacheRefreshTuningConfiguration.setBinarySnapshot(true);
+		cacheRefreshTuningConfiguration.setDeltaSnapshot(true);
+
+		CacheRefreshSnapshot snapshot1 = createSnapshot(1000, 0);
+		CacheRefreshSnapshot snapshot2 = createSnapshot(1000, 1);
+		CacheRefreshSnapshot snapshot3 = createSnapshot(1010, 2);
+
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, null, snapshot1));
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, snapshot1, snapshot2));
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, snapshot2, snapshot3));
+
+		// One full snapshot and two delta snapshots
+		List<String> snapshotPoints = cacheRefreshSnapshotFileService.getSnapshotPoints(cacheRefreshConfiguration);
+		assertEquals(snapshotPoints.size(), 3);
+
+		assertSnapshot(cacheRefreshSnapshotFileService.readSnapshotAt(cacheRefreshConfiguration, snapshotPoints.get(0)), snapshot1);
+		assertSnapshot(cacheRefreshSnapshotFileService.readSnapshotAt(cacheRefreshConfiguration, snapshotPoints.get(1)), snapshot2);
+		assertSnapshot(cacheRefreshSnapshotFileService.readSnapshotAt(cacheRefreshConfiguration, snapshotPoints.get(2)), snapshot3);
+		assertSnapshot(cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration), snapshot3);
+	}
+
+	@Test
+	public void testDeltaSnapshotsCompaction() {
+		CacheRefreshTuningConfiguration cacheRefreshTuningConfiguration = new CacheRefreshTuningConfiguration();
+		cacheRefreshTuningConfiguration.setDeltaSnapshot(true);
+		cacheRefreshTuningConfiguration.setSnapshotCompactionInterval(1);
+
+		CacheRefreshSnapshot snapshot1 = createSnapshot(1000, 0);
+		CacheRefreshSnapshot snapshot2 = createSnapshot(1000, 1);
+		CacheRefreshSnapshot snapshot3 = createSnapshot(1000, 2);
+
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, null, snapshot1));
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, snapshot1, snapshot2));
+		assertTrue(cacheRefreshSnapshotFileService.createSnapshot(cacheRefreshConfiguration, cacheRefreshTuningConfiguration, snapshot2, snapshot3));
+
+		// Full snapshot replaced previous one and its delta snapshot in the same minute or was added after them
+		List<String> snapshotPoints = cacheRefreshSnapshotFileService.getSnapshotPoints(cacheRefreshConfiguration);
+		assertFalse(snapshotPoints.get(snapshotPoints.size() - 1).endsWith(".delta"));
+		assertSnapshot(cacheRefreshSnapshotFileService.readLastSnapshot(cacheRefreshConfiguration), snapshot3);
+	}
+
+	@Test
+	public void testRetainSnapshots() throws IOException {
+		String snapshot1 = "inum-snapshot-2000-01-01-00-00.txt";
+		String snapshot2 = "inum-snapshot-2000-01-02-00-00.dat";
+		createFiles(snapshot1, snapshot1 + ".000001-2000-01-01-01-00.delta", snapshot1 + ".000002-2000-01-01-02-00.delta", snapshot2,
+				snapshot2 + ".000001-2000-01-02-01-00.delta");
+
+		// Full snapshot is removed only together with its delta snapshots
+		assertTrue(cacheRefreshSnapshotFileService.retainSnapshots(cacheRefreshConfiguration, 3));
+		assertEquals(cacheRefreshSnapshotFileService.getSnapshotPoints(cacheRefreshConfiguration).size(), 5);
+
+		assertTrue(cacheRefreshSnapshotFileService.retainSnapshots(cacheRefreshConfiguration, 2));
+		assertEquals(cacheRefreshSnapshotFileService.getSnapshotPoints(cacheRefreshConfiguration),
+				Arrays.asList(snapshot2, snapshot2 + ".000001-2000-01-02-01-00.delta"));
+	}
+
+	@Test
+	public void testSearchPartitionsRoundTrip() {
+		CacheRefreshSearchPartitions searchPartitions = new CacheRefreshSearchPartitions("ab", 100);
+		searchPartitions.addPartition("source1", "ou=people,o=gluu", "=a", 1);
+		searchPartitions.addPartition("source1", "ou=people,o=gluu", "aa", 100);
+		searchPartitions.addPartition("source1", "ou=people,o=gluu", "ab", 10);
+		searchPartitions.addPartition("source1", "ou=people,o=gluu", "b", 20);
+
+		assertTrue(cacheRefreshSnapshotFileService.writeSearchPartitions(cacheRefreshConfiguration, searchPartitions));
+
+		CacheRefreshSearchPartitions learnedSearchPartitions = cacheRefreshSnapshotFileService.readSearchPartitions(cacheRefreshConfiguration, "ab", 100);
+		assertEquals(learnedSearchPartitions.getPartitions("source1", "ou=people,o=gluu"), new String[] { "=a", "aa", "ab", "b" });
+		assertEquals(learnedSearchPartitions.getPartitions("source2", "ou=people,o=gluu"), new String[] { "a", "b" });
+	}
+
+	@Test
+	public void testSearchPartitionsWithoutFile() {
+		CacheRefreshSearchPartitions searchPartitions = cacheRefreshSnapshotFileService.readSearchPartitions(cacheRefreshConfiguration, "ab", 100);
+
+		assertEquals(searchPartitions.getPartitions("source1", "o=gluu"), new String[] { "a", "b" });
+	}
+
+	private CacheRefreshSnapshot createSnapshot(int size, int version) {
+		// Hash codes of version * 10 percent of entries depend on version
+		Map<String, Long> inumWithEntryHashCodeMap = new HashMap<String, Long>();
+		for (int i = 0; i < size; i++) {
+			long hashCode = i * 0x9E3779B97F4A7C15L;
+			if (i % 100 < version * 10) {
+				hashCode += version;
+			}
+			inumWithEntryHashCodeMap.put("@!1234.ABCD!0001!" + i, hashCode);
+		}
+
+		return CacheRefreshSnapshot.fromMap(inumWithEntryHashCodeMap);
+	}
+
+	private void createFiles(String... fileNames) throws IOException {
+		for (String fileName : fileNames) {
+			FileUtils.touch(new File(snapshotFolder, fileName));
+		}
+	}
+
+}
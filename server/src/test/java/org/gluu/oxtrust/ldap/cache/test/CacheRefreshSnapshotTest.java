@@ -0,0 +1,135 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshot;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSnapshotDelta;
+import org.gluu.oxtrust.ldap.cache.model.InumHashCodeMap;
+import org.testng.annotations.Test;
+
+public class CacheRefreshSnapshotTest {
+
+	@Test
+	public void testFromMap() {
+		Map<String, Long> inumWithEntryHashCodeMap = new HashMap<String, Long>();
+		inumWithEntryHashCodeMap.put("@!3333", 3L);
+		inumWithEntryHashCodeMap.put("@!1111", 1L);
+		inumWithEntryHashCodeMap.put("@!2222", 2L);
+
+		CacheRefreshSnapshot snapshot = CacheRefreshSnapshot.fromMap(inumWithEntryHashCodeMap);
+
+		assertSnapshot(snapshot, new String[] { "@!1111", "@!2222", "@!3333" }, new long[] { 1L, 2L, 3L });
+		assertEquals(snapshot.indexOf("@!2222"), 1);
+		assertEquals(snapshot.indexOf("@!4444"), -1);
+		assertTrue(snapshot.contains("@!3333"));
+		assertFalse(snapshot.contains("@!4444"));
+		assertEquals(snapshot.toMap(), inumWithEntryHashCodeMap);
+	}
+
+	@Test
+	public void testFromInumHashCodeMap() {
+		Map<String, Long> inumWithEntryHashCodeMap = new HashMap<String, Long>();
+		InumHashCodeMap inumHashCodeMap = new InumHashCodeMap();
+		for (int i = 0; i < 1000; i++) {
+			inumWithEntryHashCodeMap.put("@!" + i, i * 7L);
+			inumHashCodeMap.put("@!" + i, i * 7L);
+		}
+
+		CacheRefreshSnapshot expected = CacheRefreshSnapshot.fromMap(inumWithEntryHashCodeMap);
+		CacheRefreshSnapshot snapshot = CacheRefreshSnapshot.fromMap(inumHashCodeMap);
+
+		assertSnapshot(snapshot, expected);
+	}
+
+	@Test
+	public void testMerge() {
+		CacheRefreshSnapshot snapshot = createSnapshot(new String[] { "@!1111", "@!3333" }, new long[] { 1L, 3L });
+
+		InumHashCodeMap changes = new InumHashCodeMap();
+		changes.put("@!2222", 2L);
+		changes.put("@!3333", 33L);
+
+		assertSnapshot(snapshot.merge(changes), new String[] { "@!1111", "@!2222", "@!3333" }, new long[] { 1L, 2L, 33L });
+	}
+
+	@Test
+	public void testUnion() {
+		CacheRefreshSnapshot snapshot1 = createSnapshot(new String[] { "@!1111", "@!4444" }, new long[] { 1L, 4L });
+		CacheRefreshSnapshot snapshot2 = createSnapshot(new String[] { "@!2222", "@!3333", "@!5555" }, new long[] { 2L, 3L, 5L });
+		CacheRefreshSnapshot snapshot3 = createSnapshot(new String[0], new long[0]);
+
+		CacheRefreshSnapshot snapshot = CacheRefreshSnapshot.union(Arrays.asList(snapshot1, snapshot2, snapshot3));
+
+		assertSnapshot(snapshot, new String[] { "@!1111", "@!2222", "@!3333", "@!4444", "@!5555" }, new long[] { 1L, 2L, 3L, 4L, 5L });
+	}
+
+	@Test
+	public void testDeltaCreate() {
+		CacheRefreshSnapshot prevSnapshot = createSnapshot(new String[] { "@!1111", "@!2222", "@!3333" }, new long[] { 1L, 2L, 3L });
+		CacheRefreshSnapshot currSnapshot = createSnapshot(new String[] { "@!2222", "@!3333", "@!4444" }, new long[] { 2L, 33L, 4L });
+
+		CacheRefreshSnapshotDelta delta = CacheRefreshSnapshotDelta.create(prevSnapshot, currSnapshot);
+
+		assertSnapshot(delta.getChanges(), new String[] { "@!3333", "@!4444" }, new long[] { 33L, 4L });
+		assertEquals(delta.getRemovedInums(), new String[] { "@!1111" });
+		assertEquals(delta.size(), 3);
+	}
+
+	@Test
+	public void testDeltaOfEqualSnapshotsIsEmpty() {
+		CacheRefreshSnapshot snapshot = createSnapshot(new String[] { "@!1111", "@!2222" }, new long[] { 1L, 2L });
+
+		assertEquals(CacheRefreshSnapshotDelta.create(snapshot, snapshot).size(), 0);
+	}
+
+	@Test
+	public void testDeltaApply() {
+		Map<String, Long> prevInumWithEntryHashCodeMap = new HashMap<String, Long>();
+		Map<String, Long> currInumWithEntryHashCodeMap = new HashMap<String, Long>();
+		for (int i = 0; i < 1000; i++) {
+			// Every third entry is removed, every fifth is changed and new entries are added
+			if (i % 3 != 0) {
+				prevInumWithEntryHashCodeMap.put("@!" + i, (long) i);
+			}
+			if (i < 900) {
+				currInumWithEntryHashCodeMap.put("@!" + i, i % 5 == 0 ? -i : (long) i);
+			}
+		}
+		CacheRefreshSnapshot prevSnapshot = CacheRefreshSnapshot.fromMap(prevInumWithEntryHashCodeMap);
+		CacheRefreshSnapshot currSnapshot = CacheRefreshSnapshot.fromMap(currInumWithEntryHashCodeMap);
+
+		CacheRefreshSnapshotDelta delta = CacheRefreshSnapshotDelta.create(prevSnapshot, currSnapshot);
+
+		assertSnapshot(delta.apply(prevSnapshot), currSnapshot);
+		assertSnapshot(CacheRefreshSnapshotDelta.create(currSnapshot, prevSnapshot).apply(currSnapshot), prevSnapshot);
+	}
+
+	static CacheRefreshSnapshot createSnapshot(String[] inums, long[] hashCodes) {
+		return new CacheRefreshSnapshot(inums, hashCodes);
+	}
+
+	static void assertSnapshot(CacheRefreshSnapshot snapshot, CacheRefreshSnapshot expected) {
+		assertEquals(snapshot.size(), expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(snapshot.getInum(i), expected.getInum(i));
+			assertEquals(snapshot.getHashCode(i), expected.getHashCode(i));
+		}
+	}
+
+	static void assertSnapshot(CacheRefreshSnapshot snapshot, String[] inums, long[] hashCodes) {
+		assertSnapshot(snapshot, createSnapshot(inums, hashCodes));
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gluu.oxtrust.ldap.cache.model.CacheCompoundKey;
+import org.gluu.oxtrust.ldap.cache.model.CacheRefreshSourceEntryStore;
+import org.gluu.oxtrust.ldap.cache.model.GluuSimplePerson;
+import org.gluu.oxtrust.model.GluuCustomAttribute;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CacheRefreshSourceEntryStoreTest {
+
+	private File storeFile;
+	private CacheRefreshSourceEntryStore sourceEntryStore;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		storeFile = File.createTempFile("cache-refresh-source-entries", ".dat");
+		sourceEntryStore = new CacheRefreshSourceEntryStore(storeFile);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		sourceEntryStore.close();
+	}
+
+	@Test
+	public void testPutAndGet() throws IOException {
+		List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>();
+		customAttributes.add(new GluuCustomAttribute("uid", "jdoe"));
+		customAttributes.add(new GluuCustomAttribute("cn", new String[] { "John Doe", "J\u00f6hn D\u00f8e", null }));
+		customAttributes.add(new GluuCustomAttribute("mail", (String[]) null));
+
+		GluuSimplePerson person = new GluuSimplePerson();
+		person.setDn("uid=jdoe,ou=people,o=gluu");
+		person.setSourceServerName("source1");
+		person.setCustomAttributes(customAttributes);
+
+		sourceEntryStore.put(createKey("jdoe"), person);
+
+		GluuSimplePerson storedPerson = sourceEntryStore.get(createKey("jdoe"));
+		assertEquals(storedPerson.getDn(), "uid=jdoe,ou=people,o=gluu");
+		assertEquals(storedPerson.getSourceServerName(), "source1");
+
+		List<GluuCustomAttribute> storedCustomAttributes = storedPerson.getCustomAttributes();
+		assertEquals(storedCustomAttributes.size(), 3);
+		assertEquals(storedCustomAttributes.get(0).getName(), "uid");
+		assertEquals(storedCustomAttributes.get(0).getValues(), new String[] { "jdoe" });
+		assertEquals(storedCustomAttributes.get(1).getName(), "cn");
+		assertEquals(storedCustomAttributes.get(1).getValues(), new String[] { "John Doe", "J\u00f6hn D\u00f8e", null });
+		assertEquals(storedCustomAttributes.get(2).getName(), "mail");
+		assertNull(storedCustomAttributes.get(2).getValues());
+	}
+
+	@Test
+	public void testGetMissingEntry() throws IOException {
+		sourceEntryStore.put(createKey("jdoe"), createPerson("jdoe", null));
+
+		assertNull(sourceEntryStore.get(createKey("asmith")));
+		assertNull(sourceEntryStore.get(createKey("jdoe")).getSourceServerName());
+	}
+
+	@Test
+	public void testPutReplacesEntry() throws IOException {
+		sourceEntryStore.put(createKey("jdoe"), createPerson("jdoe", "source1"));
+		sourceEntryStore.put(createKey("jdoe"), createPerson("jdoe", "source2"));
+
+		assertEquals(sourceEntryStore.size(), 1);
+		assertEquals(sourceEntryStore.get(createKey("jdoe")).getSourceServerName(), "source2");
+	}
+
+	@Test
+	public void testManyEntries() throws IOException {
+		for (int i = 0; i < 1000; i++) {
+			sourceEntryStore.put(createKey("user" + i), createPerson("user" + i, "source1"));
+		}
+		sourceEntryStore.remove(createKey("user5"));
+
+		assertEquals(sourceEntryStore.size(), 999);
+		assertTrue(sourceEntryStore.getFileSize() > 0);
+		assertNull(sourceEntryStore.get(createKey("user5")));
+		for (int i = 998; i >= 0; i -= 7) {
+			assertEquals(sourceEntryStore.get(createKey("user" + i)).getDn(), "uid=user" + i + ",ou=people,o=gluu");
+		}
+	}
+
+	@Test
+	public void testCloseRemovesFile() {
+		sourceEntryStore.close();
+
+		assertTrue(sourceEntryStore.isClosed());
+		assertFalse(storeFile.exists());
+	}
+
+	private static CacheCompoundKey createKey(String uid) {
+		return new CacheCompoundKey(new String[][] { { uid } });
+	}
+
+	private static GluuSimplePerson createPerson(String uid, String sourceServerName) {
+		List<GluuCustomAttribute> customAttributes = new ArrayList<GluuCustomAttribute>();
+		customAttributes.add(new GluuCustomAttribute("uid", uid));
+
+		GluuSimplePerson person = new GluuSimplePerson();
+		person.setDn("uid=" + uid + ",ou=people,o=gluu");
+		person.setSourceServerName(sourceServerName);
+		person.setCustomAttributes(customAttributes);
+
+		return person;
+	}
+
+}
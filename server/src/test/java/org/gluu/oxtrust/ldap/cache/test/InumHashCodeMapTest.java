@@ -0,0 +1,83 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2014, Gluu
+ */
+
+package org.gluu.oxtrust.ldap.cache.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gluu.oxtrust.ldap.cache.model.InumHashCodeMap;
+import org.testng.annotations.Test;
+
+public class InumHashCodeMapTest {
+
+	@Test
+	public void testPutAndGet() {
+		InumHashCodeMap map = new InumHashCodeMap();
+		assertTrue(map.isEmpty());
+
+		map.put("@!1111", 1L);
+		map.put("@!2222", -2L);
+
+		assertEquals(map.size(), 2);
+		assertTrue(map.containsKey("@!1111"));
+		assertFalse(map.containsKey("@!3333"));
+		assertEquals(map.get("@!1111", 0L), 1L);
+		assertEquals(map.get("@!2222", 0L), -2L);
+		assertEquals(map.get("@!3333", 42L), 42L);
+	}
+
+	@Test
+	public void testPutReplacesValue() {
+		InumHashCodeMap map = new InumHashCodeMap();
+		map.put("@!1111", 1L);
+		map.put("@!1111", Long.MAX_VALUE);
+
+		assertEquals(map.size(), 1);
+		assertEquals(map.get("@!1111", 0L), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testResize() {
+		InumHashCodeMap map = new InumHashCodeMap(4);
+		Map<String, Long> expected = new HashMap<String, Long>();
+		for (int i = 0; i < 10000; i++) {
+			map.put("@!" + i, i * 31L);
+			expected.put("@!" + i, i * 31L);
+		}
+
+		assertEquals(map.size(), expected.size());
+		for (Map.Entry<String, Long> entry : expected.entrySet()) {
+			assertEquals(map.get(entry.getKey(), -1L), entry.getValue().longValue());
+		}
+	}
+
+	@Test
+	public void testSlotsIteration() {
+		InumHashCodeMap map = new InumHashCodeMap();
+		for (int i = 0; i < 100; i++) {
+			map.put("@!" + i, i);
+		}
+
+		Map<String, Long> entries = new HashMap<String, Long>();
+		for (int slot = 0; slot < map.capacity(); slot++) {
+			String inum = map.getKey(slot);
+			if (inum != null) {
+				entries.put(inum, map.getValue(slot));
+			}
+		}
+
+		assertEquals(entries.size(), 100);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(entries.get("@!" + i).longValue(), i);
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * oxTrust is available under the MIT License (2008). See http://opensource.org/licenses/MIT for full text.
+ *
+ * Copyright (c) 2017, Gluu
+ */
+package org.gluu.oxtrust.service.antlr.scimFilter.test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gluu.oxtrust.service.antlr.scimFilter.util.FilterUtil;
+import org.testng.annotations.Test;
+
+public class FilterUtilTest {
+
+    @Test
+    public void testParameterize() {
+        List<String> compValues=new ArrayList<String>();
+        String template=FilterUtil.parameterize("userName eq \"jdoe\" and displayName co \"John D\"", compValues);
+
+        assertEquals(template, "userName eq \"\" and displayName co \"\"");
+        assertEquals(compValues, Arrays.asList("\"jdoe\"", "\"John D\""));
+    }
+
+    @Test
+    public void testFiltersWithDifferentValuesShareTemplate() {
+        List<String> compValues1=new ArrayList<String>();
+        List<String> compValues2=new ArrayList<String>();
+
+        assertEquals(FilterUtil.parameterize("emails.value ew \"@example.com\"", compValues1),
+                FilterUtil.parameterize("emails.value ew \"@gluu.org\"", compValues2));
+        assertEquals(compValues2, Arrays.asList("\"@gluu.org\""));
+    }
+
+    @Test
+    public void testParameterizeKeepsOtherValues() {
+        List<String> compValues=new ArrayList<String>();
+        String filter="active eq true and meta.lastModified gt \"2018-01-01T00:00:00Z\" and x.count lt 5";
+
+        assertEquals(FilterUtil.parameterize(filter, compValues), "active eq true and meta.lastModified gt \"\" and x.count lt 5");
+        assertEquals(compValues, Arrays.asList("\"2018-01-01T00:00:00Z\""));
+    }
+
+    @Test
+    public void testParameterizeWithoutStrings() {
+        List<String> compValues=new ArrayList<String>();
+
+        assertEquals(FilterUtil.parameterize("active eq true", compValues), "active eq true");
+        assertTrue(compValues.isEmpty());
+    }
+
+    @Test
+    public void testParameterizeUnterminatedString() {
+        //Unterminated string is left for parser to report
+        List<String> compValues=new ArrayList<String>();
+
+        assertEquals(FilterUtil.parameterize("userName eq \"jdoe\" or name.givenName eq \"Jo", compValues),
+                "userName eq \"\" or name.givenName eq \"Jo");
+        assertEquals(compValues, Arrays.asList("\"jdoe\""));
+    }
+
+}